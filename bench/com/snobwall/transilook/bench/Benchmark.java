@@ -0,0 +1,43 @@
+package com.snobwall.transilook.bench;
+
+/**
+ * A single measured operation for {@link BenchmarkRunner}.
+ * 
+ * @author mrb
+ *
+ */
+public abstract class Benchmark {
+
+    private final String name;
+
+    protected Benchmark(String name) {
+        super();
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setUp() throws Exception {
+    }
+
+    public void tearDown() throws Exception {
+    }
+
+    /**
+     * Perform the operation {@code ops} times.
+     * 
+     * @return anything derived from the results, so the JIT cannot discard
+     *         the work
+     */
+    public abstract long run(int ops) throws Exception;
+
+    /**
+     * @return the most bytes the measuring thread may allocate per operation
+     *         before the run counts as a regression, or -1 for no limit
+     */
+    public long maxAllocatedBytesPerOp() {
+        return -1;
+    }
+}
@@ -0,0 +1,223 @@
+package com.snobwall.transilook.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CharStreams;
+
+/**
+ * Runs the benchmark suite and writes the results as JSON, or compares two
+ * such result files.
+ * 
+ * <pre>
+ * java -cp bin:libs/* com.snobwall.transilook.bench.BenchmarkRunner [-o results.json] [name-filter]
+ * java -cp bin:libs/* com.snobwall.transilook.bench.BenchmarkRunner -compare before.json after.json
+ * </pre>
+ * 
+ * Each benchmark is calibrated so an iteration takes about
+ * {@value #TARGET_ITERATION_MILLIS}ms, warmed up, then measured. Allocation
+ * per operation is taken from the JVM's per-thread allocation counter where
+ * available; benchmarks that declare an allocation limit fail the run when
+ * they exceed it.
+ * 
+ * @author mrb
+ *
+ */
+public class BenchmarkRunner {
+
+    private static final int TARGET_ITERATION_MILLIS = 200;
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 10;
+
+    /** Allowance per operation for the runner's own bookkeeping between iterations. */
+    private static final double ALLOCATION_TOLERANCE = 0.01;
+
+    private static final Pattern RESULT = Pattern.compile("\\{\\s*\"name\"\\s*:\\s*\"([^\"]*)\"\\s*,\\s*\"nsPerOp\"\\s*:\\s*([-0-9.eE]+)");
+
+    public static List<Benchmark> suite() {
+        List<Benchmark> suite = new ArrayList<Benchmark>();
+        suite.addAll(ProjectionBenchmarks.all());
+        suite.addAll(TileGridBenchmarks.all());
+        suite.addAll(TileCacheBenchmarks.all());
+        suite.addAll(MetricsBenchmarks.all());
+        suite.addAll(DecodeBenchmarks.all());
+        suite.addAll(VectorBenchmarks.all());
+        suite.addAll(PaintBenchmarks.all());
+        suite.addAll(StaticMapBenchmarks.all());
+        suite.addAll(TransportBenchmarks.all());
+        suite.addAll(GtfsBenchmarks.all());
+        return suite;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+
+        if (args.length == 3 && args[0].equals("-compare")) {
+            compare(new File(args[1]), new File(args[2]));
+            return;
+        }
+
+        File output = new File("bench-results.json");
+        String filter = "";
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o") && i + 1 < args.length) {
+                output = new File(args[++i]);
+            } else {
+                filter = args[i];
+            }
+        }
+
+        List<Result> results = new ArrayList<Result>();
+        boolean failed = false;
+        for (Benchmark b : suite()) {
+            if (!b.getName().contains(filter)) {
+                continue;
+            }
+            Result r = measure(b);
+            results.add(r);
+            System.out.println(String.format(Locale.ROOT, "%-48s %14.1f ns/op  (+- %.1f)  %10.1f B/op", r.name, r.nsPerOp, r.stdDevNsPerOp,
+                    r.allocatedBytesPerOp));
+
+            if (b.maxAllocatedBytesPerOp() >= 0 && r.allocatedBytesPerOp > b.maxAllocatedBytesPerOp() + ALLOCATION_TOLERANCE) {
+                System.out.println("  ALLOCATION REGRESSION: limit is " + b.maxAllocatedBytesPerOp() + " B/op");
+                failed = true;
+            }
+        }
+
+        write(results, output);
+        System.out.println("Wrote " + output);
+        if (failed) {
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    public static Result measure(Benchmark b) throws Exception {
+        b.setUp();
+        try {
+            long sink = 0;
+
+            // calibrate: grow the batch until one iteration takes long enough to time
+            int ops = 1;
+            while (true) {
+                long start = System.nanoTime();
+                sink += b.run(ops);
+                long elapsed = System.nanoTime() - start;
+                if (elapsed >= TARGET_ITERATION_MILLIS * 1000000L || ops >= (1 << 28)) {
+                    ops = (int) Math.max(1, Math.min(1L << 28, (long) ops * TARGET_ITERATION_MILLIS * 1000000L / Math.max(1, elapsed)));
+                    break;
+                }
+                ops *= 4;
+            }
+
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                sink += b.run(ops);
+            }
+
+            double[] nsPerOp = new double[MEASURED_ITERATIONS];
+            long allocated = 0;
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                long allocBefore = allocatedBytes();
+                long start = System.nanoTime();
+                sink += b.run(ops);
+                nsPerOp[i] = (double) (System.nanoTime() - start) / ops;
+                allocated += allocatedBytes() - allocBefore;
+            }
+
+            double mean = 0;
+            for (double v : nsPerOp) {
+                mean += v;
+            }
+            mean /= nsPerOp.length;
+            double variance = 0;
+            for (double v : nsPerOp) {
+                variance += (v - mean) * (v - mean);
+            }
+
+            if (sink == 42) {
+                System.out.print("");
+            }
+            return new Result(b.getName(), mean, Math.sqrt(variance / nsPerOp.length), (double) allocated / ((long) ops * MEASURED_ITERATIONS),
+                    MEASURED_ITERATIONS, ops);
+        } finally {
+            b.tearDown();
+        }
+    }
+
+    /**
+     * @return bytes allocated so far by the current thread, or 0 if the JVM
+     *         cannot tell us
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static void write(List<Result> results, File output) throws IOException {
+        Writer w = new OutputStreamWriter(new FileOutputStream(output), Charsets.UTF_8);
+        try {
+            w.write("{\n  \"javaVersion\": \"" + System.getProperty("java.version") + "\",\n");
+            w.write("  \"processors\": " + Runtime.getRuntime().availableProcessors() + ",\n");
+            w.write("  \"timestamp\": " + System.currentTimeMillis() + ",\n");
+            w.write("  \"results\": [\n");
+            for (int i = 0; i < results.size(); i++) {
+                Result r = results.get(i);
+                w.write(String.format(Locale.ROOT, "    { \"name\": \"%s\", \"nsPerOp\": %.3f, \"stdDevNsPerOp\": %.3f, \"opsPerSecond\": %.3f, "
+                        + "\"allocatedBytesPerOp\": %.3f, \"iterations\": %d, \"opsPerIteration\": %d }%s\n", r.name, r.nsPerOp,
+                        r.stdDevNsPerOp, r.opsPerSecond(), r.allocatedBytesPerOp, r.iterations, r.opsPerIteration, i + 1 < results.size() ? ","
+                                : ""));
+            }
+            w.write("  ]\n}\n");
+        } finally {
+            w.close();
+        }
+    }
+
+    private static Map<String, Double> read(File input) throws IOException {
+        Reader r = new InputStreamReader(new FileInputStream(input), Charsets.UTF_8);
+        String json;
+        try {
+            json = CharStreams.toString(r);
+        } finally {
+            r.close();
+        }
+        Map<String, Double> results = new LinkedHashMap<String, Double>();
+        Matcher m = RESULT.matcher(json);
+        while (m.find()) {
+            results.put(m.group(1), Double.parseDouble(m.group(2)));
+        }
+        return results;
+    }
+
+    private static void compare(File before, File after) throws IOException {
+        Map<String, Double> a = read(before), b = read(after);
+        for (Map.Entry<String, Double> e : b.entrySet()) {
+            Double old = a.get(e.getKey());
+            if (old == null) {
+                System.out.println(String.format(Locale.ROOT, "%-48s %14.1f ns/op  (new)", e.getKey(), e.getValue()));
+            } else {
+                System.out.println(String.format(Locale.ROOT, "%-48s %14.1f -> %14.1f ns/op  %+6.1f%%", e.getKey(), old, e.getValue(),
+                        (e.getValue() - old) / old * 100));
+            }
+        }
+    }
+}
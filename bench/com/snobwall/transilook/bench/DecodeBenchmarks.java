@@ -0,0 +1,163 @@
+package com.snobwall.transilook.bench;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.awt.Image;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import javax.imageio.ImageIO;
+
+import com.snobwall.transilook.tiles.TileDecoder;
+import com.snobwall.transilook.ui.CompatibleImages;
+
+/**
+ * PNG decoding as done for every fetched tile: ImageIO as it was done on
+ * the fetch threads, and the {@link TileDecoder} stage with its reused
+ * readers.
+ * 
+ * @author mrb
+ *
+ */
+public class DecodeBenchmarks {
+
+    public static List<Benchmark> all() {
+        List<Benchmark> all = new ArrayList<Benchmark>();
+        all.add(new Benchmark("ImageIO.read[png 256x256 indexed]") {
+            private byte[] png;
+
+            @Override
+            public void setUp() throws IOException {
+                png = sampleTile();
+            }
+
+            @Override
+            public long run(int ops) throws IOException {
+                long acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    acc += ImageIO.read(new ByteArrayInputStream(png)).getWidth();
+                }
+                return acc;
+            }
+        });
+        for (final String kind : new String[] { "indexed", "rgb" }) {
+            all.add(new Benchmark("ImageIO.read+toCompatible[png 256x256 " + kind + "]") {
+                private byte[] png;
+
+                @Override
+                public void setUp() throws IOException {
+                    png = sampleTile(kind);
+                }
+
+                @Override
+                public long run(int ops) throws IOException {
+                    long acc = 0;
+                    for (int i = 0; i < ops; i++) {
+                        acc += CompatibleImages.toCompatible(ImageIO.read(new ByteArrayInputStream(png))).getWidth();
+                    }
+                    return acc;
+                }
+            });
+            all.add(new Benchmark("TileDecoder.decode[png 256x256 " + kind + "]") {
+                private byte[] png;
+                private TileDecoder decoder;
+
+                @Override
+                public void setUp() throws IOException {
+                    png = sampleTile(kind);
+                    decoder = new TileDecoder(1, 1);
+                }
+
+                @Override
+                public void tearDown() {
+                    decoder.shutdown();
+                }
+
+                @Override
+                public long run(int ops) throws IOException {
+                    long acc = 0;
+                    for (int i = 0; i < ops; i++) {
+                        acc += decoder.decode(png).getWidth(null);
+                    }
+                    return acc;
+                }
+            });
+        }
+        all.add(new Benchmark("TileDecoder.submit[png 256x256 indexed, " + TileDecoder.DEFAULT_THREADS + " threads]") {
+            private byte[] png;
+            private TileDecoder decoder;
+
+            @Override
+            public void setUp() throws IOException {
+                png = sampleTile();
+                decoder = new TileDecoder();
+            }
+
+            @Override
+            public void tearDown() {
+                decoder.shutdown();
+            }
+
+            @Override
+            public long run(int ops) throws InterruptedException {
+                final CountDownLatch done = new CountDownLatch(ops);
+                for (int i = 0; i < ops; i++) {
+                    decoder.submit(png, new TileDecoder.Callback() {
+                        @Override
+                        public void decoded(Image img) {
+                            done.countDown();
+                        }
+
+                        @Override
+                        public void failed(Exception e) {
+                            e.printStackTrace();
+                            done.countDown();
+                        }
+                    });
+                }
+                done.await();
+                return ops;
+            }
+        });
+        return all;
+    }
+
+    /**
+     * @return a paletted PNG with roughly the detail of a street-level OSM
+     *         tile
+     */
+    public static byte[] sampleTile() throws IOException {
+        return sampleTile("indexed");
+    }
+
+    /**
+     * @param kind
+     *            "indexed" for a paletted PNG as OSM serves, "rgb" for a
+     *            truecolour one
+     */
+    static byte[] sampleTile(String kind) throws IOException {
+        BufferedImage img = new BufferedImage(256, 256, kind.equals("rgb") ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_BYTE_INDEXED);
+        Graphics2D g = img.createGraphics();
+        g.setColor(new Color(0xf2efe9));
+        g.fillRect(0, 0, 256, 256);
+        Random random = new Random(256);
+        for (int i = 0; i < 60; i++) {
+            g.setColor(new Color(random.nextInt(0xffffff)));
+            g.drawLine(random.nextInt(256), random.nextInt(256), random.nextInt(256), random.nextInt(256));
+            g.fillRect(random.nextInt(256), random.nextInt(256), random.nextInt(20), random.nextInt(20));
+        }
+        g.setColor(Color.darkGray);
+        g.drawString("Barrington Street", 40, 128);
+        g.dispose();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,142 @@
+package com.snobwall.transilook.bench;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import com.snobwall.transilook.gtfs.GtfsFeed;
+import com.snobwall.transilook.gtfs.GtfsImporter;
+import com.snobwall.transilook.osm.BoundingBox;
+import com.snobwall.transilook.render.StaticMapRenderer;
+import com.snobwall.transilook.transit.PointSet;
+
+/**
+ * Loading a synthetic feed of {@value #STOPS} stops and
+ * {@value #ROUTES}x{@value #TRIPS_PER_ROUTE} trips: a full import from the
+ * zip, reopening the mapped import, and a stop query over a window-sized box.
+ *
+ * @author mrb
+ *
+ */
+public class GtfsBenchmarks {
+
+    private static final int STOPS = 5000;
+    private static final int ROUTES = 100;
+    private static final int TRIPS_PER_ROUTE = 100;
+
+    public static List<Benchmark> all() {
+        return Arrays.<Benchmark> asList(new Import(), new Open(), new Shapes(), new StopsIn());
+    }
+
+    private static abstract class FeedBenchmark extends Benchmark {
+        protected File zip, dir;
+
+        FeedBenchmark(String name) {
+            super(name);
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            zip = File.createTempFile("transilook-feed", ".zip");
+            SyntheticFeed.write(zip, STOPS, ROUTES, TRIPS_PER_ROUTE, 1);
+            dir = new File(zip.getPath() + ".d");
+            GtfsImporter.importFeed(zip, dir);
+        }
+
+        @Override
+        public void tearDown() {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            dir.delete();
+            zip.delete();
+        }
+    }
+
+    private static class Import extends FeedBenchmark {
+        Import() {
+            super("GtfsImporter.importFeed[" + ROUTES * TRIPS_PER_ROUTE + " trips]");
+        }
+
+        @Override
+        public long run(int ops) throws Exception {
+            for (int i = 0; i < ops; i++) {
+                GtfsImporter.importFeed(zip, dir);
+            }
+            return dir.list().length;
+        }
+    }
+
+    private static class Open extends FeedBenchmark {
+        Open() {
+            super("GtfsFeed.map[" + ROUTES * TRIPS_PER_ROUTE + " trips]");
+        }
+
+        @Override
+        public long run(int ops) throws Exception {
+            long acc = 0;
+            for (int i = 0; i < ops; i++) {
+                acc += GtfsFeed.map(dir).getTripCount();
+            }
+            return acc;
+        }
+    }
+
+    /**
+     * Opening a feed and getting its shapes ready to draw, as at startup.
+     */
+    private static class Shapes extends FeedBenchmark {
+        Shapes() {
+            super("GtfsFeed.getShapes[" + ROUTES + " shapes]");
+        }
+
+        @Override
+        public long run(int ops) throws Exception {
+            long acc = 0;
+            for (int i = 0; i < ops; i++) {
+                acc += GtfsFeed.map(dir).getShapes().getVertexCount();
+            }
+            return acc;
+        }
+    }
+
+    private static class StopsIn extends FeedBenchmark {
+        private GtfsFeed feed;
+        private BoundingBox box;
+        private long acc;
+        private final PointSet.Visitor visitor = new PointSet.Visitor() {
+            @Override
+            public void visit(int index, double mercX, double mercY) {
+                acc += index;
+            }
+        };
+
+        StopsIn() {
+            super("GtfsFeed.stopsIn[1920x1080 z14]");
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            super.setUp();
+            feed = GtfsFeed.map(dir);
+            feed.getStops();
+            box = StaticMapRenderer.boundsAround(44.64363574997914, -63.60092639923096, 14, 1920, 1080);
+        }
+
+        @Override
+        public long run(int ops) throws Exception {
+            for (int i = 0; i < ops; i++) {
+                feed.stopsIn(box, visitor);
+            }
+            return acc;
+        }
+
+        @Override
+        public long maxAllocatedBytesPerOp() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.snobwall.transilook.bench;
+
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.event.InputEvent;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import com.snobwall.transilook.layers.OSMLayer;
+import com.snobwall.transilook.metrics.Histogram;
+import com.snobwall.transilook.metrics.Metrics;
+import com.snobwall.transilook.server.StandInTileServer;
+import com.snobwall.transilook.tiles.TileCache;
+import com.snobwall.transilook.tiles.TileFetcher;
+import com.snobwall.transilook.ui.CompatibleImages;
+import com.snobwall.transilook.ui.InteractionLog;
+import com.snobwall.transilook.ui.ViewPanel;
+
+/**
+ * Replays a recorded {@link InteractionLog} through a real
+ * {@link ViewPanel} and {@link OSMLayer}, headless, fetching from a
+ * {@link StandInTileServer} with a set latency and a share of failed
+ * requests, and reports what the session felt like: frame times, how long
+ * the view took to fill in after each gesture, and how many fetched tiles
+ * were never drawn.
+ *
+ * Record a session by running the app with -Dtransilook.record=file, or
+ * write a scripted one with -synthetic. Frames are painted whenever the
+ * panel asks for a repaint, at most every {@value #FRAME_MILLIS}ms. With no
+ * screen there is no back buffer to scroll, so every frame is painted in
+ * full and frame times are an upper bound.
+ *
+ * <pre>
+ * java -cp bin:libs/* com.snobwall.transilook.bench.InteractionReplay recording [latency-ms] [error-rate] [speed]
+ * java -cp bin:libs/* com.snobwall.transilook.bench.InteractionReplay -synthetic recording
+ * </pre>
+ *
+ * @author mrb
+ *
+ */
+public class InteractionReplay {
+
+    private static final int FRAME_MILLIS = 16;
+    private static final long POLL_MILLIS = 5;
+    /** How long the view gets to fill in after the last gesture. */
+    private static final long SETTLE_MILLIS = 10000;
+
+    private static final AtomicBoolean framePending = new AtomicBoolean();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: InteractionReplay recording [latency-ms] [error-rate] [speed] | -synthetic recording");
+            System.exit(2);
+        }
+        if (args[0].equals("-synthetic") && args.length > 1) {
+            synthetic().write(new File(args[1]));
+            System.out.println("Wrote " + args[1]);
+            return;
+        }
+        InteractionLog log = InteractionLog.read(new File(args[0]));
+        int latency = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        double errorRate = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+        double speed = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+
+        StandInTileServer server = new StandInTileServer(0);
+        server.setLatencyMillis(latency);
+        server.setErrorRate(errorRate);
+        server.start();
+
+        Replay replay = new Replay(log, new OSMLayer(new TileCache(), new TileFetcher(server.getUrlFormat(), null)));
+        replay.run(speed);
+
+        List<InteractionLog.Event> events = log.getEvents();
+        long millis = events.isEmpty() ? 0 : events.get(events.size() - 1).millis;
+        System.out.println(String.format("%d events, %d gestures over %.1fs at %dms latency, %.0f%% errors", events.size(), replay.gestures,
+                millis / 1000.0 / speed, latency, errorRate * 100));
+        Histogram frames = Metrics.FRAME_NANOS;
+        System.out.println(String.format("frames: %d, p50=%.2fms p99=%.2fms max=%.2fms", frames.getCount(),
+                frames.getPercentile(0.5) / 1e6, frames.getPercentile(0.99) / 1e6, frames.getMax() / 1e6));
+        Histogram complete = replay.viewportComplete;
+        System.out.println(String.format("view complete after gesture: %d measured, p50=%.0fms p99=%.0fms max=%.0fms; "
+                + "%d cut short by the next gesture, %d never completed", complete.getCount(), complete.getPercentile(0.5) / 1e6,
+                complete.getPercentile(0.99) / 1e6, complete.getMax() / 1e6, replay.superseded, replay.unfinished));
+        TileCache cache = replay.layer.getTileCache();
+        long served = server.getFullResponses() + server.getNotModifiedResponses();
+        System.out.println(String.format("tiles: %d requested, %d served, %d failed by the server, %d cached, %d shown, "
+                + "%d served but never shown; prefetches %d issued, %d completed, %d later shown (%.0f%% hit rate)",
+                server.getRequests(), served, server.getErrorResponses(), cache.getImagesCached(), cache.getImagesShown(),
+                Math.max(0, served - cache.getImagesShown()), Metrics.PREFETCH_ISSUED.get(), Metrics.PREFETCH_COMPLETED.get(),
+                Metrics.PREFETCH_HITS.get(), Metrics.prefetchHitRate() * 100));
+        System.out.println(String.format("fetches: %d cancelled, %d failed", Metrics.CANCELLATIONS.get(), Metrics.FETCH_FAILURES.get()));
+
+        server.stop();
+        System.exit(0);
+    }
+
+    private static class Replay {
+        final InteractionLog log;
+        final OSMLayer layer;
+        final ViewPanel panel;
+        final BufferedImage target;
+
+        final Histogram viewportComplete = new Histogram();
+        int gestures, superseded, unfinished;
+
+        Replay(InteractionLog log, OSMLayer layer) {
+            this.log = log;
+            this.layer = layer;
+            this.target = CompatibleImages.create(log.getWidth(), log.getHeight(), Transparency.OPAQUE);
+            this.panel = new ViewPanel() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public void repaint(long tm, int x, int y, int width, int height) {
+                    // nothing on screen to repaint: the frame timer paints instead
+                    framePending.set(true);
+                }
+            };
+        }
+
+        void run(double speed) throws Exception {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    panel.setSize(log.getWidth(), log.getHeight());
+                    panel.setView(log.getLat(), log.getLon(), log.getZoom());
+                    panel.addLayer(layer);
+                    Timer frames = new Timer(FRAME_MILLIS, new ActionListener() {
+                        @Override
+                        public void actionPerformed(ActionEvent e) {
+                            if (framePending.getAndSet(false)) {
+                                Graphics2D g = target.createGraphics();
+                                panel.paintComponent(g);
+                                g.dispose();
+                            }
+                        }
+                    });
+                    frames.start();
+                }
+            });
+
+            // the first view filling in counts like the end of a gesture
+            boolean pending = true;
+            long pendingSince = System.nanoTime();
+            long base = System.currentTimeMillis();
+            for (InteractionLog.Event event : log.getEvents()) {
+                long due = base + (long) (event.millis / speed);
+                while (true) {
+                    if (pending && isComplete()) {
+                        viewportComplete.record(System.nanoTime() - pendingSince);
+                        pending = false;
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now >= due) {
+                        break;
+                    }
+                    Thread.sleep(Math.min(POLL_MILLIS, due - now));
+                }
+                if (pending && event.id != MouseEvent.MOUSE_DRAGGED && event.id != MouseEvent.MOUSE_RELEASED) {
+                    superseded++;
+                    pending = false;
+                }
+                dispatch(event, due);
+                if (event.endsGesture()) {
+                    gestures++;
+                    pending = true;
+                    pendingSince = System.nanoTime();
+                }
+            }
+
+            long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+            while (pending) {
+                if (isComplete()) {
+                    viewportComplete.record(System.nanoTime() - pendingSince);
+                    pending = false;
+                } else if (System.currentTimeMillis() > deadline) {
+                    unfinished++;
+                    pending = false;
+                } else {
+                    Thread.sleep(POLL_MILLIS);
+                }
+            }
+        }
+
+        /** @return true once every tile in view is in and has been painted */
+        private boolean isComplete() throws Exception {
+            final boolean[] complete = new boolean[1];
+            SwingUtilities.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    complete[0] = layer.isViewportComplete() && !framePending.get();
+                }
+            });
+            return complete[0];
+        }
+
+        private void dispatch(InteractionLog.Event event, long when) throws Exception {
+            final MouseEvent e;
+            switch (event.id) {
+            case MouseEvent.MOUSE_PRESSED:
+                e = new MouseEvent(panel, event.id, when, InputEvent.BUTTON1_DOWN_MASK, event.x, event.y, 1, false, event.detail);
+                break;
+            case MouseEvent.MOUSE_RELEASED:
+                e = new MouseEvent(panel, event.id, when, 0, event.x, event.y, 1, false, event.detail);
+                break;
+            case MouseEvent.MOUSE_WHEEL:
+                e = new MouseWheelEvent(panel, event.id, when, 0, event.x, event.y, 0, false, MouseWheelEvent.WHEEL_UNIT_SCROLL, 3,
+                        event.detail);
+                break;
+            default:
+                e = new MouseEvent(panel, event.id, when, InputEvent.BUTTON1_DOWN_MASK, event.x, event.y, 0, false, MouseEvent.NOBUTTON);
+            }
+            SwingUtilities.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    panel.dispatchEvent(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return a scripted session around downtown Halifax: drags in each
+     *         direction with pauses to look, a zoom in and a fling, then
+     *         back out
+     */
+    static InteractionLog synthetic() {
+        List<InteractionLog.Event> events = new ArrayList<InteractionLog.Event>();
+        int width = 800, height = 600;
+        int[][] drags = new int[][] { { -400, 0 }, { 0, -300 }, { 400, 300 }, { -600, 200 }, { 300, -500 }, { 700, 0 } };
+        long t = 0;
+        for (int i = 0; i < drags.length; i++) {
+            if (i == 3) {
+                events.add(new InteractionLog.Event(MouseEvent.MOUSE_WHEEL, t, width / 2, height / 2, -1));
+                t += 1500;
+            }
+            // faster drags later on, the last a fling
+            long duration = i < 3 ? 600 : i < 5 ? 300 : 150;
+            int x0 = width / 2 - drags[i][0] / 2, y0 = height / 2 - drags[i][1] / 2;
+            events.add(new InteractionLog.Event(MouseEvent.MOUSE_PRESSED, t, x0, y0, MouseEvent.BUTTON1));
+            int steps = (int) (duration / FRAME_MILLIS);
+            for (int s = 1; s <= steps; s++) {
+                events.add(new InteractionLog.Event(MouseEvent.MOUSE_DRAGGED, t + s * FRAME_MILLIS, x0 + drags[i][0] * s / steps, y0
+                        + drags[i][1] * s / steps, MouseEvent.NOBUTTON));
+            }
+            t += steps * FRAME_MILLIS;
+            events.add(new InteractionLog.Event(MouseEvent.MOUSE_RELEASED, t, x0 + drags[i][0], y0 + drags[i][1], MouseEvent.BUTTON1));
+            t += i == drags.length - 1 ? 300 : 1500;
+        }
+        events.add(new InteractionLog.Event(MouseEvent.MOUSE_WHEEL, t, width / 2, height / 2, 1));
+        t += 200;
+        events.add(new InteractionLog.Event(MouseEvent.MOUSE_WHEEL, t, width / 2, height / 2, 1));
+        return new InteractionLog(44.64363574997914, -63.60092639923096, 14, width, height, events);
+    }
+}
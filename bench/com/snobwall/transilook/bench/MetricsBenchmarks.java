@@ -0,0 +1,34 @@
+package com.snobwall.transilook.bench;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.snobwall.transilook.metrics.Histogram;
+
+/**
+ * Recording into a histogram, which happens on every painted frame.
+ * 
+ * @author mrb
+ *
+ */
+public class MetricsBenchmarks {
+
+    public static List<Benchmark> all() {
+        return Arrays.<Benchmark> asList(new Benchmark("Histogram.record") {
+            private final Histogram histogram = new Histogram();
+
+            @Override
+            public long run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    histogram.record(System.nanoTime() & 0xffffff);
+                }
+                return histogram.getCount();
+            }
+
+            @Override
+            public long maxAllocatedBytesPerOp() {
+                return 0;
+            }
+        });
+    }
+}
@@ -0,0 +1,232 @@
+package com.snobwall.transilook.bench;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+import javax.swing.SwingUtilities;
+
+import com.snobwall.transilook.layers.OSMLayer;
+import com.snobwall.transilook.layers.PointLayer;
+import com.snobwall.transilook.layers.RouteLayer;
+import com.snobwall.transilook.osm.BoundingBox;
+import com.snobwall.transilook.osm.TileGrid;
+import com.snobwall.transilook.osm.TileRef;
+import com.snobwall.transilook.render.StaticMapRenderer;
+import com.snobwall.transilook.server.StandInTileServer;
+import com.snobwall.transilook.tiles.TileCache;
+import com.snobwall.transilook.tiles.TileFetcher;
+import com.snobwall.transilook.transit.PointSet;
+import com.snobwall.transilook.transit.PolylineSet;
+import com.snobwall.transilook.ui.CompatibleImages;
+
+/**
+ * {@link OSMLayer#paintLayer} into an off-screen image at several window
+ * sizes, with every visible tile already cached. Runs on the event dispatch
+ * thread like the real thing; any prefetches the layer starts go to a local
+ * stand-in server.
+ * 
+ * @author mrb
+ *
+ */
+public class PaintBenchmarks {
+
+    public static List<Benchmark> all() {
+        List<Benchmark> all = new ArrayList<Benchmark>();
+        all.add(new Paint(800, 600));
+        all.add(new Paint(1920, 1080));
+        all.add(new Paint(3840, 2160));
+        all.add(new Points(11));
+        all.add(new Points(14));
+        all.add(new Points(17));
+        all.add(new Routes(10, 1000));
+        all.add(new Routes(10, 4000));
+        all.add(new Routes(13, 1000));
+        all.add(new Routes(13, 4000));
+        all.add(new Routes(16, 1000));
+        all.add(new Routes(16, 4000));
+        all.add(new Routes(16, 20000));
+        all.add(new Routes(17, 20000));
+        all.add(new Routes(18, 20000));
+        return all;
+    }
+
+    private static class Paint extends Benchmark {
+        private static final double LAT = 44.64363574997914, LON = -63.60092639923096;
+        private static final int ZOOM = 14;
+
+        private final int width, height;
+        private StandInTileServer server;
+        private OSMLayer layer;
+        private BufferedImage target;
+        private Graphics2D g;
+
+        Paint(int width, int height) {
+            super("OSMLayer.paintLayer[" + width + "x" + height + "]");
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            server = new StandInTileServer(0);
+            server.start();
+
+            final TileCache cache = new TileCache(Long.MAX_VALUE, Long.MAX_VALUE);
+            BufferedImage tile = CompatibleImages.toCompatible(ImageIO.read(new ByteArrayInputStream(DecodeBenchmarks.sampleTile())));
+            final BoundingBox bounds = StaticMapRenderer.boundsAround(LAT, LON, ZOOM, width, height);
+            TileGrid grid = new TileGrid();
+            grid.set(width, height, bounds, ZOOM);
+            while (grid.next()) {
+                cache.putImage(new TileRef(grid.tileX(), grid.tileY(), ZOOM), tile);
+            }
+
+            target = CompatibleImages.create(width, height, java.awt.Transparency.OPAQUE);
+            g = target.createGraphics();
+            SwingUtilities.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    layer = new OSMLayer(cache, new TileFetcher(server.getUrlFormat(), null));
+                    layer.updateLayerBounds(width, height, bounds, ZOOM);
+                }
+            });
+        }
+
+        @Override
+        public void tearDown() {
+            g.dispose();
+            server.stop();
+        }
+
+        @Override
+        public long run(final int ops) throws Exception {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < ops; i++) {
+                        layer.paintLayer(g, width, height);
+                    }
+                }
+            });
+            return target.getRGB(width / 2, height / 2);
+        }
+    }
+
+    /**
+     * {@link PointLayer#paintLayer} with {@value #POINTS} points scattered
+     * over a city-sized area, from fully clustered to street level.
+     */
+    private static class Points extends Benchmark {
+        private static final int POINTS = 50000;
+        private static final double LAT = 44.64363574997914, LON = -63.60092639923096;
+        private static final int WIDTH = 1920, HEIGHT = 1080;
+
+        private final int zoom;
+        private PointLayer layer;
+        private BufferedImage target;
+        private Graphics2D g;
+
+        Points(int zoom) {
+            super("PointLayer.paintLayer[50k points, zoom " + zoom + "]");
+            this.zoom = zoom;
+        }
+
+        @Override
+        public void setUp() {
+            Random random = new Random(POINTS);
+            PointSet.Builder builder = new PointSet.Builder();
+            for (int i = 0; i < POINTS; i++) {
+                builder.add(i, (byte) (i & 1), LAT + random.nextGaussian() * 0.1, LON + random.nextGaussian() * 0.15);
+            }
+            layer = new PointLayer();
+            layer.setPoints(builder.build());
+            layer.updateLayerBounds(WIDTH, HEIGHT, StaticMapRenderer.boundsAround(LAT, LON, zoom, WIDTH, HEIGHT), zoom);
+            target = CompatibleImages.create(WIDTH, HEIGHT, java.awt.Transparency.OPAQUE);
+            g = target.createGraphics();
+        }
+
+        @Override
+        public void tearDown() {
+            g.dispose();
+        }
+
+        @Override
+        public long run(int ops) {
+            for (int i = 0; i < ops; i++) {
+                layer.paintLayer(g, WIDTH, HEIGHT);
+            }
+            return target.getRGB(WIDTH / 2, HEIGHT / 2);
+        }
+    }
+
+    /**
+     * {@link RouteLayer#paintLayer} with {@value #LINES} winding lines over a
+     * city-sized area, at several levels of detail. Thanks to simplification
+     * the cost should follow the zoom, not the number of vertices, and
+     * zoomed in past the simplification, each line running some 30km, it
+     * should follow the part of the lines on screen.
+     */
+    private static class Routes extends Benchmark {
+        private static final int LINES = 200;
+        /** Bends per line, about every 300m; the vertices in between only wiggle. */
+        private static final int TURNS = 100;
+        private static final double LAT = 44.64363574997914, LON = -63.60092639923096;
+        private static final int WIDTH = 1920, HEIGHT = 1080;
+
+        private final int zoom, verticesPerLine;
+        private RouteLayer layer;
+        private BufferedImage target;
+        private Graphics2D g;
+
+        Routes(int zoom, int verticesPerLine) {
+            super("RouteLayer.paintLayer[" + LINES * verticesPerLine / 1000 + "k vertices, zoom " + zoom + "]");
+            this.zoom = zoom;
+            this.verticesPerLine = verticesPerLine;
+        }
+
+        @Override
+        public void setUp() {
+            Random random = new Random(LINES);
+            PolylineSet.Builder builder = new PolylineSet.Builder();
+            // the same walks whatever the detail, each step split into finer wiggles
+            double step = 0.3 / 1000;
+            for (int l = 0; l < LINES; l++) {
+                builder.startLine(l);
+                double lat = LAT + random.nextGaussian() * 0.05, lon = LON + random.nextGaussian() * 0.08;
+                double heading = random.nextDouble() * 2 * Math.PI;
+                Random wiggle = new Random(l);
+                for (int i = 0; i < verticesPerLine; i++) {
+                    if (i % (verticesPerLine / TURNS) == 0) {
+                        heading += random.nextGaussian() * 0.6;
+                    }
+                    double s = step * 1000 / verticesPerLine;
+                    lat += Math.sin(heading) * s + wiggle.nextGaussian() * s * 0.1;
+                    lon += Math.cos(heading) * s + wiggle.nextGaussian() * s * 0.1;
+                    builder.add(lat, lon);
+                }
+            }
+            layer = new RouteLayer();
+            layer.setLines(builder.build());
+            layer.updateLayerBounds(WIDTH, HEIGHT, StaticMapRenderer.boundsAround(LAT, LON, zoom, WIDTH, HEIGHT), zoom);
+            target = CompatibleImages.create(WIDTH, HEIGHT, java.awt.Transparency.OPAQUE);
+            g = target.createGraphics();
+        }
+
+        @Override
+        public void tearDown() {
+            g.dispose();
+        }
+
+        @Override
+        public long run(int ops) {
+            for (int i = 0; i < ops; i++) {
+                layer.paintLayer(g, WIDTH, HEIGHT);
+            }
+            return target.getRGB(WIDTH / 2, HEIGHT / 2);
+        }
+    }
+}
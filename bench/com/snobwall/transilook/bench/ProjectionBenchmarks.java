@@ -0,0 +1,37 @@
+package com.snobwall.transilook.bench;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.snobwall.transilook.osm.Mercator;
+
+/**
+ * Mercator projection and its inverse.
+ * 
+ * @author mrb
+ *
+ */
+public class ProjectionBenchmarks {
+
+    public static List<Benchmark> all() {
+        return Arrays.asList(new Benchmark("Mercator.mercY") {
+            @Override
+            public long run(int ops) {
+                double acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    acc += Mercator.mercY(-80 + (i & 1023) * (160.0 / 1024));
+                }
+                return (long) acc;
+            }
+        }, new Benchmark("Mercator.unmercY") {
+            @Override
+            public long run(int ops) {
+                double acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    acc += Mercator.unmercY(-170 + (i & 1023) * (340.0 / 1024));
+                }
+                return (long) acc;
+            }
+        });
+    }
+}
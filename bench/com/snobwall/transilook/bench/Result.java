@@ -0,0 +1,31 @@
+package com.snobwall.transilook.bench;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * Measurements for one benchmark.
+ * 
+ * @author mrb
+ *
+ */
+@Immutable
+public class Result {
+    public final String name;
+    public final double nsPerOp, stdDevNsPerOp, allocatedBytesPerOp;
+    public final int iterations;
+    public final long opsPerIteration;
+
+    public Result(String name, double nsPerOp, double stdDevNsPerOp, double allocatedBytesPerOp, int iterations, long opsPerIteration) {
+        super();
+        this.name = name;
+        this.nsPerOp = nsPerOp;
+        this.stdDevNsPerOp = stdDevNsPerOp;
+        this.allocatedBytesPerOp = allocatedBytesPerOp;
+        this.iterations = iterations;
+        this.opsPerIteration = opsPerIteration;
+    }
+
+    public double opsPerSecond() {
+        return 1e9 / nsPerOp;
+    }
+}
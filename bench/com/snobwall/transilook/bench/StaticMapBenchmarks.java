@@ -0,0 +1,79 @@
+package com.snobwall.transilook.bench;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.snobwall.transilook.render.StaticMapRenderer;
+import com.snobwall.transilook.server.StandInTileServer;
+import com.snobwall.transilook.tiles.TileCache;
+import com.snobwall.transilook.tiles.TileFetcher;
+
+/**
+ * Static map throughput: one operation is one 800x600 map, rendered in
+ * batches of {@value #BATCH} concurrent maps around neighbouring centres so
+ * they share some tiles. Maps per second is the opsPerSecond of the result.
+ * 
+ * @author mrb
+ *
+ */
+public class StaticMapBenchmarks {
+
+    private static final int BATCH = 16;
+
+    public static List<Benchmark> all() {
+        return Arrays.<Benchmark> asList(new Render("StaticMapRenderer.render[800x600 warm cache]", false), new Render(
+                "StaticMapRenderer.render[800x600 cold cache]", true));
+    }
+
+    private static class Render extends Benchmark {
+        private static final double LAT = 44.64363574997914, LON = -63.60092639923096;
+        private static final int ZOOM = 14;
+
+        private final boolean cold;
+        private StandInTileServer server;
+        private TileFetcher fetcher;
+        private StaticMapRenderer renderer;
+        private final List<StaticMapRenderer.Request> requests = new ArrayList<StaticMapRenderer.Request>();
+
+        Render(String name, boolean cold) {
+            super(name);
+            this.cold = cold;
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            server = new StandInTileServer(0);
+            server.start();
+            fetcher = new TileFetcher(server.getUrlFormat(), null);
+            renderer = new StaticMapRenderer(new TileCache(), fetcher);
+            for (int i = 0; i < BATCH; i++) {
+                requests.add(new StaticMapRenderer.Request(StaticMapRenderer.boundsAround(LAT + (i / 4) * 0.01, LON + (i % 4) * 0.01, ZOOM,
+                        800, 600), ZOOM, 800, 600));
+            }
+        }
+
+        @Override
+        public void tearDown() {
+            renderer.shutdown();
+            server.stop();
+        }
+
+        @Override
+        public long run(int ops) throws Exception {
+            long acc = 0;
+            for (int done = 0; done < ops; done += BATCH) {
+                if (cold) {
+                    renderer.shutdown();
+                    renderer = new StaticMapRenderer(new TileCache(), fetcher);
+                }
+                List<StaticMapRenderer.Request> batch = requests.subList(0, Math.min(BATCH, ops - done));
+                for (BufferedImage image : renderer.renderAll(batch)) {
+                    acc += image.getRGB(400, 300);
+                }
+            }
+            return acc;
+        }
+    }
+}
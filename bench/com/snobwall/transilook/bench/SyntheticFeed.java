@@ -0,0 +1,109 @@
+package com.snobwall.transilook.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Writes a made-up but well-formed GTFS zip of a given size, for
+ * benchmarking the importer without shipping a real feed.
+ *
+ * Stops are scattered around Halifax; each route is a random walk through
+ * them with its own shape, and each trip runs the whole route. Stop times
+ * are written in shuffled sequence order for some trips, as real feeds
+ * occasionally are.
+ *
+ * @author mrb
+ *
+ */
+public class SyntheticFeed {
+
+    private static final double LAT = 44.64363574997914, LON = -63.60092639923096;
+    private static final int STOPS_PER_ROUTE = 40;
+    private static final int POINTS_PER_HOP = 5;
+
+    public static void write(File zip, int stops, int routes, int tripsPerRoute, long seed) throws IOException {
+        Random random = new Random(seed);
+        int[][] routeStops = new int[routes][STOPS_PER_ROUTE];
+        for (int r = 0; r < routes; r++) {
+            for (int i = 0; i < STOPS_PER_ROUTE; i++) {
+                routeStops[r][i] = random.nextInt(stops);
+            }
+        }
+        double[] lat = new double[stops], lon = new double[stops];
+        for (int s = 0; s < stops; s++) {
+            lat[s] = LAT + (random.nextDouble() - 0.5) * 0.4;
+            lon[s] = LON + (random.nextDouble() - 0.5) * 0.6;
+        }
+
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            Writer w = new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8));
+
+            out.putNextEntry(new ZipEntry("stops.txt"));
+            w.write("stop_id,stop_name,stop_lat,stop_lon\r\n");
+            for (int s = 0; s < stops; s++) {
+                w.write(String.format(Locale.ROOT, "S%d,\"Stop %d, Bay %d\",%.6f,%.6f\r\n", s, s, s % 4, lat[s], lon[s]));
+            }
+            w.flush();
+
+            out.putNextEntry(new ZipEntry("routes.txt"));
+            w.write("route_id,route_short_name,route_long_name,route_type\r\n");
+            for (int r = 0; r < routes; r++) {
+                w.write("R" + r + "," + (r + 1) + ",Route " + (r + 1) + ",3\r\n");
+            }
+            w.flush();
+
+            out.putNextEntry(new ZipEntry("shapes.txt"));
+            w.write("shape_id,shape_pt_lat,shape_pt_lon,shape_pt_sequence\r\n");
+            for (int r = 0; r < routes; r++) {
+                int seq = 0;
+                for (int i = 0; i + 1 < STOPS_PER_ROUTE; i++) {
+                    int a = routeStops[r][i], b = routeStops[r][i + 1];
+                    for (int p = 0; p < POINTS_PER_HOP; p++) {
+                        double t = (double) p / POINTS_PER_HOP;
+                        w.write(String.format(Locale.ROOT, "H%d,%.6f,%.6f,%d\r\n", r, lat[a] + (lat[b] - lat[a]) * t,
+                                lon[a] + (lon[b] - lon[a]) * t, seq++));
+                    }
+                }
+            }
+            w.flush();
+
+            out.putNextEntry(new ZipEntry("trips.txt"));
+            w.write("route_id,service_id,trip_id,shape_id\r\n");
+            for (int r = 0; r < routes; r++) {
+                for (int t = 0; t < tripsPerRoute; t++) {
+                    w.write("R" + r + ",WEEK,T" + r + "_" + t + ",H" + r + "\r\n");
+                }
+            }
+            w.flush();
+
+            out.putNextEntry(new ZipEntry("stop_times.txt"));
+            w.write("trip_id,arrival_time,departure_time,stop_id,stop_sequence\r\n");
+            for (int r = 0; r < routes; r++) {
+                for (int t = 0; t < tripsPerRoute; t++) {
+                    int first = 5 * 3600 + t * 600;
+                    boolean shuffled = random.nextInt(10) == 0;
+                    for (int j = 0; j < STOPS_PER_ROUTE; j++) {
+                        int i = shuffled ? STOPS_PER_ROUTE - 1 - j : j;
+                        int time = first + i * 90;
+                        String hms = String.format(Locale.ROOT, "%d:%02d:%02d", time / 3600, time / 60 % 60, time % 60);
+                        w.write("T" + r + "_" + t + "," + hms + "," + hms + ",S" + routeStops[r][i] + "," + (i + 1) + "\r\n");
+                    }
+                }
+            }
+            w.flush();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.snobwall.transilook.bench;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.snobwall.transilook.osm.TileRef;
+import com.snobwall.transilook.tiles.TileCache;
+
+/**
+ * Tile cache lookups from the painting thread, and mixed get/put traffic from
+ * as many threads as the fetch pool uses.
+ * 
+ * @author mrb
+ *
+ */
+public class TileCacheBenchmarks {
+
+    private static final int TILES = 1024;
+
+    public static List<Benchmark> all() {
+        return Arrays.<Benchmark> asList(new Benchmark("TileCache.getImage[hit]") {
+            private TileCache cache;
+
+            @Override
+            public void setUp() {
+                cache = new TileCache(Long.MAX_VALUE, Long.MAX_VALUE);
+                BufferedImage img = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+                for (int i = 0; i < TILES; i++) {
+                    cache.putImage(new TileRef(i & 31, i >> 5, 10), img);
+                }
+            }
+
+            @Override
+            public long run(int ops) {
+                long acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    int t = i & (TILES - 1);
+                    if (cache.getImage(TileRef.pack(t & 31, t >> 5, 10)) != null) {
+                        acc++;
+                    }
+                }
+                return acc;
+            }
+
+            @Override
+            public long maxAllocatedBytesPerOp() {
+                return 0;
+            }
+        }, new Concurrent(4), new Concurrent(12));
+    }
+
+    /**
+     * Nine lookups for every insert, over a working set larger than the hot
+     * budget so eviction runs too.
+     */
+    private static class Concurrent extends Benchmark {
+        private final int threads;
+        private ExecutorService pool;
+        private TileCache cache;
+        private final BufferedImage img = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+
+        Concurrent(int threads) {
+            super("TileCache.getPut[threads=" + threads + "]");
+            this.threads = threads;
+        }
+
+        @Override
+        public void setUp() {
+            pool = Executors.newFixedThreadPool(threads);
+            cache = new TileCache(TileCacheBenchmarks.TILES / 2 * 256L * 256 * 3, Long.MAX_VALUE);
+        }
+
+        @Override
+        public void tearDown() {
+            pool.shutdownNow();
+        }
+
+        @Override
+        public long run(int ops) throws InterruptedException {
+            final int perThread = Math.max(1, ops / threads);
+            final CountDownLatch done = new CountDownLatch(threads);
+            final AtomicLong acc = new AtomicLong();
+            for (int t = 0; t < threads; t++) {
+                final int seed = t * 7919;
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long hits = 0;
+                        for (int i = 0; i < perThread; i++) {
+                            int tile = (seed + i * 31) & (TILES - 1);
+                            if (i % 10 == 0) {
+                                cache.putImage(new TileRef(tile & 31, tile >> 5, 10), img);
+                            } else if (cache.getImage(TileRef.pack(tile & 31, tile >> 5, 10)) != null) {
+                                hits++;
+                            }
+                        }
+                        acc.addAndGet(hits);
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+            return acc.get();
+        }
+    }
+}
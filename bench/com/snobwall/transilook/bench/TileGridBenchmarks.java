@@ -0,0 +1,72 @@
+package com.snobwall.transilook.bench;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.snobwall.transilook.osm.BoundingBox;
+import com.snobwall.transilook.osm.SlippyUtil;
+import com.snobwall.transilook.osm.TileGrid;
+import com.snobwall.transilook.tiles.TileCache;
+
+/**
+ * Tile number arithmetic, and walking a full-screen tile grid the way
+ * painting does. The grid walk is also the allocation regression check for
+ * the paint path: it must not allocate at all.
+ * 
+ * @author mrb
+ *
+ */
+public class TileGridBenchmarks {
+
+    public static List<Benchmark> all() {
+        return Arrays.<Benchmark> asList(new Benchmark("SlippyUtil.getTileNumber") {
+            @Override
+            public long run(int ops) {
+                long acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    int[] tile = SlippyUtil.getTileNumber(-63.6 + (i & 1023) * 1e-4, 50.1, 14);
+                    acc += tile[0] + tile[1];
+                }
+                return acc;
+            }
+        }, new Benchmark("SlippyUtil.tile2boundingBox") {
+            @Override
+            public long run(int ops) {
+                double acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    BoundingBox b = SlippyUtil.tile2boundingBox(5000 + (i & 1023), 6000, 14);
+                    acc += b.north + b.west;
+                }
+                return (long) acc;
+            }
+        }, new GridWalk());
+    }
+
+    private static class GridWalk extends Benchmark {
+        private final TileGrid grid = new TileGrid();
+        private final TileCache cache = new TileCache();
+
+        GridWalk() {
+            super("TileGrid.walk[1920x1080]");
+        }
+
+        @Override
+        public long run(int ops) {
+            long acc = 0;
+            for (int i = 0; i < ops; i++) {
+                grid.set(1920, 1080, -63.6 + (i & 1023) * 1e-5, 50.1, 14);
+                while (grid.next()) {
+                    if (cache.getImage(grid.key()) == null) {
+                        acc += grid.screenX();
+                    }
+                }
+            }
+            return acc;
+        }
+
+        @Override
+        public long maxAllocatedBytesPerOp() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.snobwall.transilook.bench;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.snobwall.transilook.server.StandInTileServer;
+import com.snobwall.transilook.tiles.CommonsTileTransport;
+import com.snobwall.transilook.tiles.NioTileTransport;
+import com.snobwall.transilook.tiles.TileTransport;
+
+/**
+ * Tile transports against a {@link StandInTileServer} that holds every
+ * response back by {@value #LATENCY_MILLIS}ms: one operation is one tile
+ * fetched, with as many in flight as the transport allows. The blocking
+ * transport needs a thread per request in flight; the non-blocking one
+ * drives them all from its one I/O thread.
+ *
+ * @author mrb
+ *
+ */
+public class TransportBenchmarks {
+
+    private static final int LATENCY_MILLIS = 20;
+    private static final int TILES = 256;
+    private static final int ZOOM = 14;
+
+    public static List<Benchmark> all() {
+        return Arrays.<Benchmark> asList(new Blocking(32), new NonBlocking(32), new NonBlocking(256));
+    }
+
+    private static abstract class TransportBenchmark extends Benchmark {
+        protected final int connections;
+        protected StandInTileServer server;
+        protected TileTransport transport;
+        protected String[] urls = new String[TILES];
+
+        TransportBenchmark(String name, int connections) {
+            super(name + "[" + connections + " in flight, " + LATENCY_MILLIS + "ms latency]");
+            this.connections = connections;
+        }
+
+        protected abstract TileTransport createTransport() throws IOException;
+
+        @Override
+        public void setUp() throws Exception {
+            server = new StandInTileServer(0);
+            server.start();
+            transport = createTransport();
+            for (int i = 0; i < TILES; i++) {
+                urls[i] = String.format(server.getUrlFormat(), "a", ZOOM, 5000 + i % 16, 6000 + i / 16);
+                // renders the tile once, so the runs only measure the transport
+                transport.get(urls[i], null, 0);
+            }
+            server.setLatencyMillis(LATENCY_MILLIS);
+        }
+
+        @Override
+        public void tearDown() {
+            transport.shutdown();
+            server.stop();
+        }
+    }
+
+    private static class Blocking extends TransportBenchmark {
+        private ExecutorService threads;
+
+        Blocking(int connections) {
+            super("CommonsTileTransport.get", connections);
+        }
+
+        @Override
+        protected TileTransport createTransport() {
+            return new CommonsTileTransport(connections, connections);
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            super.setUp();
+            threads = Executors.newFixedThreadPool(connections);
+        }
+
+        @Override
+        public void tearDown() {
+            threads.shutdown();
+            super.tearDown();
+        }
+
+        @Override
+        public long run(int ops) throws Exception {
+            final CountDownLatch done = new CountDownLatch(ops);
+            final AtomicLong bytes = new AtomicLong();
+            for (int i = 0; i < ops; i++) {
+                final String url = urls[i % TILES];
+                threads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            bytes.addAndGet(transport.get(url, null, 0).body.length);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+            return bytes.get();
+        }
+    }
+
+    private static class NonBlocking extends TransportBenchmark {
+        NonBlocking(int connections) {
+            super("NioTileTransport.getAsync", connections);
+        }
+
+        @Override
+        protected TileTransport createTransport() throws IOException {
+            return new NioTileTransport(connections);
+        }
+
+        @Override
+        public long run(int ops) throws Exception {
+            final CountDownLatch done = new CountDownLatch(ops);
+            final AtomicLong bytes = new AtomicLong();
+            TileTransport.Callback callback = new TileTransport.Callback() {
+                @Override
+                public void completed(TileTransport.Response response) {
+                    bytes.addAndGet(response.body.length);
+                    done.countDown();
+                }
+
+                @Override
+                public void failed(IOException e) {
+                    e.printStackTrace();
+                    done.countDown();
+                }
+            };
+            for (int i = 0; i < ops; i++) {
+                transport.getAsync(urls[i % TILES], null, 0, callback);
+            }
+            done.await();
+            return bytes.get();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.snobwall.transilook.bench;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import com.snobwall.transilook.osm.TileRef;
+import com.snobwall.transilook.server.StandInTileServer;
+import com.snobwall.transilook.ui.CompatibleImages;
+import com.snobwall.transilook.vector.MvtDecoder;
+import com.snobwall.transilook.vector.VectorRasterizer;
+import com.snobwall.transilook.vector.VectorStyle;
+import com.snobwall.transilook.vector.VectorTile;
+
+/**
+ * Turning vector tiles into tile images, against decoding PNG tiles: one
+ * operation is one tile ready to draw, so ops/s is tiles/s. The parallel
+ * runs split the operations across a pool the way the layers' fetch
+ * threads do.
+ *
+ * @author mrb
+ *
+ */
+public class VectorBenchmarks {
+
+    private static final int ZOOM = 14;
+    private static final int TILES = 16;
+
+    public static List<Benchmark> all() {
+        List<Benchmark> all = new ArrayList<Benchmark>();
+        all.add(new Benchmark("MvtDecoder.decode[z14 synthetic]") {
+            private byte[][] tiles;
+            private MvtDecoder decoder = new MvtDecoder();
+
+            @Override
+            public void setUp() {
+                tiles = sampleTiles();
+            }
+
+            @Override
+            public long run(int ops) throws Exception {
+                long acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    acc += decoder.decode(tiles[i % TILES]).getVertexCount();
+                }
+                return acc;
+            }
+        });
+        all.add(new Benchmark("VectorRasterizer.render[z14 synthetic]") {
+            private VectorTile[] tiles = new VectorTile[TILES];
+            private VectorRasterizer rasterizer = new VectorRasterizer();
+
+            @Override
+            public void setUp() throws Exception {
+                byte[][] data = sampleTiles();
+                for (int i = 0; i < TILES; i++) {
+                    tiles[i] = new MvtDecoder().decode(data[i]);
+                }
+            }
+
+            @Override
+            public long run(int ops) {
+                long acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    acc += rasterizer.render(tiles[i % TILES], VectorStyle.DEFAULT, ZOOM).getRGB(128, 128);
+                }
+                return acc;
+            }
+        });
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads : cores > 1 ? new int[] { 1, cores } : new int[] { 1 }) {
+            all.add(new Parallel("decode+render[mvt z14, " + threads + " threads]", threads) {
+                private final ThreadLocal<MvtDecoder> decoders = new ThreadLocal<MvtDecoder>() {
+                    @Override
+                    protected MvtDecoder initialValue() {
+                        return new MvtDecoder();
+                    }
+                };
+                private final ThreadLocal<VectorRasterizer> rasterizers = new ThreadLocal<VectorRasterizer>() {
+                    @Override
+                    protected VectorRasterizer initialValue() {
+                        return new VectorRasterizer();
+                    }
+                };
+                private byte[][] tiles;
+
+                @Override
+                public void setUp() throws Exception {
+                    super.setUp();
+                    tiles = sampleTiles();
+                }
+
+                @Override
+                protected long tile(int i) throws Exception {
+                    VectorTile tile = decoders.get().decode(tiles[i % TILES]);
+                    return rasterizers.get().render(tile, VectorStyle.DEFAULT, ZOOM).getRGB(128, 128);
+                }
+            });
+            all.add(new Parallel("ImageIO.read+toCompatible[png 256x256, " + threads + " threads]", threads) {
+                private byte[] png;
+
+                @Override
+                public void setUp() throws Exception {
+                    super.setUp();
+                    png = DecodeBenchmarks.sampleTile();
+                }
+
+                @Override
+                protected long tile(int i) throws Exception {
+                    return CompatibleImages.toCompatible(ImageIO.read(new ByteArrayInputStream(png))).getRGB(128, 128);
+                }
+            });
+        }
+        return all;
+    }
+
+    /**
+     * @return stand-in server tiles from a street-level block
+     */
+    static byte[][] sampleTiles() {
+        byte[][] tiles = new byte[TILES][];
+        for (int i = 0; i < TILES; i++) {
+            tiles[i] = StandInTileServer.vectorTile(new TileRef(5000 + i % 4, 6000 + i / 4, ZOOM));
+        }
+        return tiles;
+    }
+
+    private static abstract class Parallel extends Benchmark {
+        private final int threads;
+        private ExecutorService pool;
+
+        Parallel(String name, int threads) {
+            super(name);
+            this.threads = threads;
+        }
+
+        protected abstract long tile(int i) throws Exception;
+
+        @Override
+        public void setUp() throws Exception {
+            pool = Executors.newFixedThreadPool(threads);
+        }
+
+        @Override
+        public void tearDown() {
+            pool.shutdown();
+        }
+
+        @Override
+        public long run(final int ops) throws Exception {
+            List<Future<Long>> parts = new ArrayList<Future<Long>>();
+            for (int t = 0; t < threads; t++) {
+                final int first = t;
+                parts.add(pool.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        long acc = 0;
+                        for (int i = first; i < ops; i += threads) {
+                            acc += tile(i);
+                        }
+                        return acc;
+                    }
+                }));
+            }
+            long acc = 0;
+            for (Future<Long> part : parts) {
+                acc += part.get();
+            }
+            return acc;
+        }
+    }
+}
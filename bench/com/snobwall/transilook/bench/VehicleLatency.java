@@ -0,0 +1,117 @@
+package com.snobwall.transilook.bench;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+
+import javax.swing.SwingUtilities;
+
+import com.snobwall.transilook.layers.PointLayer;
+import com.snobwall.transilook.metrics.Histogram;
+import com.snobwall.transilook.metrics.Metrics;
+import com.snobwall.transilook.osm.BoundingBox;
+import com.snobwall.transilook.render.StaticMapRenderer;
+import com.snobwall.transilook.server.StandInVehicleFeed;
+import com.snobwall.transilook.transit.VehicleIngester;
+import com.snobwall.transilook.ui.CompatibleImages;
+import com.snobwall.transilook.ui.LayerCompositor;
+import com.snobwall.transilook.ui.MapLayer;
+import com.snobwall.transilook.ui.MapLayerObserver;
+import com.snobwall.transilook.ui.RepaintScheduler;
+
+/**
+ * Measures realtime update-to-pixel latency: a {@link StandInVehicleFeed}
+ * sends vehicle positions over a local socket to a {@link VehicleIngester},
+ * whose {@link PointLayer} is rendered through a {@link LayerCompositor} and
+ * composited off-screen by a {@link RepaintScheduler}, as it would be in a
+ * window. Latency is taken when a render is swapped in to be drawn, so
+ * renders the compositor throws away do not count.
+ *
+ * <pre>
+ * java -cp bin:libs/* com.snobwall.transilook.bench.VehicleLatency [seconds] [updates-per-second] [vehicles]
+ * </pre>
+ *
+ * @author mrb
+ *
+ */
+public class VehicleLatency {
+
+    private static final double LAT = 44.64363574997914, LON = -63.60092639923096;
+    private static final int ZOOM = 12, WIDTH = 1920, HEIGHT = 1080;
+
+    private static RepaintScheduler scheduler;
+    private static LayerCompositor compositor;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int vehicles = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+        StandInVehicleFeed feed = new StandInVehicleFeed(0, vehicles, rate, LAT, LON);
+        feed.start();
+
+        final PointLayer layer = new PointLayer();
+        final BufferedImage target = CompatibleImages.create(WIDTH, HEIGHT, Transparency.OPAQUE);
+        final BoundingBox bounds = StaticMapRenderer.boundsAround(LAT, LON, ZOOM, WIDTH, HEIGHT);
+        scheduler = new RepaintScheduler(new RepaintScheduler.Target() {
+            @Override
+            public void frame(Rectangle dirty, boolean everything) {
+                Graphics2D g = target.createGraphics();
+                long start = System.nanoTime();
+                compositor.composite(layer, g, bounds, ZOOM);
+                Metrics.FRAME_NANOS.record(System.nanoTime() - start);
+                g.dispose();
+            }
+        });
+        compositor = new LayerCompositor(new Runnable() {
+            @Override
+            public void run() {
+                scheduler.invalidateAll();
+            }
+        });
+        final Runnable rerender = new Runnable() {
+            @Override
+            public void run() {
+                compositor.request(layer, WIDTH, HEIGHT, bounds, ZOOM);
+            }
+        };
+        SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                layer.updateLayerBounds(WIDTH, HEIGHT, bounds, ZOOM);
+                layer.registerLayerObserver(new MapLayerObserver() {
+                    @Override
+                    public void invalidateLayer(MapLayer l) {
+                        SwingUtilities.invokeLater(rerender);
+                    }
+
+                    @Override
+                    public void invalidateLayerRegion(MapLayer l, int x, int y, int width, int height) {
+                        SwingUtilities.invokeLater(rerender);
+                    }
+                });
+            }
+        });
+
+        VehicleIngester ingester = new VehicleIngester(layer);
+        ingester.start("127.0.0.1", feed.getPort());
+
+        // let the JIT settle before measuring
+        Thread.sleep(2000);
+        Metrics.reset();
+        Thread.sleep(seconds * 1000L);
+
+        ingester.stop();
+        feed.stop();
+
+        Histogram latency = Metrics.UPDATE_TO_PIXEL_NANOS;
+        System.out.println(String.format("%d updates/s to %d vehicles over %ds: %d updates in %d snapshots, %d frames", rate, vehicles,
+                seconds, Metrics.VEHICLE_UPDATES.get(), Metrics.VEHICLE_SNAPSHOTS.get(), Metrics.FRAME_NANOS.getCount()));
+        System.out.println(String.format("update to pixel: p50=%.2fms p99=%.2fms max=%.2fms", latency.getPercentile(0.5) / 1e6,
+                latency.getPercentile(0.99) / 1e6, latency.getMax() / 1e6));
+        System.out.println(String.format("composite: mean=%.2fms p99=%.2fms", Metrics.FRAME_NANOS.getMean() / 1e6,
+                Metrics.FRAME_NANOS.getPercentile(0.99) / 1e6));
+        System.exit(0);
+    }
+}
@@ -1,9 +1,32 @@
 package com.snobwall.transilook;
 
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.JMException;
 import javax.swing.JFrame;
 import javax.swing.SwingUtilities;
 
+import com.google.common.base.Optional;
+import com.snobwall.transilook.gtfs.GtfsFeed;
 import com.snobwall.transilook.layers.OSMLayer;
+import com.snobwall.transilook.layers.PointLayer;
+import com.snobwall.transilook.layers.RouteLayer;
+import com.snobwall.transilook.layers.VectorLayer;
+import com.snobwall.transilook.metrics.Metrics;
+import com.snobwall.transilook.osm.TileRef;
+import com.snobwall.transilook.tiles.TileCache;
+import com.snobwall.transilook.tiles.TileFetcher;
+import com.snobwall.transilook.tiles.TileStore;
+import com.snobwall.transilook.transit.VehicleIngester;
+import com.snobwall.transilook.ui.InteractionLog;
+import com.snobwall.transilook.ui.StartupSnapshot;
 import com.snobwall.transilook.ui.ViewPanel;
 
 
@@ -14,19 +37,133 @@ public class Main {
      */
     public static void main(String[] args) throws Exception {
         
+        try {
+            Metrics.register();
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        long metricsLogSeconds = Long.getLong("transilook.metrics.logSeconds", 0);
+        if (metricsLogSeconds > 0) {
+            Metrics.startLogging(metricsLogSeconds);
+        }
+        
+        // the view as the last session left it, shown until its tiles are in; -Dtransilook.snapshot=false starts afresh
+        final File snapshotFile = new File(System.getProperty("user.home"), ".transilook" + File.separator + "startup.snapshot");
+        Optional<StartupSnapshot> snapshot = Optional.absent();
+        BufferedImage snapshotImage = null;
+        if (Boolean.parseBoolean(System.getProperty("transilook.snapshot", "true"))) {
+            snapshot = StartupSnapshot.read(snapshotFile);
+            if (snapshot.isPresent()) {
+                try {
+                    snapshotImage = snapshot.get().getImage();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        final StartupSnapshot lastView = snapshot.orNull();
+        final BufferedImage placeholder = snapshotImage;
+        
+        TileStore store = null;
+        try {
+            store = new TileStore(new File(System.getProperty("user.home"), ".transilook" + File.separator + "tiles"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // e.g. -Dtransilook.tileUrl=http://localhost:8080/{z}/{x}/{y}.png to go through a TileProxyServer
+        String urlFormat = TileFetcher.urlFormat(System.getProperty("transilook.tileUrl", TileFetcher.OSM_URL_FORMAT));
+        final TileFetcher fetcher = new TileFetcher(urlFormat, store);
+        // a directory of z/x/y.mvt tiles or a vector tile URL template, drawn instead of the image tiles
+        final String vectorTiles = System.getProperty("transilook.vectorTiles");
+        final int vectorMaxZoom = Integer.getInteger("transilook.vectorTiles.maxZoom", 14);
+        
+        final OSMLayer osm = vectorTiles == null ? new OSMLayer(new TileCache(), fetcher) : null;
+        if (osm != null && lastView != null) {
+            // read and decode last session's tiles from the store while the window comes up
+            osm.prime(lastView.getVisibleTiles());
+        }
+        
+        final RouteLayer routes = new RouteLayer();
+        final PointLayer stops = new PointLayer();
+        final String feed = System.getProperty("transilook.gtfs");
+        if (feed != null) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        File cache = new File(System.getProperty("user.home"), ".transilook" + File.separator + "gtfs");
+                        GtfsFeed gtfs = GtfsFeed.open(new File(feed), cache);
+                        routes.setLines(gtfs.getShapes());
+                        stops.setPoints(gtfs.getStops());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, "gtfs-loader").start();
+        }
+        
+        // a host:port streaming GTFS-realtime vehicle positions, or a file of them
+        final PointLayer vehicles = new PointLayer();
+        String vehicleSource = System.getProperty("transilook.vehicles");
+        if (vehicleSource != null) {
+            VehicleIngester ingester = new VehicleIngester(vehicles);
+            if (vehicleSource.matches(".+:\\d+")) {
+                int colon = vehicleSource.lastIndexOf(':');
+                ingester.start(vehicleSource.substring(0, colon), Integer.parseInt(vehicleSource.substring(colon + 1)));
+            } else {
+                try {
+                    ingester.start(new FileInputStream(vehicleSource));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        
+        // a file to record pans and zooms to, for replaying with bench.InteractionReplay
+        String record = System.getProperty("transilook.record");
+        final InteractionLog.Writer recorder = record == null ? null : new InteractionLog.Writer(new File(record));
+        
         SwingUtilities.invokeLater(new Runnable() {
             
             @Override
             public void run() {
                 JFrame frame = new JFrame();
                 
-                ViewPanel vp = new ViewPanel();
+                final ViewPanel vp = new ViewPanel();
+                if (lastView != null) {
+                    vp.setView(lastView.getLat(), lastView.getLon(), lastView.getZoom());
+                    if (placeholder != null) {
+                        vp.setPlaceholder(placeholder);
+                    }
+                }
                 frame.setSize(600, 600);
                 frame.getContentPane().add(vp);
                 frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+                frame.addWindowListener(new WindowAdapter() {
+                    @Override
+                    public void windowClosing(WindowEvent e) {
+                        // before EXIT_ON_CLOSE exits
+                        try {
+                            List<TileRef> tiles = osm == null ? Collections.<TileRef>emptyList() : osm.getVisibleTiles();
+                            new StartupSnapshot(vp.getLat(), vp.getLon(), vp.getZoom(), tiles, vp.capture()).write(snapshotFile);
+                        } catch (IOException ex) {
+                            ex.printStackTrace();
+                        }
+                    }
+                });
                 frame.setVisible(true);
+                if (recorder != null) {
+                    vp.setRecorder(recorder);
+                }
                 
-                vp.addLayer(new OSMLayer());
+                if (vectorTiles != null) {
+                    vp.addLayer(new VectorLayer(vectorTiles, vectorMaxZoom));
+                } else {
+                    vp.addLayer(osm);
+                }
+                vp.addLayer(routes);
+                vp.addLayer(stops);
+                vp.addLayer(vehicles);
             }
         });
     }
@@ -0,0 +1,233 @@
+package com.snobwall.transilook.gtfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * A file of named primitive columns, written once and then memory-mapped.
+ *
+ * The file starts with a table of contents giving each column's name, type,
+ * offset and length, followed by the column data, each column aligned to 8
+ * bytes. Opening a file maps it and hands out typed buffer views, so nothing
+ * is parsed or copied on the way in.
+ *
+ * @author mrb
+ *
+ */
+@Immutable
+public class ColumnFile {
+
+    private static final int MAGIC = 0x544c4346; // "TLCF"
+    private static final int VERSION = 1;
+
+    private static final byte DOUBLES = 'D', FLOATS = 'F', INTS = 'I', CHARS = 'C';
+
+    private final File file;
+    private final HashMap<String, ByteBuffer> columns = new HashMap<String, ByteBuffer>();
+    private final HashMap<String, Byte> types = new HashMap<String, Byte>();
+
+    private ColumnFile(File file, MappedByteBuffer mapped) throws IOException {
+        this.file = file;
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if (mapped.remaining() < 12 || mapped.getInt() != MAGIC || mapped.getInt() != VERSION) {
+            throw new IOException("Not a column file: " + file);
+        }
+        int count = mapped.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[mapped.getShort()];
+            mapped.get(name);
+            byte type = mapped.get();
+            long offset = mapped.getLong();
+            long bytes = mapped.getLong();
+            if (offset + bytes > mapped.capacity()) {
+                throw new IOException("Column runs past the end of " + file);
+            }
+
+            ByteBuffer view = mapped.duplicate();
+            view.position((int) offset);
+            view.limit((int) (offset + bytes));
+            String key = new String(name, "UTF-8");
+            columns.put(key, view.slice().order(ByteOrder.LITTLE_ENDIAN));
+            types.put(key, type);
+        }
+    }
+
+    public static ColumnFile map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // the mapping stays valid after the file is closed
+            return new ColumnFile(file, raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    public boolean has(String name) {
+        return columns.containsKey(name);
+    }
+
+    public DoubleBuffer doubles(String name) throws IOException {
+        return column(name, DOUBLES).asDoubleBuffer();
+    }
+
+    public FloatBuffer floats(String name) throws IOException {
+        return column(name, FLOATS).asFloatBuffer();
+    }
+
+    public IntBuffer ints(String name) throws IOException {
+        return column(name, INTS).asIntBuffer();
+    }
+
+    public CharBuffer chars(String name) throws IOException {
+        return column(name, CHARS).asCharBuffer();
+    }
+
+    private ByteBuffer column(String name, byte type) throws IOException {
+        ByteBuffer column = columns.get(name);
+        if (column == null || types.get(name) != type) {
+            throw new IOException("No " + (char) type + " column " + name + " in " + file);
+        }
+        return column.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Collects columns and writes them out in one go. The file is written
+     * under a temporary name and renamed into place, so a crash never
+     * leaves a truncated file behind.
+     */
+    @NotThreadSafe
+    public static class Writer {
+        private final ArrayList<String> names = new ArrayList<String>();
+        private final ArrayList<Byte> types = new ArrayList<Byte>();
+        private final ArrayList<Object> data = new ArrayList<Object>();
+        private final ArrayList<Integer> lengths = new ArrayList<Integer>();
+
+        public Writer doubles(String name, double[] values, int length) {
+            return add(name, DOUBLES, values, length);
+        }
+
+        public Writer floats(String name, float[] values, int length) {
+            return add(name, FLOATS, values, length);
+        }
+
+        public Writer ints(String name, int[] values, int length) {
+            return add(name, INTS, values, length);
+        }
+
+        public Writer chars(String name, char[] values, int length) {
+            return add(name, CHARS, values, length);
+        }
+
+        private Writer add(String name, byte type, Object values, int length) {
+            names.add(name);
+            types.add(type);
+            data.add(values);
+            lengths.add(length);
+            return this;
+        }
+
+        public void write(File file) throws IOException {
+            byte[] header = header(0);
+            long offset = align(header.length);
+            long[] offsets = new long[names.size()];
+            for (int i = 0; i < names.size(); i++) {
+                offsets[i] = offset;
+                offset = align(offset + bytes(i));
+            }
+            header = header(offsets);
+
+            File tmp = new File(file.getPath() + ".tmp");
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.setLength(0);
+                FileChannel channel = raf.getChannel();
+                channel.write(ByteBuffer.wrap(header), 0);
+                ByteBuffer chunk = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < names.size(); i++) {
+                    writeColumn(channel, chunk, i, offsets[i]);
+                }
+                channel.force(true);
+            } finally {
+                raf.close();
+            }
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not replace " + file);
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp + " to " + file);
+            }
+        }
+
+        private void writeColumn(FileChannel channel, ByteBuffer chunk, int column, long offset) throws IOException {
+            Object values = data.get(column);
+            int length = lengths.get(column);
+            int width = width(column);
+            int perChunk = chunk.capacity() / width;
+            for (int start = 0; start < length; start += perChunk) {
+                int end = Math.min(length, start + perChunk);
+                chunk.clear();
+                if (values instanceof double[]) {
+                    chunk.asDoubleBuffer().put((double[]) values, start, end - start);
+                } else if (values instanceof float[]) {
+                    chunk.asFloatBuffer().put((float[]) values, start, end - start);
+                } else if (values instanceof int[]) {
+                    chunk.asIntBuffer().put((int[]) values, start, end - start);
+                } else {
+                    chunk.asCharBuffer().put((char[]) values, start, end - start);
+                }
+                chunk.limit((end - start) * width);
+                long position = offset + (long) start * width;
+                while (chunk.hasRemaining()) {
+                    position += channel.write(chunk, position);
+                }
+            }
+        }
+
+        private int width(int column) {
+            byte type = types.get(column);
+            return type == DOUBLES ? 8 : type == INTS || type == FLOATS ? 4 : 2;
+        }
+
+        private long bytes(int column) {
+            return (long) lengths.get(column) * width(column);
+        }
+
+        private byte[] header(long... offsets) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(Integer.reverseBytes(MAGIC));
+            out.writeInt(Integer.reverseBytes(VERSION));
+            out.writeInt(Integer.reverseBytes(names.size()));
+            for (int i = 0; i < names.size(); i++) {
+                byte[] name = names.get(i).getBytes("UTF-8");
+                out.writeShort(Short.reverseBytes((short) name.length));
+                out.write(name);
+                out.writeByte(types.get(i));
+                out.writeLong(Long.reverseBytes(i < offsets.length ? offsets[i] : 0));
+                out.writeLong(Long.reverseBytes(bytes(i)));
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private static long align(long offset) {
+            return (offset + 7) & ~7L;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.snobwall.transilook.gtfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Streaming reader for the CSV files in a GTFS feed.
+ *
+ * Each record is read into a reused character buffer and its fields are
+ * only marked, not copied out, so a file of any size is read without
+ * creating objects per row. Numbers, times and ids are parsed straight from
+ * the buffer; {@link #getString(int)} is there for the few fields worth
+ * keeping as strings.
+ *
+ * Handles quoted fields with doubled quotes, CRLF or LF line ends and a
+ * leading byte order mark, as found in real feeds.
+ *
+ * @author mrb
+ *
+ */
+@NotThreadSafe
+public class CsvReader implements Closeable {
+
+    /** Exact up to 10^22, so dividing a short mantissa by one rounds correctly. */
+    private static final double[] POWERS_OF_TEN = new double[16];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final Reader in;
+    private final char[] buf = new char[64 * 1024];
+    private int pos, limit;
+
+    private char[] record = new char[256];
+    private int recordLength;
+    private int[] fieldStart = new int[16], fieldEnd = new int[16];
+    private int fields;
+    private long recordNumber;
+
+    private final String[] header;
+
+    /**
+     * Reads the header line straight away.
+     */
+    public CsvReader(InputStream in) throws IOException {
+        this.in = new InputStreamReader(in, Charsets.UTF_8);
+        if (!next()) {
+            header = new String[0];
+            return;
+        }
+        header = new String[fields];
+        for (int i = 0; i < fields; i++) {
+            header[i] = getString(i).trim();
+        }
+        if (header.length > 0 && header[0].startsWith("\uFEFF")) {
+            header[0] = header[0].substring(1);
+        }
+        recordNumber = 0;
+    }
+
+    /**
+     * @return the index of the named column, or -1 if the file does not have
+     *         it
+     */
+    public int column(String name) {
+        for (int i = 0; i < header.length; i++) {
+            if (header[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the named column
+     * @throws IOException
+     *             if the file does not have it
+     */
+    public int requireColumn(String name) throws IOException {
+        int column = column(name);
+        if (column < 0) {
+            throw new IOException("Missing required column " + name);
+        }
+        return column;
+    }
+
+    /**
+     * Advance to the next record, skipping blank lines.
+     *
+     * @return false at the end of the file
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            recordLength = 0;
+            fields = 0;
+            int c = read();
+            if (c < 0) {
+                return false;
+            }
+            if (c == '\n') {
+                continue;
+            }
+            if (c == '\r') {
+                continue;
+            }
+
+            int start = 0;
+            boolean quoted = false;
+            while (true) {
+                if (quoted) {
+                    if (c < 0) {
+                        throw new IOException("Unterminated quoted field in record " + (recordNumber + 1));
+                    }
+                    if (c == '"') {
+                        c = read();
+                        if (c != '"') {
+                            quoted = false;
+                            continue;
+                        }
+                    }
+                    append((char) c);
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',' || c == '\n' || c == '\r' || c < 0) {
+                    endField(start);
+                    start = recordLength;
+                    if (c != ',') {
+                        if (c == '\r' && peek() == '\n') {
+                            read();
+                        }
+                        recordNumber++;
+                        return true;
+                    }
+                } else {
+                    append((char) c);
+                }
+                c = read();
+            }
+        }
+    }
+
+    public int fieldCount() {
+        return fields;
+    }
+
+    /** @return how many records {@link #next()} has returned, not counting the header */
+    public long getRecordNumber() {
+        return recordNumber;
+    }
+
+    /**
+     * @return true if the field is missing from this record or empty
+     */
+    public boolean isEmpty(int field) {
+        return field < 0 || field >= fields || fieldEnd[field] == fieldStart[field];
+    }
+
+    public String getString(int field) {
+        if (isEmpty(field)) {
+            return "";
+        }
+        return new String(record, fieldStart[field], fieldEnd[field] - fieldStart[field]);
+    }
+
+    public int getInt(int field, int fallback) throws IOException {
+        if (isEmpty(field)) {
+            return fallback;
+        }
+        int i = fieldStart[field], end = fieldEnd[field];
+        boolean negative = record[i] == '-';
+        if (negative || record[i] == '+') {
+            i++;
+        }
+        if (i == end) {
+            throw badNumber(field);
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            char c = record[i];
+            if (c < '0' || c > '9' || value > Integer.MAX_VALUE) {
+                throw badNumber(field);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    public double getDouble(int field, double fallback) throws IOException {
+        if (isEmpty(field)) {
+            return fallback;
+        }
+        int i = fieldStart[field], end = fieldEnd[field];
+        while (i < end && record[i] == ' ') {
+            i++;
+        }
+        while (end > i && record[end - 1] == ' ') {
+            end--;
+        }
+        boolean negative = i < end && record[i] == '-';
+        if (i < end && (negative || record[i] == '+')) {
+            i++;
+        }
+
+        // plain decimals of up to 15 digits, which is what feeds use for coordinates; anything else goes the slow way
+        long mantissa = 0;
+        int digits = 0, scale = 0;
+        boolean point = false;
+        for (; i < end; i++) {
+            char c = record[i];
+            if (c >= '0' && c <= '9') {
+                if (++digits > 15) {
+                    return parseSlowly(field);
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (point) {
+                    scale++;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                return parseSlowly(field);
+            }
+        }
+        if (digits == 0) {
+            throw badNumber(field);
+        }
+        double value = scale == 0 ? mantissa : mantissa / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+    private double parseSlowly(int field) throws IOException {
+        try {
+            return Double.parseDouble(getString(field).trim());
+        } catch (NumberFormatException e) {
+            throw badNumber(field);
+        }
+    }
+
+    /**
+     * @return a GTFS time of day (H:MM:SS, hours may run past 24) in seconds
+     *         after midnight, or the fallback if the field is empty
+     */
+    public int getTime(int field, int fallback) throws IOException {
+        if (isEmpty(field)) {
+            return fallback;
+        }
+        int seconds = 0, part = 0, parts = 1;
+        for (int i = fieldStart[field]; i < fieldEnd[field]; i++) {
+            char c = record[i];
+            if (c == ':') {
+                seconds = seconds * 60 + part;
+                part = 0;
+                parts++;
+            } else if (c >= '0' && c <= '9') {
+                part = part * 10 + (c - '0');
+            } else if (c != ' ') {
+                throw badNumber(field);
+            }
+        }
+        if (parts != 3) {
+            throw badNumber(field);
+        }
+        return seconds * 60 + part;
+    }
+
+    /**
+     * @return the id in the field, added to the table if it is new; -1 if the
+     *         field is empty
+     */
+    public int intern(int field, IdTable table) {
+        if (isEmpty(field)) {
+            return -1;
+        }
+        return table.intern(record, fieldStart[field], fieldEnd[field] - fieldStart[field]);
+    }
+
+    /**
+     * @return the index of the id in the field, or -1 if the table does not
+     *         have it or the field is empty
+     */
+    public int lookup(int field, IdTable table) {
+        if (isEmpty(field)) {
+            return -1;
+        }
+        return table.find(record, fieldStart[field], fieldEnd[field] - fieldStart[field]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private IOException badNumber(int field) {
+        return new IOException("Bad value '" + getString(field) + "' in column " + (field < header.length ? header[field] : field)
+                + " of record " + recordNumber);
+    }
+
+    private void endField(int start) {
+        if (fields == fieldStart.length) {
+            fieldStart = Arrays.copyOf(fieldStart, fields * 2);
+            fieldEnd = Arrays.copyOf(fieldEnd, fields * 2);
+        }
+        fieldStart[fields] = start;
+        fieldEnd[fields] = recordLength;
+        fields++;
+    }
+
+    private void append(char c) {
+        if (recordLength == record.length) {
+            record = Arrays.copyOf(record, recordLength * 2);
+        }
+        record[recordLength++] = c;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buf[pos++];
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buf[pos];
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buf);
+        if (n <= 0) {
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+}
@@ -0,0 +1,301 @@
+package com.snobwall.transilook.gtfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import net.jcip.annotations.Immutable;
+
+import com.snobwall.transilook.osm.BoundingBox;
+import com.snobwall.transilook.transit.PointSet;
+import com.snobwall.transilook.transit.PolylineSet;
+
+/**
+ * A GTFS feed's stops, routes, trips, stop times and shapes, read from
+ * memory-mapped column files.
+ *
+ * The first time a feed is opened it is imported with {@link GtfsImporter};
+ * after that it is only mapped, so startup costs the same however big the
+ * feed is and the operating system pages the data in as it is used.
+ * Everything is addressed by index, in the order the feed listed it.
+ *
+ * Bounding boxes are in mercator coordinates, like the ones map layers are
+ * given.
+ *
+ * @author mrb
+ *
+ */
+@Immutable
+public class GtfsFeed {
+
+    public interface ShapeVisitor {
+        public void visit(int shape);
+    }
+
+    private final DoubleBuffer stopX, stopY;
+    private final Strings stopIds, stopNames;
+
+    private final IntBuffer routeTypes;
+    private final Strings routeIds, routeNames;
+
+    private final IntBuffer tripRoutes, tripShapes;
+    private final Strings tripIds;
+
+    private final IntBuffer stopTimeStart, stopTimeStops, arrivals, departures;
+
+    private final IntBuffer shapeStart;
+    private final DoubleBuffer shapeX, shapeY;
+    private final FloatBuffer shapeSignificance;
+    private final DoubleBuffer shapeWest, shapeSouth, shapeEast, shapeNorth;
+    private final Strings shapeIds;
+
+    private final PolylineSet shapes;
+
+    private volatile PointSet stops;
+
+    private GtfsFeed(File dir) throws IOException {
+        ColumnFile file = ColumnFile.map(new File(dir, GtfsImporter.STOPS));
+        stopX = file.doubles("mercX");
+        stopY = file.doubles("mercY");
+        stopIds = new Strings(file, "id");
+        stopNames = new Strings(file, "name");
+
+        file = ColumnFile.map(new File(dir, GtfsImporter.ROUTES));
+        routeTypes = file.ints("type");
+        routeIds = new Strings(file, "id");
+        routeNames = new Strings(file, "name");
+
+        file = ColumnFile.map(new File(dir, GtfsImporter.TRIPS));
+        tripRoutes = file.ints("route");
+        tripShapes = file.ints("shape");
+        tripIds = new Strings(file, "id");
+
+        file = ColumnFile.map(new File(dir, GtfsImporter.STOP_TIMES));
+        stopTimeStart = file.ints("start");
+        stopTimeStops = file.ints("stop");
+        arrivals = file.ints("arrival");
+        departures = file.ints("departure");
+
+        file = ColumnFile.map(new File(dir, GtfsImporter.SHAPES));
+        shapeStart = file.ints("start");
+        shapeX = file.doubles("mercX");
+        shapeY = file.doubles("mercY");
+        shapeSignificance = file.floats("significance");
+        shapeWest = file.doubles("west");
+        shapeSouth = file.doubles("south");
+        shapeEast = file.doubles("east");
+        shapeNorth = file.doubles("north");
+        shapeIds = new Strings(file, "id");
+        shapes = PolylineSet.wrap(shapeStart, shapeX, shapeY, shapeSignificance, shapeWest, shapeSouth, shapeEast, shapeNorth);
+    }
+
+    /**
+     * Open a feed, importing it into a directory under cacheRoot unless an
+     * import of this version of the file is already there.
+     */
+    public static GtfsFeed open(File feed, File cacheRoot) throws IOException {
+        File dir = new File(cacheRoot, feed.getName() + "-" + feed.length() + "-" + feed.lastModified() + "-v" + GtfsImporter.FORMAT);
+        if (!new File(dir, GtfsImporter.COMPLETE).exists()) {
+            GtfsImporter.importFeed(feed, dir);
+        }
+        return map(dir);
+    }
+
+    /**
+     * Map a directory written by {@link GtfsImporter}.
+     */
+    public static GtfsFeed map(File dir) throws IOException {
+        if (!new File(dir, GtfsImporter.COMPLETE).exists()) {
+            throw new IOException("No complete import in " + dir);
+        }
+        return new GtfsFeed(dir);
+    }
+
+    public int getStopCount() {
+        return stopX.limit();
+    }
+
+    public double getStopMercX(int stop) {
+        return stopX.get(stop);
+    }
+
+    public double getStopMercY(int stop) {
+        return stopY.get(stop);
+    }
+
+    public String getStopId(int stop) {
+        return stopIds.get(stop);
+    }
+
+    public String getStopName(int stop) {
+        return stopNames.get(stop);
+    }
+
+    public int getRouteCount() {
+        return routeTypes.limit();
+    }
+
+    public String getRouteId(int route) {
+        return routeIds.get(route);
+    }
+
+    /** @return the short name, or the long name for routes without one */
+    public String getRouteName(int route) {
+        return routeNames.get(route);
+    }
+
+    /** @return the GTFS route_type, or -1 if the feed did not give one */
+    public int getRouteType(int route) {
+        return routeTypes.get(route);
+    }
+
+    public int getTripCount() {
+        return tripRoutes.limit();
+    }
+
+    public String getTripId(int trip) {
+        return tripIds.get(trip);
+    }
+
+    /** @return the trip's route, or -1 if the feed named one it does not have */
+    public int getTripRoute(int trip) {
+        return tripRoutes.get(trip);
+    }
+
+    /** @return the trip's shape, or -1 if it has none */
+    public int getTripShape(int trip) {
+        return tripShapes.get(trip);
+    }
+
+    /**
+     * @return the index of the trip's first stop time; its stop times run
+     *         until {@link #getStopTimesEnd(int)}, in sequence order
+     */
+    public int getStopTimesStart(int trip) {
+        return stopTimeStart.get(trip);
+    }
+
+    public int getStopTimesEnd(int trip) {
+        return stopTimeStart.get(trip + 1);
+    }
+
+    public int getStopTimeStop(int stopTime) {
+        return stopTimeStops.get(stopTime);
+    }
+
+    /** @return seconds after midnight, or -1 if the feed left it blank */
+    public int getArrival(int stopTime) {
+        return arrivals.get(stopTime);
+    }
+
+    /** @return seconds after midnight, or -1 if the feed left it blank */
+    public int getDeparture(int stopTime) {
+        return departures.get(stopTime);
+    }
+
+    public int getShapeCount() {
+        return shapeWest.limit();
+    }
+
+    public String getShapeId(int shape) {
+        return shapeIds.get(shape);
+    }
+
+    /**
+     * @return the index of the shape's first point; its points run until
+     *         {@link #getShapeEnd(int)}
+     */
+    public int getShapeStart(int shape) {
+        return shapeStart.get(shape);
+    }
+
+    public int getShapeEnd(int shape) {
+        return shapeStart.get(shape + 1);
+    }
+
+    public double getShapeMercX(int point) {
+        return shapeX.get(point);
+    }
+
+    public double getShapeMercY(int point) {
+        return shapeY.get(point);
+    }
+
+    /**
+     * @return every stop, with the stop index as the point id; built on first
+     *         use
+     */
+    public PointSet getStops() {
+        PointSet stops = this.stops;
+        if (stops == null) {
+            PointSet.Builder builder = new PointSet.Builder();
+            for (int i = 0; i < getStopCount(); i++) {
+                builder.addMercator(i, PointSet.STOP, stopX.get(i), stopY.get(i));
+            }
+            // racing builds produce equal sets, so either may win
+            this.stops = stops = builder.build();
+        }
+        return stops;
+    }
+
+    /**
+     * @return every shape as a line, with the shape index as the line id;
+     *         the mapped columns themselves, so nothing is copied
+     */
+    public PolylineSet getShapes() {
+        return shapes;
+    }
+
+    /**
+     * Visit the stops inside a box. The visitor's index is into
+     * {@link #getStops()}, whose {@link PointSet#getId(int)} gives the stop.
+     *
+     * @return the number of stops visited
+     */
+    public int stopsIn(BoundingBox mercatorBounds, PointSet.Visitor visitor) {
+        return getStops().query(mercatorBounds.west, mercatorBounds.south, mercatorBounds.east, mercatorBounds.north, visitor);
+    }
+
+    /**
+     * Visit the shapes whose extent overlaps a box.
+     *
+     * @return the number of shapes visited
+     */
+    public int shapesIn(BoundingBox mercatorBounds, ShapeVisitor visitor) {
+        int visited = 0;
+        for (int s = 0; s < getShapeCount(); s++) {
+            if (shapeWest.get(s) <= mercatorBounds.east && shapeEast.get(s) >= mercatorBounds.west
+                    && shapeSouth.get(s) <= mercatorBounds.north && shapeNorth.get(s) >= mercatorBounds.south) {
+                visitor.visit(s);
+                visited++;
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * A packed string column: characters back to back, plus offsets.
+     */
+    @Immutable
+    private static class Strings {
+        private final CharBuffer chars;
+        private final IntBuffer offsets;
+
+        Strings(ColumnFile file, String name) throws IOException {
+            chars = file.chars(name + ".chars");
+            offsets = file.ints(name + ".offsets");
+        }
+
+        String get(int index) {
+            int start = offsets.get(index), end = offsets.get(index + 1);
+            char[] s = new char[end - start];
+            for (int i = 0; i < s.length; i++) {
+                s[i] = chars.get(start + i);
+            }
+            return new String(s);
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package com.snobwall.transilook.gtfs;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import com.snobwall.transilook.osm.Mercator;
+import com.snobwall.transilook.transit.PolylineSet;
+import com.snobwall.transilook.util.DoubleList;
+import com.snobwall.transilook.util.IntList;
+
+/**
+ * Converts a GTFS zip into the column files read by {@link GtfsFeed}.
+ *
+ * The CSVs are streamed straight out of the zip. Rows go into primitive
+ * columns as they are read, with string ids numbered by {@link IdTable}s, so
+ * the only per-row cost is a few array slots. Shape points and stop times
+ * are then grouped by shape and trip, in sequence order, so a trip's stop
+ * times or a shape's points are one contiguous range. Each shape point's
+ * Douglas-Peucker significance is worked out here too and stored beside it,
+ * so drawing the shapes needs nothing but the mapped columns.
+ *
+ * @author mrb
+ *
+ */
+@NotThreadSafe
+public class GtfsImporter {
+
+    public static final String STOPS = "stops.col";
+    public static final String ROUTES = "routes.col";
+    public static final String SHAPES = "shapes.col";
+    public static final String TRIPS = "trips.col";
+    public static final String STOP_TIMES = "stop_times.col";
+    /** Written last; a directory without it holds an interrupted import. */
+    public static final String COMPLETE = "complete";
+    /** Changed whenever the files change, so imports in an older layout are redone. */
+    public static final int FORMAT = 2;
+
+    private final ZipFile zip;
+    private final File dir;
+
+    private final IdTable stopIds = new IdTable();
+    private final IdTable routeIds = new IdTable();
+    private final IdTable shapeIds = new IdTable();
+    private final IdTable tripIds = new IdTable();
+
+    private GtfsImporter(ZipFile zip, File dir) {
+        this.zip = zip;
+        this.dir = dir;
+    }
+
+    /**
+     * Import a feed into a directory, replacing whatever is there.
+     */
+    public static void importFeed(File feed, File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File complete = new File(dir, COMPLETE);
+        if (complete.exists() && !complete.delete()) {
+            throw new IOException("Could not delete " + complete);
+        }
+
+        ZipFile zip = new ZipFile(feed);
+        try {
+            GtfsImporter importer = new GtfsImporter(zip, dir);
+            importer.stops();
+            importer.routes();
+            importer.shapes();
+            importer.trips();
+            importer.stopTimes();
+        } finally {
+            zip.close();
+        }
+
+        new FileOutputStream(complete).close();
+    }
+
+    private void stops() throws IOException {
+        CsvReader csv = open("stops.txt", true);
+        try {
+            int id = csv.requireColumn("stop_id"), name = csv.column("stop_name");
+            int lat = csv.requireColumn("stop_lat"), lon = csv.requireColumn("stop_lon");
+
+            DoubleList mercX = new DoubleList(), mercY = new DoubleList();
+            Names names = new Names();
+            while (csv.next()) {
+                int stop = csv.intern(id, stopIds);
+                if (stop < mercX.size()) {
+                    // a duplicate id; the first one wins
+                    continue;
+                }
+                mercX.add(Mercator.mercX(csv.getDouble(lon, 0)));
+                mercY.add(Mercator.mercY(csv.getDouble(lat, 0)));
+                names.add(csv.getString(name));
+            }
+
+            ColumnFile.Writer out = new ColumnFile.Writer();
+            out.doubles("mercX", mercX.array(), mercX.size());
+            out.doubles("mercY", mercY.array(), mercY.size());
+            ids(out, stopIds);
+            names.write(out, "name");
+            out.write(new File(dir, STOPS));
+        } finally {
+            csv.close();
+        }
+    }
+
+    private void routes() throws IOException {
+        CsvReader csv = open("routes.txt", true);
+        try {
+            int id = csv.requireColumn("route_id"), shortName = csv.column("route_short_name"), longName = csv.column("route_long_name");
+            int type = csv.column("route_type");
+
+            IntList types = new IntList();
+            Names names = new Names();
+            while (csv.next()) {
+                int route = csv.intern(id, routeIds);
+                if (route < types.size()) {
+                    continue;
+                }
+                types.add(csv.getInt(type, -1));
+                names.add(csv.getString(csv.isEmpty(shortName) ? longName : shortName));
+            }
+
+            ColumnFile.Writer out = new ColumnFile.Writer();
+            out.ints("type", types.array(), types.size());
+            ids(out, routeIds);
+            names.write(out, "name");
+            out.write(new File(dir, ROUTES));
+        } finally {
+            csv.close();
+        }
+    }
+
+    private void shapes() throws IOException {
+        IntList shape = new IntList(), sequence = new IntList();
+        DoubleList mercX = new DoubleList(), mercY = new DoubleList();
+
+        CsvReader csv = open("shapes.txt", false);
+        if (csv != null) {
+            try {
+                int id = csv.requireColumn("shape_id"), seq = csv.requireColumn("shape_pt_sequence");
+                int lat = csv.requireColumn("shape_pt_lat"), lon = csv.requireColumn("shape_pt_lon");
+                while (csv.next()) {
+                    int s = csv.intern(id, shapeIds);
+                    if (s < 0) {
+                        continue;
+                    }
+                    shape.add(s);
+                    sequence.add(csv.getInt(seq, 0));
+                    mercX.add(Mercator.mercX(csv.getDouble(lon, 0)));
+                    mercY.add(Mercator.mercY(csv.getDouble(lat, 0)));
+                }
+            } finally {
+                csv.close();
+            }
+        }
+
+        int shapes = shapeIds.size(), n = shape.size();
+        int[] start = new int[shapes + 1];
+        int[] order = group(shape.array(), sequence.array(), n, start);
+        double[] x = permute(mercX.array(), order), y = permute(mercY.array(), order);
+
+        double[] west = new double[shapes], south = new double[shapes], east = new double[shapes], north = new double[shapes];
+        for (int s = 0; s < shapes; s++) {
+            west[s] = south[s] = Double.POSITIVE_INFINITY;
+            east[s] = north[s] = Double.NEGATIVE_INFINITY;
+            for (int i = start[s]; i < start[s + 1]; i++) {
+                west[s] = Math.min(west[s], x[i]);
+                east[s] = Math.max(east[s], x[i]);
+                south[s] = Math.min(south[s], y[i]);
+                north[s] = Math.max(north[s], y[i]);
+            }
+        }
+
+        ColumnFile.Writer out = new ColumnFile.Writer();
+        out.ints("start", start, start.length);
+        out.doubles("mercX", x, n);
+        out.doubles("mercY", y, n);
+        out.floats("significance", PolylineSet.significance(x, y, start, shapes), n);
+        out.doubles("west", west, shapes);
+        out.doubles("south", south, shapes);
+        out.doubles("east", east, shapes);
+        out.doubles("north", north, shapes);
+        ids(out, shapeIds);
+        out.write(new File(dir, SHAPES));
+    }
+
+    private void trips() throws IOException {
+        CsvReader csv = open("trips.txt", true);
+        try {
+            int id = csv.requireColumn("trip_id"), route = csv.requireColumn("route_id"), shape = csv.column("shape_id");
+
+            IntList routes = new IntList(), shapes = new IntList();
+            while (csv.next()) {
+                int trip = csv.intern(id, tripIds);
+                if (trip < routes.size()) {
+                    continue;
+                }
+                routes.add(csv.lookup(route, routeIds));
+                shapes.add(csv.lookup(shape, shapeIds));
+            }
+
+            ColumnFile.Writer out = new ColumnFile.Writer();
+            out.ints("route", routes.array(), routes.size());
+            out.ints("shape", shapes.array(), shapes.size());
+            ids(out, tripIds);
+            out.write(new File(dir, TRIPS));
+        } finally {
+            csv.close();
+        }
+    }
+
+    private void stopTimes() throws IOException {
+        CsvReader csv = open("stop_times.txt", true);
+        IntList trip = new IntList(), sequence = new IntList(), stop = new IntList();
+        IntList arrival = new IntList(), departure = new IntList();
+        try {
+            int tripColumn = csv.requireColumn("trip_id"), seq = csv.requireColumn("stop_sequence"), stopColumn = csv.requireColumn("stop_id");
+            int arrivalColumn = csv.column("arrival_time"), departureColumn = csv.column("departure_time");
+            while (csv.next()) {
+                int t = csv.lookup(tripColumn, tripIds);
+                if (t < 0) {
+                    continue;
+                }
+                trip.add(t);
+                sequence.add(csv.getInt(seq, 0));
+                stop.add(csv.lookup(stopColumn, stopIds));
+                // blank between timepoints; -1 leaves it to the reader to interpolate
+                arrival.add(csv.getTime(arrivalColumn, -1));
+                departure.add(csv.getTime(departureColumn, -1));
+            }
+        } finally {
+            csv.close();
+        }
+
+        int n = trip.size();
+        int[] start = new int[tripIds.size() + 1];
+        int[] order = group(trip.array(), sequence.array(), n, start);
+
+        ColumnFile.Writer out = new ColumnFile.Writer();
+        out.ints("start", start, start.length);
+        out.ints("stop", permute(stop.array(), order), n);
+        out.ints("arrival", permute(arrival.array(), order), n);
+        out.ints("departure", permute(departure.array(), order), n);
+        out.write(new File(dir, STOP_TIMES));
+    }
+
+    /**
+     * Order rows by group, then by sequence within each group. Rows are
+     * grouped with a counting sort; a group only gets sorted by sequence if
+     * it is out of order, which in most feeds it is not.
+     *
+     * @param start
+     *            filled in with where each group starts in the result, plus
+     *            the end
+     * @return the row to put at each position
+     */
+    private static int[] group(int[] group, int[] sequence, int n, int[] start) {
+        for (int i = 0; i < n; i++) {
+            start[group[i] + 1]++;
+        }
+        for (int g = 1; g < start.length; g++) {
+            start[g] += start[g - 1];
+        }
+        int[] fill = Arrays.copyOf(start, start.length - 1);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[fill[group[i]]++] = i;
+        }
+
+        long[] keys = new long[0];
+        for (int g = 0; g + 1 < start.length; g++) {
+            int from = start[g], to = start[g + 1];
+            boolean sorted = true;
+            for (int i = from + 1; i < to && sorted; i++) {
+                sorted = sequence[order[i - 1]] <= sequence[order[i]];
+            }
+            if (sorted) {
+                continue;
+            }
+            if (keys.length < to - from) {
+                keys = new long[to - from];
+            }
+            for (int i = from; i < to; i++) {
+                keys[i - from] = ((long) sequence[order[i]] << 32) | order[i];
+            }
+            Arrays.sort(keys, 0, to - from);
+            for (int i = from; i < to; i++) {
+                order[i] = (int) keys[i - from];
+            }
+        }
+        return order;
+    }
+
+    private static int[] permute(int[] values, int[] order) {
+        int[] result = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            result[i] = values[order[i]];
+        }
+        return result;
+    }
+
+    private static double[] permute(double[] values, int[] order) {
+        double[] result = new double[order.length];
+        for (int i = 0; i < order.length; i++) {
+            result[i] = values[order[i]];
+        }
+        return result;
+    }
+
+    private static void ids(ColumnFile.Writer out, IdTable ids) {
+        char[] chars = ids.getChars();
+        int[] offsets = ids.getOffsets();
+        out.chars("id.chars", chars, chars.length);
+        out.ints("id.offsets", offsets, offsets.length);
+    }
+
+    /**
+     * @return a reader for the named file, or null if the feed does not have
+     *         it and it is optional
+     */
+    private CsvReader open(String name, boolean required) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        if (entry == null) {
+            // some feeds are zipped up with a containing folder
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements() && entry == null) {
+                ZipEntry e = entries.nextElement();
+                if (e.getName().endsWith("/" + name)) {
+                    entry = e;
+                }
+            }
+        }
+        if (entry == null) {
+            if (required) {
+                throw new IOException("Feed has no " + name);
+            }
+            return null;
+        }
+        InputStream in = new BufferedInputStream(zip.getInputStream(entry), 64 * 1024);
+        try {
+            return new CsvReader(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Strings packed back to back, in the same layout as an {@link IdTable}.
+     */
+    private static class Names {
+        private final StringBuilder chars = new StringBuilder();
+        private final IntList offsets = new IntList();
+
+        Names() {
+            offsets.add(0);
+        }
+
+        void add(String s) {
+            chars.append(s);
+            offsets.add(chars.length());
+        }
+
+        void write(ColumnFile.Writer out, String name) {
+            char[] array = new char[chars.length()];
+            chars.getChars(0, array.length, array, 0);
+            out.chars(name + ".chars", array, array.length);
+            out.ints(name + ".offsets", offsets.array(), offsets.size());
+        }
+    }
+}
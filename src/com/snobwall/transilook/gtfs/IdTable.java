@@ -0,0 +1,133 @@
+package com.snobwall.transilook.gtfs;
+
+import java.util.Arrays;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import com.snobwall.transilook.util.IntList;
+
+/**
+ * Numbers string ids in order of first appearance.
+ *
+ * Ids are looked up straight from a character range, so finding the stop or
+ * trip a row refers to does not create a string, and they are kept packed in
+ * one character array rather than as separate objects.
+ *
+ * @author mrb
+ *
+ */
+@NotThreadSafe
+public class IdTable {
+
+    private char[] chars = new char[1024];
+    private int charsUsed;
+    private final IntList offsets = new IntList();
+
+    /** Open-addressed hash of id index + 1; 0 marks an empty slot. */
+    private int[] slots = new int[64];
+
+    public IdTable() {
+        offsets.add(0);
+    }
+
+    public int size() {
+        return offsets.size() - 1;
+    }
+
+    public int intern(String id) {
+        return intern(id.toCharArray(), 0, id.length());
+    }
+
+    public int intern(char[] s, int off, int len) {
+        int slot = slot(s, off, len);
+        if (slots[slot] != 0) {
+            return slots[slot] - 1;
+        }
+
+        if (charsUsed + len > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(chars.length * 2, charsUsed + len));
+        }
+        System.arraycopy(s, off, chars, charsUsed, len);
+        charsUsed += len;
+        offsets.add(charsUsed);
+        int index = size() - 1;
+        slots[slot] = index + 1;
+
+        if (size() * 2 > slots.length) {
+            rehash();
+        }
+        return index;
+    }
+
+    /**
+     * @return the index of the id, or -1 if it has not been interned
+     */
+    public int find(String id) {
+        return find(id.toCharArray(), 0, id.length());
+    }
+
+    public int find(char[] s, int off, int len) {
+        return slots[slot(s, off, len)] - 1;
+    }
+
+    public String get(int index) {
+        return new String(chars, offsets.get(index), offsets.get(index + 1) - offsets.get(index));
+    }
+
+    /** @return every id's characters, back to back */
+    public char[] getChars() {
+        return Arrays.copyOf(chars, charsUsed);
+    }
+
+    /** @return where each id starts in {@link #getChars()}, plus the end */
+    public int[] getOffsets() {
+        return offsets.toArray();
+    }
+
+    private int slot(char[] s, int off, int len) {
+        int mask = slots.length - 1;
+        int slot = hash(s, off, len) & mask;
+        while (slots[slot] != 0 && !matches(slots[slot] - 1, s, off, len)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean matches(int index, char[] s, int off, int len) {
+        int start = offsets.get(index);
+        if (offsets.get(index + 1) - start != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (chars[start + i] != s[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int index = 0; index < size(); index++) {
+            int start = offsets.get(index);
+            int slot = hash(chars, start, offsets.get(index + 1) - start) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = index + 1;
+        }
+    }
+
+    private static int hash(char[] s, int off, int len) {
+        int h = 0;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + s[off + i];
+        }
+        // spread the bits, since ids are often sequential numbers
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
@@ -0,0 +1,208 @@
+package com.snobwall.transilook.layers;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+
+import net.jcip.annotations.GuardedBy;
+
+import com.snobwall.transilook.osm.TileRef;
+import com.snobwall.transilook.tiles.TileCache;
+import com.snobwall.transilook.ui.CompatibleImages;
+import com.snobwall.transilook.util.LongObjectMap;
+
+/**
+ * Stand-in images for tiles that are not loaded yet, made by scaling up the
+ * closest cached ancestor or scaling down the four cached children. The
+ * results are kept in an LRU map so a stand-in is resampled once rather than
+ * on every frame. The map holds twice as many stand-ins as the viewport has
+ * tiles, so a window full of missing tiles does not evict its own stand-ins
+ * while painting. Tiles are looked up by their packed key, so painting a
+ * stand-in that is already made allocates nothing.
+ * 
+ * @author mrb
+ *
+ */
+public class FallbackTiles {
+
+    /** Beyond this an ancestor is scaled up so far it is just a smear. */
+    private static final int MAX_LEVELS_UP = 6;
+
+    /** Stand-ins kept however small the viewport. */
+    private static final int MIN_SCALED = 16;
+
+    private final TileCache tileCache;
+
+    @GuardedBy("AWT EDT")
+    private final LongObjectMap<Scaled> scaled = new LongObjectMap<Scaled>();
+    /** Sentinel of the recency list; the least recently used stand-in is next. */
+    @GuardedBy("AWT EDT")
+    private final Scaled lru = new Scaled(LongObjectMap.EMPTY);
+    @GuardedBy("AWT EDT")
+    private int maxScaled = 64;
+
+    public FallbackTiles(TileCache tileCache) {
+        super();
+        this.tileCache = tileCache;
+        lru.next = lru.prev = lru;
+    }
+
+    /**
+     * Keep stand-ins for twice the tiles of a viewport this many tiles big.
+     */
+    @GuardedBy("AWT EDT")
+    public void setVisibleTiles(int tiles) {
+        maxScaled = Math.max(MIN_SCALED, 2 * tiles);
+        evict();
+    }
+
+    /**
+     * @param key
+     *            the missing tile, packed as by {@link TileRef#pack}
+     * @return an approximation of the missing tile from other zoom levels, or
+     *         null if nothing usable is cached
+     */
+    @GuardedBy("AWT EDT")
+    public Image get(long key) {
+        Scaled cached = scaled.get(key);
+        if (cached != null) {
+            cached.unlink();
+            cached.linkBefore(lru);
+        }
+
+        if (tileCache.hasCachedChildren(key)) {
+            if (cached != null && cached.sourceZoom < 0) {
+                return cached.image;
+            }
+            Image img = fromChildren(key);
+            if (img != null) {
+                put(key, -1, img);
+                return img;
+            }
+        }
+
+        int ancestorZoom = tileCache.findCachedAncestorZoom(key, MAX_LEVELS_UP);
+        if (ancestorZoom < 0) {
+            return cached == null ? null : cached.image;
+        }
+        if (cached != null && cached.sourceZoom >= ancestorZoom) {
+            return cached.image;
+        }
+        Image img = fromAncestor(key, ancestorZoom);
+        if (img != null) {
+            put(key, ancestorZoom, img);
+        }
+        return img;
+    }
+
+    /**
+     * Forget the stand-in for a tile, e.g. because the real one arrived.
+     */
+    @GuardedBy("AWT EDT")
+    public void discard(TileRef tile) {
+        Scaled entry = scaled.remove(tile.key());
+        if (entry != null) {
+            entry.unlink();
+        }
+    }
+
+    /**
+     * Forget every stand-in, e.g. because the cached tiles were cleared.
+     */
+    @GuardedBy("AWT EDT")
+    public void clear() {
+        scaled.clear();
+        lru.next = lru.prev = lru;
+    }
+
+    @GuardedBy("AWT EDT")
+    private void put(long key, int sourceZoom, Image image) {
+        Scaled entry = scaled.get(key);
+        if (entry == null) {
+            entry = new Scaled(key);
+            scaled.put(key, entry);
+        } else {
+            entry.unlink();
+        }
+        entry.sourceZoom = sourceZoom;
+        entry.image = image;
+        entry.linkBefore(lru);
+        evict();
+    }
+
+    @GuardedBy("AWT EDT")
+    private void evict() {
+        while (scaled.size() > maxScaled) {
+            Scaled eldest = lru.next;
+            eldest.unlink();
+            scaled.remove(eldest.key);
+        }
+    }
+
+    private Image fromAncestor(long key, int ancestorZoom) {
+        int x = TileRef.keyX(key), y = TileRef.keyY(key), levels = TileRef.keyZoom(key) - ancestorZoom;
+        int ancestorX = x >> levels, ancestorY = y >> levels;
+        Image src = tileCache.getImage(TileRef.pack(ancestorX, ancestorY, ancestorZoom));
+        if (src == null) {
+            return null;
+        }
+
+        int size = 256 >> levels;
+        int sx = (x - (ancestorX << levels)) * size;
+        int sy = (y - (ancestorY << levels)) * size;
+
+        BufferedImage dst = CompatibleImages.create(256, 256, Transparency.OPAQUE);
+        Graphics2D g = dst.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(src, 0, 0, 256, 256, sx, sy, sx + size, sy + size, null);
+        g.dispose();
+        return dst;
+    }
+
+    private Image fromChildren(long key) {
+        int x = TileRef.keyX(key), y = TileRef.keyY(key), zoom = TileRef.keyZoom(key);
+        BufferedImage dst = CompatibleImages.create(256, 256, Transparency.OPAQUE);
+        Graphics2D g = dst.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        try {
+            for (int child = 0; child < 4; child++) {
+                int dx = child & 1, dy = child >> 1;
+                Image src = tileCache.getImage(TileRef.pack(2 * x + dx, 2 * y + dy, zoom + 1));
+                if (src == null) {
+                    // evicted since we checked
+                    return null;
+                }
+                g.drawImage(src, dx * 128, dy * 128, 128, 128, null);
+            }
+        } finally {
+            g.dispose();
+        }
+        return dst;
+    }
+
+    private static class Scaled {
+        final long key;
+        /** The zoom of the ancestor it was scaled up from, or -1 if made from children. */
+        int sourceZoom;
+        Image image;
+        Scaled prev, next;
+
+        Scaled(long key) {
+            this.key = key;
+        }
+
+        void unlink() {
+            prev.next = next;
+            next.prev = prev;
+        }
+
+        void linkBefore(Scaled successor) {
+            next = successor;
+            prev = successor.prev;
+            prev.next = this;
+            successor.prev = this;
+        }
+    }
+}
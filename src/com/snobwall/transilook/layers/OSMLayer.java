@@ -2,48 +2,158 @@ package com.snobwall.transilook.layers;
 
 import java.awt.Graphics;
 import java.awt.Image;
-import java.io.ByteArrayInputStream;
-import java.util.LinkedList;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
-import javax.imageio.ImageIO;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import net.jcip.annotations.GuardedBy;
-import net.jcip.annotations.Immutable;
-
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.methods.GetMethod;
 
 import com.google.common.base.Optional;
+import com.snobwall.transilook.metrics.Metrics;
 import com.snobwall.transilook.osm.BoundingBox;
 import com.snobwall.transilook.osm.SlippyUtil;
+import com.snobwall.transilook.osm.TileGrid;
+import com.snobwall.transilook.osm.TileRef;
+import com.snobwall.transilook.tiles.PrefetchPlanner;
+import com.snobwall.transilook.tiles.TileCache;
+import com.snobwall.transilook.tiles.TileDecoder;
+import com.snobwall.transilook.tiles.TileFetchScheduler;
+import com.snobwall.transilook.tiles.TileFetcher;
+import com.snobwall.transilook.tiles.TileStore;
+import com.snobwall.transilook.tiles.ViewportTracker;
 import com.snobwall.transilook.ui.MapLayer;
 import com.snobwall.transilook.ui.MapLayerObserver;
-
-public class OSMLayer implements MapLayer {
+import com.snobwall.transilook.ui.MapMotionListener;
+
+public class OSMLayer implements MapLayer, MapMotionListener {
+
+    /** Most prefetches allowed in flight, kept below the fetch thread count so visible tiles always get a thread. */
+    private static final int PREFETCH_BUDGET = 8;
+
+    private static final int FETCH_THREADS = 12;
+
+    /**
+     * With a non-blocking transport, how many requests may be out at once.
+     * Fetch threads then only start requests, so a couple are plenty.
+     */
+    private static final int FETCHES_IN_FLIGHT = Integer.getInteger("transilook.fetchesInFlight", 32);
+    private static final int ASYNC_FETCH_THREADS = 2;
+    /**
+     * Threads that store and decode what a non-blocking transport delivers,
+     * off its I/O thread. They wait whenever the decode stage is full, so
+     * there are enough to keep it busy.
+     */
+    private static final int ASYNC_COMPLETION_THREADS = 2;
+
+    /**
+     * How long after a visible tile's fetch fails to try it again, doubling
+     * with each failure in a row up to {@link #MAX_RETRY_MILLIS}.
+     */
+    private static final int RETRY_MILLIS = 1000;
+    private static final int MAX_RETRY_MILLIS = 60000;
 
     private AtomicReference<Optional<MapLayerObserver>> mapLayerObserver = new AtomicReference<Optional<MapLayerObserver>>(Optional.<MapLayerObserver>absent());
-    private ExecutorService imageUpdateExecutor = Executors.newSingleThreadExecutor();
 
-    private ExecutorService tileFetchPool = Executors.newFixedThreadPool(15);
-    private ConcurrentHashMap<OSMLayer.TileRef, Optional<Image>> tiles = new ConcurrentHashMap<OSMLayer.TileRef, Optional<Image>>();
+    private final TileFetchScheduler tileFetchScheduler;
+    /** Whether fetches go out through {@link TileFetcher#fetchAsync} rather than holding a fetch thread each. */
+    private final boolean asyncFetch;
+    /** Where fetch callbacks go with a non-blocking transport, or null. */
+    private final ExecutorService fetchCompletions;
+    private final TileCache tileCache;
+    private final TileFetcher tileFetcher;
+    private final TileDecoder tileDecoder;
+    @GuardedBy("AWT EDT")
+    private final FallbackTiles fallbackTiles;
+    
+    /** Shared by painting and tile updates, which both run on the EDT. */
+    @GuardedBy("AWT EDT")
+    private final TileGrid grid = new TileGrid();
+    @GuardedBy("AWT EDT")
+    private final Rectangle clipBounds = new Rectangle();
+    @GuardedBy("AWT EDT")
+    private final Rectangle arrivalBounds = new Rectangle();
+    @GuardedBy("AWT EDT")
+    private final ViewportTracker viewportTracker = new ViewportTracker(1);
+    @GuardedBy("AWT EDT")
+    private final HashMap<TileRef, Future<?>> inFlight = new HashMap<TileRef, Future<?>>();
+    /** Failed fetches in a row of tiles waiting to be tried again. */
+    @GuardedBy("AWT EDT")
+    private final HashMap<TileRef, Integer> fetchFailures = new HashMap<TileRef, Integer>();
     
-    @GuardedBy("AWT event dispatch thread")
-    private LinkedList<Future<?>> loadTasks = new LinkedList<Future<?>>();
-    private Optional<Future<?>> lastImageUpdateTask = Optional.<Future<?>>absent();
+    @GuardedBy("AWT EDT")
+    private final PrefetchPlanner prefetchPlanner = new PrefetchPlanner();
+    @GuardedBy("AWT EDT")
+    private final HashMap<TileRef, Future<?>> prefetches = new HashMap<TileRef, Future<?>>();
+    @GuardedBy("AWT EDT")
+    private Set<TileRef> prefetchTargets = new HashSet<TileRef>();
+    @GuardedBy("AWT EDT")
+    private double velocityX, velocityY, focusX, focusY;
+    @GuardedBy("AWT EDT")
+    private int zoomDirection;
     
     @GuardedBy("AWT EDT")
     private int width, height, zoom;
     @GuardedBy("AWT EDT")
     private BoundingBox boundingBox;
     
+    public OSMLayer() {
+        this(new TileCache(), new TileFetcher());
+    }
+    
+    /**
+     * @param urlTemplate
+     *            where to fetch tiles from, as understood by
+     *            {@link TileFetcher#urlFormat(String)}
+     */
+    public OSMLayer(String urlTemplate) {
+        this(new TileCache(), new TileFetcher(TileFetcher.urlFormat(urlTemplate), null));
+    }
+    
+    public OSMLayer(TileCache tileCache, TileFetcher tileFetcher) {
+        this(tileCache, tileFetcher, new TileDecoder());
+    }
+
+    public OSMLayer(TileCache tileCache, TileFetcher tileFetcher, TileDecoder tileDecoder) {
+        super();
+        this.tileCache = tileCache;
+        this.tileFetcher = tileFetcher;
+        this.tileDecoder = tileDecoder;
+        this.asyncFetch = tileFetcher.getTransport().isNonBlocking();
+        this.tileFetchScheduler = asyncFetch ? new TileFetchScheduler(ASYNC_FETCH_THREADS, FETCHES_IN_FLIGHT) : new TileFetchScheduler(
+                FETCH_THREADS);
+        this.fetchCompletions = asyncFetch ? Executors.newFixedThreadPool(ASYNC_COMPLETION_THREADS, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "tile-complete-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }) : null;
+        this.fallbackTiles = new FallbackTiles(tileCache);
+    }
+    
     @Override
     public void registerLayerObserver(MapLayerObserver observer) {
         mapLayerObserver.set(Optional.of(observer));
@@ -54,203 +164,375 @@ public class OSMLayer implements MapLayer {
         mapLayerObserver.set(Optional.<MapLayerObserver>absent());
     }
 
+    @Override
+    public void viewMotion(double velocityX, double velocityY, int zoomDirection) {
+        this.velocityX = velocityX;
+        this.velocityY = velocityY;
+        this.zoomDirection = zoomDirection;
+    }
+
+    public PrefetchPlanner getPrefetchPlanner() {
+        return prefetchPlanner;
+    }
+
     @Override
     public void updateLayerBounds(final int width, final int height, final BoundingBox mercatorBounds, final int zoom) {
-        for(Future<?> task : loadTasks) {
-            task.cancel(false);
-        }
-        loadTasks.clear();
-        
         this.width = width;
         this.height = height;
         this.boundingBox = mercatorBounds;
         this.zoom = zoom;
         
+        double centreX = (mercatorBounds.east + mercatorBounds.west) / 2;
+        double centreY = (mercatorBounds.north + mercatorBounds.south) / 2;
+        focusX = SlippyUtil.mercX2tileX(centreX, zoom);
+        focusY = SlippyUtil.mercY2tileY(centreY, zoom);
+        tileFetchScheduler.setFocus(focusX, focusY, zoom);
+        
         updateTiles(this.width, this.height, this.boundingBox, this.zoom);
     }
 
     private void updateTiles(final int width, final int height, final BoundingBox boundingBox, final int zoom) {
-        if (lastImageUpdateTask.isPresent()) {
-            lastImageUpdateTask.get().cancel(true);
+        grid.set(width, height, boundingBox, zoom);
+        
+        ViewportTracker.Diff diff = viewportTracker.update(grid);
+        if (diff == null) {
+            // still the same tiles, which is most drag events
+            return;
         }
-
-        lastImageUpdateTask = Optional.<Future<?>>of(imageUpdateExecutor.submit(new Runnable() {
-            @Override
-            public void run() {
-                
-                double mercX = (boundingBox.east + boundingBox.west) / 2;
-                double mercY = (boundingBox.north + boundingBox.south) / 2;
-                
-                int[] centerTile = SlippyUtil.getTileNumber(mercX, mercY, zoom);
-
-                BoundingBox tileBoundingBox = SlippyUtil.tile2boundingBox(centerTile[0], centerTile[1], zoom);
-
-                // Find out where our location lives in this tile
-                // and remember that screen y is inverted compared to mercator y
-                double yRatio = (mercY - tileBoundingBox.north) / (tileBoundingBox.south - tileBoundingBox.north);
-                double xRatio = (mercX - tileBoundingBox.west) / (tileBoundingBox.east - tileBoundingBox.west);
-
-                int centerTileX = (int) (width / 2 - (xRatio * 256));
-                int centerTileY = (int) (height / 2 - (yRatio * 256));
-
-                int numXTilesOnLeft = (int) Math.ceil(centerTileX / 256.0);
-                int leftTileIdx = centerTile[0] - numXTilesOnLeft;
-                int leftTilePos = centerTileX - (numXTilesOnLeft * 256);
-
-                int numYTilesOnTop = (int) Math.ceil(centerTileY / 256.0);
-                int topTileIdx = centerTile[1] - numYTilesOnTop;
-                int topTilePos = centerTileY - (numYTilesOnTop * 256);
-
-                for (int y = 0; topTilePos + y * 256 < height; y++) {
-                    for (int x = 0; leftTilePos + x * 256 < width; x++) {
-                        OSMLayer.TileRef tile = new OSMLayer.TileRef(leftTileIdx + x, topTileIdx + y, zoom);
-                        Optional<Image> imageRef = tiles.get(tile);
-                        if (imageRef == null) {
-                            fetchTile(tile);
-                        }
-                    }
-                }
-                
-                Optional<MapLayerObserver> observer = mapLayerObserver.get();
-                if (observer.isPresent()) {
-                    observer.get().invalidateLayer(OSMLayer.this);
-                }
-                
+        tileCache.pin(grid);
+        fallbackTiles.setVisibleTiles(grid.getCols() * grid.getRows());
+        
+        List<TileRef> plan = prefetchPlanner.plan(viewportTracker, focusX, focusY, zoom, velocityX, velocityY, zoomDirection);
+        prefetchTargets = new HashSet<TileRef>(plan);
+        
+        // only give up on fetches that have drifted out of reach; tiles still
+        // on screen keep their place in the queue however much we pan
+        Iterator<Map.Entry<TileRef, Future<?>>> it = inFlight.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<TileRef, Future<?>> entry = it.next();
+            if (entry.getValue().isDone()) {
+                it.remove();
+                prefetches.remove(entry.getKey());
+            } else if (!viewportTracker.isPrefetchEligible(entry.getKey()) && !prefetchTargets.contains(entry.getKey())) {
+                entry.getValue().cancel(true);
+                it.remove();
+                prefetches.remove(entry.getKey());
             }
-        }));
+        }
+        
+        for (TileRef tile : diff.entered) {
+            prefetchPlanner.tileShown(tile);
+            if (!tileCache.containsImage(tile)) {
+                fetchTile(tile, false);
+            }
+        }
+        
+        for (TileRef tile : plan) {
+            if (prefetches.size() >= PREFETCH_BUDGET) {
+                break;
+            }
+            if (!tileCache.containsImage(tile)) {
+                fetchTile(tile, true);
+            }
+        }
+        
+        Optional<MapLayerObserver> observer = mapLayerObserver.get();
+        if (observer.isPresent()) {
+            observer.get().invalidateLayer(OSMLayer.this);
+        }
     }
 
     @Override
     public void paintLayer(Graphics g, int width, int height) {
-        double mercX = (boundingBox.east + boundingBox.west) / 2;
-        double mercY = (boundingBox.north + boundingBox.south) / 2;
-        
-        int[] centerTile = SlippyUtil.getTileNumber(mercX, mercY, zoom);
-
-        BoundingBox tileBoundingBox = SlippyUtil.tile2boundingBox(centerTile[0], centerTile[1], zoom);
-
-        // Find out where our location lives in this tile
-        // and remember that screen y is inverted compared to mercator y
-        double yRatio = (mercY - tileBoundingBox.north) / (tileBoundingBox.south - tileBoundingBox.north);
-        double xRatio = (mercX - tileBoundingBox.west) / (tileBoundingBox.east - tileBoundingBox.west);
+        grid.set(width, height, boundingBox, zoom);
+
+        // when only an exposed strip is being repainted, skip the tiles outside it
+        clipBounds.setBounds(0, 0, width, height);
+        g.getClipBounds(clipBounds);
+        grid.clip(clipBounds.x, clipBounds.y, clipBounds.width, clipBounds.height);
+
+        boolean complete = clipBounds.x <= 0 && clipBounds.y <= 0 && clipBounds.width >= width && clipBounds.height >= height;
+        while (grid.next()) {
+            Image img = tileCache.getImage(grid.key());
+            if (img == null) {
+                complete = false;
+                // draw a scaled ancestor or children until the real tile turns up
+                img = fallbackTiles.get(grid.key());
+            }
+            if (img != null) {
+                g.drawImage(img, grid.screenX(), grid.screenY(), null);
+            }
+        }
+        if (complete) {
+            Metrics.completeFrame();
+        }
+    }
+    
+    /**
+     * @return true once every tile in the view has been fetched and decoded
+     */
+    @GuardedBy("AWT EDT")
+    public boolean isViewportComplete() {
+        if (boundingBox == null) {
+            return false;
+        }
+        grid.set(width, height, boundingBox, zoom);
+        while (grid.next()) {
+            if (!tileCache.containsImage(new TileRef(grid.tileX(), grid.tileY(), zoom))) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        int centerTileX = (int) (width / 2 - (xRatio * 256));
-        int centerTileY = (int) (height / 2 - (yRatio * 256));
+    /**
+     * @return the tiles in the view
+     */
+    @GuardedBy("AWT EDT")
+    public List<TileRef> getVisibleTiles() {
+        ArrayList<TileRef> tiles = new ArrayList<TileRef>();
+        if (boundingBox == null) {
+            return tiles;
+        }
+        grid.set(width, height, boundingBox, zoom);
+        while (grid.next()) {
+            tiles.add(new TileRef(grid.tileX(), grid.tileY(), zoom));
+        }
+        return tiles;
+    }
 
-        int numXTilesOnLeft = (int) Math.ceil(centerTileX / 256.0);
-        int leftTileIdx = centerTile[0] - numXTilesOnLeft;
-        int leftTilePos = centerTileX - (numXTilesOnLeft * 256);
+    public TileCache getTileCache() {
+        return tileCache;
+    }
 
-        int numYTilesOnTop = (int) Math.ceil(centerTileY / 256.0);
-        int topTileIdx = centerTile[1] - numYTilesOnTop;
-        int topTilePos = centerTileY - (numYTilesOnTop * 256);
+    /**
+     * Start loading the tiles the store has fresh copies of, e.g. the ones
+     * in view when the app last exited, so they are read and decoded while
+     * the window is still coming up. Tiles without a fresh copy are left to
+     * be fetched as usual once they are in view, so this never goes to the
+     * network.
+     *
+     * @return the number of tiles being loaded
+     */
+    public int prime(Collection<TileRef> tiles) {
+        TileStore store = tileFetcher.getStore();
+        if (store == null) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        final List<TileRef> stored = new ArrayList<TileRef>();
+        for (TileRef tile : tiles) {
+            TileStore.Entry entry = store.lookup(tile);
+            if (entry != null && !entry.isExpired(now)) {
+                stored.add(tile);
+            }
+        }
+        SwingUtilities.invokeLater(new Runnable() {
 
-        for (int y = 0; topTilePos + y * 256 < height; y++) {
-            for (int x = 0; leftTilePos + x * 256 < width; x++) {
-                OSMLayer.TileRef tile = new OSMLayer.TileRef(leftTileIdx + x, topTileIdx + y, zoom);
-                Optional<Image> imageRef = tiles.get(tile);
-                if (imageRef != null && imageRef.isPresent()) {
-                    Image img = imageRef.get();
-                    g.drawImage(img, leftTilePos + x * 256, topTilePos + y * 256, null);
+            @Override
+            public void run() {
+                for (TileRef tile : stored) {
+                    if (!tileCache.containsImage(tile)) {
+                        // through the usual path, so the view's own requests for them are deduplicated
+                        fetchTile(tile, false);
+                    }
                 }
             }
-        }
+        });
+        return stored.size();
+    }
 
+    /**
+     * Redraw just the part of the view a newly cached tile can change: the
+     * tile itself, or the tiles it stands in for at another zoom level.
+     */
+    @GuardedBy("AWT EDT")
+    private void tileArrived(TileRef tile) {
+        Optional<MapLayerObserver> observer = mapLayerObserver.get();
+        if (!observer.isPresent() || boundingBox == null) {
+            return;
+        }
+        grid.set(width, height, boundingBox, zoom);
+        if (grid.screenBounds(tile, arrivalBounds)) {
+            observer.get().invalidateLayerRegion(this, arrivalBounds.x, arrivalBounds.y, arrivalBounds.width, arrivalBounds.height);
+        }
     }
-    
-    private void fetchTile(final OSMLayer.TileRef where) {
-        Future<?> taskFuture = tileFetchPool.submit(new Runnable() {
+
+    @GuardedBy("AWT EDT")
+    private void fetchTile(final TileRef where, final boolean prefetch) {
+        Future<?> existing = inFlight.get(where);
+        if (existing != null && !existing.isDone()) {
+            if (!prefetch && prefetches.remove(where) != null) {
+                // a prefetch that became visible: stop treating it as speculative
+                tileFetchScheduler.promote(existing);
+            }
+            // already on its way: never request the same tile twice
+            return;
+        }
+        
+        Future<?> taskFuture = asyncFetch ? fetchTileAsync(where, prefetch) : tileFetchScheduler.schedule(where, new Callable<Void>() {
 
             @Override
-            public void run() {
+            public Void call() {
                 try {
-                    if (tiles.putIfAbsent(where, Optional.<Image> absent()) != null) {
-                        // another thread already started loading this tile: abort immediately
-                        return;
+                    // a warm-tier hit only needs decoding again, not a network round trip
+                    byte[] responseBody = tileCache.getCompressed(where);
+                    if (responseBody == null) {
+                        responseBody = tileFetcher.fetch(where);
+                        tileCache.putCompressed(where, responseBody);
                     }
-                    HttpClient client = new HttpClient();
 
-                    final String[] prefixes = new String[] { "a", "b", "c" };
+                    // decoded on the decode stage, converted once there rather than on every paint
+                    tileDecoder.submit(responseBody, decodeCallback(where));
+                    return null;
+                } catch (Throwable e) {
+                    if (!Thread.currentThread().isInterrupted() && !(e instanceof InterruptedException)) {
+                        Metrics.FETCH_FAILURES.incrementAndGet();
+                        e.printStackTrace();
+                        tileFinished(where, true);
+                        return null;
+                    }
+                }
+                tileFinished(where, false);
+                return null;
+            }
+        }, prefetch);
+        
+        inFlight.put(where, taskFuture);
+        if (prefetch) {
+            prefetches.put(where, taskFuture);
+            prefetchPlanner.prefetchIssued(where);
+        }
+    }
+
+    /**
+     * Fetch through the transport's callbacks: no thread waits on the
+     * network, and the body is stored and passed to the decode stage on a
+     * completion thread. The fetch holds its in-flight slot until then, so
+     * at most that many completions ever wait.
+     */
+    private Future<?> fetchTileAsync(final TileRef where, boolean prefetch) {
+        return tileFetchScheduler.scheduleAsync(where, new TileFetchScheduler.AsyncFetch() {
 
-                    // Create a method instance.
-                    String tileURL = String.format("http://%s.tile.openstreetmap.org/%d/%d/%d.png", prefixes[new Random().nextInt(prefixes.length)],
-                            where.zoom, where.x, where.y);
-                    GetMethod method = new GetMethod(tileURL);
+            @Override
+            public Runnable start(final Runnable done) {
+                byte[] compressed = tileCache.getCompressed(where);
+                if (compressed != null) {
+                    decode(where, compressed, done);
+                    return null;
+                }
+                return tileFetcher.fetchAsync(where, fetchCompletions, new TileFetcher.Callback() {
+
+                    @Override
+                    public void fetched(byte[] body) {
+                        tileCache.putCompressed(where, body);
+                        decode(where, body, done);
+                    }
 
-                    int statusCode = client.executeMethod(method);
-                    if (statusCode != HttpStatus.SC_OK) {
-                        System.err.println("Method failed: " + method.getStatusLine());
-                        throw new RuntimeException("Failed to fetch tile from " + tileURL);
+                    @Override
+                    public void failed(IOException e) {
+                        boolean cancelled = e instanceof InterruptedIOException;
+                        if (!cancelled) {
+                            Metrics.FETCH_FAILURES.incrementAndGet();
+                            e.printStackTrace();
+                        }
+                        tileFinished(where, !cancelled);
+                        done.run();
                     }
-                    // Read the response body.
-                    byte[] responseBody = method.getResponseBody();
+                });
+            }
+        }, prefetch);
+    }
 
-                    ByteArrayInputStream responseInputStream = new ByteArrayInputStream(responseBody);
+    private void decode(TileRef where, byte[] body, Runnable done) {
+        try {
+            tileDecoder.submit(body, decodeCallback(where));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            tileFinished(where, false);
+        } finally {
+            done.run();
+        }
+    }
 
-                    Image img = ImageIO.read(responseInputStream);
+    private TileDecoder.Callback decodeCallback(final TileRef where) {
+        return new TileDecoder.Callback() {
+            @Override
+            public void decoded(Image img) {
+                tileCache.putImage(where, img);
+                tileFinished(where, false);
+            }
 
-                    tiles.put(where, Optional.of(img));
-                    
-                    SwingUtilities.invokeLater(new Runnable() {
-                        
-                        @Override
-                        public void run() {
-                            updateTiles(OSMLayer.this.width, OSMLayer.this.height, OSMLayer.this.boundingBox, OSMLayer.this.zoom);
-                        }
-                    });
+            @Override
+            public void failed(Exception e) {
+                Metrics.FETCH_FAILURES.incrementAndGet();
+                e.printStackTrace();
+                // the same bytes would only fail again
+                tileFinished(where, false);
+            }
+        };
+    }
 
+    /**
+     * Settle a tile's fetch on the EDT once it has been decoded or has
+     * failed.
+     *
+     * @param fetchFailed
+     *            whether getting the tile failed in a way that trying again
+     *            may fix, such as a network error
+     */
+    private void tileFinished(final TileRef where, final boolean fetchFailed) {
+        SwingUtilities.invokeLater(new Runnable() {
 
-                } catch (Throwable e) {
-                    e.printStackTrace();
-                    // fetchTile(where);
-                    tiles.remove(where, Optional.<Image> absent());
+            @Override
+            public void run() {
+                Future<?> done = inFlight.get(where);
+                boolean stillPrefetch = false;
+                if (done != null && done.isDone()) {
+                    inFlight.remove(where);
+                    stillPrefetch = prefetches.remove(where) != null;
+                }
+                if (stillPrefetch && tileCache.containsImage(where)) {
+                    prefetchPlanner.prefetchCompleted(where);
+                }
+                if (tileCache.containsImage(where)) {
+                    fetchFailures.remove(where);
+                    fallbackTiles.discard(where);
+                    tileArrived(where);
+                } else if (fetchFailed) {
+                    retryLater(where);
                 }
             }
         });
-        
-        loadTasks.add(taskFuture);
     }
-    
 
-    @Immutable
-    public static class TileRef {
-        public final int x, y, zoom;
-    
-        public TileRef(int x, int y, int zoom) {
-            super();
-            this.x = x;
-            this.y = y;
-            this.zoom = zoom;
-        }
-    
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + x;
-            result = prime * result + y;
-            result = prime * result + zoom;
-            return result;
-        }
-    
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            TileRef other = (TileRef) obj;
-            if (x != other.x)
-                return false;
-            if (y != other.y)
-                return false;
-            if (zoom != other.zoom)
-                return false;
-            return true;
+    /**
+     * Fetch a tile again after a failure if it is still in view by then, so
+     * a transient error does not leave a hole until the tile is scrolled
+     * away and back.
+     */
+    @GuardedBy("AWT EDT")
+    private void retryLater(final TileRef where) {
+        if (!viewportTracker.isVisible(where)) {
+            fetchFailures.remove(where);
+            return;
         }
-    
+        Integer failures = fetchFailures.get(where);
+        int previous = failures == null ? 0 : failures;
+        fetchFailures.put(where, previous + 1);
+
+        Timer timer = new Timer((int) Math.min(MAX_RETRY_MILLIS, (long) RETRY_MILLIS << Math.min(previous, 16)), new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (!viewportTracker.isVisible(where)) {
+                    fetchFailures.remove(where);
+                } else if (!tileCache.containsImage(where)) {
+                    fetchTile(where, false);
+                }
+            }
+        });
+        timer.setRepeats(false);
+        timer.start();
     }
 
 }
@@ -0,0 +1,312 @@
+package com.snobwall.transilook.layers;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.jcip.annotations.GuardedBy;
+
+import com.google.common.base.Optional;
+import com.snobwall.transilook.metrics.Metrics;
+import com.snobwall.transilook.osm.BoundingBox;
+import com.snobwall.transilook.osm.SlippyUtil;
+import com.snobwall.transilook.transit.PointSet;
+import com.snobwall.transilook.ui.AsyncMapLayer;
+import com.snobwall.transilook.ui.CompatibleImages;
+import com.snobwall.transilook.ui.MapLayerObserver;
+
+/**
+ * Draws stops and vehicles as markers.
+ *
+ * Points are binned into {@value #CELL}-pixel cells aligned to the world
+ * pixel grid; a cell holding one point shows that point's marker, a cell
+ * holding several shows a single cluster marker with a count. At street
+ * level that means every point gets its own marker, while zoomed out the
+ * number of markers is bounded by the size of the window rather than the
+ * number of points. Only points in the (clipped) viewport are looked at, and
+ * every marker is drawn by blitting a pre-rendered image.
+ *
+ * Painting on the EDT and rendering on a worker share the same scratch
+ * state, so they take turns on the layer's lock.
+ *
+ * @author mrb
+ *
+ */
+public class PointLayer implements AsyncMapLayer {
+
+    /** Cluster cell size in pixels; also the largest a marker may be. */
+    private static final int CELL = 32;
+    private static final int MARKER_SIZE = 10;
+    private static final int EXACT_COUNTS = 100;
+
+    private static final Color[] KIND_COLORS = new Color[] { new Color(0x1f5fa8), new Color(0xd9480f) };
+    private static final Color CLUSTER_COLOR = new Color(0x5c3d99);
+
+    private AtomicReference<Optional<MapLayerObserver>> mapLayerObserver = new AtomicReference<Optional<MapLayerObserver>>(Optional.<MapLayerObserver>absent());
+
+    /** Swapped whole by {@link #setPoints}, so updates never wait for painting. */
+    private volatile Snapshot snapshot = new Snapshot(PointSet.EMPTY, 0);
+    /** The newest snapshot to reach the screen. */
+    @GuardedBy("this")
+    private Snapshot painted;
+    /** The snapshot the last render drew, until the render is shown. */
+    @GuardedBy("this")
+    private Snapshot rendered;
+
+    @GuardedBy("AWT EDT")
+    private int zoom;
+    @GuardedBy("AWT EDT")
+    private BoundingBox boundingBox;
+
+    @GuardedBy("this")
+    private final Rectangle clipBounds = new Rectangle();
+    @GuardedBy("this")
+    private final BufferedImage[] markers = new BufferedImage[KIND_COLORS.length];
+    /** Cluster markers by count, then by power of ten beyond {@link #EXACT_COUNTS}. */
+    @GuardedBy("this")
+    private final BufferedImage[] clusters = new BufferedImage[EXACT_COUNTS + 8];
+
+    /** Per-cell point counts, first point and coordinate sums, reused between paints. */
+    @GuardedBy("this")
+    private int[] cellCount = new int[0], cellFirst = new int[0];
+    @GuardedBy("this")
+    private double[] cellSumX = new double[0], cellSumY = new double[0];
+    @GuardedBy("this")
+    private int cellsX, cellsY, cellOriginX, cellOriginY;
+    @GuardedBy("this")
+    private double pixelsPerMercUnit;
+
+    @GuardedBy("this")
+    private final PointSet.Visitor binner = new PointSet.Visitor() {
+        @Override
+        public void visit(int index, double mercX, double mercY) {
+            double px = mercX * pixelsPerMercUnit, py = -mercY * pixelsPerMercUnit;
+            int cx = (int) Math.floor(px / CELL) - cellOriginX, cy = (int) Math.floor(py / CELL) - cellOriginY;
+            if (cx < 0 || cx >= cellsX || cy < 0 || cy >= cellsY) {
+                // rounding put it just over the edge of the queried cells
+                return;
+            }
+            int cell = cy * cellsX + cx;
+            if (cellCount[cell]++ == 0) {
+                cellFirst[cell] = index;
+            }
+            cellSumX[cell] += px;
+            cellSumY[cell] += py;
+        }
+    };
+
+    public PointSet getPoints() {
+        return snapshot.points;
+    }
+
+    /**
+     * Replace the points shown; may be called from any thread.
+     */
+    public void setPoints(PointSet points) {
+        setPoints(points, 0);
+    }
+
+    /**
+     * Replace the points shown; may be called from any thread.
+     *
+     * @param receivedNanos
+     *            {@link System#nanoTime()} when the oldest change in these
+     *            points arrived, recorded in
+     *            {@link Metrics#UPDATE_TO_PIXEL_NANOS} once they are painted,
+     *            or once a render of them is shown; 0 if there is nothing to
+     *            measure
+     */
+    public void setPoints(PointSet points, long receivedNanos) {
+        this.snapshot = new Snapshot(points, receivedNanos);
+        Optional<MapLayerObserver> observer = mapLayerObserver.get();
+        if (observer.isPresent()) {
+            observer.get().invalidateLayer(this);
+        }
+    }
+
+    @Override
+    public void registerLayerObserver(MapLayerObserver observer) {
+        mapLayerObserver.set(Optional.of(observer));
+    }
+
+    @Override
+    public void unregisterLayerObserver(MapLayerObserver observer) {
+        mapLayerObserver.set(Optional.<MapLayerObserver>absent());
+    }
+
+    @Override
+    public void updateLayerBounds(int width, int height, BoundingBox mercatorBounds, int zoom) {
+        this.boundingBox = mercatorBounds;
+        this.zoom = zoom;
+    }
+
+    @Override
+    public synchronized void paintLayer(Graphics g, int width, int height) {
+        if (boundingBox != null) {
+            shown(draw((Graphics2D) g, width, height, boundingBox, zoom));
+        }
+    }
+
+    @Override
+    public synchronized void renderLayer(Graphics2D g, int width, int height, BoundingBox mercatorBounds, int zoom) {
+        rendered = draw(g, width, height, mercatorBounds, zoom);
+    }
+
+    @Override
+    public synchronized void renderShown() {
+        if (rendered != null) {
+            shown(rendered);
+            rendered = null;
+        }
+    }
+
+    @GuardedBy("this")
+    private void shown(Snapshot snapshot) {
+        if (snapshot != painted) {
+            painted = snapshot;
+            if (snapshot.receivedNanos != 0) {
+                Metrics.UPDATE_TO_PIXEL_NANOS.record(System.nanoTime() - snapshot.receivedNanos);
+            }
+        }
+    }
+
+    /**
+     * @return the snapshot drawn
+     */
+    @GuardedBy("this")
+    private Snapshot draw(Graphics2D g, int width, int height, BoundingBox mercatorBounds, int zoom) {
+        Snapshot snapshot = this.snapshot;
+        PointSet points = snapshot.points;
+        if (points.size() == 0) {
+            return snapshot;
+        }
+
+        clipBounds.setBounds(0, 0, width, height);
+        g.getClipBounds(clipBounds);
+
+        // world pixel coordinates, y growing downwards like the screen
+        pixelsPerMercUnit = 1 / SlippyUtil.mercUnitsPerPixel(zoom);
+        double originX = mercatorBounds.west * pixelsPerMercUnit, originY = -mercatorBounds.north * pixelsPerMercUnit;
+
+        // whole cells around the clip, plus one for markers that spill over a cell edge
+        cellOriginX = (int) Math.floor((originX + clipBounds.x) / CELL) - 1;
+        cellOriginY = (int) Math.floor((originY + clipBounds.y) / CELL) - 1;
+        cellsX = (int) Math.floor((originX + clipBounds.x + clipBounds.width) / CELL) + 1 - cellOriginX + 1;
+        cellsY = (int) Math.floor((originY + clipBounds.y + clipBounds.height) / CELL) + 1 - cellOriginY + 1;
+        ensureCells(cellsX * cellsY);
+
+        double unit = CELL / pixelsPerMercUnit;
+        double west = cellOriginX * unit, east = (cellOriginX + cellsX) * unit - 1e-12 * unit;
+        double north = -cellOriginY * unit, south = -(cellOriginY + cellsY) * unit + 1e-12 * unit;
+        points.query(west, south, east, north, binner);
+
+        int cells = cellsX * cellsY;
+        for (int cell = 0; cell < cells; cell++) {
+            int count = cellCount[cell];
+            if (count == 0) {
+                continue;
+            }
+            int first = cellFirst[cell];
+            if (count == 1) {
+                int x = (int) Math.round(cellSumX[cell] - originX), y = (int) Math.round(cellSumY[cell] - originY);
+                g.drawImage(marker(points.getKind(first)), x - MARKER_SIZE / 2, y - MARKER_SIZE / 2, null);
+            } else {
+                int x = (int) Math.round(cellSumX[cell] / count - originX), y = (int) Math.round(cellSumY[cell] / count - originY);
+                BufferedImage img = cluster(g, count);
+                g.drawImage(img, x - img.getWidth() / 2, y - img.getHeight() / 2, null);
+            }
+        }
+
+        Arrays.fill(cellCount, 0, cells, 0);
+        Arrays.fill(cellSumX, 0, cells, 0);
+        Arrays.fill(cellSumY, 0, cells, 0);
+        return snapshot;
+    }
+
+    /**
+     * @return a pre-rendered cluster marker; exact counts are shown up to
+     *         {@value #EXACT_COUNTS}, larger ones are rounded down to a
+     *         power of ten
+     */
+    @GuardedBy("this")
+    private BufferedImage cluster(Graphics2D target, int count) {
+        int magnitude = 0;
+        int shown = count;
+        if (count >= EXACT_COUNTS) {
+            while (shown >= 10) {
+                shown /= 10;
+                magnitude++;
+            }
+            shown = (int) Math.pow(10, magnitude);
+        }
+        int slot = count < EXACT_COUNTS ? count : EXACT_COUNTS + magnitude;
+        if (slot >= clusters.length) {
+            slot = clusters.length - 1;
+        }
+        if (clusters[slot] == null) {
+            String label = count < EXACT_COUNTS ? Integer.toString(count) : (shown >= 1000 ? shown / 1000 + "k+" : shown + "+");
+            int r = Math.min(CELL / 2, 7 + 2 * (31 - Integer.numberOfLeadingZeros(Math.max(count, 1))));
+            BufferedImage img = CompatibleImages.create(2 * r, 2 * r, Transparency.TRANSLUCENT);
+            Graphics2D g = img.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setColor(CLUSTER_COLOR);
+            g.fillOval(0, 0, 2 * r, 2 * r);
+            g.setFont(target.getFont().deriveFont(Font.BOLD, 10f));
+            FontMetrics metrics = g.getFontMetrics();
+            g.setColor(Color.white);
+            g.drawString(label, r - metrics.stringWidth(label) / 2, r + (metrics.getAscent() - metrics.getDescent()) / 2);
+            g.dispose();
+            clusters[slot] = img;
+        }
+        return clusters[slot];
+    }
+
+    /** @return a pre-rendered marker, so drawing a point is a plain blit */
+    @GuardedBy("this")
+    private BufferedImage marker(byte kind) {
+        int k = Math.max(0, Math.min(kind, markers.length - 1));
+        if (markers[k] == null) {
+            BufferedImage img = CompatibleImages.create(MARKER_SIZE, MARKER_SIZE, Transparency.TRANSLUCENT);
+            Graphics2D g = img.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setColor(KIND_COLORS[k]);
+            g.fillOval(1, 1, MARKER_SIZE - 2, MARKER_SIZE - 2);
+            g.setColor(Color.white);
+            g.setStroke(new BasicStroke(1.5f));
+            g.drawOval(1, 1, MARKER_SIZE - 3, MARKER_SIZE - 3);
+            g.dispose();
+            markers[k] = img;
+        }
+        return markers[k];
+    }
+
+    @GuardedBy("this")
+    private void ensureCells(int cells) {
+        if (cellCount.length < cells) {
+            cellCount = new int[cells];
+            cellFirst = new int[cells];
+            cellSumX = new double[cells];
+            cellSumY = new double[cells];
+        }
+    }
+
+    private static class Snapshot {
+        final PointSet points;
+        final long receivedNanos;
+
+        Snapshot(PointSet points, long receivedNanos) {
+            this.points = points;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.snobwall.transilook.layers;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Stroke;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.jcip.annotations.GuardedBy;
+
+import com.google.common.base.Optional;
+import com.snobwall.transilook.osm.BoundingBox;
+import com.snobwall.transilook.osm.SlippyUtil;
+import com.snobwall.transilook.transit.PolylineSet;
+import com.snobwall.transilook.transit.SimplifiedLines;
+import com.snobwall.transilook.ui.AsyncMapLayer;
+import com.snobwall.transilook.ui.MapLayerObserver;
+
+/**
+ * Draws route shapes as lines.
+ *
+ * Lines are drawn from {@link SimplifiedLines} for the current zoom, so the
+ * number of vertices drawn follows what the window can show rather than how
+ * detailed the shapes are. Lines whose extent misses the clip are skipped,
+ * and so are the chunks of a line whose own extent misses it, so zoomed in
+ * on a long line only the few chunks on screen are transformed. Those are
+ * clipped segment by segment, so only the visible runs of a line reach
+ * Java2D.
+ *
+ * The simplified lines and clipping scratch are shared by painting on the
+ * EDT and rendering on a worker, which take turns on the layer's lock.
+ *
+ * @author mrb
+ *
+ */
+public class RouteLayer implements AsyncMapLayer {
+
+    private static final Color DEFAULT_COLOR = new Color(0x3d7cc9);
+    private static final float DEFAULT_WIDTH = 3f;
+
+    private AtomicReference<Optional<MapLayerObserver>> mapLayerObserver = new AtomicReference<Optional<MapLayerObserver>>(Optional.<MapLayerObserver>absent());
+
+    private volatile PolylineSet lines = PolylineSet.EMPTY;
+
+    private final Color color;
+    private final Stroke stroke;
+    private final int margin;
+
+    @GuardedBy("this")
+    private SimplifiedLines simplified = new SimplifiedLines(PolylineSet.EMPTY);
+    @GuardedBy("AWT EDT")
+    private int zoom;
+    @GuardedBy("AWT EDT")
+    private BoundingBox boundingBox;
+
+    @GuardedBy("this")
+    private final Rectangle clipBounds = new Rectangle();
+    /** The run of clipped points being collected for one drawPolyline. */
+    @GuardedBy("this")
+    private int[] runX = new int[256], runY = new int[256];
+    @GuardedBy("this")
+    private int runLength;
+    @GuardedBy("this")
+    private final double[] clipped = new double[4];
+    @GuardedBy("this")
+    private double t0, t1;
+    @GuardedBy("this")
+    private long verticesDrawn;
+
+    public RouteLayer() {
+        this(DEFAULT_COLOR, DEFAULT_WIDTH);
+    }
+
+    public RouteLayer(Color color, float width) {
+        super();
+        this.color = color;
+        this.stroke = new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+        this.margin = (int) Math.ceil(width);
+    }
+
+    public PolylineSet getLines() {
+        return lines;
+    }
+
+    /**
+     * Replace the lines shown; may be called from any thread.
+     */
+    public void setLines(PolylineSet lines) {
+        this.lines = lines;
+        Optional<MapLayerObserver> observer = mapLayerObserver.get();
+        if (observer.isPresent()) {
+            observer.get().invalidateLayer(this);
+        }
+    }
+
+    /** @return how many vertices have been drawn, for benchmarks */
+    public synchronized long getVerticesDrawn() {
+        return verticesDrawn;
+    }
+
+    @Override
+    public void registerLayerObserver(MapLayerObserver observer) {
+        mapLayerObserver.set(Optional.of(observer));
+    }
+
+    @Override
+    public void unregisterLayerObserver(MapLayerObserver observer) {
+        mapLayerObserver.set(Optional.<MapLayerObserver>absent());
+    }
+
+    @Override
+    public void updateLayerBounds(int width, int height, BoundingBox mercatorBounds, int zoom) {
+        this.boundingBox = mercatorBounds;
+        this.zoom = zoom;
+    }
+
+    @Override
+    public void paintLayer(Graphics g, int width, int height) {
+        if (boundingBox != null) {
+            draw((Graphics2D) g, width, height, boundingBox, zoom);
+        }
+    }
+
+    @Override
+    public void renderLayer(Graphics2D g, int width, int height, BoundingBox mercatorBounds, int zoom) {
+        draw(g, width, height, mercatorBounds, zoom);
+    }
+
+    @Override
+    public void renderShown() {
+    }
+
+    private synchronized void draw(Graphics2D g2, int width, int height, BoundingBox boundingBox, int zoom) {
+        PolylineSet lines = this.lines;
+        if (lines.size() == 0) {
+            return;
+        }
+        if (simplified.getLines() != lines) {
+            simplified = new SimplifiedLines(lines);
+        }
+
+        clipBounds.setBounds(0, 0, width, height);
+        g2.getClipBounds(clipBounds);
+        double pixelsPerMercUnit = 1 / SlippyUtil.mercUnitsPerPixel(zoom);
+
+        // the clip, grown by the line width, in pixels and in mercator units
+        double left = clipBounds.x - margin, top = clipBounds.y - margin;
+        double right = clipBounds.x + clipBounds.width + margin, bottom = clipBounds.y + clipBounds.height + margin;
+        double west = boundingBox.west + left / pixelsPerMercUnit, east = boundingBox.west + right / pixelsPerMercUnit;
+        double north = boundingBox.north - top / pixelsPerMercUnit, south = boundingBox.north - bottom / pixelsPerMercUnit;
+
+        Object antialiasing = g2.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
+        Stroke oldStroke = g2.getStroke();
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.setStroke(stroke);
+        g2.setColor(color);
+
+        for (int line = 0; line < lines.size(); line++) {
+            if (!lines.intersects(line, west, south, east, north)) {
+                continue;
+            }
+            double[] vertices = simplified.get(line, zoom);
+            double[] chunkBounds = simplified.getChunkBounds(line, zoom);
+            int end = vertices.length - 2;
+            for (int c = 0, b = 0; b < chunkBounds.length; c += 2 * SimplifiedLines.CHUNK_SEGMENTS, b += 4) {
+                if (chunkBounds[b] > east || chunkBounds[b + 2] < west || chunkBounds[b + 1] > north || chunkBounds[b + 3] < south) {
+                    flush(g2);
+                    continue;
+                }
+                int last = Math.min(c + 2 * SimplifiedLines.CHUNK_SEGMENTS, end);
+                double x0 = (vertices[c] - boundingBox.west) * pixelsPerMercUnit, y0 = (boundingBox.north - vertices[c + 1]) * pixelsPerMercUnit;
+                for (int i = c + 2; i <= last; i += 2) {
+                    double x1 = (vertices[i] - boundingBox.west) * pixelsPerMercUnit, y1 = (boundingBox.north - vertices[i + 1]) * pixelsPerMercUnit;
+                    if (clip(x0, y0, x1, y1, left, top, right, bottom)) {
+                        if (runLength == 0 || clipped[0] != x0 || clipped[1] != y0) {
+                            // the run was broken by clipping; start another
+                            flush(g2);
+                            addPoint(clipped[0], clipped[1]);
+                        }
+                        addPoint(clipped[2], clipped[3]);
+                        if (clipped[2] != x1 || clipped[3] != y1) {
+                            flush(g2);
+                        }
+                    } else {
+                        flush(g2);
+                    }
+                    x0 = x1;
+                    y0 = y1;
+                }
+            }
+            flush(g2);
+        }
+
+        g2.setStroke(oldStroke);
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialiasing);
+    }
+
+    /**
+     * Liang-Barsky: clip a segment to a rectangle, leaving the clipped ends
+     * in {@link #clipped}.
+     *
+     * @return false if none of the segment is inside
+     */
+    @GuardedBy("this")
+    private boolean clip(double x0, double y0, double x1, double y1, double left, double top, double right, double bottom) {
+        double dx = x1 - x0, dy = y1 - y0;
+        t0 = 0;
+        t1 = 1;
+        if (!clipEdge(-dx, x0 - left) || !clipEdge(dx, right - x0) || !clipEdge(-dy, y0 - top) || !clipEdge(dy, bottom - y0)) {
+            return false;
+        }
+        clipped[0] = t0 == 0 ? x0 : x0 + t0 * dx;
+        clipped[1] = t0 == 0 ? y0 : y0 + t0 * dy;
+        clipped[2] = t1 == 1 ? x1 : x0 + t1 * dx;
+        clipped[3] = t1 == 1 ? y1 : y0 + t1 * dy;
+        return true;
+    }
+
+    @GuardedBy("this")
+    private boolean clipEdge(double p, double q) {
+        if (p == 0) {
+            return q >= 0;
+        }
+        double t = q / p;
+        if (p < 0) {
+            t0 = Math.max(t0, t);
+        } else {
+            t1 = Math.min(t1, t);
+        }
+        return t0 <= t1;
+    }
+
+    @GuardedBy("this")
+    private void addPoint(double x, double y) {
+        if (runLength == runX.length) {
+            runX = Arrays.copyOf(runX, runLength * 2);
+            runY = Arrays.copyOf(runY, runLength * 2);
+        }
+        runX[runLength] = (int) Math.round(x);
+        runY[runLength] = (int) Math.round(y);
+        runLength++;
+    }
+
+    @GuardedBy("this")
+    private void flush(Graphics2D g) {
+        if (runLength > 1) {
+            g.drawPolyline(runX, runY, runLength);
+            verticesDrawn += runLength;
+        }
+        runLength = 0;
+    }
+}
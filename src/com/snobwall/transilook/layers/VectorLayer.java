@@ -0,0 +1,388 @@
+package com.snobwall.transilook.layers;
+
+import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.swing.SwingUtilities;
+
+import net.jcip.annotations.GuardedBy;
+
+import com.google.common.base.Optional;
+import com.snobwall.transilook.metrics.Metrics;
+import com.snobwall.transilook.osm.BoundingBox;
+import com.snobwall.transilook.osm.SlippyUtil;
+import com.snobwall.transilook.osm.TileGrid;
+import com.snobwall.transilook.osm.TileRef;
+import com.snobwall.transilook.tiles.TileCache;
+import com.snobwall.transilook.tiles.TileFetchScheduler;
+import com.snobwall.transilook.tiles.TileFetcher;
+import com.snobwall.transilook.tiles.ViewportTracker;
+import com.snobwall.transilook.ui.MapLayer;
+import com.snobwall.transilook.ui.MapLayerObserver;
+import com.snobwall.transilook.vector.DirectoryTileSource;
+import com.snobwall.transilook.vector.FetcherTileSource;
+import com.snobwall.transilook.vector.MvtDecoder;
+import com.snobwall.transilook.vector.VectorRasterizer;
+import com.snobwall.transilook.vector.VectorStyle;
+import com.snobwall.transilook.vector.VectorTile;
+import com.snobwall.transilook.vector.VectorTileSource;
+
+/**
+ * A base map drawn from vector tiles rather than fetched as images.
+ *
+ * Tiles are decoded and rasterised on a pool of worker threads and the
+ * styled images kept in the hot tier of a {@link TileCache}, with the raw MVT
+ * bytes in its warm tier. Zoom levels past the source's deepest are drawn
+ * from the decoded ancestor, which is kept in a small cache of its own so
+ * its sixteen or so descendants on screen only decode it once. The ancestor
+ * is loaded on the thread of whichever descendant asked first; if that one
+ * is cancelled part way, the others waiting on it start the load again.
+ *
+ * @author mrb
+ *
+ */
+public class VectorLayer implements MapLayer {
+
+    public static final int DEFAULT_THREADS = Integer.getInteger("transilook.vectorThreads", Math.max(4, Runtime.getRuntime()
+            .availableProcessors()));
+    public static final long DEFAULT_DECODED_BUDGET = Long.getLong("transilook.vectorCache.decodedBytes", 16L * 1024 * 1024);
+
+    private static final ThreadLocal<MvtDecoder> DECODERS = new ThreadLocal<MvtDecoder>() {
+        @Override
+        protected MvtDecoder initialValue() {
+            return new MvtDecoder();
+        }
+    };
+
+    private static final ThreadLocal<VectorRasterizer> RASTERIZERS = new ThreadLocal<VectorRasterizer>() {
+        @Override
+        protected VectorRasterizer initialValue() {
+            return new VectorRasterizer();
+        }
+    };
+
+    private AtomicReference<Optional<MapLayerObserver>> mapLayerObserver = new AtomicReference<Optional<MapLayerObserver>>(Optional.<MapLayerObserver>absent());
+
+    private final TileFetchScheduler tileFetchScheduler = new TileFetchScheduler(DEFAULT_THREADS);
+    private final TileCache tileCache;
+    private final VectorTileSource source;
+    private volatile VectorStyle style = VectorStyle.DEFAULT;
+    @GuardedBy("AWT EDT")
+    private final FallbackTiles fallbackTiles;
+
+    private final long decodedBudget;
+    @GuardedBy("decoded")
+    private final LinkedHashMap<TileRef, VectorTile> decoded = new LinkedHashMap<TileRef, VectorTile>(64, 0.75f, true);
+    @GuardedBy("decoded")
+    private long decodedBytes;
+    /** Source tiles being fetched and decoded, so overzoomed tiles sharing one wait for it rather than fetch it again. */
+    private final ConcurrentHashMap<TileRef, FutureTask<VectorTile>> loading = new ConcurrentHashMap<TileRef, FutureTask<VectorTile>>();
+
+    @GuardedBy("AWT EDT")
+    private final TileGrid grid = new TileGrid();
+    @GuardedBy("AWT EDT")
+    private final Rectangle clipBounds = new Rectangle();
+    @GuardedBy("AWT EDT")
+    private final Rectangle arrivalBounds = new Rectangle();
+    @GuardedBy("AWT EDT")
+    private final ViewportTracker viewportTracker = new ViewportTracker(1);
+    @GuardedBy("AWT EDT")
+    private final HashMap<TileRef, Future<?>> inFlight = new HashMap<TileRef, Future<?>>();
+
+    @GuardedBy("AWT EDT")
+    private int width, height, zoom;
+    @GuardedBy("AWT EDT")
+    private BoundingBox boundingBox;
+
+    /**
+     * @param location
+     *            a directory of z/x/y.mvt tiles, or a URL template for a
+     *            vector tile server as understood by
+     *            {@link TileFetcher#urlFormat(String)}
+     * @param maxZoom
+     *            the deepest zoom level the tiles go to
+     */
+    public VectorLayer(String location, int maxZoom) {
+        this(new TileCache(), location.contains("://") ? new FetcherTileSource(new TileFetcher(TileFetcher.urlFormat(location), null),
+                maxZoom) : new DirectoryTileSource(new File(location), maxZoom), DEFAULT_DECODED_BUDGET);
+    }
+
+    public VectorLayer(TileCache tileCache, VectorTileSource source, long decodedBudget) {
+        super();
+        this.tileCache = tileCache;
+        this.source = source;
+        this.decodedBudget = decodedBudget;
+        this.fallbackTiles = new FallbackTiles(tileCache);
+    }
+
+    @Override
+    public void registerLayerObserver(MapLayerObserver observer) {
+        mapLayerObserver.set(Optional.of(observer));
+    }
+
+    @Override
+    public void unregisterLayerObserver(MapLayerObserver observer) {
+        mapLayerObserver.set(Optional.<MapLayerObserver>absent());
+    }
+
+    public VectorStyle getStyle() {
+        return style;
+    }
+
+    /**
+     * Draw with another style from now on. The tiles on screen are drawn
+     * again, from the decoded tiles where they are still cached; the cached
+     * images are marked stale and shown until their replacements arrive.
+     */
+    @GuardedBy("AWT EDT")
+    public void setStyle(VectorStyle style) {
+        this.style = style;
+        for (Future<?> future : inFlight.values()) {
+            future.cancel(true);
+        }
+        inFlight.clear();
+        tileCache.markImagesStale();
+        fallbackTiles.clear();
+        if (boundingBox == null) {
+            return;
+        }
+        grid.set(width, height, boundingBox, zoom);
+        while (grid.next()) {
+            renderTile(new TileRef(grid.tileX(), grid.tileY(), zoom));
+        }
+    }
+
+    @Override
+    public void updateLayerBounds(final int width, final int height, final BoundingBox mercatorBounds, final int zoom) {
+        this.width = width;
+        this.height = height;
+        this.boundingBox = mercatorBounds;
+        this.zoom = zoom;
+
+        double centreX = (mercatorBounds.east + mercatorBounds.west) / 2;
+        double centreY = (mercatorBounds.north + mercatorBounds.south) / 2;
+        tileFetchScheduler.setFocus(SlippyUtil.mercX2tileX(centreX, zoom), SlippyUtil.mercY2tileY(centreY, zoom), zoom);
+
+        grid.set(width, height, mercatorBounds, zoom);
+        ViewportTracker.Diff diff = viewportTracker.update(grid);
+        if (diff == null) {
+            return;
+        }
+        tileCache.pin(grid);
+        fallbackTiles.setVisibleTiles(grid.getCols() * grid.getRows());
+
+        Iterator<Map.Entry<TileRef, Future<?>>> it = inFlight.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<TileRef, Future<?>> entry = it.next();
+            if (entry.getValue().isDone()) {
+                it.remove();
+            } else if (!viewportTracker.isPrefetchEligible(entry.getKey())) {
+                entry.getValue().cancel(true);
+                it.remove();
+            }
+        }
+
+        for (TileRef tile : diff.entered) {
+            renderTile(tile);
+        }
+
+        Optional<MapLayerObserver> observer = mapLayerObserver.get();
+        if (observer.isPresent()) {
+            observer.get().invalidateLayer(this);
+        }
+    }
+
+    @Override
+    public void paintLayer(Graphics g, int width, int height) {
+        grid.set(width, height, boundingBox, zoom);
+
+        clipBounds.setBounds(0, 0, width, height);
+        g.getClipBounds(clipBounds);
+        grid.clip(clipBounds.x, clipBounds.y, clipBounds.width, clipBounds.height);
+
+        while (grid.next()) {
+            Image img = tileCache.getImage(grid.key());
+            if (img == null) {
+                img = fallbackTiles.get(grid.key());
+            }
+            if (img != null) {
+                g.drawImage(img, grid.screenX(), grid.screenY(), null);
+            }
+        }
+    }
+
+    @GuardedBy("AWT EDT")
+    private void tileArrived(TileRef tile) {
+        Optional<MapLayerObserver> observer = mapLayerObserver.get();
+        if (!observer.isPresent() || boundingBox == null) {
+            return;
+        }
+        grid.set(width, height, boundingBox, zoom);
+        if (grid.screenBounds(tile, arrivalBounds)) {
+            observer.get().invalidateLayerRegion(this, arrivalBounds.x, arrivalBounds.y, arrivalBounds.width, arrivalBounds.height);
+        }
+    }
+
+    @GuardedBy("AWT EDT")
+    private void renderTile(final TileRef where) {
+        if (tileCache.containsImage(where)) {
+            return;
+        }
+        Future<?> existing = inFlight.get(where);
+        if (existing != null && !existing.isDone()) {
+            return;
+        }
+
+        final VectorStyle renderStyle = style;
+        Future<?> taskFuture = tileFetchScheduler.schedule(where, new Callable<Void>() {
+
+            @Override
+            public Void call() {
+                try {
+                    int levels = Math.max(0, where.zoom - source.getMaxZoom());
+                    TileRef from = new TileRef(where.x >> levels, where.y >> levels, where.zoom - levels);
+                    // counts its own failures, once however many tiles share it
+                    VectorTile tile = load(from);
+
+                    long start = System.nanoTime();
+                    Image img;
+                    try {
+                        img = RASTERIZERS.get().render(tile, renderStyle, where.zoom, levels, where.x - (from.x << levels),
+                                where.y - (from.y << levels));
+                    } catch (RuntimeException e) {
+                        Metrics.VECTOR_FAILURES.incrementAndGet();
+                        throw e;
+                    }
+                    Metrics.RASTER_NANOS.record(System.nanoTime() - start);
+
+                    // a render in the old style must not replace an image a restyle marked stale
+                    if (renderStyle == style) {
+                        tileCache.putImage(where, img);
+                    }
+                } catch (Throwable e) {
+                    if (!Thread.currentThread().isInterrupted()) {
+                        e.printStackTrace();
+                    }
+                }
+
+                SwingUtilities.invokeLater(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        Future<?> done = inFlight.get(where);
+                        if (done != null && done.isDone()) {
+                            inFlight.remove(where);
+                        }
+                        if (tileCache.containsImage(where)) {
+                            fallbackTiles.discard(where);
+                            tileArrived(where);
+                        }
+                    }
+                });
+                return null;
+            }
+        });
+        inFlight.put(where, taskFuture);
+    }
+
+    /**
+     * @return the decoded source tile, from the decoded cache, the warm tier,
+     *         or the source, in that order
+     */
+    private VectorTile load(final TileRef from) throws Exception {
+        while (true) {
+            synchronized (decoded) {
+                VectorTile tile = decoded.get(from);
+                if (tile != null) {
+                    return tile;
+                }
+            }
+
+            FutureTask<VectorTile> task = new FutureTask<VectorTile>(new Callable<VectorTile>() {
+                @Override
+                public VectorTile call() throws IOException {
+                    byte[] data = tileCache.getCompressed(from);
+                    if (data == null) {
+                        try {
+                            data = source.fetch(from);
+                        } catch (IOException e) {
+                            if (Thread.currentThread().isInterrupted() || e instanceof ClosedByInterruptException
+                                    || e.getClass() == InterruptedIOException.class) {
+                                // the tile that asked for it was cancelled, not the load
+                                throw new CancellationException();
+                            }
+                            Metrics.FETCH_FAILURES.incrementAndGet();
+                            throw e;
+                        }
+                        // a tile the source does not have is drawn as empty background
+                        data = data == null ? new byte[0] : data;
+                        tileCache.putCompressed(from, data);
+                    }
+                    long start = System.nanoTime();
+                    VectorTile tile;
+                    try {
+                        tile = DECODERS.get().decode(data);
+                    } catch (IOException e) {
+                        // malformed
+                        Metrics.VECTOR_FAILURES.incrementAndGet();
+                        throw e;
+                    }
+                    Metrics.MVT_DECODE_NANOS.record(System.nanoTime() - start);
+                    putDecoded(from, tile);
+                    return tile;
+                }
+            });
+            FutureTask<VectorTile> existing = loading.putIfAbsent(from, task);
+            if (existing == null) {
+                existing = task;
+                try {
+                    task.run();
+                } finally {
+                    loading.remove(from, task);
+                }
+            }
+            try {
+                return existing.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof CancellationException && !Thread.currentThread().isInterrupted()) {
+                    // whoever was loading it was cancelled; load it ourselves
+                    continue;
+                }
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+    }
+
+    private void putDecoded(TileRef from, VectorTile tile) {
+        synchronized (decoded) {
+            VectorTile old = decoded.put(from, tile);
+            if (old != null) {
+                decodedBytes -= old.getBytes();
+            }
+            decodedBytes += tile.getBytes();
+
+            Iterator<VectorTile> it = decoded.values().iterator();
+            while (decodedBytes > decodedBudget && it.hasNext()) {
+                decodedBytes -= it.next().getBytes();
+                it.remove();
+            }
+        }
+    }
+}
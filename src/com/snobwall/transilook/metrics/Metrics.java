@@ -0,0 +1,437 @@
+package com.snobwall.transilook.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Process-wide counters and histograms for the tile pipeline and for frame
+ * painting.
+ * 
+ * Everything here is recorded with plain atomic operations, so the paint
+ * path can record without allocating. The numbers are published as the JMX
+ * bean {@value #OBJECT_NAME} by {@link #register()}, and can be written to
+ * standard error periodically with {@link #startLogging(long)}.
+ * 
+ * @author mrb
+ *
+ */
+@ThreadSafe
+public final class Metrics {
+
+    public static final String OBJECT_NAME = "com.snobwall.transilook:type=Metrics";
+
+    /** Time spent in ViewPanel.paintComponent, in nanoseconds. */
+    public static final Histogram FRAME_NANOS = new Histogram();
+    /** Time to decode a tile image and convert it for the screen, in nanoseconds. */
+    public static final Histogram DECODE_NANOS = new Histogram();
+    /** Time to decode a vector tile, in nanoseconds. */
+    public static final Histogram MVT_DECODE_NANOS = new Histogram();
+    /** Time to draw a decoded vector tile into a tile image, in nanoseconds. */
+    public static final Histogram RASTER_NANOS = new Histogram();
+    /** Fetch queue length, sampled each time a fetch is scheduled. */
+    public static final Histogram QUEUE_DEPTH = new Histogram();
+    /** Time from a realtime update arriving to its first paint, in nanoseconds. */
+    public static final Histogram UPDATE_TO_PIXEL_NANOS = new Histogram();
+
+    public static final AtomicLong BYTES_FETCHED = new AtomicLong();
+    public static final AtomicLong FETCH_FAILURES = new AtomicLong();
+    /** Vector tiles that could not be decoded or drawn. */
+    public static final AtomicLong VECTOR_FAILURES = new AtomicLong();
+    public static final AtomicLong CANCELLATIONS = new AtomicLong();
+    public static final AtomicLong HOT_HITS = new AtomicLong();
+    public static final AtomicLong HOT_MISSES = new AtomicLong();
+    public static final AtomicLong WARM_HITS = new AtomicLong();
+    public static final AtomicLong WARM_MISSES = new AtomicLong();
+    public static final AtomicLong STORE_HITS = new AtomicLong();
+    public static final AtomicLong STORE_MISSES = new AtomicLong();
+    public static final AtomicLong PREFETCH_ISSUED = new AtomicLong();
+    public static final AtomicLong PREFETCH_COMPLETED = new AtomicLong();
+    /** Completed prefetches that later came into view. */
+    public static final AtomicLong PREFETCH_HITS = new AtomicLong();
+    public static final AtomicLong VEHICLE_UPDATES = new AtomicLong();
+    public static final AtomicLong VEHICLE_SNAPSHOTS = new AtomicLong();
+    /** From JVM start to the first frame with any map on it, in milliseconds; 0 until then. */
+    public static final AtomicLong FIRST_USEFUL_FRAME_MILLIS = new AtomicLong();
+    /** From JVM start to the first frame with every tile in view loaded, in milliseconds; 0 until then. */
+    public static final AtomicLong FIRST_COMPLETE_FRAME_MILLIS = new AtomicLong();
+
+    private static final ConcurrentHashMap<String, Histogram> fetchNanos = new ConcurrentHashMap<String, Histogram>();
+
+    @GuardedBy("Metrics.class")
+    private static boolean registered;
+    @GuardedBy("Metrics.class")
+    private static ScheduledExecutorService logger;
+
+    private Metrics() {
+    }
+
+    /**
+     * @return the histogram of fetch round trips to the host, in nanoseconds
+     */
+    public static Histogram fetchNanos(String host) {
+        Histogram h = fetchNanos.get(host);
+        if (h == null) {
+            Histogram created = new Histogram();
+            h = fetchNanos.putIfAbsent(host, created);
+            if (h == null) {
+                h = created;
+            }
+        }
+        return h;
+    }
+
+    public static Map<String, Histogram> getFetchNanosByHost() {
+        return Collections.unmodifiableMap(new TreeMap<String, Histogram>(fetchNanos));
+    }
+
+    /**
+     * Publish the metrics through the platform MBean server. Does nothing if
+     * they already are.
+     */
+    public static synchronized void register() throws JMException {
+        if (registered) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new Bean(), new ObjectName(OBJECT_NAME));
+        registered = true;
+    }
+
+    /**
+     * Write a {@link #summary()} to standard error every
+     * {@code periodSeconds}, from a daemon thread. Replaces any earlier
+     * schedule.
+     */
+    public static synchronized void startLogging(long periodSeconds) {
+        stopLogging();
+        logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "metrics-log");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        logger.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                System.err.println(summary());
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public static synchronized void stopLogging() {
+        if (logger != null) {
+            logger.shutdownNow();
+            logger = null;
+        }
+    }
+
+    /**
+     * Note that a frame showed some map, even if only the snapshot of the
+     * last session. Only the first is kept.
+     */
+    public static void usefulFrame() {
+        if (FIRST_USEFUL_FRAME_MILLIS.get() == 0) {
+            FIRST_USEFUL_FRAME_MILLIS.compareAndSet(0, millisSinceStart());
+        }
+    }
+
+    /**
+     * Note that a frame showed every tile in view. Only the first is kept.
+     */
+    public static void completeFrame() {
+        if (FIRST_COMPLETE_FRAME_MILLIS.get() == 0) {
+            usefulFrame();
+            FIRST_COMPLETE_FRAME_MILLIS.compareAndSet(0, millisSinceStart());
+        }
+    }
+
+    /**
+     * @return the fraction of completed prefetches that were later shown
+     */
+    public static double prefetchHitRate() {
+        long completed = PREFETCH_COMPLETED.get();
+        return completed == 0 ? 0 : (double) PREFETCH_HITS.get() / completed;
+    }
+
+    private static long millisSinceStart() {
+        return Math.max(1, System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime());
+    }
+
+    public static String summary() {
+        StringBuilder sb = new StringBuilder("Metrics:");
+        sb.append("\n  frames ").append(describeNanos(FRAME_NANOS));
+        sb.append("\n  decode ").append(describeNanos(DECODE_NANOS));
+        sb.append("\n  vector decode ").append(describeNanos(MVT_DECODE_NANOS));
+        sb.append("\n  vector raster ").append(describeNanos(RASTER_NANOS)).append(", ").append(VECTOR_FAILURES.get()).append(" failures");
+        for (Map.Entry<String, Histogram> host : getFetchNanosByHost().entrySet()) {
+            sb.append("\n  fetch ").append(host.getKey()).append(' ').append(describeNanos(host.getValue()));
+        }
+        sb.append("\n  fetched ").append(BYTES_FETCHED.get()).append(" bytes, ").append(FETCH_FAILURES.get()).append(" failures, ")
+                .append(CANCELLATIONS.get()).append(" cancellations");
+        sb.append("\n  queue depth mean ").append(String.format("%.1f", QUEUE_DEPTH.getMean())).append(" max ").append(QUEUE_DEPTH.getMax());
+        sb.append("\n  hot ").append(HOT_HITS.get()).append('/').append(HOT_MISSES.get());
+        sb.append(", warm ").append(WARM_HITS.get()).append('/').append(WARM_MISSES.get());
+        sb.append(", store ").append(STORE_HITS.get()).append('/').append(STORE_MISSES.get()).append(" hits/misses");
+        sb.append("\n  prefetch ").append(PREFETCH_ISSUED.get()).append(" issued, ").append(PREFETCH_COMPLETED.get())
+                .append(" completed, ").append(PREFETCH_HITS.get()).append(" shown (")
+                .append(String.format("%.0f%%", prefetchHitRate() * 100)).append(')');
+        sb.append("\n  vehicles ").append(VEHICLE_UPDATES.get()).append(" updates in ").append(VEHICLE_SNAPSHOTS.get())
+                .append(" snapshots, update to pixel ").append(describeNanos(UPDATE_TO_PIXEL_NANOS));
+        sb.append("\n  startup first useful frame ").append(FIRST_USEFUL_FRAME_MILLIS.get()).append("ms, first complete frame ")
+                .append(FIRST_COMPLETE_FRAME_MILLIS.get()).append("ms");
+        return sb.toString();
+    }
+
+    /**
+     * Zero everything but the startup times, which only happen once.
+     */
+    public static void reset() {
+        FRAME_NANOS.reset();
+        DECODE_NANOS.reset();
+        MVT_DECODE_NANOS.reset();
+        RASTER_NANOS.reset();
+        QUEUE_DEPTH.reset();
+        UPDATE_TO_PIXEL_NANOS.reset();
+        for (Histogram h : fetchNanos.values()) {
+            h.reset();
+        }
+        for (AtomicLong counter : new AtomicLong[] { BYTES_FETCHED, FETCH_FAILURES, VECTOR_FAILURES, CANCELLATIONS, HOT_HITS, HOT_MISSES, WARM_HITS,
+                WARM_MISSES, STORE_HITS, STORE_MISSES, PREFETCH_ISSUED, PREFETCH_COMPLETED, PREFETCH_HITS, VEHICLE_UPDATES,
+                VEHICLE_SNAPSHOTS }) {
+            counter.set(0);
+        }
+    }
+
+    private static String describeNanos(Histogram h) {
+        return String.format("n=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms", h.getCount(), millis(h.getMean()),
+                millis(h.getPercentile(0.5)), millis(h.getPercentile(0.99)), millis(h.getMax()));
+    }
+
+    private static double millis(double nanos) {
+        return nanos / 1e6;
+    }
+
+    private static class Bean implements MetricsMXBean {
+
+        @Override
+        public long getFrameCount() {
+            return FRAME_NANOS.getCount();
+        }
+
+        @Override
+        public double getFrameMeanMillis() {
+            return millis(FRAME_NANOS.getMean());
+        }
+
+        @Override
+        public double getFrameP50Millis() {
+            return millis(FRAME_NANOS.getPercentile(0.5));
+        }
+
+        @Override
+        public double getFrameP99Millis() {
+            return millis(FRAME_NANOS.getPercentile(0.99));
+        }
+
+        @Override
+        public double getFrameMaxMillis() {
+            return millis(FRAME_NANOS.getMax());
+        }
+
+        @Override
+        public long getFetchCount() {
+            long n = 0;
+            for (Histogram h : fetchNanos.values()) {
+                n += h.getCount();
+            }
+            return n;
+        }
+
+        @Override
+        public String[] getFetchLatencyByHost() {
+            ArrayList<String> lines = new ArrayList<String>();
+            for (Map.Entry<String, Histogram> host : getFetchNanosByHost().entrySet()) {
+                lines.add(host.getKey() + " " + describeNanos(host.getValue()));
+            }
+            return lines.toArray(new String[lines.size()]);
+        }
+
+        @Override
+        public long getFetchFailures() {
+            return FETCH_FAILURES.get();
+        }
+
+        @Override
+        public long getBytesFetched() {
+            return BYTES_FETCHED.get();
+        }
+
+        @Override
+        public long getDecodeCount() {
+            return DECODE_NANOS.getCount();
+        }
+
+        @Override
+        public double getDecodeMeanMillis() {
+            return millis(DECODE_NANOS.getMean());
+        }
+
+        @Override
+        public double getDecodeP99Millis() {
+            return millis(DECODE_NANOS.getPercentile(0.99));
+        }
+
+        @Override
+        public long getVectorDecodeCount() {
+            return MVT_DECODE_NANOS.getCount();
+        }
+
+        @Override
+        public double getVectorDecodeMeanMillis() {
+            return millis(MVT_DECODE_NANOS.getMean());
+        }
+
+        @Override
+        public double getVectorDecodeP99Millis() {
+            return millis(MVT_DECODE_NANOS.getPercentile(0.99));
+        }
+
+        @Override
+        public long getRasterCount() {
+            return RASTER_NANOS.getCount();
+        }
+
+        @Override
+        public double getRasterMeanMillis() {
+            return millis(RASTER_NANOS.getMean());
+        }
+
+        @Override
+        public double getRasterP99Millis() {
+            return millis(RASTER_NANOS.getPercentile(0.99));
+        }
+
+        @Override
+        public long getVectorFailures() {
+            return VECTOR_FAILURES.get();
+        }
+
+        @Override
+        public long getHotHits() {
+            return HOT_HITS.get();
+        }
+
+        @Override
+        public long getHotMisses() {
+            return HOT_MISSES.get();
+        }
+
+        @Override
+        public long getWarmHits() {
+            return WARM_HITS.get();
+        }
+
+        @Override
+        public long getWarmMisses() {
+            return WARM_MISSES.get();
+        }
+
+        @Override
+        public long getStoreHits() {
+            return STORE_HITS.get();
+        }
+
+        @Override
+        public long getStoreMisses() {
+            return STORE_MISSES.get();
+        }
+
+        @Override
+        public double getQueueDepthMean() {
+            return QUEUE_DEPTH.getMean();
+        }
+
+        @Override
+        public long getQueueDepthMax() {
+            return QUEUE_DEPTH.getMax();
+        }
+
+        @Override
+        public long getCancellations() {
+            return CANCELLATIONS.get();
+        }
+
+        @Override
+        public long getPrefetchIssued() {
+            return PREFETCH_ISSUED.get();
+        }
+
+        @Override
+        public long getPrefetchCompleted() {
+            return PREFETCH_COMPLETED.get();
+        }
+
+        @Override
+        public long getPrefetchHits() {
+            return PREFETCH_HITS.get();
+        }
+
+        @Override
+        public double getPrefetchHitRate() {
+            return prefetchHitRate();
+        }
+
+        @Override
+        public long getVehicleUpdates() {
+            return VEHICLE_UPDATES.get();
+        }
+
+        @Override
+        public double getUpdateToPixelP50Millis() {
+            return millis(UPDATE_TO_PIXEL_NANOS.getPercentile(0.5));
+        }
+
+        @Override
+        public double getUpdateToPixelP99Millis() {
+            return millis(UPDATE_TO_PIXEL_NANOS.getPercentile(0.99));
+        }
+
+        @Override
+        public long getFirstUsefulFrameMillis() {
+            return FIRST_USEFUL_FRAME_MILLIS.get();
+        }
+
+        @Override
+        public long getFirstCompleteFrameMillis() {
+            return FIRST_COMPLETE_FRAME_MILLIS.get();
+        }
+
+        @Override
+        public String summary() {
+            return Metrics.summary();
+        }
+
+        @Override
+        public void reset() {
+            Metrics.reset();
+        }
+    }
+}
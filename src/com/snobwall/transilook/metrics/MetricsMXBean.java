@@ -0,0 +1,103 @@
+package com.snobwall.transilook.metrics;
+
+/**
+ * Management interface for {@link Metrics}. Times are in milliseconds.
+ * 
+ * @author mrb
+ *
+ */
+public interface MetricsMXBean {
+
+    long getFrameCount();
+
+    double getFrameMeanMillis();
+
+    double getFrameP50Millis();
+
+    double getFrameP99Millis();
+
+    double getFrameMaxMillis();
+
+    long getFetchCount();
+
+    /**
+     * @return one line per tile host with its request count and latency
+     *         percentiles
+     */
+    String[] getFetchLatencyByHost();
+
+    long getFetchFailures();
+
+    long getBytesFetched();
+
+    long getDecodeCount();
+
+    double getDecodeMeanMillis();
+
+    double getDecodeP99Millis();
+
+    long getVectorDecodeCount();
+
+    double getVectorDecodeMeanMillis();
+
+    double getVectorDecodeP99Millis();
+
+    long getRasterCount();
+
+    double getRasterMeanMillis();
+
+    double getRasterP99Millis();
+
+    long getVectorFailures();
+
+    long getHotHits();
+
+    long getHotMisses();
+
+    long getWarmHits();
+
+    long getWarmMisses();
+
+    long getStoreHits();
+
+    long getStoreMisses();
+
+    double getQueueDepthMean();
+
+    long getQueueDepthMax();
+
+    long getCancellations();
+
+    long getPrefetchIssued();
+
+    long getPrefetchCompleted();
+
+    long getPrefetchHits();
+
+    /**
+     * @return the fraction of completed prefetches that were later shown
+     */
+    double getPrefetchHitRate();
+
+    long getVehicleUpdates();
+
+    double getUpdateToPixelP50Millis();
+
+    double getUpdateToPixelP99Millis();
+
+    /**
+     * @return time from JVM start to the first frame with any map on it, or
+     *         0 if there has not been one
+     */
+    long getFirstUsefulFrameMillis();
+
+    /**
+     * @return time from JVM start to the first frame with every tile in
+     *         view, or 0 if there has not been one
+     */
+    long getFirstCompleteFrameMillis();
+
+    String summary();
+
+    void reset();
+}
@@ -2,15 +2,32 @@ package com.snobwall.transilook.osm;
 
 public class SlippyUtil {
     
+    /** Deepest zoom level served by the OSM tile servers. */
+    public static final int MAX_ZOOM = 18;
+    
     public static int[] getTileNumber(final double mercX, final double mercY,
             final int zoom) {
 
-        int xtile = (int) Math.floor((1 + (mercX / 180)) / 2 * (1 << zoom));
-        int ytile = (int) Math.floor((1 - (mercY / 180)) / 2 * (1 << zoom));
+        int xtile = (int) Math.floor(mercX2tileX(mercX, zoom));
+        int ytile = (int) Math.floor(mercY2tileY(mercY, zoom));
 
         return new int[] { xtile, ytile };
     }
 
+    /**
+     * @return the fractional tile x coordinate of a mercator x at a zoom
+     */
+    public static double mercX2tileX(final double mercX, final int zoom) {
+        return (1 + (mercX / 180)) / 2 * (1 << zoom);
+    }
+
+    /**
+     * @return the fractional tile y coordinate of a mercator y at a zoom
+     */
+    public static double mercY2tileY(final double mercY, final int zoom) {
+        return (1 - (mercY / 180)) / 2 * (1 << zoom);
+    }
+
     public static BoundingBox tile2boundingBox(final int x, final int y,
             final int zoom) {
         
@@ -24,6 +41,29 @@ public class SlippyUtil {
         return new BoundingBox(north, south, east, west);
     }
 
+    /**
+     * @return the tile column x wraps around to across the antimeridian
+     */
+    public static int wrapTileX(final int x, final int zoom) {
+        int n = 1 << zoom;
+        int wrapped = x % n;
+        return wrapped < 0 ? wrapped + n : wrapped;
+    }
+
+    /**
+     * @return the shortest signed horizontal distance, in tiles, matching dx
+     *         once wrapped around the world
+     */
+    public static double wrapTileDistance(final double dx, final int zoom) {
+        double n = 1 << zoom;
+        double wrapped = dx - n * Math.floor(dx / n);
+        return wrapped > n / 2 ? wrapped - n : wrapped;
+    }
+
+    public static boolean isValidTile(final int x, final int y, final int zoom) {
+        return zoom >= 0 && zoom <= MAX_ZOOM && x >= 0 && y >= 0 && x < (1 << zoom) && y < (1 << zoom);
+    }
+
     public static double tileSpan(int zoom) {
         return mercUnitsPerPixel(zoom) * 256;
     }
@@ -0,0 +1,211 @@
+package com.snobwall.transilook.osm;
+
+import java.awt.Rectangle;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * The grid of tiles covering a viewport, and a cursor over it.
+ * 
+ * This is the one place that works out which tile goes where on screen. It
+ * is meant to be kept and reused: neither {@link #set} nor iterating with
+ * {@link #next} allocates anything. Tile columns wrap around the antimeridian;
+ * rows above or below the edge of the world are skipped.
+ * 
+ * <pre>
+ * grid.set(width, height, bounds, zoom);
+ * while (grid.next()) {
+ *     draw(grid.key(), grid.screenX(), grid.screenY());
+ * }
+ * </pre>
+ * 
+ * @author mrb
+ *
+ */
+@NotThreadSafe
+public class TileGrid {
+
+    private int zoom;
+    private int leftTileIdx, topTileIdx, leftTilePos, topTilePos, cols, rows;
+
+    private int firstCol, lastCol, firstRow, lastRow;
+    private int col, row;
+
+    public void set(int width, int height, BoundingBox mercatorBounds, int zoom) {
+        set(width, height, (mercatorBounds.east + mercatorBounds.west) / 2, (mercatorBounds.north + mercatorBounds.south) / 2, zoom);
+    }
+
+    /**
+     * Lay out the grid for a viewport centred on a mercator point, and start
+     * iterating over all of it.
+     */
+    public void set(int width, int height, double mercX, double mercY, int zoom) {
+        this.zoom = zoom;
+
+        double tileX = SlippyUtil.mercX2tileX(mercX, zoom);
+        double tileY = SlippyUtil.mercY2tileY(mercY, zoom);
+        int centerTileIdxX = (int) Math.floor(tileX);
+        int centerTileIdxY = (int) Math.floor(tileY);
+
+        // Find out where our location lives in the centre tile
+        // (tile y already runs the same way as screen y)
+        double xRatio = tileX - centerTileIdxX;
+        double yRatio = tileY - centerTileIdxY;
+
+        int centerTileX = (int) (width / 2 - (xRatio * 256));
+        int centerTileY = (int) (height / 2 - (yRatio * 256));
+
+        int numXTilesOnLeft = (int) Math.ceil(centerTileX / 256.0);
+        leftTileIdx = centerTileIdxX - numXTilesOnLeft;
+        leftTilePos = centerTileX - (numXTilesOnLeft * 256);
+
+        int numYTilesOnTop = (int) Math.ceil(centerTileY / 256.0);
+        topTileIdx = centerTileIdxY - numYTilesOnTop;
+        topTilePos = centerTileY - (numYTilesOnTop * 256);
+
+        cols = Math.max(0, (width - leftTilePos + 255) / 256);
+        rows = Math.max(0, (height - topTilePos + 255) / 256);
+
+        clip(0, 0, width, height);
+    }
+
+    /**
+     * Restrict iteration to the tiles that intersect a screen rectangle, and
+     * restart it.
+     */
+    public void clip(int x, int y, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            firstCol = firstRow = 0;
+            lastCol = lastRow = -1;
+        } else {
+            firstCol = Math.max(0, floorDiv(x - leftTilePos, 256));
+            lastCol = Math.min(cols - 1, floorDiv(x + width - 1 - leftTilePos, 256));
+            firstRow = Math.max(0, floorDiv(y - topTilePos, 256));
+            lastRow = Math.min(rows - 1, floorDiv(y + height - 1 - topTilePos, 256));
+        }
+        reset();
+    }
+
+    private static int floorDiv(int a, int b) {
+        int q = a / b;
+        return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+    }
+
+    /**
+     * Restart iteration over the current clip.
+     */
+    public void reset() {
+        col = lastCol;
+        row = firstRow - 1;
+    }
+
+    /**
+     * Advance to the next tile.
+     * 
+     * @return false once every tile has been visited
+     */
+    public boolean next() {
+        if (firstCol > lastCol) {
+            return false;
+        }
+        int n = 1 << zoom;
+        while (true) {
+            if (++col > lastCol) {
+                col = firstCol;
+                row++;
+            }
+            if (row > lastRow) {
+                return false;
+            }
+            int tileY = topTileIdx + row;
+            if (tileY < 0 || tileY >= n) {
+                // off the top or bottom of the world: skip the rest of the row
+                col = lastCol;
+                continue;
+            }
+            return true;
+        }
+    }
+
+    /** @return the current tile's column, wrapped into range */
+    public int tileX() {
+        return SlippyUtil.wrapTileX(leftTileIdx + col, zoom);
+    }
+
+    public int tileY() {
+        return topTileIdx + row;
+    }
+
+    /** @return the current tile packed as by {@link TileRef#pack} */
+    public long key() {
+        return TileRef.pack(tileX(), tileY(), zoom);
+    }
+
+    public int screenX() {
+        return leftTilePos + col * 256;
+    }
+
+    public int screenY() {
+        return topTilePos + row * 256;
+    }
+
+    /**
+     * Work out the screen area covered by a tile, which may be at another
+     * zoom level than the grid (a parent covers several grid tiles, a child
+     * part of one). Where the grid shows the tile more than once because the
+     * world wraps, the result covers every copy.
+     * 
+     * @param out
+     *            set to the area, clipped to the grid
+     * @return false if the tile is not in the grid at all
+     */
+    public boolean screenBounds(TileRef tile, Rectangle out) {
+        int shift = zoom - tile.zoom;
+        double x0 = Math.scalb((double) tile.x, shift), x1 = Math.scalb((double) tile.x + 1, shift);
+        double y0 = Math.scalb((double) tile.y, shift), y1 = Math.scalb((double) tile.y + 1, shift);
+
+        int top = Math.max(topTilePos, topTilePos + (int) Math.floor((y0 - topTileIdx) * 256));
+        int bottom = Math.min(topTilePos + rows * 256, topTilePos + (int) Math.ceil((y1 - topTileIdx) * 256));
+
+        // step the column range round the world until it reaches the grid
+        double n = 1 << zoom;
+        double span = x1 - x0;
+        x0 = leftTileIdx + (((x0 - leftTileIdx) % n) + n) % n;
+        if (x0 - n + span > leftTileIdx) {
+            x0 -= n;
+        }
+        int right = leftTilePos + cols * 256;
+        int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+        for (double x = x0; x < leftTileIdx + cols; x += n) {
+            minX = Math.min(minX, Math.max(leftTilePos, leftTilePos + (int) Math.floor((x - leftTileIdx) * 256)));
+            maxX = Math.max(maxX, Math.min(right, leftTilePos + (int) Math.ceil((x + span - leftTileIdx) * 256)));
+        }
+
+        if (minX >= maxX || top >= bottom) {
+            return false;
+        }
+        out.setBounds(minX, top, maxX - minX, bottom - top);
+        return true;
+    }
+
+    public int getZoom() {
+        return zoom;
+    }
+
+    /** @return the unwrapped column of the leftmost tile */
+    public int getLeftTileIdx() {
+        return leftTileIdx;
+    }
+
+    public int getTopTileIdx() {
+        return topTileIdx;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+}
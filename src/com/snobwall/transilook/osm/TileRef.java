@@ -0,0 +1,85 @@
+package com.snobwall.transilook.osm;
+
+import net.jcip.annotations.Immutable;
+
+@Immutable
+public class TileRef {
+    
+    // packed keys: 6 bits of zoom above 29 bits each of x and y, so a key is
+    // never negative and -1 is free to mean "no tile"
+    private static final int COORD_BITS = 29;
+    private static final long COORD_MASK = (1L << COORD_BITS) - 1;
+    
+    public final int x, y, zoom;
+
+    public TileRef(int x, int y, int zoom) {
+        super();
+        this.x = x;
+        this.y = y;
+        this.zoom = zoom;
+    }
+
+    /**
+     * @return this tile packed into a single long, see {@link #pack}
+     */
+    public long key() {
+        return pack(x, y, zoom);
+    }
+    
+    /**
+     * Pack a tile's coordinates into a long, for indexing without allocating
+     * a TileRef. Coordinates must be in range for the zoom level.
+     */
+    public static long pack(int x, int y, int zoom) {
+        return ((long) zoom << (2 * COORD_BITS)) | ((x & COORD_MASK) << COORD_BITS) | (y & COORD_MASK);
+    }
+    
+    public static int keyX(long key) {
+        return (int) ((key >>> COORD_BITS) & COORD_MASK);
+    }
+    
+    public static int keyY(long key) {
+        return (int) (key & COORD_MASK);
+    }
+    
+    public static int keyZoom(long key) {
+        return (int) (key >>> (2 * COORD_BITS));
+    }
+    
+    public static TileRef fromKey(long key) {
+        return new TileRef(keyX(key), keyY(key), keyZoom(key));
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + x;
+        result = prime * result + y;
+        result = prime * result + zoom;
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        TileRef other = (TileRef) obj;
+        if (x != other.x)
+            return false;
+        if (y != other.y)
+            return false;
+        if (zoom != other.zoom)
+            return false;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "TileRef [x=" + x + ", y=" + y + ", zoom=" + zoom + "]";
+    }
+}
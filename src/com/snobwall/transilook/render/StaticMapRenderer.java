@@ -0,0 +1,334 @@
+package com.snobwall.transilook.render;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import com.snobwall.transilook.metrics.Metrics;
+import com.snobwall.transilook.osm.BoundingBox;
+import com.snobwall.transilook.osm.Mercator;
+import com.snobwall.transilook.osm.SlippyUtil;
+import com.snobwall.transilook.osm.TileGrid;
+import com.snobwall.transilook.osm.TileRef;
+import com.snobwall.transilook.tiles.TileCache;
+import com.snobwall.transilook.tiles.TileFetcher;
+import com.snobwall.transilook.ui.CompatibleImages;
+import com.snobwall.transilook.ui.MapLayer;
+
+/**
+ * Renders maps straight into images, without a window; works with
+ * {@code java.awt.headless=true}.
+ * 
+ * The tiles a map needs are fetched and decoded in parallel on a fork-join
+ * pool, then composited on the calling thread. Many maps can be rendered at
+ * once, and they share the tile cache; two maps that need the same tile at
+ * the same time only load it once.
+ * 
+ * Overlay layers are driven through the ordinary {@link MapLayer} calls, but
+ * from whatever thread is rendering rather than the event dispatch thread,
+ * so only pass layers that can cope with that.
+ * 
+ * @author mrb
+ *
+ */
+@ThreadSafe
+public class StaticMapRenderer {
+
+    /**
+     * Fetches spend most of their time waiting on the network, so the pool
+     * is allowed more threads than there are processors.
+     */
+    private static final int DEFAULT_PARALLELISM = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+
+    private final TileCache tileCache;
+    private final TileFetcher tileFetcher;
+    private final ForkJoinPool pool;
+
+    private final ConcurrentHashMap<TileRef, FutureTask<Image>> loading = new ConcurrentHashMap<TileRef, FutureTask<Image>>();
+
+    public StaticMapRenderer(TileCache tileCache, TileFetcher tileFetcher) {
+        this(tileCache, tileFetcher, new ForkJoinPool(DEFAULT_PARALLELISM));
+    }
+
+    public StaticMapRenderer(TileCache tileCache, TileFetcher tileFetcher, ForkJoinPool pool) {
+        super();
+        this.tileCache = tileCache;
+        this.tileFetcher = tileFetcher;
+        this.pool = pool;
+    }
+
+    /**
+     * @return the mercator bounds of a {@code width} by {@code height} map
+     *         centred on the point, as the map window would show it
+     */
+    public static BoundingBox boundsAround(double lat, double lon, int zoom, int width, int height) {
+        double mercUnitsPerPixel = SlippyUtil.mercUnitsPerPixel(zoom);
+        double tlMercX = Mercator.mercX(lon) - mercUnitsPerPixel * (width / 2);
+        double tlMercY = Mercator.mercY(lat) + mercUnitsPerPixel * (height / 2);
+        return new BoundingBox(tlMercY, tlMercY - mercUnitsPerPixel * height, tlMercX + mercUnitsPerPixel * width, tlMercX);
+    }
+
+    public BufferedImage render(double lat, double lon, int zoom, int width, int height, MapLayer... overlays) throws IOException {
+        return render(new Request(boundsAround(lat, lon, zoom, width, height), zoom, width, height, overlays));
+    }
+
+    public BufferedImage render(BoundingBox mercatorBounds, int zoom, int width, int height, MapLayer... overlays) throws IOException {
+        return render(new Request(mercatorBounds, zoom, width, height, overlays));
+    }
+
+    public BufferedImage render(Request request) throws IOException {
+        return renderAll(Collections.singletonList(request)).get(0);
+    }
+
+    /**
+     * Render several maps concurrently.
+     * 
+     * @return the images, in the same order as the requests
+     * @throws IOException
+     *             if any tile of any map could not be loaded
+     */
+    public List<BufferedImage> renderAll(List<Request> requests) throws IOException {
+        final List<MapTask> tasks = new ArrayList<MapTask>(requests.size());
+        for (Request request : requests) {
+            tasks.add(new MapTask(request));
+        }
+        pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        List<BufferedImage> images = new ArrayList<BufferedImage>(tasks.size());
+        for (MapTask task : tasks) {
+            if (task.failures.get() > 0) {
+                throw new IOException(task.failures.get() + " tiles could not be loaded for " + task.request.mercatorBounds, task.failure);
+            }
+            images.add(task.getRawResult());
+        }
+        return images;
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private Image loadTile(final TileRef tile) throws IOException {
+        Image img = tileCache.getImage(tile);
+        if (img != null) {
+            return img;
+        }
+
+        FutureTask<Image> load = new FutureTask<Image>(new Callable<Image>() {
+            @Override
+            public Image call() throws IOException {
+                byte[] data = tileCache.getCompressed(tile);
+                if (data == null) {
+                    data = tileFetcher.fetch(tile);
+                    tileCache.putCompressed(tile, data);
+                }
+                long start = System.nanoTime();
+                BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(data));
+                if (decoded == null) {
+                    throw new IOException("Could not decode tile " + tile);
+                }
+                Image img = CompatibleImages.toCompatible(decoded);
+                Metrics.DECODE_NANOS.record(System.nanoTime() - start);
+                tileCache.putImage(tile, img);
+                return img;
+            }
+        });
+        FutureTask<Image> existing = loading.putIfAbsent(tile, load);
+        final FutureTask<Image> task = existing == null ? load : existing;
+        if (existing == null) {
+            try {
+                // the fetch mostly blocks on the network, so let the pool add a thread meanwhile
+                ForkJoinPool.managedBlock(new Blocker(task, true));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                loading.remove(tile, task);
+            }
+        } else {
+            try {
+                ForkJoinPool.managedBlock(new Blocker(task, false));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for tile " + tile, e);
+            }
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for tile " + tile, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to load tile " + tile, e.getCause());
+        }
+    }
+
+    @Immutable
+    public static class Request {
+        public final BoundingBox mercatorBounds;
+        public final int zoom, width, height;
+        private final MapLayer[] overlays;
+
+        public Request(BoundingBox mercatorBounds, int zoom, int width, int height, MapLayer... overlays) {
+            super();
+            this.mercatorBounds = mercatorBounds;
+            this.zoom = zoom;
+            this.width = width;
+            this.height = height;
+            this.overlays = overlays.clone();
+        }
+    }
+
+    /**
+     * Runs a fetch on the calling thread, or waits for one another thread is
+     * running.
+     */
+    private static class Blocker implements ForkJoinPool.ManagedBlocker {
+        private final FutureTask<Image> task;
+        private final boolean run;
+
+        Blocker(FutureTask<Image> task, boolean run) {
+            this.task = task;
+            this.run = run;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            if (run) {
+                task.run();
+            } else {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    // reported by whoever asks for the result
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return task.isDone();
+        }
+    }
+
+    private class MapTask extends RecursiveTask<BufferedImage> {
+        private static final long serialVersionUID = 1L;
+
+        final Request request;
+        final AtomicInteger failures = new AtomicInteger();
+        volatile IOException failure;
+
+        MapTask(Request request) {
+            this.request = request;
+        }
+
+        @Override
+        protected BufferedImage compute() {
+            TileGrid grid = new TileGrid();
+            grid.set(request.width, request.height, request.mercatorBounds, request.zoom);
+            List<TileTask> tiles = new ArrayList<TileTask>(grid.getCols() * grid.getRows());
+            while (grid.next()) {
+                tiles.add(new TileTask(this, new TileRef(grid.tileX(), grid.tileY(), request.zoom), grid.screenX(), grid.screenY()));
+            }
+            invokeAll(tiles);
+            if (failures.get() > 0) {
+                return null;
+            }
+
+            BufferedImage image = CompatibleImages.create(request.width, request.height, Transparency.OPAQUE);
+            Graphics2D g = image.createGraphics();
+            try {
+                g.setColor(Color.white);
+                g.fillRect(0, 0, request.width, request.height);
+                for (TileTask tile : tiles) {
+                    g.drawImage(tile.getRawResult(), tile.screenX, tile.screenY, null);
+                }
+                for (MapLayer overlay : request.overlays) {
+                    overlay.updateLayerBounds(request.width, request.height, request.mercatorBounds, request.zoom);
+                    overlay.paintLayer(g, request.width, request.height);
+                }
+            } finally {
+                g.dispose();
+            }
+            return image;
+        }
+    }
+
+    private class TileTask extends RecursiveTask<Image> {
+        private static final long serialVersionUID = 1L;
+
+        final MapTask map;
+        final TileRef tile;
+        final int screenX, screenY;
+
+        TileTask(MapTask map, TileRef tile, int screenX, int screenY) {
+            this.map = map;
+            this.tile = tile;
+            this.screenX = screenX;
+            this.screenY = screenY;
+        }
+
+        @Override
+        protected Image compute() {
+            try {
+                return loadTile(tile);
+            } catch (IOException e) {
+                map.failure = e;
+                map.failures.incrementAndGet();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Render one map to a PNG file:
+     * {@code StaticMapRenderer lat lon zoom width height out.png [urlFormat]}
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 6) {
+            System.err.println("usage: StaticMapRenderer lat lon zoom width height out.png [urlFormat]");
+            System.exit(2);
+        }
+        String urlFormat = args.length > 6 ? args[6] : TileFetcher.OSM_URL_FORMAT;
+        StaticMapRenderer renderer = new StaticMapRenderer(new TileCache(), new TileFetcher(urlFormat, null));
+        try {
+            BufferedImage image = renderer.render(Double.parseDouble(args[0]), Double.parseDouble(args[1]), Integer.parseInt(args[2]),
+                    Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+            ImageIO.write(image, "png", new File(args[5]));
+        } finally {
+            renderer.shutdown();
+        }
+    }
+}
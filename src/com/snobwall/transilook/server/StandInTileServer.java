@@ -0,0 +1,391 @@
+package com.snobwall.transilook.server;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+
+import com.snobwall.transilook.osm.TileRef;
+import com.snobwall.transilook.util.ProtobufWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for a slippy map tile server, so the tile pipeline can be
+ * exercised without touching the public OSM servers.
+ *
+ * Serves generated PNG tiles at /{z}/{x}/{y}.png, and generated vector tiles
+ * at /{z}/{x}/{y}.mvt, with ETag, Last-Modified and Cache-Control headers and
+ * honours conditional requests. Point a
+ * {@link com.snobwall.transilook.tiles.TileFetcher} at it with a URL format
+ * such as {@code http://127.0.0.1:8080/%2$d/%3$d/%4$d.png}.
+ *
+ * @author mrb
+ *
+ */
+@ThreadSafe
+public class StandInTileServer {
+
+    static {
+        // otherwise Nagle holds each body back behind the headers for a delayed ACK
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private static final Pattern TILE_PATH = Pattern.compile("^/(\\d+)/(\\d+)/(\\d+)\\.(png|mvt)$");
+
+    private static final int VECTOR_EXTENT = 4096;
+    private static final String[] ROAD_KINDS = new String[] { "motorway", "primary", "secondary", "minor", "minor", "minor" };
+
+    private final HttpServer server;
+    private final long lastModified = (System.currentTimeMillis() / 1000) * 1000;
+    private volatile int maxAgeSeconds = 60;
+    private volatile int latencyMillis;
+    private volatile double errorRate;
+
+    private final ConcurrentHashMap<TileRef, byte[]> rendered = new ConcurrentHashMap<TileRef, byte[]>();
+    private final ConcurrentHashMap<TileRef, byte[]> vectors = new ConcurrentHashMap<TileRef, byte[]>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong fullResponses = new AtomicLong();
+    private final AtomicLong notModifiedResponses = new AtomicLong();
+    private final AtomicLong errorResponses = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    public StandInTileServer(int port) throws IOException {
+        super();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 64);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return a {@link com.snobwall.transilook.tiles.TileFetcher} URL format
+     *         pointing at this server
+     */
+    public String getUrlFormat() {
+        return "http://127.0.0.1:" + getPort() + "/%2$d/%3$d/%4$d.png";
+    }
+
+    /**
+     * @return a URL format for this server's vector tiles
+     */
+    public String getVectorUrlFormat() {
+        return "http://127.0.0.1:" + getPort() + "/%2$d/%3$d/%4$d.mvt";
+    }
+
+    public void setMaxAgeSeconds(int maxAgeSeconds) {
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    /**
+     * Hold every response back by this long, as a stand-in for the round
+     * trip to a distant server.
+     */
+    public void setLatencyMillis(int latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Fail this fraction of tile requests with a 503, as an overloaded
+     * server would.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFullResponses() {
+        return fullResponses.get();
+    }
+
+    public long getNotModifiedResponses() {
+        return notModifiedResponses.get();
+    }
+
+    public long getErrorResponses() {
+        return errorResponses.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        Matcher m = TILE_PATH.matcher(exchange.getRequestURI().getPath());
+        if (!"GET".equals(exchange.getRequestMethod()) || !m.matches()) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            errorResponses.incrementAndGet();
+            exchange.sendResponseHeaders(503, -1);
+            return;
+        }
+
+        TileRef ref = new TileRef(Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)), Integer.parseInt(m.group(1)));
+        boolean vector = "mvt".equals(m.group(4));
+        String etag = "\"" + ref.zoom + "-" + ref.x + "-" + ref.y + "-" + m.group(4) + "-" + lastModified + "\"";
+
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Last-Modified", DateUtil.formatDate(new Date(lastModified)));
+        exchange.getResponseHeaders().set("Cache-Control", "max-age=" + maxAgeSeconds);
+
+        if (notModified(exchange, etag)) {
+            notModifiedResponses.incrementAndGet();
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        byte[] body;
+        if (vector) {
+            body = vectors.get(ref);
+            if (body == null) {
+                body = vectorTile(ref);
+                vectors.putIfAbsent(ref, body);
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/vnd.mapbox-vector-tile");
+        } else {
+            body = render(ref);
+            exchange.getResponseHeaders().set("Content-Type", "image/png");
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+
+        fullResponses.incrementAndGet();
+        bytesSent.addAndGet(body.length);
+    }
+
+    private boolean notModified(HttpExchange exchange, String etag) {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.equals(etag);
+        }
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                return DateUtil.parseDate(ifModifiedSince).getTime() >= lastModified;
+            } catch (DateParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private byte[] render(TileRef ref) throws IOException {
+        byte[] body = rendered.get(ref);
+        if (body != null) {
+            return body;
+        }
+
+        BufferedImage img = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setColor(((ref.x + ref.y) & 1) == 0 ? new Color(0xeeeeee) : new Color(0xdddddd));
+        g.fillRect(0, 0, 256, 256);
+        g.setColor(Color.gray);
+        g.drawRect(0, 0, 255, 255);
+        g.drawString(ref.zoom + "/" + ref.x + "/" + ref.y, 8, 20);
+        g.dispose();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        ImageIO.write(img, "png", out);
+        body = out.toByteArray();
+
+        byte[] existing = rendered.putIfAbsent(ref, body);
+        return existing == null ? body : existing;
+    }
+
+    /**
+     * Generate a vector tile of made up streets: a lake, parks, a grid of
+     * roads of mixed classes, and from zoom 14 blocks of buildings, in the
+     * layer names and classes of the OpenMapTiles schema. The same tile
+     * always comes out the same.
+     */
+    public static byte[] vectorTile(TileRef ref) {
+        Random random = new Random(ref.key());
+        ProtobufWriter w = new ProtobufWriter();
+        int e = VECTOR_EXTENT;
+
+        int layer = beginLayer(w, "water", null);
+        if (random.nextBoolean()) {
+            int cx = e / 4 + random.nextInt(e / 2), cy = e / 4 + random.nextInt(e / 2), r = e / 8 + random.nextInt(e / 8);
+            int[] ring = new int[24];
+            for (int i = 0; i < 12; i++) {
+                double a = i * Math.PI / 6;
+                ring[2 * i] = cx + (int) (r * Math.cos(a));
+                ring[2 * i + 1] = cy + (int) (r * Math.sin(a) * 0.7);
+            }
+            feature(w, -1, 3, ring);
+        }
+        endLayer(w, layer);
+
+        layer = beginLayer(w, "landuse", new String[] { "park" });
+        for (int i = 0; i < 2; i++) {
+            int x = random.nextInt(e - e / 4), y = random.nextInt(e - e / 4), size = e / 16 + random.nextInt(e / 6);
+            feature(w, 0, 3, new int[] { x, y, x + size, y, x + size, y + size, x, y + size });
+        }
+        endLayer(w, layer);
+
+        layer = beginLayer(w, "transportation", ROAD_KINDS);
+        int roads = 12;
+        for (int i = 0; i < roads; i++) {
+            boolean across = (i & 1) == 0;
+            int at = (i / 2 + 1) * e / (roads / 2 + 1) + random.nextInt(e / 32);
+            int[] line = new int[2 * 9];
+            for (int j = 0; j < 9; j++) {
+                int along = -e / 16 + j * (e + e / 8) / 8;
+                int wobble = random.nextInt(e / 64) - e / 128;
+                line[2 * j] = across ? along : at + wobble;
+                line[2 * j + 1] = across ? at + wobble : along;
+            }
+            feature(w, i % ROAD_KINDS.length, 2, line);
+        }
+        endLayer(w, layer);
+
+        layer = beginLayer(w, "boundary", null);
+        feature(w, -1, 2, new int[] { 0, e / 3, e / 2, e / 3 + random.nextInt(e / 8), e, e / 2 });
+        endLayer(w, layer);
+
+        if (ref.zoom >= 14) {
+            layer = beginLayer(w, "building", null);
+            int blocks = 16, size = e / blocks;
+            for (int by = 0; by < blocks; by++) {
+                for (int bx = 0; bx < blocks; bx++) {
+                    if (random.nextInt(3) == 0) {
+                        continue;
+                    }
+                    int x = bx * size + size / 6, y = by * size + size / 6, wide = size / 3 + random.nextInt(size / 3);
+                    feature(w, -1, 3, new int[] { x, y, x + wide, y, x + wide, y + wide, x, y + wide });
+                }
+            }
+            endLayer(w, layer);
+        }
+        return w.toByteArray();
+    }
+
+    /**
+     * Start a layer whose features are tagged class=kinds[i].
+     *
+     * @param kinds
+     *            null for none
+     */
+    private static int beginLayer(ProtobufWriter w, String name, String[] kinds) {
+        int mark = w.begin(3);
+        w.writeVarint(15, 2);
+        w.writeString(1, name);
+        if (kinds != null) {
+            w.writeString(3, "class");
+            for (String kind : kinds) {
+                int value = w.begin(4);
+                w.writeString(1, kind);
+                w.end(value);
+            }
+        }
+        return mark;
+    }
+
+    private static void endLayer(ProtobufWriter w, int mark) {
+        w.writeVarint(5, VECTOR_EXTENT);
+        w.end(mark);
+    }
+
+    /**
+     * @param kind
+     *            index of the layer's value to tag it with, or -1
+     * @param coords
+     *            interleaved x and y of a line or of a polygon's ring
+     */
+    private static void feature(ProtobufWriter w, int kind, int type, int[] coords) {
+        int mark = w.begin(2);
+        if (kind >= 0) {
+            int tags = w.begin(2);
+            w.varint(0);
+            w.varint(kind);
+            w.end(tags);
+        }
+        w.writeVarint(3, type);
+        int geometry = w.begin(4);
+        int vertices = coords.length / 2;
+        boolean polygon = type == 3;
+        w.varint(1 << 3 | 1);
+        w.varint(zigzag(coords[0]));
+        w.varint(zigzag(coords[1]));
+        w.varint((vertices - 1) << 3 | 2);
+        for (int i = 1; i < vertices; i++) {
+            w.varint(zigzag(coords[2 * i] - coords[2 * i - 2]));
+            w.varint(zigzag(coords[2 * i + 1] - coords[2 * i - 1]));
+        }
+        if (polygon) {
+            w.varint(1 << 3 | 7);
+        }
+        w.end(geometry);
+        w.end(mark);
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    public static void main(String[] args) throws Exception {
+        StandInTileServer server = new StandInTileServer(args.length > 0 ? Integer.parseInt(args[0]) : 8080);
+        server.start();
+        System.out.println("Serving stand-in tiles at " + server.getUrlFormat() + " and " + server.getVectorUrlFormat());
+    }
+}
@@ -0,0 +1,160 @@
+package com.snobwall.transilook.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+import com.snobwall.transilook.util.ProtobufWriter;
+
+/**
+ * A local stand-in for a GTFS-realtime vehicle position stream, for driving
+ * {@link com.snobwall.transilook.transit.VehicleIngester} at a known rate.
+ *
+ * Each client that connects gets its own stream of length-prefixed
+ * FeedMessages, sent every {@value #TICK_MILLIS}ms, moving a fleet of
+ * vehicles around a random walk near the given centre at the requested
+ * number of position updates per second.
+ *
+ * @author mrb
+ *
+ */
+@ThreadSafe
+public class StandInVehicleFeed {
+
+    private static final int TICK_MILLIS = 10;
+
+    private final ServerSocket socket;
+    private final int vehicles;
+    private final int updatesPerSecond;
+    private final double lat, lon;
+
+    private final AtomicLong updatesSent = new AtomicLong();
+
+    public StandInVehicleFeed(int port, int vehicles, int updatesPerSecond, double lat, double lon) throws IOException {
+        super();
+        this.socket = new ServerSocket(port, 16, InetAddress.getByName("127.0.0.1"));
+        this.vehicles = vehicles;
+        this.updatesPerSecond = updatesPerSecond;
+        this.lat = lat;
+        this.lon = lon;
+    }
+
+    public void start() {
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!socket.isClosed()) {
+                    try {
+                        final Socket client = socket.accept();
+                        Thread sender = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    send(client.getOutputStream());
+                                } catch (IOException e) {
+                                    // client went away
+                                } catch (InterruptedException e) {
+                                    // stopped
+                                } finally {
+                                    try {
+                                        client.close();
+                                    } catch (IOException e) {
+                                        e.printStackTrace();
+                                    }
+                                }
+                            }
+                        }, "stand-in-vehicles-send");
+                        sender.setDaemon(true);
+                        sender.start();
+                    } catch (IOException e) {
+                        if (!socket.isClosed()) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        }, "stand-in-vehicles-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void stop() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    public long getUpdatesSent() {
+        return updatesSent.get();
+    }
+
+    private void send(OutputStream socketOut) throws IOException, InterruptedException {
+        OutputStream out = new BufferedOutputStream(socketOut, 64 * 1024);
+        Random random = new Random();
+        double[] vLat = new double[vehicles], vLon = new double[vehicles];
+        for (int i = 0; i < vehicles; i++) {
+            vLat[i] = lat + (random.nextDouble() - 0.5) * 0.2;
+            vLon[i] = lon + (random.nextDouble() - 0.5) * 0.3;
+        }
+
+        ProtobufWriter message = new ProtobufWriter();
+        long start = System.nanoTime();
+        long sent = 0;
+        int next = 0;
+        while (!socket.isClosed()) {
+            long due = (System.nanoTime() - start) / 1000000 * updatesPerSecond / 1000 - sent;
+            if (due > 0) {
+                message.reset();
+                int header = message.begin(1);
+                message.writeString(1, "2.0");
+                message.writeVarint(3, System.currentTimeMillis() / 1000);
+                message.end(header);
+                for (int n = 0; n < due; n++) {
+                    int v = next;
+                    next = (next + 1) % vehicles;
+                    vLat[v] += (random.nextDouble() - 0.5) * 0.0005;
+                    vLon[v] += (random.nextDouble() - 0.5) * 0.0005;
+
+                    int entity = message.begin(2);
+                    message.writeString(1, "e" + v);
+                    int vehicle = message.begin(4);
+                    int position = message.begin(2);
+                    message.writeFloat(1, (float) vLat[v]);
+                    message.writeFloat(2, (float) vLon[v]);
+                    message.end(position);
+                    message.writeVarint(5, System.currentTimeMillis() / 1000);
+                    int descriptor = message.begin(8);
+                    message.writeString(1, "bus-" + v);
+                    message.end(descriptor);
+                    message.end(vehicle);
+                    message.end(entity);
+                }
+                message.writeDelimitedTo(out);
+                out.flush();
+                sent += due;
+                updatesSent.addAndGet(due);
+            }
+            Thread.sleep(TICK_MILLIS);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        StandInVehicleFeed feed = new StandInVehicleFeed(args.length > 0 ? Integer.parseInt(args[0]) : 8081, args.length > 1 ? Integer
+                .parseInt(args[1]) : 2000, args.length > 2 ? Integer.parseInt(args[2]) : 10000, 44.64363574997914, -63.60092639923096);
+        feed.start();
+        System.out.println("Serving stand-in vehicle positions at 127.0.0.1:" + feed.getPort());
+    }
+}
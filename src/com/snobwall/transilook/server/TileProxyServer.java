@@ -0,0 +1,523 @@
+package com.snobwall.transilook.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+
+import com.snobwall.transilook.osm.SlippyUtil;
+import com.snobwall.transilook.osm.TileRef;
+import com.snobwall.transilook.tiles.TileFetcher;
+import com.snobwall.transilook.tiles.TileStore;
+
+/**
+ * A caching tile proxy, so several clients on one machine or network share
+ * one set of upstream fetches.
+ *
+ * Serves /{z}/{x}/{y}.png over HTTP/1.1 with keep-alive from a single
+ * selector thread. Fresh tiles in the {@link TileStore} are sent straight
+ * from the pack file with {@code FileChannel.transferTo}; misses and expired
+ * tiles are filled through a {@link TileFetcher} on a small worker pool,
+ * and concurrent requests for the same tile wait for one upstream fetch.
+ * Point clients at it with the template
+ * {@code http://host:port/{z}/{x}/{y}.png}.
+ *
+ * @author mrb
+ *
+ */
+@ThreadSafe
+public class TileProxyServer {
+
+    private static final Pattern TILE_PATH = Pattern.compile("^/(\\d+)/(\\d+)/(\\d+)\\.png$");
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /** Requests with longer headers are refused. */
+    private static final int MAX_HEADER_BYTES = 8192;
+    private static final int UPSTREAM_THREADS = 8;
+
+    private final TileStore store;
+    private final TileFetcher fetcher;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService upstream;
+    private final Thread loop;
+    private volatile boolean running;
+
+    /** Connections waiting for each tile being fetched upstream. */
+    @GuardedBy("selector thread")
+    private final HashMap<TileRef, List<Connection>> waiting = new HashMap<TileRef, List<Connection>>();
+    /** Work handed back to the selector thread by the upstream pool. */
+    private final ConcurrentLinkedQueue<Runnable> completions = new ConcurrentLinkedQueue<Runnable>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong upstreamFetches = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * @param upstreamUrlFormat
+     *            where to fill misses from, as for {@link TileFetcher}
+     */
+    public TileProxyServer(int port, TileStore store, String upstreamUrlFormat) throws IOException {
+        super();
+        this.store = store;
+        this.fetcher = new TileFetcher(upstreamUrlFormat, store);
+        this.upstream = Executors.newFixedThreadPool(UPSTREAM_THREADS);
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port), 128);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        loop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "tile-proxy");
+    }
+
+    public void start() {
+        running = true;
+        loop.start();
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            loop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        upstream.shutdownNow();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return a URL template for clients of this proxy on the local machine
+     */
+    public String getUrlTemplate() {
+        return "http://127.0.0.1:" + getPort() + "/{z}/{x}/{y}.png";
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getUpstreamFetches() {
+        return upstreamFetches.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getNotModified() {
+        return notModified.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    private void runLoop() {
+        try {
+            while (running) {
+                selector.select();
+
+                Runnable completion;
+                while ((completion = completions.poll()) != null) {
+                    completion.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            conn.write();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            conn.read();
+                        }
+                    } catch (IOException e) {
+                        conn.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection conn = new Connection(channel);
+            conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        }
+    }
+
+    @GuardedBy("selector thread")
+    private void fetchUpstream(final TileRef tile, Connection conn) {
+        List<Connection> waiters = waiting.get(tile);
+        if (waiters != null) {
+            coalesced.incrementAndGet();
+            waiters.add(conn);
+            return;
+        }
+        waiters = new ArrayList<Connection>(2);
+        waiters.add(conn);
+        waiting.put(tile, waiters);
+        upstreamFetches.incrementAndGet();
+
+        upstream.execute(new Runnable() {
+            @Override
+            public void run() {
+                byte[] fetched = null;
+                try {
+                    fetched = fetcher.fetch(tile);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    // always hand back, or the waiting connections would hang
+                    final byte[] body = fetched;
+                    completions.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            fetched(tile, body);
+                        }
+                    });
+                    selector.wakeup();
+                }
+            }
+        });
+    }
+
+    @GuardedBy("selector thread")
+    private void fetched(TileRef tile, byte[] body) {
+        List<Connection> waiters = waiting.remove(tile);
+        TileStore.Entry entry = body == null ? null : store.lookup(tile);
+        for (Connection conn : waiters) {
+            if (!conn.channel.isOpen()) {
+                continue;
+            }
+            try {
+                if (entry != null) {
+                    conn.respond(entry);
+                } else if (body != null) {
+                    // the store could not take it; serve it from the heap this once
+                    conn.respond(body);
+                } else {
+                    conn.respondError(502, "Bad Gateway");
+                }
+            } catch (IOException e) {
+                conn.close();
+            }
+        }
+    }
+
+    /**
+     * One client connection. Requests on it are handled one at a time; reads
+     * are paused while a response is outstanding. Only touched by the
+     * selector thread.
+     */
+    private class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+
+        final ByteBuffer in = ByteBuffer.allocate(MAX_HEADER_BYTES);
+        ByteBuffer head;
+        ByteBuffer heapBody;
+        TileStore.Entry fileBody;
+        long filePosition;
+
+        boolean busy;
+        boolean keepAlive;
+
+        // request being handled
+        String ifNoneMatch, ifModifiedSince;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            handleRequests();
+        }
+
+        /** Handle whatever complete requests are buffered. */
+        void handleRequests() throws IOException {
+            while (!busy && channel.isOpen()) {
+                int end = headerEnd();
+                if (end < 0) {
+                    if (!in.hasRemaining()) {
+                        keepAlive = false;
+                        respondError(431, "Request Header Fields Too Large");
+                    }
+                    return;
+                }
+                String header = new String(in.array(), 0, end, ASCII);
+                // drop the request from the buffer, keeping anything pipelined after it
+                in.flip();
+                in.position(end + 4);
+                in.compact();
+
+                handle(header);
+            }
+        }
+
+        private int headerEnd() {
+            byte[] buf = in.array();
+            for (int i = 0; i + 3 < in.position(); i++) {
+                if (buf[i] == '\r' && buf[i + 1] == '\n' && buf[i + 2] == '\r' && buf[i + 3] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void handle(String header) throws IOException {
+            requests.incrementAndGet();
+            String[] lines = header.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3) {
+                keepAlive = false;
+                respondError(400, "Bad Request");
+                return;
+            }
+
+            keepAlive = "HTTP/1.1".equals(requestLine[2]);
+            ifNoneMatch = ifModifiedSince = null;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Connection")) {
+                    keepAlive = value.equalsIgnoreCase("keep-alive") || (keepAlive && !value.equalsIgnoreCase("close"));
+                } else if (name.equalsIgnoreCase("If-None-Match")) {
+                    ifNoneMatch = value;
+                } else if (name.equalsIgnoreCase("If-Modified-Since")) {
+                    ifModifiedSince = value;
+                }
+            }
+
+            if (!"GET".equals(requestLine[0])) {
+                respondError(405, "Method Not Allowed");
+                return;
+            }
+            Matcher m = TILE_PATH.matcher(requestLine[1]);
+            TileRef tile = null;
+            if (m.matches()) {
+                try {
+                    int zoom = Integer.parseInt(m.group(1)), x = Integer.parseInt(m.group(2)), y = Integer.parseInt(m.group(3));
+                    if (SlippyUtil.isValidTile(x, y, zoom)) {
+                        tile = new TileRef(x, y, zoom);
+                    }
+                } catch (NumberFormatException e) {
+                    // out of range; falls through to 404
+                }
+            }
+            if (tile == null) {
+                respondError(404, "Not Found");
+                return;
+            }
+
+            TileStore.Entry entry = store.lookup(tile);
+            if (entry != null && !entry.isExpired(System.currentTimeMillis())) {
+                hits.incrementAndGet();
+                respond(entry);
+                return;
+            }
+
+            // wait for the upstream fetch without reading further requests
+            busy = true;
+            key.interestOps(0);
+            fetchUpstream(tile, this);
+        }
+
+        void respond(TileStore.Entry entry) throws IOException {
+            if (notModified(entry)) {
+                notModified.incrementAndGet();
+                send(status(304, "Not Modified") + validators(entry) + "Content-Length: 0\r\n", null, null);
+                return;
+            }
+            send(status(200, "OK") + "Content-Type: image/png\r\n" + validators(entry) + "Content-Length: " + entry.length + "\r\n", null,
+                    entry);
+        }
+
+        void respond(byte[] body) throws IOException {
+            send(status(200, "OK") + "Content-Type: image/png\r\nContent-Length: " + body.length + "\r\n", ByteBuffer.wrap(body), null);
+        }
+
+        void respondError(int code, String reason) throws IOException {
+            send(status(code, reason) + "Content-Length: 0\r\n", null, null);
+        }
+
+        private boolean notModified(TileStore.Entry entry) {
+            if (ifNoneMatch != null) {
+                return entry.etag != null && ifNoneMatch.equals(entry.etag);
+            }
+            if (ifModifiedSince != null && entry.lastModified > 0) {
+                try {
+                    return DateUtil.parseDate(ifModifiedSince).getTime() >= entry.lastModified;
+                } catch (DateParseException e) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        private String status(int code, String reason) {
+            return "HTTP/1.1 " + code + " " + reason + "\r\n";
+        }
+
+        private String validators(TileStore.Entry entry) {
+            StringBuilder sb = new StringBuilder();
+            if (entry.etag != null) {
+                sb.append("ETag: ").append(entry.etag).append("\r\n");
+            }
+            if (entry.lastModified > 0) {
+                sb.append("Last-Modified: ").append(DateUtil.formatDate(new Date(entry.lastModified))).append("\r\n");
+            }
+            long maxAge = Math.max(0, (entry.expires - System.currentTimeMillis()) / 1000);
+            sb.append("Cache-Control: max-age=").append(maxAge).append("\r\n");
+            return sb.toString();
+        }
+
+        private void send(String headers, ByteBuffer heapBody, TileStore.Entry fileBody) throws IOException {
+            head = ByteBuffer.wrap((headers + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n").getBytes(ASCII));
+            this.heapBody = heapBody;
+            this.fileBody = fileBody;
+            filePosition = 0;
+            busy = true;
+            write();
+        }
+
+        void write() throws IOException {
+            if (head != null) {
+                bytesSent.addAndGet(channel.write(head));
+                if (head.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                head = null;
+            }
+            if (heapBody != null) {
+                bytesSent.addAndGet(channel.write(heapBody));
+                if (heapBody.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                heapBody = null;
+            }
+            while (fileBody != null && filePosition < fileBody.length) {
+                long sent = store.transferTo(fileBody, filePosition, fileBody.length - filePosition, channel);
+                if (sent == 0) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                filePosition += sent;
+                bytesSent.addAndGet(sent);
+            }
+            fileBody = null;
+
+            if (!keepAlive) {
+                close();
+                return;
+            }
+            busy = false;
+            key.interestOps(SelectionKey.OP_READ);
+            handleRequests();
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing more to send on it anyway
+            }
+        }
+    }
+
+    /**
+     * {@code TileProxyServer [port] [store directory] [upstream URL template]}
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        File directory = args.length > 1 ? new File(args[1]) : new File(System.getProperty("user.home"), ".transilook" + File.separator
+                + "proxy-tiles");
+        String upstream = TileFetcher.urlFormat(args.length > 2 ? args[2] : TileFetcher.OSM_URL_FORMAT);
+
+        TileProxyServer server = new TileProxyServer(port, new TileStore(directory), upstream);
+        server.start();
+        System.out.println("Proxying tiles at " + server.getUrlTemplate());
+    }
+}
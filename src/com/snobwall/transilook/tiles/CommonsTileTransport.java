@@ -0,0 +1,104 @@
+package com.snobwall.transilook.tiles;
+
+import java.io.IOException;
+import java.util.Date;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.util.DateUtil;
+
+/**
+ * Blocking transport on commons-httpclient, one thread per request in
+ * flight. Asynchronous requests run on the caller's thread.
+ *
+ * @author mrb
+ *
+ */
+@ThreadSafe
+public class CommonsTileTransport implements TileTransport {
+
+    /** Requests are over by the time getAsync returns, so there is nothing to abort. */
+    private static final Runnable NO_ABORT = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final CountingConnectionManager connectionManager;
+    private final HttpClient client;
+
+    public CommonsTileTransport(int maxPerHost, int maxTotal) {
+        super();
+        connectionManager = new CountingConnectionManager(maxPerHost, maxTotal);
+        client = new HttpClient(connectionManager);
+    }
+
+    @Override
+    public Response get(String url, String etag, long lastModified) throws IOException {
+        final GetMethod method = new GetMethod(url);
+        TileFetchScheduler.whenCancelled(new Runnable() {
+            @Override
+            public void run() {
+                // closes the socket, so a blocked read fails straight away
+                method.abort();
+            }
+        });
+        try {
+            if (etag != null) {
+                method.setRequestHeader("If-None-Match", etag);
+            }
+            if (lastModified > 0) {
+                method.setRequestHeader("If-Modified-Since", DateUtil.formatDate(new Date(lastModified)));
+            }
+
+            int statusCode = client.executeMethod(method);
+            byte[] body = method.getResponseBody();
+            return new Response(statusCode, String.valueOf(method.getStatusLine()), body, value(method.getResponseHeader("ETag")),
+                    value(method.getResponseHeader("Last-Modified")), value(method.getResponseHeader("Cache-Control")),
+                    value(method.getResponseHeader("Expires")));
+        } finally {
+            TileFetchScheduler.whenCancelled(null);
+            method.releaseConnection();
+        }
+    }
+
+    @Override
+    public Runnable getAsync(String url, String etag, long lastModified, Callback callback) {
+        Response response;
+        try {
+            response = get(url, etag, lastModified);
+        } catch (IOException e) {
+            callback.failed(e);
+            return NO_ABORT;
+        }
+        callback.completed(response);
+        return NO_ABORT;
+    }
+
+    @Override
+    public boolean isNonBlocking() {
+        return false;
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionManager.getConnectionsOpened();
+    }
+
+    @Override
+    public long getConnectionsReused() {
+        return connectionManager.getConnectionsReused();
+    }
+
+    @Override
+    public void shutdown() {
+        connectionManager.shutdown();
+    }
+
+    private static String value(Header header) {
+        return header == null ? null : header.getValue();
+    }
+}
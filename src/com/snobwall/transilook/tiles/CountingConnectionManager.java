@@ -0,0 +1,50 @@
+package com.snobwall.transilook.tiles;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+
+/**
+ * Pooled keep-alive connection manager that counts how many connections it
+ * handed out were already open (reused) versus freshly opened.
+ *
+ * @author mrb
+ *
+ */
+@ThreadSafe
+public class CountingConnectionManager extends MultiThreadedHttpConnectionManager {
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    public CountingConnectionManager(int maxPerHost, int maxTotal) {
+        super();
+        getParams().setDefaultMaxConnectionsPerHost(maxPerHost);
+        getParams().setMaxTotalConnections(maxTotal);
+        getParams().setStaleCheckingEnabled(true);
+    }
+
+    @Override
+    public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout) throws ConnectionPoolTimeoutException {
+        HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+        if (connection.isOpen()) {
+            reused.incrementAndGet();
+        } else {
+            opened.incrementAndGet();
+        }
+        return connection;
+    }
+
+    public long getConnectionsOpened() {
+        return opened.get();
+    }
+
+    public long getConnectionsReused() {
+        return reused.get();
+    }
+}
@@ -0,0 +1,741 @@
+package com.snobwall.transilook.tiles;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.httpclient.util.DateUtil;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Non-blocking HTTP/1.1 transport: every connection is driven by a single
+ * selector thread, so the number of requests in flight is bounded by the
+ * per-host connection limit rather than by a thread per request.
+ *
+ * Connections are kept alive and reused, most recently used first; requests
+ * beyond the limit wait in a per-host queue for the next free connection.
+ * A body with a Content-Length is read straight into an array of exactly
+ * that size. Only plain http is spoken.
+ *
+ * Callbacks run on the I/O thread and hold up every other request while they
+ * do, so they should hand anything slow off to another thread.
+ *
+ * @author mrb
+ *
+ */
+@ThreadSafe
+public class NioTileTransport implements TileTransport {
+
+    /** A request fails when its connection has been quiet for this long. */
+    private static final long TIMEOUT_MILLIS = Long.getLong("transilook.transport.timeoutMillis", 30000);
+
+    private static final int MAX_LINE = 8192;
+
+    private static final int STATUS = 0, HEADERS = 1, BODY = 2, UNTIL_CLOSE = 3, CHUNK_SIZE = 4, CHUNK_DATA = 5, CHUNK_END = 6,
+            TRAILERS = 7, DONE = 8;
+
+    private final int maxPerHost;
+    private final Selector selector;
+    private final Thread ioThread;
+    private volatile boolean running = true;
+
+    private final ConcurrentLinkedQueue<Exchange> submitted = new ConcurrentLinkedQueue<Exchange>();
+    private final ConcurrentLinkedQueue<Exchange> aborted = new ConcurrentLinkedQueue<Exchange>();
+
+    @GuardedBy("tile-io")
+    private final HashMap<String, Host> hosts = new HashMap<String, Host>();
+    @GuardedBy("tile-io")
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(32 * 1024);
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    public NioTileTransport(int maxPerHost) throws IOException {
+        super();
+        this.maxPerHost = maxPerHost;
+        selector = Selector.open();
+        ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "tile-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    @Override
+    public Response get(String url, String etag, long lastModified) throws IOException {
+        Waiter waiter = new Waiter();
+        final Exchange exchange = start(url, etag, lastModified, waiter);
+        TileFetchScheduler.whenCancelled(new Runnable() {
+            @Override
+            public void run() {
+                abort(exchange);
+            }
+        });
+        try {
+            return waiter.await();
+        } catch (InterruptedException e) {
+            abort(exchange);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted fetching " + url);
+        } finally {
+            TileFetchScheduler.whenCancelled(null);
+        }
+    }
+
+    @Override
+    public Runnable getAsync(String url, String etag, long lastModified, Callback callback) {
+        final Exchange exchange = start(url, etag, lastModified, callback);
+        return new Runnable() {
+            @Override
+            public void run() {
+                abort(exchange);
+            }
+        };
+    }
+
+    @Override
+    public boolean isNonBlocking() {
+        return true;
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return opened.get();
+    }
+
+    @Override
+    public long getConnectionsReused() {
+        return reused.get();
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private Exchange start(String url, String etag, long lastModified, Callback callback) {
+        URL parsed;
+        try {
+            parsed = new URL(url);
+        } catch (MalformedURLException e) {
+            callback.failed(e);
+            return null;
+        }
+        if (!"http".equals(parsed.getProtocol())) {
+            callback.failed(new IOException("Only http is supported: " + url));
+            return null;
+        }
+        String host = parsed.getHost();
+        int port = parsed.getPort() < 0 ? 80 : parsed.getPort();
+        String path = parsed.getFile().isEmpty() ? "/" : parsed.getFile();
+
+        StringBuilder request = new StringBuilder(160);
+        request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(host);
+        if (port != 80) {
+            request.append(':').append(port);
+        }
+        request.append("\r\nUser-Agent: transilook\r\n");
+        if (etag != null) {
+            request.append("If-None-Match: ").append(etag).append("\r\n");
+        }
+        if (lastModified > 0) {
+            request.append("If-Modified-Since: ").append(DateUtil.formatDate(new Date(lastModified))).append("\r\n");
+        }
+        request.append("\r\n");
+
+        Exchange exchange = new Exchange(host, port, request.toString().getBytes(Charsets.ISO_8859_1), callback);
+        if (!running) {
+            callback.failed(new IOException("Transport shut down"));
+            return exchange;
+        }
+        submitted.add(exchange);
+        selector.wakeup();
+        return exchange;
+    }
+
+    private void abort(Exchange exchange) {
+        if (exchange != null) {
+            aborted.add(exchange);
+            selector.wakeup();
+        }
+    }
+
+    //
+    // Everything below runs on the I/O thread
+    //
+
+    private void loop() {
+        long lastTimeoutCheck = System.currentTimeMillis();
+        while (running) {
+            try {
+                selector.select(1000);
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+
+            Exchange exchange;
+            while ((exchange = submitted.poll()) != null) {
+                enqueue(exchange);
+            }
+            while ((exchange = aborted.poll()) != null) {
+                abortNow(exchange);
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Connection c = (Connection) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isConnectable()) {
+                    connected(c);
+                } else if (key.isWritable()) {
+                    write(c);
+                } else if (key.isReadable()) {
+                    read(c);
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastTimeoutCheck >= 1000) {
+                lastTimeoutCheck = now;
+                expire(now);
+            }
+        }
+
+        IOException closed = new IOException("Transport shut down");
+        Exchange exchange;
+        while ((exchange = submitted.poll()) != null) {
+            deliverFailure(exchange, closed);
+        }
+        for (Host host : hosts.values()) {
+            while ((exchange = host.pending.poll()) != null) {
+                deliverFailure(exchange, closed);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            fail((Connection) key.attachment(), closed);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void enqueue(Exchange exchange) {
+        String key = exchange.host + ":" + exchange.port;
+        Host host = hosts.get(key);
+        if (host == null) {
+            // resolves the name, once per host
+            InetSocketAddress address = new InetSocketAddress(exchange.host, exchange.port);
+            if (address.isUnresolved()) {
+                deliverFailure(exchange, new IOException("Unknown host " + exchange.host));
+                return;
+            }
+            host = new Host(address);
+            hosts.put(key, host);
+        }
+        exchange.target = host;
+        host.pending.add(exchange);
+        dispatch(host);
+    }
+
+    private void abortNow(Exchange exchange) {
+        if (exchange.done) {
+            return;
+        }
+        IOException e = new IOException("Aborted");
+        if (exchange.connection != null) {
+            fail(exchange.connection, e);
+        } else if (exchange.target != null && exchange.target.pending.remove(exchange)) {
+            deliverFailure(exchange, e);
+        }
+    }
+
+    /**
+     * Hand waiting requests to idle connections, opening new ones up to the
+     * limit.
+     */
+    private void dispatch(Host host) {
+        while (running && !host.pending.isEmpty()) {
+            Connection c = host.idle.pollFirst();
+            if (c != null) {
+                reused.incrementAndGet();
+                c.reused = true;
+                send(c, host.pending.poll());
+                continue;
+            }
+            if (host.connections >= maxPerHost) {
+                return;
+            }
+
+            Exchange exchange = host.pending.poll();
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                boolean connected = channel.connect(host.address);
+                c = new Connection(host, channel);
+                c.key = channel.register(selector, 0, c);
+                host.connections++;
+                opened.incrementAndGet();
+                send(c, exchange);
+                if (!connected) {
+                    c.key.interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch (IOException e) {
+                if (channel != null) {
+                    closeQuietly(channel);
+                }
+                deliverFailure(exchange, e);
+            }
+        }
+    }
+
+    private void send(Connection c, Exchange exchange) {
+        c.exchange = exchange;
+        exchange.connection = c;
+        c.request = ByteBuffer.wrap(exchange.request);
+        c.reset();
+        c.lastActive = System.currentTimeMillis();
+        c.key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void connected(Connection c) {
+        try {
+            c.channel.finishConnect();
+        } catch (IOException e) {
+            fail(c, e);
+            return;
+        }
+        c.key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void write(Connection c) {
+        try {
+            c.channel.write(c.request);
+        } catch (IOException e) {
+            fail(c, e);
+            return;
+        }
+        c.lastActive = System.currentTimeMillis();
+        if (!c.request.hasRemaining()) {
+            c.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void read(Connection c) {
+        readBuffer.clear();
+        int n;
+        try {
+            n = c.channel.read(readBuffer);
+        } catch (IOException e) {
+            fail(c, e);
+            return;
+        }
+        if (c.exchange == null) {
+            // an idle connection only ever becomes readable when the server hangs up
+            close(c);
+            return;
+        }
+        if (n < 0) {
+            endOfStream(c);
+            return;
+        }
+        c.lastActive = System.currentTimeMillis();
+        c.receivedAny = true;
+        readBuffer.flip();
+        try {
+            parse(c, readBuffer);
+        } catch (IOException e) {
+            fail(c, e);
+            return;
+        } catch (RuntimeException e) {
+            fail(c, new IOException("Malformed response: " + e));
+            return;
+        }
+        if (c.state == DONE) {
+            // anything after the response means we have lost track of the stream
+            finish(c, c.keepAlive && !readBuffer.hasRemaining());
+        }
+    }
+
+    private void endOfStream(Connection c) {
+        if (c.state == UNTIL_CLOSE) {
+            finish(c, false);
+        } else if (!c.receivedAny && c.reused && !c.exchange.retried) {
+            // the server dropped a kept-alive connection just as we reused it
+            Exchange exchange = c.exchange;
+            exchange.retried = true;
+            exchange.connection = null;
+            c.exchange = null;
+            close(c);
+            c.host.pending.addFirst(exchange);
+            dispatch(c.host);
+        } else {
+            fail(c, new IOException("Connection closed before the response was complete"));
+        }
+    }
+
+    private void expire(long now) {
+        ArrayList<Connection> expired = null;
+        for (SelectionKey key : selector.keys()) {
+            Connection c = (Connection) key.attachment();
+            if (c.exchange != null && now - c.lastActive > TIMEOUT_MILLIS) {
+                if (expired == null) {
+                    expired = new ArrayList<Connection>();
+                }
+                expired.add(c);
+            }
+        }
+        if (expired != null) {
+            for (Connection c : expired) {
+                fail(c, new SocketTimeoutException("No response for " + TIMEOUT_MILLIS + "ms"));
+            }
+        }
+    }
+
+    private void parse(Connection c, ByteBuffer in) throws IOException {
+        while (in.hasRemaining() && c.state != DONE) {
+            switch (c.state) {
+            case BODY: {
+                int n = Math.min(in.remaining(), c.body.length - c.bodyLength);
+                in.get(c.body, c.bodyLength, n);
+                c.bodyLength += n;
+                if (c.bodyLength == c.body.length) {
+                    c.state = DONE;
+                }
+                break;
+            }
+            case UNTIL_CLOSE:
+                append(c, in, in.remaining());
+                break;
+            case CHUNK_DATA: {
+                int n = (int) Math.min(in.remaining(), c.chunkRemaining);
+                append(c, in, n);
+                c.chunkRemaining -= n;
+                if (c.chunkRemaining == 0) {
+                    c.state = CHUNK_END;
+                }
+                break;
+            }
+            default:
+                byte b = in.get();
+                if (b == '\n') {
+                    line(c, c.line.toString());
+                    c.line.setLength(0);
+                } else if (b != '\r') {
+                    if (c.line.length() >= MAX_LINE) {
+                        throw new IOException("Response line too long");
+                    }
+                    c.line.append((char) (b & 0xff));
+                }
+            }
+        }
+    }
+
+    private void line(Connection c, String line) throws IOException {
+        switch (c.state) {
+        case STATUS:
+            if (line.isEmpty()) {
+                return;
+            }
+            if (!line.startsWith("HTTP/1.") || line.length() < 12) {
+                throw new IOException("Bad status line: " + line);
+            }
+            c.statusLine = line;
+            c.statusCode = Integer.parseInt(line.substring(9, 12));
+            c.keepAlive = line.startsWith("HTTP/1.1");
+            c.state = HEADERS;
+            break;
+        case HEADERS:
+            if (line.isEmpty()) {
+                endOfHeaders(c);
+            } else {
+                header(c, line);
+            }
+            break;
+        case CHUNK_SIZE: {
+            int semicolon = line.indexOf(';');
+            long size = Long.parseLong((semicolon < 0 ? line : line.substring(0, semicolon)).trim(), 16);
+            if (size == 0) {
+                c.state = TRAILERS;
+            } else {
+                c.chunkRemaining = size;
+                ensureBody(c, c.bodyLength + size);
+                c.state = CHUNK_DATA;
+            }
+            break;
+        }
+        case CHUNK_END:
+            if (!line.isEmpty()) {
+                throw new IOException("Bad chunk");
+            }
+            c.state = CHUNK_SIZE;
+            break;
+        case TRAILERS:
+            if (line.isEmpty()) {
+                c.state = DONE;
+            }
+            break;
+        }
+    }
+
+    private void header(Connection c, String line) throws IOException {
+        int colon = line.indexOf(':');
+        if (colon < 0) {
+            throw new IOException("Bad header: " + line);
+        }
+        String name = line.substring(0, colon).trim();
+        String value = line.substring(colon + 1).trim();
+        if (name.equalsIgnoreCase("Content-Length")) {
+            long length = Long.parseLong(value);
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new IOException("Bad Content-Length: " + value);
+            }
+            c.contentLength = (int) length;
+        } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+            c.chunked = value.toLowerCase().contains("chunked");
+        } else if (name.equalsIgnoreCase("Connection")) {
+            if (value.equalsIgnoreCase("close")) {
+                c.keepAlive = false;
+            } else if (value.equalsIgnoreCase("keep-alive")) {
+                c.keepAlive = true;
+            }
+        } else if (name.equalsIgnoreCase("ETag")) {
+            c.etag = value;
+        } else if (name.equalsIgnoreCase("Last-Modified")) {
+            c.lastModified = value;
+        } else if (name.equalsIgnoreCase("Cache-Control")) {
+            c.cacheControl = value;
+        } else if (name.equalsIgnoreCase("Expires")) {
+            c.expires = value;
+        }
+    }
+
+    private void endOfHeaders(Connection c) {
+        int code = c.statusCode;
+        if (code / 100 == 1) {
+            // an interim response; the real one follows
+            c.reset();
+            return;
+        }
+        if (code == 204 || code == 304) {
+            c.state = DONE;
+        } else if (c.chunked) {
+            c.body = new byte[8192];
+            c.state = CHUNK_SIZE;
+        } else if (c.contentLength >= 0) {
+            c.body = new byte[c.contentLength];
+            c.state = c.contentLength == 0 ? DONE : BODY;
+        } else {
+            c.keepAlive = false;
+            c.body = new byte[8192];
+            c.state = UNTIL_CLOSE;
+        }
+    }
+
+    private static void ensureBody(Connection c, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Response too large");
+        }
+        if (size > c.body.length) {
+            c.body = Arrays.copyOf(c.body, (int) Math.min(Integer.MAX_VALUE, Math.max(size, 2L * c.body.length)));
+        }
+    }
+
+    private static void append(Connection c, ByteBuffer in, int n) throws IOException {
+        ensureBody(c, (long) c.bodyLength + n);
+        in.get(c.body, c.bodyLength, n);
+        c.bodyLength += n;
+    }
+
+    private void finish(Connection c, boolean reuse) {
+        Exchange exchange = c.exchange;
+        byte[] body = c.body;
+        if (body != null && body.length != c.bodyLength) {
+            body = Arrays.copyOf(body, c.bodyLength);
+        }
+        Response response = new Response(c.statusCode, c.statusLine, body, c.etag, c.lastModified, c.cacheControl, c.expires);
+        c.exchange = null;
+        exchange.done = true;
+        if (reuse) {
+            c.body = null;
+            c.host.idle.addFirst(c);
+            c.key.interestOps(SelectionKey.OP_READ);
+        } else {
+            close(c);
+        }
+        try {
+            exchange.callback.completed(response);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        dispatch(c.host);
+    }
+
+    private void fail(Connection c, IOException e) {
+        Exchange exchange = c.exchange;
+        c.exchange = null;
+        close(c);
+        if (exchange != null) {
+            deliverFailure(exchange, e);
+        }
+        dispatch(c.host);
+    }
+
+    private void close(Connection c) {
+        if (!c.key.isValid()) {
+            return;
+        }
+        c.key.cancel();
+        closeQuietly(c.channel);
+        c.host.connections--;
+        c.host.idle.remove(c);
+    }
+
+    private static void deliverFailure(Exchange exchange, IOException e) {
+        exchange.done = true;
+        try {
+            exchange.callback.failed(e);
+        } catch (RuntimeException re) {
+            re.printStackTrace();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing more to do with it
+        }
+    }
+
+    private static class Host {
+        final InetSocketAddress address;
+        final ArrayDeque<Exchange> pending = new ArrayDeque<Exchange>();
+        /** Most recently used first, so surplus connections go quiet and the server can close them. */
+        final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+        int connections;
+
+        Host(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    private static class Exchange {
+        final String host;
+        final int port;
+        final byte[] request;
+        final Callback callback;
+
+        /** Set on the I/O thread; read there by aborts. */
+        Host target;
+        Connection connection;
+        boolean retried;
+        volatile boolean done;
+
+        Exchange(String host, int port, byte[] request, Callback callback) {
+            this.host = host;
+            this.port = port;
+            this.request = request;
+            this.callback = callback;
+        }
+    }
+
+    private static class Connection {
+        final Host host;
+        final SocketChannel channel;
+        SelectionKey key;
+        Exchange exchange;
+        ByteBuffer request;
+        boolean reused, receivedAny;
+        long lastActive;
+
+        int state;
+        final StringBuilder line = new StringBuilder(128);
+        int statusCode;
+        String statusLine, etag, lastModified, cacheControl, expires;
+        int contentLength;
+        boolean chunked, keepAlive;
+        long chunkRemaining;
+        byte[] body;
+        int bodyLength;
+
+        Connection(Host host, SocketChannel channel) {
+            this.host = host;
+            this.channel = channel;
+        }
+
+        void reset() {
+            state = STATUS;
+            line.setLength(0);
+            statusCode = 0;
+            statusLine = etag = lastModified = cacheControl = expires = null;
+            contentLength = -1;
+            chunked = false;
+            keepAlive = false;
+            chunkRemaining = 0;
+            body = null;
+            bodyLength = 0;
+            receivedAny = false;
+        }
+    }
+
+    private static class Waiter implements Callback {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile Response response;
+        private volatile IOException error;
+
+        @Override
+        public void completed(Response response) {
+            this.response = response;
+            latch.countDown();
+        }
+
+        @Override
+        public void failed(IOException e) {
+            this.error = e;
+            latch.countDown();
+        }
+
+        Response await() throws IOException, InterruptedException {
+            latch.await();
+            if (error != null) {
+                // keep the caller's stack in the trace
+                throw new IOException(error.getMessage(), error);
+            }
+            return response;
+        }
+    }
+}
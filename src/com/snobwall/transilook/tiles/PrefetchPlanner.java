@@ -0,0 +1,164 @@
+package com.snobwall.transilook.tiles;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import com.snobwall.transilook.metrics.Metrics;
+import com.snobwall.transilook.osm.SlippyUtil;
+import com.snobwall.transilook.osm.TileRef;
+
+/**
+ * Picks off-screen tiles worth fetching before they are needed, from the
+ * current pan velocity and zoom direction, and keeps track of how many of
+ * them were actually shown afterwards.
+ *
+ * Candidates are a ring around the visible tiles stretched in the direction
+ * of travel, plus the children (zooming in) or parents (zooming out) of the
+ * tiles nearest the centre.
+ *
+ * @author mrb
+ *
+ */
+@NotThreadSafe
+public class PrefetchPlanner {
+
+    /** How far ahead of the current pan to look. */
+    private static final double LOOKAHEAD_SECONDS = 0.5;
+
+    /** Prefetched tiles remembered for hit accounting. */
+    private static final int MAX_REMEMBERED = 1024;
+
+    private final LinkedHashSet<TileRef> prefetched = new LinkedHashSet<TileRef>();
+
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * @param velocityX
+     *            horizontal pan velocity in screen pixels per second, positive
+     *            when the map is being dragged to the right
+     * @param zoomDirection
+     *            positive when zooming in, negative when zooming out
+     * @return candidate tiles, most useful first; none of them are visible
+     */
+    public List<TileRef> plan(ViewportTracker viewport, final double focusX, final double focusY, int zoom, double velocityX, double velocityY,
+            int zoomDirection) {
+        ArrayList<TileRef> ring = new ArrayList<TileRef>();
+        if (viewport.isEmpty()) {
+            return ring;
+        }
+
+        // dragging the map right reveals tiles on the left
+        int aheadX = (int) Math.round(-velocityX * LOOKAHEAD_SECONDS / 256);
+        int aheadY = (int) Math.round(-velocityY * LOOKAHEAD_SECONDS / 256);
+
+        for (int y = viewport.getMinY() - 1 + Math.min(0, aheadY); y <= viewport.getMaxY() + 1 + Math.max(0, aheadY); y++) {
+            for (int x = viewport.getMinX() - 1 + Math.min(0, aheadX); x <= viewport.getMaxX() + 1 + Math.max(0, aheadX); x++) {
+                TileRef tile = new TileRef(SlippyUtil.wrapTileX(x, zoom), y, zoom);
+                if (SlippyUtil.isValidTile(tile.x, y, zoom) && !viewport.isVisible(tile) && !ring.contains(tile)) {
+                    ring.add(tile);
+                }
+            }
+        }
+
+        final double predictedX = focusX + aheadX, predictedY = focusY + aheadY;
+        Collections.sort(ring, new Comparator<TileRef>() {
+            @Override
+            public int compare(TileRef a, TileRef b) {
+                return Double.compare(distance(a, predictedX, predictedY), distance(b, predictedX, predictedY));
+            }
+        });
+
+        ArrayList<TileRef> nextZoom = new ArrayList<TileRef>();
+        int cx = (int) Math.floor(focusX), cy = (int) Math.floor(focusY);
+        if (zoomDirection > 0 && zoom < SlippyUtil.MAX_ZOOM) {
+            // the wheel zooms about the centre, so its neighbourhood is what will be on screen
+            for (int y = cy - 1; y <= cy + 1; y++) {
+                for (int x = cx - 1; x <= cx + 1; x++) {
+                    for (int child = 0; child < 4; child++) {
+                        int childX = SlippyUtil.wrapTileX(2 * x + (child & 1), zoom + 1), childY = 2 * y + (child >> 1);
+                        if (SlippyUtil.isValidTile(childX, childY, zoom + 1)) {
+                            nextZoom.add(new TileRef(childX, childY, zoom + 1));
+                        }
+                    }
+                }
+            }
+        } else if (zoomDirection < 0 && zoom > 0) {
+            LinkedHashSet<TileRef> parents = new LinkedHashSet<TileRef>();
+            for (int y = viewport.getMinY() - 1; y <= viewport.getMaxY() + 1; y++) {
+                for (int x = viewport.getMinX() - 1; x <= viewport.getMaxX() + 1; x++) {
+                    int parentX = SlippyUtil.wrapTileX(x, zoom) >> 1;
+                    if (SlippyUtil.isValidTile(parentX, y >> 1, zoom - 1)) {
+                        parents.add(new TileRef(parentX, y >> 1, zoom - 1));
+                    }
+                }
+            }
+            nextZoom.addAll(parents);
+        }
+
+        // a zoom gesture changes the whole screen at once, so it outranks panning
+        ArrayList<TileRef> plan = new ArrayList<TileRef>(ring.size() + nextZoom.size());
+        plan.addAll(nextZoom);
+        plan.addAll(ring);
+        return plan;
+    }
+
+    public void prefetchIssued(TileRef tile) {
+        issued.incrementAndGet();
+        Metrics.PREFETCH_ISSUED.incrementAndGet();
+    }
+
+    public void prefetchCompleted(TileRef tile) {
+        completed.incrementAndGet();
+        Metrics.PREFETCH_COMPLETED.incrementAndGet();
+        prefetched.add(tile);
+        if (prefetched.size() > MAX_REMEMBERED) {
+            Iterator<TileRef> it = prefetched.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Note that a tile came into view; counts a hit if it was prefetched.
+     */
+    public void tileShown(TileRef tile) {
+        if (prefetched.remove(tile)) {
+            hits.incrementAndGet();
+            Metrics.PREFETCH_HITS.incrementAndGet();
+        }
+    }
+
+    public long getIssued() {
+        return issued.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the fraction of completed prefetches that were later shown
+     */
+    public double getHitRate() {
+        long c = completed.get();
+        return c == 0 ? 0 : (double) hits.get() / c;
+    }
+
+    private static double distance(TileRef tile, double x, double y) {
+        double dx = SlippyUtil.wrapTileDistance(tile.x + 0.5 - x, tile.zoom), dy = tile.y + 0.5 - y;
+        return dx * dx + dy * dy;
+    }
+}
@@ -0,0 +1,321 @@
+package com.snobwall.transilook.tiles;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import com.snobwall.transilook.osm.BoundingBox;
+import com.snobwall.transilook.osm.Mercator;
+import com.snobwall.transilook.osm.TileRef;
+import com.snobwall.transilook.util.RateLimiter;
+
+/**
+ * Downloads every tile of a region into a {@link TileStore}, for use
+ * offline.
+ *
+ * Tiles are taken in {@link TileRange} order by a few worker threads, under
+ * a cap on requests per second and on bytes per second. Tiles already in the
+ * store and still fresh are skipped without touching the network. Progress
+ * is saved next to the store every few seconds as the position before which
+ * every tile is done, so an interrupted seed picks up from there; the few
+ * tiles past it that were already done are skipped again as stored.
+ *
+ * @author mrb
+ *
+ */
+@ThreadSafe
+public class RegionSeeder {
+
+    public static final int DEFAULT_THREADS = Integer.getInteger("transilook.seed.threads", TileFetcher.MAX_CONNECTIONS_PER_HOST);
+    public static final double DEFAULT_REQUESTS_PER_SECOND = Double.parseDouble(System.getProperty("transilook.seed.requestsPerSecond",
+            "10"));
+    /** 0 for no limit. */
+    public static final long DEFAULT_BYTES_PER_SECOND = Long.getLong("transilook.seed.bytesPerSecond", 0);
+
+    private static final String CHECKPOINT_NAME = "seed.checkpoint";
+    private static final long REPORT_MILLIS = 2000;
+    private static final int ATTEMPTS = 3;
+
+    private final TileRange range;
+    private final TileStore store;
+    private final TileFetcher fetcher;
+    private final int threads;
+    private final RateLimiter requests, bandwidth;
+    private final File checkpoint;
+
+    @GuardedBy("this")
+    private long next;
+    /** Positions being worked on, so the checkpoint never skips past one. */
+    @GuardedBy("this")
+    private final TreeSet<Long> inFlight = new TreeSet<Long>();
+
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong fetched = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private volatile boolean stopped;
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    public RegionSeeder(TileRange range, TileStore store, TileFetcher fetcher) {
+        this(range, store, fetcher, DEFAULT_THREADS, DEFAULT_REQUESTS_PER_SECOND, DEFAULT_BYTES_PER_SECOND);
+    }
+
+    /**
+     * @param fetcher
+     *            should write through to the same store
+     */
+    public RegionSeeder(TileRange range, TileStore store, TileFetcher fetcher, int threads, double requestsPerSecond,
+            long bytesPerSecond) {
+        super();
+        this.range = range;
+        this.store = store;
+        this.fetcher = fetcher;
+        this.threads = threads;
+        this.requests = new RateLimiter(requestsPerSecond);
+        this.bandwidth = new RateLimiter(bytesPerSecond);
+        this.checkpoint = new File(store.getDirectory(), CHECKPOINT_NAME);
+    }
+
+    /**
+     * Seed the region, resuming from the checkpoint if there is one for it,
+     * and report progress on stdout.
+     *
+     * @return true if every tile was seeded, false if stopped first
+     */
+    public boolean run() throws IOException, InterruptedException {
+        long start = resume();
+        synchronized (this) {
+            next = start;
+        }
+        System.out.println("Seeding " + range.size() + " tiles at zoom " + range.getMinZoom() + "-" + range.getMaxZoom()
+                + (start > 0 ? ", resuming at " + start : ""));
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "seed-" + (i + 1));
+            workers[i].start();
+        }
+
+        long startNanos = System.nanoTime();
+        try {
+            for (Thread worker : workers) {
+                while (worker.isAlive()) {
+                    worker.join(REPORT_MILLIS);
+                    saveCheckpoint();
+                    report(start, startNanos);
+                }
+            }
+            boolean complete = !stopped;
+            if (complete) {
+                checkpoint.delete();
+            } else {
+                saveCheckpoint();
+            }
+            report(start, startNanos);
+            return complete;
+        } finally {
+            stopped = true;
+            finished.countDown();
+        }
+    }
+
+    /**
+     * Stop handing out tiles; the ones in flight finish and are saved.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    public long getFetched() {
+        return fetched.get();
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    private void work() {
+        try {
+            long position;
+            while (!stopped && (position = take()) >= 0) {
+                seed(range.get(position));
+                finish(position);
+            }
+        } catch (InterruptedException e) {
+            // leave the tile in flight, so the checkpoint stays behind it
+            stopped = true;
+        }
+    }
+
+    private synchronized long take() {
+        if (next >= range.size()) {
+            return -1;
+        }
+        inFlight.add(next);
+        return next++;
+    }
+
+    private synchronized void finish(long position) {
+        inFlight.remove(position);
+        done.incrementAndGet();
+    }
+
+    /** @return the position before which every tile is done */
+    private synchronized long watermark() {
+        return inFlight.isEmpty() ? next : inFlight.first();
+    }
+
+    private void seed(TileRef tile) throws InterruptedException {
+        TileStore.Entry stored = store.lookup(tile);
+        if (stored != null && !stored.isExpired(System.currentTimeMillis())) {
+            skipped.incrementAndGet();
+            return;
+        }
+        for (int attempt = 1;; attempt++) {
+            requests.acquire(1);
+            try {
+                byte[] body = fetcher.fetch(tile, false);
+                // a 304 is charged as the whole tile, which only errs on the slow side
+                bandwidth.acquire(body.length);
+                fetched.incrementAndGet();
+                return;
+            } catch (IOException e) {
+                if (attempt == ATTEMPTS) {
+                    failed.incrementAndGet();
+                    System.err.println("Giving up on " + tile + ": " + e.getMessage());
+                    return;
+                }
+                Thread.sleep(1000L << attempt);
+            }
+        }
+    }
+
+    private long resume() throws IOException {
+        if (!checkpoint.exists()) {
+            return 0;
+        }
+        Properties saved = new Properties();
+        InputStream in = new FileInputStream(checkpoint);
+        try {
+            saved.load(in);
+        } finally {
+            in.close();
+        }
+        if (!region().equals(saved.getProperty("region"))) {
+            System.out.println("Ignoring the checkpoint for another region: " + saved.getProperty("region"));
+            return 0;
+        }
+        try {
+            return Math.min(range.size(), Long.parseLong(saved.getProperty("next", "0")));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void saveCheckpoint() throws IOException {
+        Properties saved = new Properties();
+        saved.setProperty("region", region());
+        saved.setProperty("next", Long.toString(watermark()));
+
+        // written aside and renamed into place, so a crash never leaves half a checkpoint
+        File tmp = new File(checkpoint.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            saved.store(out, "transilook region seed");
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(checkpoint)) {
+            throw new IOException("Could not rename " + tmp + " to " + checkpoint);
+        }
+    }
+
+    private String region() {
+        BoundingBox b = range.getBounds();
+        return b.north + "," + b.south + "," + b.east + "," + b.west + "," + range.getMinZoom() + "," + range.getMaxZoom();
+    }
+
+    private void report(long start, long startNanos) {
+        long total = range.size();
+        long doneNow = done.get();
+        long progress = start + doneNow;
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        double tilesPerSecond = seconds > 0 ? doneNow / seconds : 0;
+        double kbPerSecond = seconds > 0 ? fetcher.getBytesFetched() / 1024.0 / seconds : 0;
+        String eta = tilesPerSecond > 0 ? duration((long) ((total - progress) / tilesPerSecond)) : "unknown";
+        System.out.println(String.format("%d/%d tiles (%.1f%%): %d fetched, %d already stored, %d failed; %.1f tiles/s, %.0f KB/s, ETA %s",
+                progress, total, total == 0 ? 100.0 : 100.0 * progress / total, fetched.get(), skipped.get(), failed.get(),
+                tilesPerSecond, kbPerSecond, eta));
+    }
+
+    private static String duration(long seconds) {
+        if (seconds >= 3600) {
+            return String.format("%dh%02dm", seconds / 3600, seconds / 60 % 60);
+        }
+        return String.format("%dm%02ds", seconds / 60, seconds % 60);
+    }
+
+    /**
+     * Seed a region given in degrees:
+     * {@code RegionSeeder north south east west minZoom maxZoom storeDir [urlTemplate]}
+     *
+     * Threads and rate limits come from the transilook.seed.* properties.
+     * Interrupting it saves a checkpoint, and running it again with the same
+     * region carries on. Tiles that failed are tried again by running it
+     * again once it has finished.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 7) {
+            System.err.println("usage: RegionSeeder north south east west minZoom maxZoom storeDir [urlTemplate]");
+            System.exit(2);
+        }
+        BoundingBox bounds = new BoundingBox(Mercator.mercY(Double.parseDouble(args[0])), Mercator.mercY(Double.parseDouble(args[1])),
+                Mercator.mercX(Double.parseDouble(args[2])), Mercator.mercX(Double.parseDouble(args[3])));
+        TileRange range = new TileRange(bounds, Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+        TileStore store = new TileStore(new File(args[6]));
+        // bulk downloads are against the OSM tile usage policy, so point this at your own server
+        String urlFormat = TileFetcher.urlFormat(args.length > 7 ? args[7] : System.getProperty("transilook.tileUrl",
+                TileFetcher.OSM_URL_FORMAT));
+
+        final RegionSeeder seeder = new RegionSeeder(range, store, new TileFetcher(urlFormat, store));
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                seeder.stop();
+                try {
+                    seeder.awaitFinished(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // exiting anyway
+                }
+            }
+        }));
+        boolean complete = seeder.run();
+        store.close();
+        System.exit(complete && seeder.getFailed() == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,305 @@
+package com.snobwall.transilook.tiles;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import com.snobwall.transilook.metrics.Metrics;
+import com.snobwall.transilook.osm.TileGrid;
+import com.snobwall.transilook.osm.TileRef;
+import com.snobwall.transilook.util.LongObjectMap;
+
+/**
+ * Two-tier, byte-budgeted tile cache.
+ *
+ * The hot tier holds decoded images ready to be drawn, the warm tier holds
+ * the compressed PNG bytes they were decoded from so a hot eviction can be
+ * undone without going back to the network. Both tiers evict least recently
+ * used entries once they exceed their budget, except for pinned tiles (the
+ * ones in the current viewport), which are never evicted.
+ *
+ * The hot tier is keyed by packed tile keys and keeps its LRU order in an
+ * intrusive list, so looking a tile up while painting allocates nothing.
+ *
+ * @author mrb
+ *
+ */
+@ThreadSafe
+public class TileCache {
+
+    public static final long DEFAULT_HOT_BUDGET = Long.getLong("transilook.tileCache.hotBytes", 64L * 1024 * 1024);
+    public static final long DEFAULT_WARM_BUDGET = Long.getLong("transilook.tileCache.warmBytes", 32L * 1024 * 1024);
+
+    private final long hotBudget, warmBudget;
+
+    @GuardedBy("this")
+    private final LongObjectMap<HotEntry> hot = new LongObjectMap<HotEntry>(256);
+    /** Sentinel of the hot tier's LRU list: next is the eldest entry, prev the newest. */
+    @GuardedBy("this")
+    private final HotEntry lru = new HotEntry(LongObjectMap.EMPTY, null, null, 0);
+    @GuardedBy("this")
+    private long hotBytes;
+    /** The tiles in the hot tier, for finding stand-ins for missing ones. */
+    @GuardedBy("this")
+    private final TileQuadtree hotIndex = new TileQuadtree();
+
+    @GuardedBy("this")
+    private final LinkedHashMap<TileRef, byte[]> warm = new LinkedHashMap<TileRef, byte[]>(256, 0.75f, true);
+    @GuardedBy("this")
+    private long warmBytes;
+
+    @GuardedBy("this")
+    private final LongObjectMap<Boolean> pinned = new LongObjectMap<Boolean>(64);
+
+    @GuardedBy("this")
+    private long hotHits, hotMisses, warmHits, warmMisses;
+    /** Images put in the hot tier, and how many of those were ever looked up to be drawn. */
+    @GuardedBy("this")
+    private long imagesCached, imagesShown;
+
+    public TileCache() {
+        this(DEFAULT_HOT_BUDGET, DEFAULT_WARM_BUDGET);
+    }
+
+    public TileCache(long hotBudget, long warmBudget) {
+        super();
+        this.hotBudget = hotBudget;
+        this.warmBudget = warmBudget;
+        lru.next = lru.prev = lru;
+    }
+
+    /**
+     * @return the decoded image for the tile, or null if it is not in the hot
+     *         tier
+     */
+    public Image getImage(TileRef ref) {
+        return getImage(ref.key());
+    }
+
+    /**
+     * @param key
+     *            a tile packed as by {@link TileRef#pack}
+     * @return the decoded image for the tile, or null if it is not in the hot
+     *         tier
+     */
+    public synchronized Image getImage(long key) {
+        HotEntry entry = hot.get(key);
+        if (entry == null) {
+            hotMisses++;
+            Metrics.HOT_MISSES.incrementAndGet();
+            return null;
+        }
+        hotHits++;
+        Metrics.HOT_HITS.incrementAndGet();
+        if (!entry.shown) {
+            entry.shown = true;
+            imagesShown++;
+        }
+        entry.unlink();
+        entry.linkBefore(lru);
+        return entry.image;
+    }
+
+    /**
+     * @return the compressed bytes for the tile, or null if it is not in the
+     *         warm tier
+     */
+    public synchronized byte[] getCompressed(TileRef ref) {
+        byte[] data = warm.get(ref);
+        if (data == null) {
+            warmMisses++;
+            Metrics.WARM_MISSES.incrementAndGet();
+        } else {
+            warmHits++;
+            Metrics.WARM_HITS.incrementAndGet();
+        }
+        return data;
+    }
+
+    /**
+     * @return true if the hot tier holds an image for the tile that has not
+     *         been marked stale
+     */
+    public synchronized boolean containsImage(TileRef ref) {
+        HotEntry entry = hot.get(ref.key());
+        return entry != null && !entry.stale;
+    }
+
+    public synchronized void putImage(TileRef ref, Image img) {
+        long bytes = imageBytes(img);
+        HotEntry entry = hot.get(ref.key());
+        if (entry != null) {
+            hotBytes -= entry.bytes;
+            entry.image = img;
+            entry.bytes = bytes;
+            entry.shown = false;
+            entry.stale = false;
+            entry.unlink();
+        } else {
+            entry = new HotEntry(ref.key(), ref, img, bytes);
+            hot.put(entry.key, entry);
+            hotIndex.add(ref);
+        }
+        imagesCached++;
+        entry.linkBefore(lru);
+        hotBytes += bytes;
+        evictHot();
+    }
+
+    public synchronized void putCompressed(TileRef ref, byte[] data) {
+        byte[] old = warm.put(ref, data);
+        if (old != null) {
+            warmBytes -= old.length;
+        }
+        warmBytes += data.length;
+        evictWarm();
+    }
+
+    /**
+     * Mark every decoded image stale, for when the images are drawn
+     * differently from then on. Stale images are still returned by
+     * {@link #getImage} until {@link #putImage} replaces them, so the view
+     * keeps them rather than flashing to stand-ins, but
+     * {@link #containsImage} no longer counts them.
+     */
+    public synchronized void markImagesStale() {
+        for (HotEntry entry = lru.next; entry != lru; entry = entry.next) {
+            entry.stale = true;
+        }
+    }
+
+    /**
+     * @param key
+     *            a tile packed as by {@link TileRef#pack}
+     * @return the zoom of the closest ancestor of the tile, at most
+     *         {@code maxLevelsUp} zoom levels up, whose image is in the hot
+     *         tier, or -1
+     */
+    public synchronized int findCachedAncestorZoom(long key, int maxLevelsUp) {
+        return hotIndex.findAncestorZoom(TileRef.keyX(key), TileRef.keyY(key), TileRef.keyZoom(key), maxLevelsUp);
+    }
+
+    /**
+     * @param key
+     *            a tile packed as by {@link TileRef#pack}
+     * @return true if all four children of the tile are in the hot tier
+     */
+    public synchronized boolean hasCachedChildren(long key) {
+        return hotIndex.hasAllChildren(TileRef.keyX(key), TileRef.keyY(key), TileRef.keyZoom(key));
+    }
+
+    /**
+     * Replace the set of pinned tiles with the tiles of a viewport grid.
+     * Tiles that were pinned only because of the previous viewport become
+     * evictable again. Restarts the grid's iteration.
+     */
+    public synchronized void pin(TileGrid grid) {
+        pinned.clear();
+        grid.reset();
+        while (grid.next()) {
+            pinned.put(grid.key(), Boolean.TRUE);
+        }
+        grid.reset();
+        evictHot();
+        evictWarm();
+    }
+
+    public synchronized long getHotBytes() {
+        return hotBytes;
+    }
+
+    public synchronized long getWarmBytes() {
+        return warmBytes;
+    }
+
+    /** @return how many images have been put in the hot tier */
+    public synchronized long getImagesCached() {
+        return imagesCached;
+    }
+
+    /** @return how many of the images put in the hot tier were looked up afterwards, i.e. drawn */
+    public synchronized long getImagesShown() {
+        return imagesShown;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TileCache [hot=" + hot.size() + " tiles/" + hotBytes + " bytes (" + hotHits + " hits, " + hotMisses + " misses), warm="
+                + warm.size() + " tiles/" + warmBytes + " bytes (" + warmHits + " hits, " + warmMisses + " misses), pinned=" + pinned.size()
+                + "]";
+    }
+
+    @GuardedBy("this")
+    private void evictHot() {
+        HotEntry entry = lru.next;
+        while (hotBytes > hotBudget && entry != lru) {
+            HotEntry next = entry.next;
+            if (!pinned.containsKey(entry.key)) {
+                entry.unlink();
+                hot.remove(entry.key);
+                hotIndex.remove(entry.ref);
+                hotBytes -= entry.bytes;
+            }
+            entry = next;
+        }
+    }
+
+    @GuardedBy("this")
+    private void evictWarm() {
+        // access-ordered, so iteration starts at the least recently used tile
+        Iterator<Map.Entry<TileRef, byte[]>> it = warm.entrySet().iterator();
+        while (it.hasNext() && warmBytes > warmBudget) {
+            Map.Entry<TileRef, byte[]> entry = it.next();
+            if (pinned.containsKey(entry.getKey().key())) {
+                continue;
+            }
+            it.remove();
+            warmBytes -= entry.getValue().length;
+        }
+    }
+
+    static long imageBytes(Image img) {
+        if (img instanceof BufferedImage) {
+            BufferedImage bi = (BufferedImage) img;
+            long bitsPerPixel = bi.getColorModel().getPixelSize();
+            return (long) bi.getWidth() * bi.getHeight() * Math.max(1, (bitsPerPixel + 7) / 8);
+        }
+        return (long) Math.max(img.getWidth(null), 0) * Math.max(img.getHeight(null), 0) * 4;
+    }
+
+    private static class HotEntry {
+        final long key;
+        final TileRef ref;
+        Image image;
+        long bytes;
+        /** Whether getImage has returned the image, i.e. it was drawn. */
+        boolean shown;
+        /** Whether the image is due to be drawn again. */
+        boolean stale;
+        HotEntry prev, next;
+
+        HotEntry(long key, TileRef ref, Image image, long bytes) {
+            this.key = key;
+            this.ref = ref;
+            this.image = image;
+            this.bytes = bytes;
+        }
+
+        void unlink() {
+            prev.next = next;
+            next.prev = prev;
+        }
+
+        void linkBefore(HotEntry successor) {
+            next = successor;
+            prev = successor.prev;
+            prev.next = this;
+            successor.prev = this;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.snobwall.transilook.tiles;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+
+import com.snobwall.transilook.metrics.Metrics;
+import com.snobwall.transilook.ui.CompatibleImages;
+
+/**
+ * The decode stage between fetching tiles and caching them, so fetch
+ * threads go straight back to the network instead of spending a
+ * millisecond or two of CPU on every PNG.
+ *
+ * Decoding runs on a pool sized to the cores. Each of its threads keeps
+ * one PNG reader and, for paletted tiles, one raster to decode into. Tiles
+ * are decoded into the thread's raster in the reader's own layout and
+ * blitted into a new screen-compatible image; decoding straight into that
+ * image is twice as slow, as the reader then converts pixel by pixel. Only
+ * so many tiles may wait to be decoded: past that, {@link #submit} holds
+ * the fetch thread until there is room.
+ *
+ * @author mrb
+ *
+ */
+@ThreadSafe
+public class TileDecoder {
+
+    public static final int DEFAULT_THREADS = Integer.getInteger("transilook.decodeThreads", Runtime.getRuntime().availableProcessors());
+    public static final int DEFAULT_QUEUE = Integer.getInteger("transilook.decodeQueue", 2 * DEFAULT_THREADS);
+
+    private static final int TILE_SIZE = 256;
+
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    public interface Callback {
+        /** Called on a decode thread. */
+        void decoded(Image img);
+
+        void failed(Exception e);
+    }
+
+    private final ExecutorService executor;
+    private final Semaphore slots;
+
+    public TileDecoder() {
+        this(DEFAULT_THREADS, DEFAULT_QUEUE);
+    }
+
+    /**
+     * @param queue
+     *            how many tiles may wait on top of the ones being decoded
+     */
+    public TileDecoder(int threads, int queue) {
+        super();
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "tile-decode-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        slots = new Semaphore(threads + queue);
+    }
+
+    /**
+     * Queue a tile for decoding, first waiting for room if the stage has
+     * fallen behind.
+     */
+    public void submit(final byte[] data, final Callback callback) throws InterruptedException {
+        slots.acquire();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Image img;
+                        try {
+                            img = decode(data);
+                        } catch (Exception e) {
+                            callback.failed(e);
+                            return;
+                        }
+                        callback.decoded(img);
+                    } finally {
+                        slots.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Decode a tile on the calling thread, with that thread's own reader.
+     *
+     * @return a screen-compatible image
+     */
+    public BufferedImage decode(byte[] data) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return scratch.get().decode(data);
+        } finally {
+            Metrics.DECODE_NANOS.record(System.nanoTime() - start);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private static boolean isPng(byte[] data) {
+        return data.length >= 4 && (data[0] & 0xff) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G';
+    }
+
+    @NotThreadSafe
+    private static class Scratch {
+        private final ImageReader reader = ImageIO.getImageReadersByFormatName("png").next();
+        private final ImageReadParam param = reader.getDefaultReadParam();
+        private WritableRaster raster;
+
+        BufferedImage decode(byte[] data) throws IOException {
+            if (!isPng(data)) {
+                BufferedImage img = ImageIO.read(new ByteArrayInputStream(data));
+                if (img == null) {
+                    throw new IOException("Not an image");
+                }
+                return CompatibleImages.toCompatible(img);
+            }
+
+            // a memory cache, unlike ImageIO.read, which spools through a temporary file
+            ImageInputStream in = new MemoryCacheImageInputStream(new ByteArrayInputStream(data));
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0), height = reader.getHeight(0);
+                ImageTypeSpecifier raw = reader.getRawImageType(0);
+                if (width != TILE_SIZE || height != TILE_SIZE || raw.getColorModel().hasAlpha()) {
+                    // odd sizes and transparent overlays take the slow path
+                    param.setDestination(null);
+                    return CompatibleImages.toCompatible(reader.read(0, param));
+                }
+
+                // the reader's preferred layout, which has a fast blit loop where the raw one may not
+                ImageTypeSpecifier preferred = reader.getImageTypes(0).next();
+                ColorModel cm = preferred.getColorModel();
+                if (raster == null || raster.getWidth() != width || raster.getHeight() != height || !cm.isCompatibleRaster(raster)
+                        || !preferred.getSampleModel(width, height).equals(raster.getSampleModel())) {
+                    raster = preferred.createBufferedImage(width, height).getRaster();
+                }
+                // a new palette every tile, but the same pixels
+                BufferedImage decoded = new BufferedImage(cm, raster, false, null);
+                param.setDestination(decoded);
+                reader.read(0, param);
+
+                BufferedImage dst = CompatibleImages.create(width, height, Transparency.OPAQUE);
+                Graphics2D g = dst.createGraphics();
+                g.drawImage(decoded, 0, 0, null);
+                g.dispose();
+                return dst;
+            } finally {
+                param.setDestination(null);
+                reader.setInput(null);
+                in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.snobwall.transilook.tiles;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import com.snobwall.transilook.metrics.Metrics;
+import com.snobwall.transilook.osm.SlippyUtil;
+import com.snobwall.transilook.osm.TileRef;
+
+/**
+ * Runs tile fetches in order of distance from the centre of the viewport.
+ *
+ * Queued fetches are re-ranked whenever the focus moves, so after a pan the
+ * tiles nearest the new centre go out first instead of waiting behind the
+ * ones that were queued for the old view.
+ *
+ * Cancelling a running fetch with {@code cancel(true)} also runs whatever
+ * abort action the fetch registered through {@link #whenCancelled(Runnable)},
+ * since a thread blocked in a socket read does not notice interrupts.
+ *
+ * Fetches that complete on another thread, as with a non-blocking transport,
+ * can be scheduled with {@link #scheduleAsync}. They are started in the same
+ * order but only hold a fetch thread while starting; after that they hold
+ * one of a fixed number of in-flight slots until they call back, so the
+ * requests out at once are not bounded by the thread count.
+ *
+ * @author mrb
+ *
+ */
+@ThreadSafe
+public class TileFetchScheduler {
+
+    /** Added to the rank of tiles that are not at the focus zoom level. */
+    private static final double OTHER_ZOOM_PENALTY = 1e6;
+
+    /** How far, in tiles, the focus has to move before the queue is re-ranked. */
+    private static final double RERANK_DISTANCE = 0.25;
+
+    /** Added to the rank of prefetches, so they only run when nothing visible is waiting. */
+    private static final double PREFETCH_PENALTY = 1e7;
+
+    private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<Runnable>(64, new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable o1, Runnable o2) {
+            return Double.compare(((FetchTask<?>) o1).rank, ((FetchTask<?>) o2).rank);
+        }
+    });
+
+    private static final ThreadLocal<FetchTask<?>> currentTask = new ThreadLocal<FetchTask<?>>();
+
+    private final ThreadPoolExecutor executor;
+    /** Held by each asynchronous fetch from its start until it is done. */
+    private final Semaphore inFlight;
+
+    @GuardedBy("this")
+    private double focusX, focusY;
+    @GuardedBy("this")
+    private int focusZoom;
+
+    public TileFetchScheduler(int threads) {
+        this(threads, threads);
+    }
+
+    /**
+     * @param maxInFlight
+     *            how many {@link #scheduleAsync asynchronous} fetches may be
+     *            out at once
+     */
+    public TileFetchScheduler(int threads, int maxInFlight) {
+        super();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue);
+        inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Queue a fetch for the tile, ranked by its distance from the current
+     * focus.
+     */
+    public <T> Future<T> schedule(TileRef tile, Callable<T> fetch) {
+        return schedule(tile, fetch, false);
+    }
+
+    /**
+     * Queue a fetch for the tile; prefetches rank behind every ordinary
+     * fetch.
+     */
+    public <T> Future<T> schedule(TileRef tile, Callable<T> fetch, boolean prefetch) {
+        return enqueue(new FetchTask<T>(tile, fetch, prefetch));
+    }
+
+    /**
+     * Queue a fetch that finishes on some other thread. The future is done
+     * once the fetch has run its {@code done} action, and cancelling it runs
+     * the fetch's abort action.
+     */
+    public Future<?> scheduleAsync(TileRef tile, AsyncFetch fetch, boolean prefetch) {
+        return enqueue(new AsyncFetchTask(tile, fetch, prefetch));
+    }
+
+    private <T> Future<T> enqueue(FetchTask<T> task) {
+        synchronized (this) {
+            task.rank = rank(task);
+        }
+        executor.execute(task);
+        Metrics.QUEUE_DEPTH.record(queue.size());
+        return task;
+    }
+
+    /**
+     * Move the focus to a point given in fractional tile coordinates at the
+     * given zoom, and re-rank everything still waiting in the queue.
+     */
+    public void setFocus(double tileX, double tileY, int zoom) {
+        synchronized (this) {
+            if (zoom == focusZoom && Math.abs(tileX - focusX) < RERANK_DISTANCE && Math.abs(tileY - focusY) < RERANK_DISTANCE) {
+                // not worth reshuffling the queue for every pixel of a drag
+                return;
+            }
+        }
+        ArrayList<Runnable> pending = new ArrayList<Runnable>(queue.size());
+        synchronized (this) {
+            focusX = tileX;
+            focusY = tileY;
+            focusZoom = zoom;
+
+            queue.drainTo(pending);
+            Iterator<Runnable> it = pending.iterator();
+            while (it.hasNext()) {
+                FetchTask<?> task = (FetchTask<?>) it.next();
+                if (task.isCancelled()) {
+                    it.remove();
+                } else {
+                    task.rank = rank(task);
+                }
+            }
+        }
+        queue.addAll(pending);
+    }
+
+    /**
+     * Turn a queued prefetch into an ordinary fetch, e.g. because its tile
+     * has come into view.
+     */
+    public void promote(Future<?> future) {
+        if (!(future instanceof FetchTask)) {
+            return;
+        }
+        FetchTask<?> task = (FetchTask<?>) future;
+        if (!task.prefetch) {
+            return;
+        }
+        synchronized (this) {
+            // the queue orders by rank, so take the task out before changing it
+            boolean queued = queue.remove(task);
+            task.prefetch = false;
+            task.rank = rank(task);
+            if (queued) {
+                queue.add(task);
+            }
+        }
+    }
+
+    /**
+     * Register an action that aborts the blocking work of the fetch running on
+     * the current thread if it gets cancelled, replacing any previously
+     * registered one. Does nothing outside a scheduled fetch.
+     *
+     * @param abort
+     *            the abort action, or null to clear it
+     */
+    public static void whenCancelled(Runnable abort) {
+        FetchTask<?> task = currentTask.get();
+        if (task == null) {
+            return;
+        }
+        task.abort = abort;
+        if (abort != null && task.isCancelled()) {
+            // lost the race with cancel(); it will not see this action
+            abort.run();
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @GuardedBy("this")
+    private double rank(FetchTask<?> task) {
+        TileRef tile = task.tile;
+        // measure in tiles of the focus zoom, so parents and children rank sensibly too
+        double dx = SlippyUtil.wrapTileDistance(Math.scalb(tile.x + 0.5, focusZoom - tile.zoom) - focusX, focusZoom);
+        double dy = Math.scalb(tile.y + 0.5, focusZoom - tile.zoom) - focusY;
+        double rank = dx * dx + dy * dy;
+        if (tile.zoom != focusZoom) {
+            rank += OTHER_ZOOM_PENALTY;
+        }
+        if (task.prefetch) {
+            rank += PREFETCH_PENALTY;
+        }
+        return rank;
+    }
+
+    /**
+     * A fetch that completes on another thread.
+     */
+    public interface AsyncFetch {
+        /**
+         * Start fetching. Must arrange for {@code done} to be run once the
+         * fetch is over, however it ends, including when aborted.
+         *
+         * @return an action that aborts the fetch, or null if there is
+         *         nothing left to abort
+         */
+        public Runnable start(Runnable done);
+    }
+
+    private static class FetchTask<T> extends FutureTask<T> {
+        final TileRef tile;
+        volatile boolean prefetch;
+        volatile double rank;
+        volatile Runnable abort;
+
+        FetchTask(TileRef tile, Callable<T> fetch, boolean prefetch) {
+            super(fetch);
+            this.tile = tile;
+            this.prefetch = prefetch;
+        }
+
+        FetchTask(TileRef tile, boolean prefetch) {
+            super(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, null);
+            this.tile = tile;
+            this.prefetch = prefetch;
+        }
+
+        @Override
+        public void run() {
+            currentTask.set(this);
+            try {
+                super.run();
+            } finally {
+                abort = null;
+                currentTask.remove();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                Metrics.CANCELLATIONS.incrementAndGet();
+            }
+            Runnable a = abort;
+            if (cancelled && mayInterruptIfRunning && a != null) {
+                a.run();
+            }
+            return cancelled;
+        }
+    }
+
+    private class AsyncFetchTask extends FetchTask<Void> {
+        final AsyncFetch fetch;
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        AsyncFetchTask(TileRef tile, AsyncFetch fetch, boolean prefetch) {
+            super(tile, prefetch);
+            this.fetch = fetch;
+        }
+
+        @Override
+        public void run() {
+            if (isDone()) {
+                return;
+            }
+            try {
+                // waiting here holds a thread, but only while every slot is taken
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                setException(e);
+                return;
+            }
+            if (isDone()) {
+                inFlight.release();
+                return;
+            }
+            Runnable a;
+            try {
+                a = fetch.start(new Runnable() {
+                    @Override
+                    public void run() {
+                        finish();
+                    }
+                });
+            } catch (RuntimeException e) {
+                if (finished.compareAndSet(false, true)) {
+                    inFlight.release();
+                }
+                setException(e);
+                return;
+            }
+            abort = a;
+            if (a != null && isCancelled()) {
+                // lost the race with cancel(); it will not see this action
+                a.run();
+            }
+        }
+
+        private void finish() {
+            if (finished.compareAndSet(false, true)) {
+                abort = null;
+                inFlight.release();
+                set(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package com.snobwall.transilook.tiles;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+
+import com.snobwall.transilook.metrics.Metrics;
+import com.snobwall.transilook.osm.TileRef;
+
+/**
+ * Fetches tile bodies over HTTP, going through a {@link TileStore} when one is
+ * available. Stored tiles that are still fresh are served without touching
+ * the network; expired ones are revalidated with a conditional GET so an
+ * unchanged tile only costs a 304.
+ *
+ * The HTTP itself goes through a {@link TileTransport}; by default the
+ * blocking commons-httpclient one, or the non-blocking one with
+ * {@code -Dtransilook.transport=nio}, through which {@link #fetchAsync}
+ * holds no thread while a request is out.
+ *
+ * @author mrb
+ *
+ */
+@ThreadSafe
+public class TileFetcher {
+
+    /**
+     * Format arguments are the subdomain, zoom, x and y, in that order.
+     */
+    public static final String OSM_URL_FORMAT = "http://%s.tile.openstreetmap.org/%d/%d/%d.png";
+
+    /** Used when the server sends neither Cache-Control nor Expires. */
+    private static final long DEFAULT_LIFETIME = 24L * 60 * 60 * 1000;
+
+    /** Placeholders understood by {@link #urlFormat(String)}, in format argument order. */
+    private static final String[] TEMPLATE_PLACEHOLDERS = new String[] { "{s}", "{z}", "{x}", "{y}" };
+
+    private static final String[] PREFIXES = new String[] { "a", "b", "c" };
+
+    /**
+     * Per-host connection limit; the a/b/c subdomains each get their own
+     * pool, which keeps us within the OSM tile usage policy.
+     */
+    public static final int MAX_CONNECTIONS_PER_HOST = 4;
+
+    /** "commons" or "nio"; see {@link #createTransport(String)}. */
+    public static final String TRANSPORT = System.getProperty("transilook.transport", "commons");
+
+    /** Where {@link TileFetcher#fetchAsync} reports how a fetch went. */
+    public interface Callback {
+        public void fetched(byte[] body);
+
+        public void failed(IOException e);
+    }
+
+    private static final Runnable NO_ABORT = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final String urlFormat;
+    private final TileStore store;
+    private final Random random = new Random();
+
+    private final TileTransport transport;
+
+    private final AtomicLong bytesFetched = new AtomicLong();
+
+    public TileFetcher() {
+        this(OSM_URL_FORMAT, null);
+    }
+
+    /**
+     * @param store
+     *            persistent store to read through and write back to, or null
+     */
+    public TileFetcher(String urlFormat, TileStore store) {
+        this(urlFormat, store, createTransport(urlFormat));
+    }
+
+    public TileFetcher(String urlFormat, TileStore store, TileTransport transport) {
+        super();
+        this.urlFormat = urlFormat;
+        this.store = store;
+        this.transport = transport;
+    }
+
+    /**
+     * @return the transport picked by {@link #TRANSPORT}; the non-blocking
+     *         one only speaks plain http, so other URLs fall back to
+     *         commons-httpclient
+     */
+    public static TileTransport createTransport(String urlFormat) {
+        if ("nio".equals(TRANSPORT)) {
+            if (urlFormat.startsWith("http:")) {
+                try {
+                    return new NioTileTransport(MAX_CONNECTIONS_PER_HOST);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            } else {
+                System.err.println("The nio transport only speaks http, using commons-httpclient for " + urlFormat);
+            }
+        }
+        return new CommonsTileTransport(MAX_CONNECTIONS_PER_HOST, MAX_CONNECTIONS_PER_HOST * PREFIXES.length);
+    }
+
+    /**
+     * Turn a tile URL template such as
+     * {@code http://{s}.tile.example.org/{z}/{x}/{y}.png} into a URL format
+     * for the constructor. {s} is replaced by one of the a/b/c subdomains.
+     * Strings that are already formats are returned unchanged.
+     */
+    public static String urlFormat(String template) {
+        if (template.indexOf('{') < 0) {
+            return template;
+        }
+        String format = template.replace("%", "%%");
+        for (int i = 0; i < TEMPLATE_PLACEHOLDERS.length; i++) {
+            format = format.replace(TEMPLATE_PLACEHOLDERS[i], "%" + (i + 1) + (i == 0 ? "$s" : "$d"));
+        }
+        return format;
+    }
+
+    public byte[] fetch(TileRef where) throws IOException {
+        return fetch(where, true);
+    }
+
+    /**
+     * @param staleIfError
+     *            when the tile cannot be downloaded, return an expired copy
+     *            from the store if there is one, as when working offline
+     */
+    public byte[] fetch(TileRef where, boolean staleIfError) throws IOException {
+        TileStore.Entry stored = null;
+        if (store != null) {
+            stored = store.lookup(where);
+            if (stored != null && !stored.isExpired(System.currentTimeMillis())) {
+                Metrics.STORE_HITS.incrementAndGet();
+                return store.readBytes(stored);
+            }
+            Metrics.STORE_MISSES.incrementAndGet();
+        }
+
+        Response response;
+        try {
+            response = download(where, stored);
+        } catch (IOException e) {
+            if (!staleIfError || stored == null || Thread.currentThread().isInterrupted()) {
+                throw e;
+            }
+            return store.readBytes(stored);
+        }
+        return keep(where, stored, response);
+    }
+
+    /**
+     * Fetch a tile as {@link #fetch(TileRef)} does, without holding the
+     * calling thread for the round trip when the transport is non-blocking.
+     * The callback runs on the calling thread if the store has a fresh copy.
+     * Otherwise the transport's callback only hands the response to the
+     * executor, which writes it to the store and runs the callback, so
+     * neither disk writes nor a slow callback hold up the transport's I/O
+     * thread.
+     *
+     * @return an action that aborts the fetch; the callback then gets an
+     *         {@link InterruptedIOException}
+     */
+    public Runnable fetchAsync(final TileRef where, final Executor executor, final Callback callback) {
+        final TileStore.Entry stored = store == null ? null : store.lookup(where);
+        if (stored != null && !stored.isExpired(System.currentTimeMillis())) {
+            Metrics.STORE_HITS.incrementAndGet();
+            byte[] body;
+            try {
+                body = store.readBytes(stored);
+            } catch (IOException e) {
+                callback.failed(e);
+                return NO_ABORT;
+            }
+            callback.fetched(body);
+            return NO_ABORT;
+        }
+        if (store != null) {
+            Metrics.STORE_MISSES.incrementAndGet();
+        }
+
+        final String tileURL = tileURL(where);
+        final long start = System.nanoTime();
+        final AtomicBoolean aborted = new AtomicBoolean();
+        final Runnable abort = transport.getAsync(tileURL, stored == null ? null : stored.etag, stored == null ? 0 : stored.lastModified,
+                new TileTransport.Callback() {
+                    @Override
+                    public void completed(final TileTransport.Response response) {
+                        handOff(new Runnable() {
+                            @Override
+                            public void run() {
+                                byte[] body;
+                                try {
+                                    body = keep(where, stored, interpret(tileURL, stored, response, start));
+                                } catch (IOException e) {
+                                    fail(e);
+                                    return;
+                                }
+                                callback.fetched(body);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void failed(final IOException e) {
+                        handOff(new Runnable() {
+                            @Override
+                            public void run() {
+                                fail(e);
+                            }
+                        });
+                    }
+
+                    private void fail(IOException e) {
+                        if (aborted.get()) {
+                            callback.failed(new InterruptedIOException("Aborted fetching " + tileURL));
+                            return;
+                        }
+                        if (stored == null) {
+                            callback.failed(e);
+                            return;
+                        }
+                        // stale if error, as when working offline
+                        byte[] body;
+                        try {
+                            body = store.readBytes(stored);
+                        } catch (IOException stale) {
+                            callback.failed(e);
+                            return;
+                        }
+                        callback.fetched(body);
+                    }
+
+                    private void handOff(Runnable completion) {
+                        try {
+                            executor.execute(completion);
+                        } catch (RejectedExecutionException e) {
+                            // shutting down; nobody is waiting for the tile any more
+                        }
+                    }
+                });
+        return new Runnable() {
+            @Override
+            public void run() {
+                aborted.set(true);
+                abort.run();
+            }
+        };
+    }
+
+    public long getBytesFetched() {
+        return bytesFetched.get();
+    }
+
+    public long getConnectionsOpened() {
+        return transport.getConnectionsOpened();
+    }
+
+    public long getConnectionsReused() {
+        return transport.getConnectionsReused();
+    }
+
+    public TileTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return the store read through, or null
+     */
+    public TileStore getStore() {
+        return store;
+    }
+
+    private Response download(TileRef where, TileStore.Entry stored) throws IOException {
+        String tileURL = tileURL(where);
+
+        long start = System.nanoTime();
+        TileTransport.Response response = transport.get(tileURL, stored == null ? null : stored.etag, stored == null ? 0
+                : stored.lastModified);
+        return interpret(tileURL, stored, response, start);
+    }
+
+    private String tileURL(TileRef where) {
+        return String.format(urlFormat, PREFIXES[random.nextInt(PREFIXES.length)], where.zoom, where.x, where.y);
+    }
+
+    /**
+     * @param start
+     *            when the request went out, from {@link System#nanoTime()}
+     */
+    private Response interpret(String tileURL, TileStore.Entry stored, TileTransport.Response response, long start) throws IOException {
+        long now = System.currentTimeMillis();
+
+        if (response.statusCode == HttpStatus.SC_NOT_MODIFIED && stored != null) {
+            Metrics.fetchNanos(host(tileURL)).record(System.nanoTime() - start);
+            return new Response(null, expiry(response, now), stored.lastModified, stored.etag, true);
+        }
+        if (response.statusCode != HttpStatus.SC_OK) {
+            throw new IOException("Failed to fetch tile from " + tileURL + ": " + response.statusLine);
+        }
+
+        byte[] body = response.body;
+        if (body == null) {
+            throw new IOException("Empty response fetching tile from " + tileURL);
+        }
+        Metrics.fetchNanos(host(tileURL)).record(System.nanoTime() - start);
+        bytesFetched.addAndGet(body.length);
+        Metrics.BYTES_FETCHED.addAndGet(body.length);
+        return new Response(body, expiry(response, now), parseDate(response.lastModified, 0), response.etag, false);
+    }
+
+    /**
+     * Store a downloaded tile, or extend the stored one's life after a 304.
+     *
+     * @return the tile's body
+     */
+    private byte[] keep(TileRef where, TileStore.Entry stored, Response response) throws IOException {
+        if (response.notModified) {
+            store.revalidated(where, stored, response.expires);
+            return store.readBytes(stored);
+        }
+
+        if (store != null) {
+            store.put(where, response.body, response.expires, response.lastModified, response.etag);
+        }
+        return response.body;
+    }
+
+    private static String host(String url) {
+        int start = url.indexOf("://") + 3;
+        int end = start;
+        while (end < url.length() && url.charAt(end) != '/' && url.charAt(end) != ':') {
+            end++;
+        }
+        return url.substring(start, end);
+    }
+
+    private static long expiry(TileTransport.Response response, long now) {
+        if (response.cacheControl != null) {
+            for (String directive : response.cacheControl.split(",")) {
+                directive = directive.trim();
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return now + Long.parseLong(directive.substring("max-age=".length())) * 1000;
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        return parseDate(response.expires, now + DEFAULT_LIFETIME);
+    }
+
+    private static long parseDate(String value, long fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return DateUtil.parseDate(value).getTime();
+        } catch (DateParseException e) {
+            return fallback;
+        }
+    }
+
+    @Immutable
+    private static class Response {
+        final byte[] body;
+        final long expires, lastModified;
+        final String etag;
+        final boolean notModified;
+
+        Response(byte[] body, long expires, long lastModified, String etag, boolean notModified) {
+            this.body = body;
+            this.expires = expires;
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.notModified = notModified;
+        }
+    }
+}
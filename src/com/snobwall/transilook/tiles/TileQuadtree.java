@@ -0,0 +1,135 @@
+package com.snobwall.transilook.tiles;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import com.snobwall.transilook.osm.SlippyUtil;
+import com.snobwall.transilook.osm.TileRef;
+
+/**
+ * Index of which tiles are present, across all zoom levels, arranged the way
+ * the tiles themselves nest: each node's four children are the tiles that
+ * cover it at the next zoom level. Finding the nearest cached ancestor of a
+ * tile is a single walk down from the root.
+ *
+ * @author mrb
+ *
+ */
+@NotThreadSafe
+public class TileQuadtree {
+
+    private final Node root = new Node();
+
+    public void add(TileRef tile) {
+        if (!SlippyUtil.isValidTile(tile.x, tile.y, tile.zoom)) {
+            return;
+        }
+        Node node = root;
+        for (int level = 1; level <= tile.zoom; level++) {
+            int child = childIndex(tile.x, tile.y, tile.zoom, level);
+            if (node.children == null) {
+                node.children = new Node[4];
+            }
+            if (node.children[child] == null) {
+                node.children[child] = new Node();
+            }
+            node = node.children[child];
+        }
+        node.present = true;
+    }
+
+    public void remove(TileRef tile) {
+        if (SlippyUtil.isValidTile(tile.x, tile.y, tile.zoom)) {
+            remove(root, tile, 0);
+        }
+    }
+
+    public void clear() {
+        root.children = null;
+        root.present = false;
+    }
+
+    public boolean contains(TileRef tile) {
+        Node node = find(tile.x, tile.y, tile.zoom);
+        return node != null && node.present;
+    }
+
+    /**
+     * @return the zoom of the deepest present ancestor of the tile at most
+     *         {@code maxLevelsUp} levels above it, or -1
+     */
+    public int findAncestorZoom(int x, int y, int zoom, int maxLevelsUp) {
+        if (!SlippyUtil.isValidTile(x, y, zoom)) {
+            return -1;
+        }
+        int found = -1;
+        Node node = root;
+        for (int level = 0; level < zoom && node != null; level++) {
+            if (node.present && zoom - level <= maxLevelsUp) {
+                found = level;
+            }
+            node = node.children == null ? null : node.children[childIndex(x, y, zoom, level + 1)];
+        }
+        return found;
+    }
+
+    /**
+     * @return true if all four tiles one zoom level below this one are
+     *         present
+     */
+    public boolean hasAllChildren(int x, int y, int zoom) {
+        Node node = find(x, y, zoom);
+        if (node == null || node.children == null) {
+            return false;
+        }
+        for (Node child : node.children) {
+            if (child == null || !child.present) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Node find(int x, int y, int zoom) {
+        if (!SlippyUtil.isValidTile(x, y, zoom)) {
+            return null;
+        }
+        Node node = root;
+        for (int level = 1; level <= zoom && node != null; level++) {
+            node = node.children == null ? null : node.children[childIndex(x, y, zoom, level)];
+        }
+        return node;
+    }
+
+    /**
+     * @return true if the node became empty and can be unlinked
+     */
+    private boolean remove(Node node, TileRef tile, int level) {
+        if (level == tile.zoom) {
+            node.present = false;
+        } else if (node.children != null) {
+            int child = childIndex(tile.x, tile.y, tile.zoom, level + 1);
+            Node next = node.children[child];
+            if (next != null && remove(next, tile, level + 1)) {
+                node.children[child] = null;
+                if (node.children[0] == null && node.children[1] == null && node.children[2] == null && node.children[3] == null) {
+                    node.children = null;
+                }
+            }
+        }
+        return !node.present && node.children == null;
+    }
+
+    /**
+     * @return which quadrant of its level-1 ancestor the tile's ancestor at
+     *         {@code level} is
+     */
+    private static int childIndex(int x, int y, int zoom, int level) {
+        int shift = zoom - level;
+        return ((x >> shift) & 1) | (((y >> shift) & 1) << 1);
+    }
+
+    private static class Node {
+        Node[] children;
+        boolean present;
+    }
+}
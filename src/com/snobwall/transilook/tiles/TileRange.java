@@ -0,0 +1,89 @@
+package com.snobwall.transilook.tiles;
+
+import net.jcip.annotations.Immutable;
+
+import com.snobwall.transilook.osm.BoundingBox;
+import com.snobwall.transilook.osm.SlippyUtil;
+import com.snobwall.transilook.osm.TileRef;
+
+/**
+ * The tiles covering a region over a range of zoom levels, numbered in
+ * order: zoom by zoom, then row by row, so any tile can be looked up by its
+ * position without listing the ones before it.
+ *
+ * @author mrb
+ *
+ */
+@Immutable
+public class TileRange {
+
+    private final BoundingBox bounds;
+    private final int minZoom, maxZoom;
+    private final int[] x0, y0, columns;
+    /** Position of the first tile at each zoom, plus the total at the end. */
+    private final long[] first;
+
+    /**
+     * @param mercatorBounds
+     *            the region in mercator units
+     */
+    public TileRange(BoundingBox mercatorBounds, int minZoom, int maxZoom) {
+        super();
+        if (minZoom < 0 || maxZoom > SlippyUtil.MAX_ZOOM || minZoom > maxZoom) {
+            throw new IllegalArgumentException("Bad zoom range " + minZoom + "-" + maxZoom);
+        }
+        this.bounds = mercatorBounds;
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+
+        int levels = maxZoom - minZoom + 1;
+        x0 = new int[levels];
+        y0 = new int[levels];
+        columns = new int[levels];
+        first = new long[levels + 1];
+        for (int i = 0; i < levels; i++) {
+            int zoom = minZoom + i;
+            int last = (1 << zoom) - 1;
+            int west = clamp(SlippyUtil.mercX2tileX(mercatorBounds.west, zoom), last);
+            int east = clamp(SlippyUtil.mercX2tileX(mercatorBounds.east, zoom), last);
+            int north = clamp(SlippyUtil.mercY2tileY(mercatorBounds.north, zoom), last);
+            int south = clamp(SlippyUtil.mercY2tileY(mercatorBounds.south, zoom), last);
+            x0[i] = west;
+            y0[i] = north;
+            columns[i] = east - west + 1;
+            first[i + 1] = first[i] + (long) columns[i] * (south - north + 1);
+        }
+    }
+
+    private static int clamp(double tile, int last) {
+        return (int) Math.max(0, Math.min(last, Math.floor(tile)));
+    }
+
+    public BoundingBox getBounds() {
+        return bounds;
+    }
+
+    public int getMinZoom() {
+        return minZoom;
+    }
+
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    public long size() {
+        return first[first.length - 1];
+    }
+
+    public TileRef get(long position) {
+        if (position < 0 || position >= size()) {
+            throw new IndexOutOfBoundsException(position + " of " + size());
+        }
+        int level = 0;
+        while (position >= first[level + 1]) {
+            level++;
+        }
+        long i = position - first[level];
+        return new TileRef(x0[level] + (int) (i % columns[level]), y0[level] + (int) (i / columns[level]), minZoom + level);
+    }
+}
@@ -0,0 +1,615 @@
+package com.snobwall.transilook.tiles;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import com.snobwall.transilook.osm.TileRef;
+import com.snobwall.transilook.util.LongObjectMap;
+
+/**
+ * Persistent tile store.
+ *
+ * Tile bodies are appended to a small number of large pack files and read
+ * back through memory-mapped buffers. An append-only index file records where
+ * each tile lives along with its HTTP validators; it is replayed on open, and
+ * the last record for a tile wins, so refreshing a tile's expiry after a 304
+ * only appends a few dozen bytes.
+ *
+ * Re-fetching a tile appends a new copy, so a background thread reclaims the
+ * old ones: a full pack that is less than half in use has its live tiles
+ * copied forward and is deleted, and when the packs outgrow the size limit
+ * the oldest pack is evicted whole, taking with it the tiles least recently
+ * written. Both rewrite the index with just the live entries. The index is
+ * also held in memory, at roughly 100 bytes per tile plus its ETag, so the
+ * size limit bounds the heap too; seeding a region bigger than the limit
+ * evicts the first tiles seeded.
+ *
+ * Writers hold the store's lock only to reserve space in a pack and to
+ * publish the finished entry; the copy to disk and the index write happen
+ * outside it, so lookups never wait on file I/O.
+ *
+ * @author mrb
+ *
+ */
+@ThreadSafe
+public class TileStore implements Closeable {
+
+    public static final long DEFAULT_PACK_SIZE = 256L * 1024 * 1024;
+
+    /** The most disk the packs may take, from {@code -Dtransilook.storeMaxMB}. */
+    public static final long DEFAULT_MAX_SIZE = Long.getLong("transilook.storeMaxMB", 4096) * 1024 * 1024;
+
+    /** A full pack with less than this fraction of its bytes still in use is compacted. */
+    private static final double MIN_LIVE_FRACTION = 0.5;
+
+    private static final String INDEX_NAME = "tiles.idx";
+    private static final Pattern PACK_NAME = Pattern.compile("tiles-(\\d+)\\.pack");
+
+    private final File directory;
+    private final long maxPackSize;
+    private final long maxSize;
+
+    /** Entries by packed tile key; only changed while holding {@link #indexLock} too. */
+    @GuardedBy("this")
+    private final LongObjectMap<Entry> index = new LongObjectMap<Entry>();
+    /** Packs by number, oldest first; the last is the one being appended to. */
+    @GuardedBy("this")
+    private final TreeMap<Integer, Pack> packs = new TreeMap<Integer, Pack>();
+    @GuardedBy("this")
+    private boolean compacting, closed;
+    /** Orders index writes; taken before the store's own lock, never after. */
+    private final Object indexLock = new Object();
+    @GuardedBy("indexLock")
+    private RandomAccessFile indexFile;
+    @GuardedBy("indexLock")
+    private DataOutputStream indexOut;
+
+    public TileStore(File directory) throws IOException {
+        this(directory, DEFAULT_PACK_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    public TileStore(File directory, long maxPackSize) throws IOException {
+        this(directory, maxPackSize, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize
+     *            the most disk the packs may take; past it the oldest pack is
+     *            evicted whole. Never less than two packs' worth.
+     */
+    public TileStore(File directory, long maxPackSize, long maxSize) throws IOException {
+        super();
+        this.directory = directory;
+        this.maxPackSize = maxPackSize;
+        this.maxSize = Math.max(maxSize, 2 * maxPackSize);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create tile store directory " + directory);
+        }
+
+        File[] files = directory.listFiles();
+        for (File f : files == null ? new File[0] : files) {
+            Matcher m = PACK_NAME.matcher(f.getName());
+            if (m.matches()) {
+                packs.put(Integer.valueOf(m.group(1)), new Pack(f));
+            }
+        }
+
+        File idx = new File(directory, INDEX_NAME);
+        long goodLength = replayIndex(idx);
+
+        indexFile = new RandomAccessFile(idx, "rw");
+        // drop a record torn by a crash so new appends stay aligned
+        indexFile.setLength(goodLength);
+        indexFile.seek(goodLength);
+        indexOut = new DataOutputStream(new RandomAccessFileOutputStream(indexFile));
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the stored entry for the tile, which may be expired, or null
+     */
+    public synchronized Entry lookup(TileRef ref) {
+        return index.get(ref.key());
+    }
+
+    /**
+     * @return a read-only view of the tile's bytes in the mapped pack file
+     */
+    public ByteBuffer read(Entry entry) throws IOException {
+        return pack(entry).slice(entry.offset, entry.length);
+    }
+
+    /**
+     * Copy part of a stored tile from its pack file straight to a channel,
+     * without going through the Java heap where the platform allows it.
+     * 
+     * @param position
+     *            offset within the tile
+     * @return the number of bytes written, which may be fewer than asked for
+     *         if the target is non-blocking
+     */
+    public long transferTo(Entry entry, long position, long count, WritableByteChannel target) throws IOException {
+        return pack(entry).transferTo(entry.offset + position, Math.min(count, entry.length - position), target);
+    }
+
+    public byte[] readBytes(Entry entry) throws IOException {
+        ByteBuffer buf = read(entry);
+        byte[] data = new byte[buf.remaining()];
+        buf.get(data);
+        return data;
+    }
+
+    public Entry put(TileRef ref, byte[] data, long expires, long lastModified, String etag) throws IOException {
+        Entry entry = append(data, expires, lastModified, etag);
+        record(ref.key(), entry);
+        compactIfNeeded();
+        return entry;
+    }
+
+    /**
+     * Extend the lifetime of a stored tile after the server confirmed it is
+     * unchanged.
+     */
+    public Entry revalidated(TileRef ref, Entry entry, long expires) throws IOException {
+        Entry updated = new Entry(entry.pack, entry.offset, entry.length, expires, entry.lastModified, entry.etag);
+        record(ref.key(), updated);
+        return updated;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return the bytes the pack files take on disk
+     */
+    public synchronized long diskSize() {
+        long size = 0;
+        for (Pack pack : packs.values()) {
+            size += pack.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (indexLock) {
+            indexOut.flush();
+            indexFile.close();
+            synchronized (this) {
+                closed = true;
+                for (Pack pack : packs.values()) {
+                    pack.close();
+                }
+            }
+        }
+    }
+
+    private synchronized Pack pack(Entry entry) throws IOException {
+        Pack pack = packs.get(entry.pack);
+        if (pack == null) {
+            throw new IOException("Tile's pack has been compacted or evicted");
+        }
+        return pack;
+    }
+
+    /**
+     * Copy a body into the current pack, starting a new one if it is full.
+     * Only reserving the space takes the store's lock.
+     */
+    private Entry append(byte[] data, long expires, long lastModified, String etag) throws IOException {
+        Pack pack;
+        int number;
+        long offset;
+        synchronized (this) {
+            if (packs.isEmpty() || packs.lastEntry().getValue().size() + data.length > maxPackSize) {
+                int next = packs.isEmpty() ? 0 : packs.lastKey() + 1;
+                packs.put(next, new Pack(packFile(next)));
+            }
+            number = packs.lastKey();
+            pack = packs.get(number);
+            offset = pack.reserve(data.length);
+        }
+
+        // nobody can see the space until the entry is recorded, so no lock is needed to fill it
+        pack.write(offset, data);
+        return new Entry(number, offset, data.length, expires, lastModified, etag);
+    }
+
+    /**
+     * Append the entry to the index file, then make it visible to lookups.
+     * Entries are published in the order they are written, so the index
+     * replays to what lookups last saw.
+     */
+    private void record(long key, Entry entry) throws IOException {
+        synchronized (indexLock) {
+            writeRecord(indexOut, key, entry);
+            indexOut.flush();
+
+            synchronized (this) {
+                publish(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Record a tile's new place after compaction, unless it has been
+     * replaced in the meantime.
+     */
+    private void move(long key, Entry from, Entry to) throws IOException {
+        synchronized (indexLock) {
+            synchronized (this) {
+                if (index.get(key) != from) {
+                    return;
+                }
+            }
+            writeRecord(indexOut, key, to);
+            indexOut.flush();
+
+            synchronized (this) {
+                publish(key, to);
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void publish(long key, Entry entry) {
+        Entry old = index.put(key, entry);
+        if (old != null) {
+            adjustLive(old, -old.length);
+        }
+        adjustLive(entry, entry.length);
+    }
+
+    @GuardedBy("this")
+    private void adjustLive(Entry entry, long delta) {
+        Pack pack = packs.get(entry.pack);
+        if (pack != null) {
+            pack.live += delta;
+        }
+    }
+
+    /**
+     * Start compacting on a background thread if the packs have outgrown the
+     * size limit or a full pack is mostly superseded copies.
+     */
+    private void compactIfNeeded() {
+        synchronized (this) {
+            if (compacting || closed || nextToRetire() == null) {
+                return;
+            }
+            compacting = true;
+        }
+        Thread compactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Integer number;
+                        boolean evict;
+                        synchronized (TileStore.this) {
+                            number = closed ? null : nextToRetire();
+                            evict = number != null && overSize();
+                        }
+                        if (number == null) {
+                            break;
+                        }
+                        retire(number, !evict);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    synchronized (TileStore.this) {
+                        compacting = false;
+                    }
+                }
+            }
+        }, "tile-store-compact");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * @return the oldest pack if the store is too big, else the first full
+     *         pack that is mostly superseded copies, else null
+     */
+    @GuardedBy("this")
+    private Integer nextToRetire() {
+        if (packs.size() < 2) {
+            return null;
+        }
+        if (overSize()) {
+            return packs.firstKey();
+        }
+        for (Map.Entry<Integer, Pack> e : packs.headMap(packs.lastKey()).entrySet()) {
+            Pack pack = e.getValue();
+            if (pack.live < pack.size() * MIN_LIVE_FRACTION) {
+                return e.getKey();
+            }
+        }
+        return null;
+    }
+
+    @GuardedBy("this")
+    private boolean overSize() {
+        long size = 0;
+        for (Pack pack : packs.values()) {
+            size += pack.size();
+        }
+        return size > maxSize;
+    }
+
+    /**
+     * Delete a pack, first copying the tiles still in it to the current pack
+     * if they are to be kept. Readers still holding an entry for one of its
+     * tiles get an IOException.
+     */
+    private void retire(int number, boolean keepLive) throws IOException {
+        ArrayList<Long> keys = new ArrayList<Long>();
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        Pack pack;
+        synchronized (this) {
+            pack = packs.get(number);
+            for (int slot = 0; slot < index.capacity(); slot++) {
+                long key = index.keyAt(slot);
+                if (key != LongObjectMap.EMPTY && index.valueAt(slot).pack == number) {
+                    keys.add(key);
+                    entries.add(index.valueAt(slot));
+                }
+            }
+        }
+
+        if (keepLive) {
+            for (int i = 0; i < keys.size(); i++) {
+                Entry from = entries.get(i);
+                byte[] data = new byte[from.length];
+                pack.slice(from.offset, from.length).get(data);
+                move(keys.get(i), from, append(data, from.expires, from.lastModified, from.etag));
+            }
+        }
+
+        synchronized (indexLock) {
+            synchronized (this) {
+                for (int i = 0; i < keys.size(); i++) {
+                    if (index.get(keys.get(i)) == entries.get(i)) {
+                        index.remove(keys.get(i));
+                    }
+                }
+                packs.remove(number);
+            }
+            // the old index still points into the pack, so replace it before deleting the pack
+            rewriteIndex();
+        }
+        pack.close();
+        if (!packFile(number).delete()) {
+            throw new IOException("Could not delete " + packFile(number));
+        }
+    }
+
+    /**
+     * Replace the index file with one holding just the current entries.
+     */
+    @GuardedBy("indexLock")
+    private void rewriteIndex() throws IOException {
+        File idx = new File(directory, INDEX_NAME);
+        File tmp = new File(directory, INDEX_NAME + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            // only changed under indexLock, which we hold, so it can be read without the store lock
+            for (int slot = 0; slot < index.capacity(); slot++) {
+                long key = index.keyAt(slot);
+                if (key != LongObjectMap.EMPTY) {
+                    writeRecord(out, key, index.valueAt(slot));
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        indexOut.flush();
+        indexFile.close();
+        if (!tmp.renameTo(idx) && !(idx.delete() && tmp.renameTo(idx))) {
+            throw new IOException("Could not replace " + idx);
+        }
+        indexFile = new RandomAccessFile(idx, "rw");
+        indexFile.seek(indexFile.length());
+        indexOut = new DataOutputStream(new RandomAccessFileOutputStream(indexFile));
+    }
+
+    private static void writeRecord(DataOutputStream out, long key, Entry entry) throws IOException {
+        out.writeInt(TileRef.keyZoom(key));
+        out.writeInt(TileRef.keyX(key));
+        out.writeInt(TileRef.keyY(key));
+        out.writeInt(entry.pack);
+        out.writeLong(entry.offset);
+        out.writeInt(entry.length);
+        out.writeLong(entry.expires);
+        out.writeLong(entry.lastModified);
+        out.writeUTF(entry.etag == null ? "" : entry.etag);
+    }
+
+    private long replayIndex(File idx) throws IOException {
+        if (!idx.exists()) {
+            return 0;
+        }
+
+        long goodLength = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(idx)));
+        try {
+            while (true) {
+                int zoom = in.readInt();
+                int x = in.readInt();
+                int y = in.readInt();
+                int pack = in.readInt();
+                long offset = in.readLong();
+                int length = in.readInt();
+                long expires = in.readLong();
+                long lastModified = in.readLong();
+                String etag = in.readUTF();
+                goodLength += 4 * 4 + 8 + 4 + 8 + 8 + 2 + etag.getBytes("UTF-8").length;
+
+                Pack p = packs.get(pack);
+                if (p == null || offset + length > p.size()) {
+                    // the index got ahead of a pack file that was not synced, or
+                    // a pack was deleted before the index was rewritten; forget the tile
+                    continue;
+                }
+                publish(TileRef.pack(x, y, zoom), new Entry(pack, offset, length, expires, lastModified, etag.isEmpty() ? null : etag));
+            }
+        } catch (EOFException e) {
+            // end of index, possibly mid-record
+        } finally {
+            in.close();
+        }
+        return goodLength;
+    }
+
+    private File packFile(int number) {
+        return new File(directory, String.format("tiles-%05d.pack", number));
+    }
+
+    @Immutable
+    public static class Entry {
+        public final int pack;
+        public final long offset;
+        public final int length;
+        public final long expires, lastModified;
+        public final String etag;
+
+        public Entry(int pack, long offset, int length, long expires, long lastModified, String etag) {
+            super();
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+            this.expires = expires;
+            this.lastModified = lastModified;
+            this.etag = etag;
+        }
+
+        public boolean isExpired(long now) {
+            return now >= expires;
+        }
+    }
+
+    @ThreadSafe
+    private static class Pack {
+        /**
+         * Appends past the mapping up to this much are read with positional
+         * reads; only beyond it is the pack mapped again.
+         */
+        private static final long UNMAPPED_TAIL_LIMIT = 16L * 1024 * 1024;
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+
+        @GuardedBy("this")
+        private long size;
+        @GuardedBy("this")
+        private MappedByteBuffer mapped;
+        /** Bytes of the tiles the index still points to here. */
+        @GuardedBy("TileStore.this")
+        long live;
+
+        Pack(File f) throws IOException {
+            file = new RandomAccessFile(f, "rw");
+            channel = file.getChannel();
+            size = channel.size();
+        }
+
+        synchronized long size() {
+            return size;
+        }
+
+        /**
+         * @return where the caller may {@link #write} that many bytes
+         */
+        synchronized long reserve(int length) {
+            long offset = size;
+            size += length;
+            return offset;
+        }
+
+        void write(long offset, byte[] data) throws IOException {
+            // positional, so writers to different reservations do not wait for each other
+            ByteBuffer src = ByteBuffer.wrap(data);
+            while (src.hasRemaining()) {
+                channel.write(src, offset + src.position());
+            }
+        }
+
+        synchronized ByteBuffer slice(long offset, int length) throws IOException {
+            long mappedSize = mapped == null ? 0 : mapped.capacity();
+            if (offset + length > mappedSize) {
+                if (size - mappedSize <= UNMAPPED_TAIL_LIMIT) {
+                    // recently appended: remapping the whole pack for every new tile would pile up mappings until GC
+                    ByteBuffer buf = ByteBuffer.allocate(length);
+                    while (buf.hasRemaining()) {
+                        if (channel.read(buf, offset + buf.position()) < 0) {
+                            throw new EOFException("Tile runs past the end of its pack");
+                        }
+                    }
+                    buf.flip();
+                    return buf.asReadOnlyBuffer();
+                }
+                // appends since the last mapping are not visible through the old buffer
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer view = mapped.duplicate();
+            view.position((int) offset);
+            view.limit((int) (offset + length));
+            return view.slice().asReadOnlyBuffer();
+        }
+
+        long transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+            // positional, so it needs no lock against appends
+            return channel.transferTo(offset, count, target);
+        }
+
+        synchronized void close() throws IOException {
+            mapped = null;
+            file.close();
+        }
+    }
+
+    private static class RandomAccessFileOutputStream extends ByteArrayOutputStream {
+        private final RandomAccessFile file;
+
+        RandomAccessFileOutputStream(RandomAccessFile file) {
+            super(64);
+            this.file = file;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            file.write(buf, 0, count);
+            reset();
+        }
+    }
+}
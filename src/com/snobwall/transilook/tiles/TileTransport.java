@@ -0,0 +1,80 @@
+package com.snobwall.transilook.tiles;
+
+import java.io.IOException;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * How {@link TileFetcher} talks HTTP.
+ *
+ * A GET can be made blocking, on the caller's thread, or asynchronously with
+ * a {@link Callback}. Blocking transports may run asynchronous requests on
+ * the caller's thread too and call back before returning, so callers must
+ * not assume anything about which thread the callback runs on.
+ *
+ * @author mrb
+ *
+ */
+public interface TileTransport {
+
+    public interface Callback {
+        public void completed(Response response);
+
+        public void failed(IOException e);
+    }
+
+    /**
+     * GET the URL, conditionally if a validator is given.
+     *
+     * @param etag
+     *            sent as If-None-Match, or null
+     * @param lastModified
+     *            sent as If-Modified-Since, or 0
+     */
+    public Response get(String url, String etag, long lastModified) throws IOException;
+
+    /**
+     * Start a GET, as for {@link #get}, and report how it went to the
+     * callback.
+     *
+     * @return an action that aborts the request, failing it if it has not
+     *         finished yet
+     */
+    public Runnable getAsync(String url, String etag, long lastModified, Callback callback);
+
+    /**
+     * @return true if {@link #getAsync} returns straight away, rather than
+     *         holding the caller's thread until the response is in
+     */
+    public boolean isNonBlocking();
+
+    public long getConnectionsOpened();
+
+    public long getConnectionsReused();
+
+    public void shutdown();
+
+    /**
+     * A response with the few headers tile fetching cares about.
+     */
+    @Immutable
+    public static class Response {
+        public final int statusCode;
+        public final String statusLine;
+        /** The body, or null if there was none. */
+        public final byte[] body;
+        public final String etag, lastModified, cacheControl, expires;
+
+        public Response(int statusCode, String statusLine, byte[] body, String etag, String lastModified, String cacheControl,
+                String expires) {
+            super();
+            this.statusCode = statusCode;
+            this.statusLine = statusLine;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.cacheControl = cacheControl;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.snobwall.transilook.tiles;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.NotThreadSafe;
+
+import com.snobwall.transilook.osm.SlippyUtil;
+import com.snobwall.transilook.osm.TileGrid;
+import com.snobwall.transilook.osm.TileRef;
+
+/**
+ * Tracks the set of visible tiles between viewport updates and works out
+ * which tiles entered and left it, so callers only have to act on the
+ * difference rather than starting over on every bounds change.
+ *
+ * Visibility is worked out from the grid's extent, with columns compared
+ * modulo the width of the world so it holds across the antimeridian.
+ *
+ * @author mrb
+ *
+ */
+@NotThreadSafe
+public class ViewportTracker {
+
+    private final int prefetchMargin;
+
+    private Set<TileRef> visible = Collections.emptySet();
+    private int zoom = -1;
+    private int left, top, cols, rows;
+
+    /**
+     * @param prefetchMargin
+     *            how many tiles beyond the visible edge are still worth
+     *            fetching
+     */
+    public ViewportTracker(int prefetchMargin) {
+        super();
+        this.prefetchMargin = prefetchMargin;
+    }
+
+    /**
+     * @return the tiles that entered and left the view, or null if the grid
+     *         covers the same tiles as last time (which allocates nothing)
+     */
+    public Diff update(TileGrid grid) {
+        if (grid.getZoom() == zoom && grid.getLeftTileIdx() == left && grid.getTopTileIdx() == top && grid.getCols() == cols
+                && grid.getRows() == rows) {
+            return null;
+        }
+        zoom = grid.getZoom();
+        left = grid.getLeftTileIdx();
+        top = grid.getTopTileIdx();
+        cols = grid.getCols();
+        rows = grid.getRows();
+
+        Set<TileRef> nowVisible = new HashSet<TileRef>();
+        grid.reset();
+        while (grid.next()) {
+            nowVisible.add(new TileRef(grid.tileX(), grid.tileY(), zoom));
+        }
+        grid.reset();
+
+        Set<TileRef> entered = new HashSet<TileRef>(nowVisible);
+        entered.removeAll(visible);
+        Set<TileRef> departed = new HashSet<TileRef>(visible);
+        departed.removeAll(nowVisible);
+
+        visible = nowVisible;
+        return new Diff(entered, departed);
+    }
+
+    public boolean isEmpty() {
+        return visible.isEmpty();
+    }
+
+    public int getZoom() {
+        return zoom;
+    }
+
+    /** @return the unwrapped column of the leftmost visible tile */
+    public int getMinX() {
+        return left;
+    }
+
+    /** @return the unwrapped column of the rightmost visible tile */
+    public int getMaxX() {
+        return left + cols - 1;
+    }
+
+    public int getMinY() {
+        return top;
+    }
+
+    public int getMaxY() {
+        return top + rows - 1;
+    }
+
+    public boolean isVisible(TileRef tile) {
+        return visible.contains(tile);
+    }
+
+    /**
+     * @return true if the tile is visible or close enough to the visible edge
+     *         that fetching it is still worthwhile
+     */
+    public boolean isPrefetchEligible(TileRef tile) {
+        if (tile.zoom != zoom || tile.y < top - prefetchMargin || tile.y > top + rows - 1 + prefetchMargin) {
+            return false;
+        }
+        int worldWidth = 1 << zoom;
+        if (cols + 2 * prefetchMargin >= worldWidth) {
+            return true;
+        }
+        // distance right of the margin's left edge, wrapped around the world
+        int dx = SlippyUtil.wrapTileX(tile.x - (left - prefetchMargin), zoom);
+        return dx < cols + 2 * prefetchMargin;
+    }
+
+    @Immutable
+    public static class Diff {
+        public final Set<TileRef> entered, left;
+
+        Diff(Set<TileRef> entered, Set<TileRef> left) {
+            this.entered = Collections.unmodifiableSet(entered);
+            this.left = Collections.unmodifiableSet(left);
+        }
+    }
+}
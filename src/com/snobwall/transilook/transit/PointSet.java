@@ -0,0 +1,201 @@
+package com.snobwall.transilook.transit;
+
+import java.util.Arrays;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.NotThreadSafe;
+
+import com.snobwall.transilook.osm.Mercator;
+
+/**
+ * An immutable set of map points, such as stops or vehicles, stored as
+ * primitive columns of projected mercator coordinates.
+ *
+ * Points are bucketed into a uniform grid over their extent and stored in
+ * bucket order, so a rectangle query only visits the buckets it overlaps and
+ * reads their points from contiguous stretches of the arrays. Queries
+ * allocate nothing.
+ *
+ * @author mrb
+ *
+ */
+@Immutable
+public class PointSet {
+
+    public static final byte STOP = 0;
+    public static final byte VEHICLE = 1;
+
+    /** Average points per grid bucket the index aims for. */
+    private static final int POINTS_PER_BUCKET = 8;
+    private static final int MAX_BUCKETS_PER_SIDE = 1024;
+
+    public interface Visitor {
+        /**
+         * @param index
+         *            position of the point in this set, for {@link #getId}
+         *            and {@link #getKind}
+         */
+        public void visit(int index, double mercX, double mercY);
+    }
+
+    public static final PointSet EMPTY = new Builder().build();
+
+    private final double[] mercX, mercY;
+    private final int[] ids;
+    private final byte[] kinds;
+
+    private final double minX, minY, bucketWidth, bucketHeight;
+    private final int bucketsX, bucketsY;
+    /** Points of bucket b are at indices bucketStart[b] until bucketStart[b + 1]. */
+    private final int[] bucketStart;
+
+    private PointSet(Builder b) {
+        int n = b.size;
+        double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY, x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            x0 = Math.min(x0, b.mercX[i]);
+            x1 = Math.max(x1, b.mercX[i]);
+            y0 = Math.min(y0, b.mercY[i]);
+            y1 = Math.max(y1, b.mercY[i]);
+        }
+        if (n == 0) {
+            x0 = y0 = x1 = y1 = 0;
+        }
+
+        int side = (int) Math.min(MAX_BUCKETS_PER_SIDE, Math.max(1, Math.ceil(Math.sqrt((double) n / POINTS_PER_BUCKET))));
+        minX = x0;
+        minY = y0;
+        bucketsX = bucketsY = side;
+        // a little wider than the extent, so the largest coordinate lands in the last bucket
+        bucketWidth = Math.max((x1 - x0) * 1.000001, 1e-9) / side;
+        bucketHeight = Math.max((y1 - y0) * 1.000001, 1e-9) / side;
+
+        // counting sort into bucket order
+        bucketStart = new int[bucketsX * bucketsY + 1];
+        int[] bucketOf = new int[n];
+        for (int i = 0; i < n; i++) {
+            bucketOf[i] = bucket(b.mercX[i], b.mercY[i]);
+            bucketStart[bucketOf[i] + 1]++;
+        }
+        for (int i = 1; i < bucketStart.length; i++) {
+            bucketStart[i] += bucketStart[i - 1];
+        }
+        int[] fill = Arrays.copyOf(bucketStart, bucketStart.length - 1);
+
+        mercX = new double[n];
+        mercY = new double[n];
+        ids = new int[n];
+        kinds = new byte[n];
+        for (int i = 0; i < n; i++) {
+            int dst = fill[bucketOf[i]]++;
+            mercX[dst] = b.mercX[i];
+            mercY[dst] = b.mercY[i];
+            ids[dst] = b.ids[i];
+            kinds[dst] = b.kinds[i];
+        }
+    }
+
+    public int size() {
+        return mercX.length;
+    }
+
+    public double getMercX(int index) {
+        return mercX[index];
+    }
+
+    public double getMercY(int index) {
+        return mercY[index];
+    }
+
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    public byte getKind(int index) {
+        return kinds[index];
+    }
+
+    /**
+     * Visit every point inside a mercator rectangle.
+     *
+     * @return the number of points visited
+     */
+    public int query(double west, double south, double east, double north, Visitor visitor) {
+        if (mercX.length == 0 || east < west || north < south) {
+            return 0;
+        }
+        int bx0 = clampX((int) Math.floor((west - minX) / bucketWidth));
+        int bx1 = clampX((int) Math.floor((east - minX) / bucketWidth));
+        int by0 = clampY((int) Math.floor((south - minY) / bucketHeight));
+        int by1 = clampY((int) Math.floor((north - minY) / bucketHeight));
+
+        int visited = 0;
+        for (int by = by0; by <= by1; by++) {
+            for (int bx = bx0; bx <= bx1; bx++) {
+                int b = by * bucketsX + bx;
+                for (int i = bucketStart[b]; i < bucketStart[b + 1]; i++) {
+                    double x = mercX[i], y = mercY[i];
+                    if (x >= west && x <= east && y >= south && y <= north) {
+                        visitor.visit(i, x, y);
+                        visited++;
+                    }
+                }
+            }
+        }
+        return visited;
+    }
+
+    private int bucket(double x, double y) {
+        return clampY((int) ((y - minY) / bucketHeight)) * bucketsX + clampX((int) ((x - minX) / bucketWidth));
+    }
+
+    private int clampX(int bx) {
+        return Math.max(0, Math.min(bucketsX - 1, bx));
+    }
+
+    private int clampY(int by) {
+        return Math.max(0, Math.min(bucketsY - 1, by));
+    }
+
+    @NotThreadSafe
+    public static class Builder {
+        private double[] mercX = new double[16], mercY = new double[16];
+        private int[] ids = new int[16];
+        private byte[] kinds = new byte[16];
+        private int size;
+
+        public Builder add(int id, byte kind, double lat, double lon) {
+            return addMercator(id, kind, Mercator.mercX(lon), Mercator.mercY(lat));
+        }
+
+        public Builder addMercator(int id, byte kind, double mercX, double mercY) {
+            if (size == this.mercX.length) {
+                int capacity = size * 2;
+                this.mercX = Arrays.copyOf(this.mercX, capacity);
+                this.mercY = Arrays.copyOf(this.mercY, capacity);
+                ids = Arrays.copyOf(ids, capacity);
+                kinds = Arrays.copyOf(kinds, capacity);
+            }
+            this.mercX[size] = mercX;
+            this.mercY[size] = mercY;
+            ids[size] = id;
+            kinds[size] = kind;
+            size++;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /** Start over, keeping the arrays; sets already built are unaffected. */
+        public Builder clear() {
+            size = 0;
+            return this;
+        }
+
+        public PointSet build() {
+            return new PointSet(this);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.snobwall.transilook.transit;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.NotThreadSafe;
+
+import com.snobwall.transilook.osm.Mercator;
+
+/**
+ * An immutable set of polylines, such as route shapes, stored as primitive
+ * columns of projected mercator coordinates.
+ *
+ * Every vertex also carries its Douglas-Peucker significance: the largest
+ * tolerance at which the simplification would keep it. Simplifying a line
+ * to any tolerance is then a single pass keeping the vertices more
+ * significant than the tolerance, which gives the same result as running
+ * Douglas-Peucker at that tolerance.
+ *
+ * The columns are buffers, so a set can wrap columns mapped from a file, as
+ * {@link #wrap} does for an imported GTFS feed, without copying them or
+ * working out the significance again.
+ *
+ * @author mrb
+ *
+ */
+@Immutable
+public class PolylineSet {
+
+    public static final PolylineSet EMPTY = new Builder().build();
+
+    private final DoubleBuffer mercX, mercY;
+    private final FloatBuffer significance;
+    /** Vertices of line l are at indices start[l] until start[l + 1]. */
+    private final IntBuffer start;
+    /** Null if every line's id is its index. */
+    private final IntBuffer ids;
+    private final DoubleBuffer west, south, east, north;
+
+    private PolylineSet(IntBuffer start, IntBuffer ids, DoubleBuffer mercX, DoubleBuffer mercY, FloatBuffer significance,
+            DoubleBuffer west, DoubleBuffer south, DoubleBuffer east, DoubleBuffer north) {
+        super();
+        this.start = start;
+        this.ids = ids;
+        this.mercX = mercX;
+        this.mercY = mercY;
+        this.significance = significance;
+        this.west = west;
+        this.south = south;
+        this.east = east;
+        this.north = north;
+    }
+
+    /**
+     * Wrap existing columns, such as ones mapped from a file, without copying
+     * them. Each line's id is its index.
+     *
+     * @param start
+     *            the index of each line's first vertex, plus one more entry
+     *            for the end of the last line
+     * @param significance
+     *            as worked out by {@link #significance}
+     * @param west
+     *            the lines' extents, like {@code south}, {@code east} and
+     *            {@code north}
+     */
+    public static PolylineSet wrap(IntBuffer start, DoubleBuffer mercX, DoubleBuffer mercY, FloatBuffer significance, DoubleBuffer west,
+            DoubleBuffer south, DoubleBuffer east, DoubleBuffer north) {
+        return new PolylineSet(start, null, mercX, mercY, significance, west, south, east, north);
+    }
+
+    /**
+     * Work out the Douglas-Peucker significance of every vertex of a set of
+     * lines, for {@link #wrap}.
+     *
+     * @param start
+     *            the index of each line's first vertex, plus one more entry
+     *            for the end of the last line
+     */
+    public static float[] significance(double[] mercX, double[] mercY, int[] start, int lines) {
+        float[] significance = new float[start[lines]];
+        int[] stack = new int[64];
+        for (int l = 0; l < lines; l++) {
+            stack = rank(mercX, mercY, significance, start[l], start[l + 1] - 1, stack);
+        }
+        return significance;
+    }
+
+    /**
+     * Work out the Douglas-Peucker significance of the vertices from first
+     * to last. A vertex's significance is its distance from the chord it
+     * splits, capped at the significance of the vertex that split off that
+     * chord, since Douglas-Peucker never looks inside a chord it kept whole.
+     */
+    private static int[] rank(double[] mercX, double[] mercY, float[] significance, int first, int last, int[] stack) {
+        if (last < first) {
+            return stack;
+        }
+        significance[first] = significance[last] = Float.POSITIVE_INFINITY;
+
+        int top = 0;
+        stack[top++] = first;
+        stack[top++] = last;
+        while (top > 0) {
+            int b = stack[--top], a = stack[--top];
+            if (b - a < 2) {
+                continue;
+            }
+            double ax = mercX[a], ay = mercY[a], dx = mercX[b] - ax, dy = mercY[b] - ay;
+            double length2 = dx * dx + dy * dy;
+            double best = -1;
+            int split = a + 1;
+            for (int i = a + 1; i < b; i++) {
+                double px = mercX[i] - ax, py = mercY[i] - ay;
+                double d2;
+                if (length2 == 0) {
+                    // a closed loop; measure from the shared end
+                    d2 = px * px + py * py;
+                } else {
+                    double t = Math.max(0, Math.min(1, (px * dx + py * dy) / length2));
+                    double ex = px - t * dx, ey = py - t * dy;
+                    d2 = ex * ex + ey * ey;
+                }
+                if (d2 > best) {
+                    best = d2;
+                    split = i;
+                }
+            }
+            float parent = Math.min(significance[a], significance[b]);
+            significance[split] = Math.min(parent, (float) Math.sqrt(best));
+
+            if (top + 4 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[top++] = a;
+            stack[top++] = split;
+            stack[top++] = split;
+            stack[top++] = b;
+        }
+        return stack;
+    }
+
+    public int size() {
+        return west.limit();
+    }
+
+    public int getId(int line) {
+        return ids == null ? line : ids.get(line);
+    }
+
+    /**
+     * @return the index of the line's first vertex; its vertices run until
+     *         {@link #getEnd(int)}
+     */
+    public int getStart(int line) {
+        return start.get(line);
+    }
+
+    public int getEnd(int line) {
+        return start.get(line + 1);
+    }
+
+    public int getVertexCount() {
+        return mercX.limit();
+    }
+
+    public double getMercX(int vertex) {
+        return mercX.get(vertex);
+    }
+
+    public double getMercY(int vertex) {
+        return mercY.get(vertex);
+    }
+
+    /**
+     * @return the largest tolerance, in mercator units, at which
+     *         simplification keeps the vertex; infinite for a line's ends
+     */
+    public float getSignificance(int vertex) {
+        return significance.get(vertex);
+    }
+
+    /**
+     * @return true if the line's extent overlaps the mercator rectangle
+     */
+    public boolean intersects(int line, double west, double south, double east, double north) {
+        return this.west.get(line) <= east && this.east.get(line) >= west && this.south.get(line) <= north && this.north.get(line) >= south;
+    }
+
+    @NotThreadSafe
+    public static class Builder {
+        private double[] mercX = new double[64], mercY = new double[64];
+        private int size;
+        private int[] start = new int[16], ids = new int[16];
+        private int lines;
+
+        /**
+         * Start a new line; the following points are added to it.
+         */
+        public Builder startLine(int id) {
+            if (lines + 1 >= start.length) {
+                start = Arrays.copyOf(start, start.length * 2);
+                ids = Arrays.copyOf(ids, start.length);
+            }
+            start[lines] = size;
+            ids[lines] = id;
+            lines++;
+            return this;
+        }
+
+        public Builder add(double lat, double lon) {
+            return addMercator(Mercator.mercX(lon), Mercator.mercY(lat));
+        }
+
+        public Builder addMercator(double mercX, double mercY) {
+            if (lines == 0) {
+                throw new IllegalStateException("No line started");
+            }
+            if (size == this.mercX.length) {
+                this.mercX = Arrays.copyOf(this.mercX, size * 2);
+                this.mercY = Arrays.copyOf(this.mercY, size * 2);
+            }
+            this.mercX[size] = mercX;
+            this.mercY[size] = mercY;
+            size++;
+            return this;
+        }
+
+        public PolylineSet build() {
+            double[] x = Arrays.copyOf(mercX, size), y = Arrays.copyOf(mercY, size);
+            int[] starts = Arrays.copyOf(start, lines + 1);
+            starts[lines] = size;
+
+            double[] west = new double[lines], south = new double[lines], east = new double[lines], north = new double[lines];
+            for (int l = 0; l < lines; l++) {
+                west[l] = south[l] = Double.POSITIVE_INFINITY;
+                east[l] = north[l] = Double.NEGATIVE_INFINITY;
+                for (int i = starts[l]; i < starts[l + 1]; i++) {
+                    west[l] = Math.min(west[l], x[i]);
+                    east[l] = Math.max(east[l], x[i]);
+                    south[l] = Math.min(south[l], y[i]);
+                    north[l] = Math.max(north[l], y[i]);
+                }
+            }
+            return new PolylineSet(IntBuffer.wrap(starts), IntBuffer.wrap(Arrays.copyOf(ids, lines)), DoubleBuffer.wrap(x),
+                    DoubleBuffer.wrap(y), FloatBuffer.wrap(significance(x, y, starts, lines)), DoubleBuffer.wrap(west),
+                    DoubleBuffer.wrap(south), DoubleBuffer.wrap(east), DoubleBuffer.wrap(north));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.snobwall.transilook.transit;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import com.snobwall.transilook.osm.SlippyUtil;
+
+/**
+ * Per-zoom simplified copies of the lines in a {@link PolylineSet}, made on
+ * first use and kept within a byte budget.
+ *
+ * A line at a zoom keeps only the vertices more significant than
+ * {@value #TOLERANCE_PIXELS} pixels there, packed as alternating mercator x
+ * and y in one array, so zoomed out it costs a handful of vertices however
+ * detailed the source shape is. Each simplified line is also cut into
+ * chunks of {@value #CHUNK_SEGMENTS} segments with their own extents, so a
+ * long line crossing a zoomed-in view can skip the chunks off screen. Zoom
+ * levels are evicted as a whole, least recently used first, but never the
+ * one being asked for.
+ *
+ * @author mrb
+ *
+ */
+@NotThreadSafe
+public class SimplifiedLines {
+
+    public static final long DEFAULT_BUDGET = Long.getLong("transilook.routeCache.bytes", 32L * 1024 * 1024);
+
+    public static final double TOLERANCE_PIXELS = 0.5;
+
+    public static final int CHUNK_SEGMENTS = 32;
+
+    private static final double[] NO_VERTICES = new double[0];
+
+    private final PolylineSet lines;
+    private final long budget;
+    private long bytes;
+
+    private final LinkedHashMap<Integer, Level> levels = new LinkedHashMap<Integer, Level>(32, 0.75f, true);
+
+    public SimplifiedLines(PolylineSet lines) {
+        this(lines, DEFAULT_BUDGET);
+    }
+
+    public SimplifiedLines(PolylineSet lines, long budget) {
+        super();
+        this.lines = lines;
+        this.budget = budget;
+    }
+
+    public PolylineSet getLines() {
+        return lines;
+    }
+
+    /**
+     * @return the line's vertices at the zoom as x0, y0, x1, y1, ...; do not
+     *         modify
+     */
+    public double[] get(int line, int zoom) {
+        return level(line, zoom).vertices[line];
+    }
+
+    /**
+     * @return the extents of the line's chunks at the zoom as west, south,
+     *         east, north for each; chunk c runs from vertex
+     *         {@code c * CHUNK_SEGMENTS} to the next chunk's first vertex, or
+     *         to the end of the line. Do not modify.
+     */
+    public double[] getChunkBounds(int line, int zoom) {
+        return level(line, zoom).chunkBounds[line];
+    }
+
+    private Level level(int line, int zoom) {
+        Level level = levels.get(zoom);
+        if (level == null) {
+            level = new Level(lines.size());
+            levels.put(zoom, level);
+        }
+        if (level.vertices[line] == null) {
+            double[] vertices = simplify(line, SlippyUtil.mercUnitsPerPixel(zoom) * TOLERANCE_PIXELS);
+            double[] chunkBounds = chunk(vertices);
+            level.vertices[line] = vertices;
+            level.chunkBounds[line] = chunkBounds;
+            bytes += 8L * (vertices.length + chunkBounds.length);
+            evict(zoom);
+        }
+        return level;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    private double[] simplify(int line, double tolerance) {
+        int start = lines.getStart(line), end = lines.getEnd(line);
+        int kept = 0;
+        for (int i = start; i < end; i++) {
+            if (lines.getSignificance(i) > tolerance) {
+                kept++;
+            }
+        }
+        if (kept == 0) {
+            return NO_VERTICES;
+        }
+        double[] vertices = new double[2 * kept];
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            if (lines.getSignificance(i) > tolerance) {
+                vertices[n++] = lines.getMercX(i);
+                vertices[n++] = lines.getMercY(i);
+            }
+        }
+        return vertices;
+    }
+
+    private static double[] chunk(double[] vertices) {
+        int segments = vertices.length / 2 - 1;
+        if (segments < 1) {
+            return NO_VERTICES;
+        }
+        double[] bounds = new double[4 * ((segments + CHUNK_SEGMENTS - 1) / CHUNK_SEGMENTS)];
+        for (int c = 0, b = 0; b < bounds.length; c += CHUNK_SEGMENTS, b += 4) {
+            double west = Double.POSITIVE_INFINITY, south = Double.POSITIVE_INFINITY;
+            double east = Double.NEGATIVE_INFINITY, north = Double.NEGATIVE_INFINITY;
+            int last = Math.min(c + CHUNK_SEGMENTS, segments);
+            for (int i = 2 * c; i <= 2 * last; i += 2) {
+                west = Math.min(west, vertices[i]);
+                east = Math.max(east, vertices[i]);
+                south = Math.min(south, vertices[i + 1]);
+                north = Math.max(north, vertices[i + 1]);
+            }
+            bounds[b] = west;
+            bounds[b + 1] = south;
+            bounds[b + 2] = east;
+            bounds[b + 3] = north;
+        }
+        return bounds;
+    }
+
+    private void evict(int current) {
+        Iterator<Map.Entry<Integer, Level>> it = levels.entrySet().iterator();
+        while (bytes > budget && it.hasNext()) {
+            Map.Entry<Integer, Level> level = it.next();
+            if (level.getKey() == current) {
+                continue;
+            }
+            Level evicted = level.getValue();
+            for (int line = 0; line < evicted.vertices.length; line++) {
+                if (evicted.vertices[line] != null) {
+                    bytes -= 8L * (evicted.vertices[line].length + evicted.chunkBounds[line].length);
+                }
+            }
+            it.remove();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SimplifiedLines [" + lines.size() + " lines, zooms " + Arrays.toString(levels.keySet().toArray()) + ", " + bytes
+                + " bytes]";
+    }
+
+    private static class Level {
+        final double[][] vertices, chunkBounds;
+
+        Level(int lines) {
+            vertices = new double[lines][];
+            chunkBounds = new double[lines][];
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package com.snobwall.transilook.transit;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import com.snobwall.transilook.gtfs.IdTable;
+import com.snobwall.transilook.layers.PointLayer;
+import com.snobwall.transilook.metrics.Metrics;
+import com.snobwall.transilook.osm.Mercator;
+import com.snobwall.transilook.ui.RepaintScheduler;
+import com.snobwall.transilook.util.ProtobufReader;
+
+/**
+ * Reads a stream of GTFS-realtime vehicle positions and shows them in a
+ * {@link PointLayer}.
+ *
+ * The stream is a sequence of FeedMessages, each preceded by its length as a
+ * varint. A worker thread decodes them straight into a back buffer of
+ * per-vehicle positions that only it touches, and that lives only as long as
+ * the stream. At most once per frame it
+ * copies the live vehicles into a fresh immutable {@link PointSet} and hands
+ * that to the layer, which swaps it in with a single volatile write; the
+ * paint path never waits for ingestion. If the stream goes quiet, the
+ * pending batch is published once its frame is up rather than waiting for
+ * the next message, and vehicles that stop reporting are dropped when they
+ * go stale even if nothing else arrives.
+ *
+ * @author mrb
+ *
+ */
+@ThreadSafe
+public class VehicleIngester {
+
+    public static final long DEFAULT_STALE_SECONDS = Long.getLong("transilook.vehicles.staleSeconds", 300);
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+    /* FeedMessage, FeedEntity, VehiclePosition, Position and VehicleDescriptor field numbers */
+    private static final int MESSAGE_ENTITY = 2;
+    private static final int ENTITY_ID = 1, ENTITY_IS_DELETED = 2, ENTITY_VEHICLE = 4;
+    private static final int VEHICLE_POSITION = 2, VEHICLE_DESCRIPTOR = 8;
+    private static final int POSITION_LATITUDE = 1, POSITION_LONGITUDE = 2;
+    private static final int DESCRIPTOR_ID = 1;
+
+    /** Republishes quiet streams as their vehicles go stale. */
+    private static final ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "vehicle-expiry");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final PointLayer layer;
+    private final long frameNanos;
+    private final long staleNanos;
+
+    @GuardedBy("this")
+    private Thread worker;
+    @GuardedBy("this")
+    private Run running;
+
+    public VehicleIngester(PointLayer layer) {
+        this(layer, RepaintScheduler.DEFAULT_MAX_FPS, DEFAULT_STALE_SECONDS);
+    }
+
+    /**
+     * @param staleSeconds
+     *            how long a vehicle stays on the map after its last update
+     */
+    public VehicleIngester(PointLayer layer, int maxFps, long staleSeconds) {
+        super();
+        this.layer = layer;
+        this.frameNanos = 1000000000L / Math.max(1, maxFps);
+        this.staleNanos = staleSeconds * 1000000000L;
+    }
+
+    /**
+     * Ingest a stream on a daemon thread until it ends or {@link #stop()} is
+     * called.
+     */
+    public synchronized void start(InputStream in) {
+        launch(new Run(in));
+    }
+
+    /**
+     * Connect to a host streaming vehicle positions and ingest what it sends
+     * until it hangs up or {@link #stop()} is called. The connection is made
+     * on the worker, so an unreachable host holds up nothing else.
+     */
+    public synchronized void start(String host, int port) {
+        launch(new Run(new InetSocketAddress(host, port)));
+    }
+
+    @GuardedBy("this")
+    private void launch(final Run run) {
+        stop();
+        running = run;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    run.ingest();
+                } catch (IOException e) {
+                    if (!Thread.currentThread().isInterrupted()) {
+                        e.printStackTrace();
+                    }
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        }, "vehicle-ingest");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stop the worker started by {@link #start(InputStream)} and close its
+     * stream or connection. The worker may take a moment to notice, but publishes nothing
+     * more once this returns.
+     */
+    public synchronized void stop() {
+        if (worker == null) {
+            return;
+        }
+        // interrupted first, so the worker takes the closed stream for a stop
+        worker.interrupt();
+        running.stop();
+        worker = null;
+        running = null;
+    }
+
+    /**
+     * Ingest a stream on the calling thread until it ends.
+     */
+    public void ingest(InputStream in) throws IOException, InterruptedException {
+        new Run(in).ingest();
+    }
+
+    /**
+     * The ingestion of one stream. The back buffer belongs to the run, so a
+     * worker still winding down after {@link VehicleIngester#stop()} never
+     * shares it with the next one. The expiry thread publishes from it too,
+     * so changes to it and publishing take turns on the run's lock.
+     */
+    private class Run {
+        /** Where to connect to, or null if the stream was given. */
+        private final InetSocketAddress address;
+        private final Socket socket;
+        /** Only touched by the thread running ingest(). */
+        private InputStream in;
+
+        /* The back buffer. */
+        @GuardedBy("this")
+        private final IdTable ids = new IdTable();
+        private double[] mercX = new double[64], mercY = new double[64];
+        private long[] seenNanos = new long[64];
+        private final PointSet.Builder builder = new PointSet.Builder();
+        private final ProtobufReader reader = new ProtobufReader();
+        private byte[] message = new byte[64 * 1024];
+        private final char[] entityId = new char[256], vehicleId = new char[256];
+        private int entityIdLength, vehicleIdLength;
+        private boolean deleted, hasPosition;
+        private double lat, lon;
+        /** When the oldest unpublished update arrived, or 0 if there is none. */
+        @GuardedBy("this")
+        private long pendingSince;
+        @GuardedBy("this")
+        private long lastPublish;
+        /** When the longest-silent vehicle last published was last seen. */
+        @GuardedBy("this")
+        private long oldestSeen;
+        @GuardedBy("this")
+        private ScheduledFuture<?> expiryCheck;
+
+        @GuardedBy("this")
+        private boolean stopped;
+
+        Run(InputStream in) {
+            this.address = null;
+            this.socket = null;
+            this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in, 64 * 1024);
+        }
+
+        Run(InetSocketAddress address) {
+            this.address = address;
+            this.socket = new Socket();
+        }
+
+        void ingest() throws IOException, InterruptedException {
+            if (socket != null) {
+                socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            }
+            while (!Thread.currentThread().isInterrupted()) {
+                int length = readLength(in);
+                if (length < 0) {
+                    break;
+                }
+                if (length > message.length) {
+                    message = new byte[Math.max(length, message.length * 2)];
+                }
+                readFully(in, message, length);
+
+                long received = System.nanoTime();
+                long wait;
+                synchronized (this) {
+                    if (apply(message, length, received) > 0 && pendingSince == 0) {
+                        pendingSince = received;
+                    }
+                    if (pendingSince == 0) {
+                        continue;
+                    }
+                    wait = lastPublish + frameNanos - System.nanoTime();
+                }
+                if (wait > 0 && in.available() == 0) {
+                    // nothing else queued up, so finish the frame's batch now
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    wait = 0;
+                }
+                if (wait <= 0) {
+                    publishPending();
+                }
+            }
+            if (!Thread.currentThread().isInterrupted()) {
+                publishPending();
+            }
+        }
+
+        /**
+         * Stop publishing, and close the stream or connection to unblock a
+         * worker waiting on it.
+         */
+        void stop() {
+            synchronized (this) {
+                stopped = true;
+                if (expiryCheck != null) {
+                    expiryCheck.cancel(false);
+                }
+            }
+            try {
+                if (socket != null) {
+                    // also abandons a connect still in progress
+                    socket.close();
+                } else {
+                    in.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Decode one FeedMessage into the back buffer.
+         *
+         * @return the number of vehicles it changed
+         */
+        @GuardedBy("this")
+        private int apply(byte[] bytes, int length, long now) throws IOException {
+            int changed = 0;
+            reader.reset(bytes, 0, length);
+            while (reader.next()) {
+                if (reader.field() != MESSAGE_ENTITY) {
+                    reader.skip();
+                    continue;
+                }
+                int outer = reader.enter();
+                readEntity();
+                reader.leave(outer);
+
+                int index;
+                if (vehicleIdLength > 0) {
+                    index = ids.intern(vehicleId, 0, Math.min(vehicleIdLength, vehicleId.length));
+                } else if (entityIdLength > 0) {
+                    index = ids.intern(entityId, 0, Math.min(entityIdLength, entityId.length));
+                } else {
+                    continue;
+                }
+                ensureVehicles(ids.size());
+                if (deleted) {
+                    seenNanos[index] = 0;
+                } else if (hasPosition) {
+                    mercX[index] = Mercator.mercX(lon);
+                    mercY[index] = Mercator.mercY(lat);
+                    seenNanos[index] = now;
+                } else {
+                    continue;
+                }
+                changed++;
+            }
+            Metrics.VEHICLE_UPDATES.addAndGet(changed);
+            return changed;
+        }
+
+        private void readEntity() throws IOException {
+            entityIdLength = vehicleIdLength = 0;
+            deleted = hasPosition = false;
+            while (reader.next()) {
+                switch (reader.field()) {
+                case ENTITY_ID:
+                    entityIdLength = reader.readChars(entityId);
+                    break;
+                case ENTITY_IS_DELETED:
+                    deleted = reader.readBool();
+                    break;
+                case ENTITY_VEHICLE:
+                    int outer = reader.enter();
+                    readVehicle();
+                    reader.leave(outer);
+                    break;
+                default:
+                    reader.skip();
+                }
+            }
+        }
+
+        private void readVehicle() throws IOException {
+            while (reader.next()) {
+                int outer;
+                switch (reader.field()) {
+                case VEHICLE_POSITION:
+                    outer = reader.enter();
+                    while (reader.next()) {
+                        if (reader.field() == POSITION_LATITUDE) {
+                            lat = reader.readFloat();
+                            hasPosition = true;
+                        } else if (reader.field() == POSITION_LONGITUDE) {
+                            lon = reader.readFloat();
+                        } else {
+                            reader.skip();
+                        }
+                    }
+                    reader.leave(outer);
+                    break;
+                case VEHICLE_DESCRIPTOR:
+                    outer = reader.enter();
+                    while (reader.next()) {
+                        if (reader.field() == DESCRIPTOR_ID) {
+                            vehicleIdLength = reader.readChars(vehicleId);
+                        } else {
+                            reader.skip();
+                        }
+                    }
+                    reader.leave(outer);
+                    break;
+                default:
+                    reader.skip();
+                }
+            }
+        }
+
+        /** Publish whatever has changed since the last snapshot, if anything. */
+        private synchronized void publishPending() {
+            if (pendingSince != 0) {
+                publish();
+            }
+        }
+
+        /**
+         * Copy the live vehicles into a new snapshot and swap it into the
+         * layer, unless the run has been stopped, and arrange to do it again
+         * when the longest-silent of them goes stale.
+         */
+        @GuardedBy("this")
+        private void publish() {
+            if (stopped) {
+                // the next run's vehicles may already be showing
+                return;
+            }
+            long now = System.nanoTime();
+            long oldest = now;
+            builder.clear();
+            for (int i = 0; i < ids.size(); i++) {
+                if (seenNanos[i] != 0 && now - seenNanos[i] <= staleNanos) {
+                    builder.addMercator(i, PointSet.VEHICLE, mercX[i], mercY[i]);
+                    oldest = Math.min(oldest, seenNanos[i]);
+                }
+            }
+            layer.setPoints(builder.build(), pendingSince);
+            Metrics.VEHICLE_SNAPSHOTS.incrementAndGet();
+            pendingSince = 0;
+            lastPublish = now;
+            oldestSeen = oldest;
+            if (builder.size() > 0 && expiryCheck == null) {
+                scheduleExpiry(now);
+            }
+        }
+
+        @GuardedBy("this")
+        private void scheduleExpiry(long now) {
+            expiryCheck = expiry.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expire();
+                }
+            }, oldestSeen + staleNanos - now + 1, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Drop vehicles that have gone stale since the last snapshot, e.g.
+         * because the stream has gone quiet.
+         */
+        private synchronized void expire() {
+            expiryCheck = null;
+            if (stopped) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (now - oldestSeen > staleNanos) {
+                publish();
+            } else {
+                // they have reported since; check again when the oldest of them goes stale
+                scheduleExpiry(now);
+            }
+        }
+
+        private void ensureVehicles(int n) {
+            if (n > mercX.length) {
+                int capacity = Math.max(n, mercX.length * 2);
+                mercX = Arrays.copyOf(mercX, capacity);
+                mercY = Arrays.copyOf(mercY, capacity);
+                seenNanos = Arrays.copyOf(seenNanos, capacity);
+            }
+        }
+    }
+
+    /** @return the next message's length, or -1 at a clean end of stream */
+    private static int readLength(InputStream in) throws IOException {
+        int length = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new EOFException("Stream ended inside a message length");
+            }
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return length;
+            }
+        }
+        throw new IOException("Malformed message length");
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buf, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Stream ended inside a message");
+            }
+            read += n;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.snobwall.transilook.ui;
+
+import java.awt.Graphics2D;
+
+import com.snobwall.transilook.osm.BoundingBox;
+
+/**
+ * A {@link MapLayer} that can also be rendered away from the event dispatch
+ * thread.
+ *
+ * {@link ViewPanel} renders such layers into off-screen images on a worker
+ * pool and only composites the finished images on the EDT, so a slow layer
+ * never holds up input handling. {@link #paintLayer} is still used by
+ * anything that paints synchronously.
+ *
+ * @author mrb
+ *
+ */
+public interface AsyncMapLayer extends MapLayer {
+
+    /**
+     * Render the whole view into a cleared, transparent image. Called on a
+     * worker thread, never twice at once for the same layer; everything it
+     * needs is passed in, since the layer's bounds may have moved on by the
+     * time it runs.
+     */
+    public void renderLayer(Graphics2D g, int width, int height, BoundingBox mercatorBounds, int zoom);
+
+    /**
+     * Called on the EDT when the image from the last {@link #renderLayer}
+     * call is swapped in to be drawn; renders that are thrown away never get
+     * this far.
+     */
+    public void renderShown();
+}
@@ -0,0 +1,56 @@
+package com.snobwall.transilook.ui;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+
+/**
+ * Converts images into the screen's native format so drawing them is a
+ * straight (and usually accelerated) blit rather than a per-pixel format
+ * conversion every time they are painted.
+ * 
+ * @author mrb
+ *
+ */
+public class CompatibleImages {
+
+    private static final GraphicsConfiguration screenConfiguration = GraphicsEnvironment.isHeadless() ? null : GraphicsEnvironment
+            .getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+
+    /**
+     * @return the default screen configuration, or null when running headless
+     */
+    public static GraphicsConfiguration getScreenConfiguration() {
+        return screenConfiguration;
+    }
+
+    /**
+     * @return a new image in a format compatible with the screen, or a plain
+     *         RGB(A) image when there is no screen
+     */
+    public static BufferedImage create(int width, int height, int transparency) {
+        if (screenConfiguration == null) {
+            return new BufferedImage(width, height, transparency == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB
+                    : BufferedImage.TYPE_INT_ARGB);
+        }
+        return screenConfiguration.createCompatibleImage(width, height, transparency);
+    }
+
+    /**
+     * @return a copy of the image in the format {@link #create} would use,
+     *         or the image itself if it already is in that format
+     */
+    public static BufferedImage toCompatible(BufferedImage src) {
+        BufferedImage dst = create(src.getWidth(), src.getHeight(), src.getTransparency());
+        if (dst.getColorModel().equals(src.getColorModel()) && dst.getSampleModel().equals(src.getSampleModel())) {
+            return src;
+        }
+        
+        Graphics2D g = dst.createGraphics();
+        g.drawImage(src, 0, 0, null);
+        g.dispose();
+        return dst;
+    }
+}
@@ -0,0 +1,233 @@
+package com.snobwall.transilook.ui;
+
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.NotThreadSafe;
+
+import com.google.common.base.Charsets;
+
+/**
+ * A recorded session of panning and zooming a {@link ViewPanel}, for
+ * replaying the same gestures again later.
+ *
+ * Recordings are text: a {@code view} line with where the session started
+ * and the panel's size, then one line per mouse event with its time in
+ * milliseconds from the first, as in
+ *
+ * <pre>
+ * view 44.643636 -63.600926 14 600 600
+ * press 0 300 300 1
+ * drag 16 310 302 0
+ * release 480 420 330 1
+ * wheel 1200 300 300 -1
+ * </pre>
+ *
+ * where the last number is the button for presses and releases, and the
+ * rotation for the wheel.
+ *
+ * @author mrb
+ *
+ */
+@Immutable
+public class InteractionLog {
+
+    private static final String VIEW = "view", PRESS = "press", RELEASE = "release", DRAG = "drag", WHEEL = "wheel";
+
+    private final double lat, lon;
+    private final int zoom, width, height;
+    private final List<Event> events;
+
+    public InteractionLog(double lat, double lon, int zoom, int width, int height, List<Event> events) {
+        super();
+        this.lat = lat;
+        this.lon = lon;
+        this.zoom = zoom;
+        this.width = width;
+        this.height = height;
+        this.events = Collections.unmodifiableList(new ArrayList<Event>(events));
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    public double getLon() {
+        return lon;
+    }
+
+    public int getZoom() {
+        return zoom;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public List<Event> getEvents() {
+        return events;
+    }
+
+    public static InteractionLog read(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+        try {
+            String[] view = null;
+            List<Event> events = new ArrayList<Event>();
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] f = line.split("\\s+");
+                try {
+                    if (f[0].equals(VIEW) && f.length == 6) {
+                        view = f;
+                    } else if (f.length == 5) {
+                        events.add(new Event(id(f[0]), Long.parseLong(f[1]), Integer.parseInt(f[2]), Integer.parseInt(f[3]), Integer
+                                .parseInt(f[4])));
+                    } else {
+                        throw new IOException(file + ":" + lineNumber + ": cannot parse " + line);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + ":" + lineNumber + ": cannot parse " + line);
+                }
+            }
+            if (view == null) {
+                throw new IOException(file + ": no view line");
+            }
+            return new InteractionLog(Double.parseDouble(view[1]), Double.parseDouble(view[2]), Integer.parseInt(view[3]),
+                    Integer.parseInt(view[4]), Integer.parseInt(view[5]), events);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void write(File file) throws IOException {
+        Writer out = new Writer(file);
+        try {
+            out.start(lat, lon, zoom, width, height);
+            for (Event event : events) {
+                out.write(event);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int id(String name) throws IOException {
+        if (name.equals(PRESS)) {
+            return MouseEvent.MOUSE_PRESSED;
+        } else if (name.equals(RELEASE)) {
+            return MouseEvent.MOUSE_RELEASED;
+        } else if (name.equals(DRAG)) {
+            return MouseEvent.MOUSE_DRAGGED;
+        } else if (name.equals(WHEEL)) {
+            return MouseEvent.MOUSE_WHEEL;
+        }
+        throw new IOException("Unknown event " + name);
+    }
+
+    private static String name(int id) {
+        switch (id) {
+        case MouseEvent.MOUSE_PRESSED:
+            return PRESS;
+        case MouseEvent.MOUSE_RELEASED:
+            return RELEASE;
+        case MouseEvent.MOUSE_WHEEL:
+            return WHEEL;
+        default:
+            return DRAG;
+        }
+    }
+
+    @Immutable
+    public static class Event {
+        /** One of MouseEvent's MOUSE_PRESSED, MOUSE_RELEASED, MOUSE_DRAGGED or MOUSE_WHEEL. */
+        public final int id;
+        /** From the first event of the session. */
+        public final long millis;
+        public final int x, y;
+        /** The button pressed or released, or the wheel rotation. */
+        public final int detail;
+
+        public Event(int id, long millis, int x, int y, int detail) {
+            this.id = id;
+            this.millis = millis;
+            this.x = x;
+            this.y = y;
+            this.detail = detail;
+        }
+
+        /**
+         * @return true if this ends a gesture: a drag let go, or a wheel
+         *         step
+         */
+        public boolean endsGesture() {
+            return id == MouseEvent.MOUSE_RELEASED || id == MouseEvent.MOUSE_WHEEL;
+        }
+    }
+
+    /**
+     * Writes a recording as it happens, flushing every event so a session
+     * that ends in a crash is still on disk. Used on the EDT.
+     */
+    @NotThreadSafe
+    public static class Writer implements Closeable {
+        private final PrintWriter out;
+        private boolean started;
+        private long firstWhen;
+
+        public Writer(File file) throws IOException {
+            out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8));
+        }
+
+        public boolean isStarted() {
+            return started;
+        }
+
+        public void start(double lat, double lon, int zoom, int width, int height) {
+            out.println(String.format(Locale.ROOT, "%s %.7f %.7f %d %d %d", VIEW, lat, lon, zoom, width, height));
+            out.flush();
+            started = true;
+        }
+
+        public void record(MouseEvent e) {
+            if (firstWhen == 0) {
+                firstWhen = e.getWhen();
+            }
+            int detail = e instanceof MouseWheelEvent ? ((MouseWheelEvent) e).getWheelRotation() : e.getButton();
+            write(new Event(e.getID(), e.getWhen() - firstWhen, e.getX(), e.getY(), detail));
+        }
+
+        public void write(Event event) {
+            out.println(name(event.id) + " " + event.millis + " " + event.x + " " + event.y + " " + event.detail);
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+            out.close();
+        }
+    }
+}
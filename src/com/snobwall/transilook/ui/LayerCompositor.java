@@ -0,0 +1,217 @@
+package com.snobwall.transilook.ui;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.SwingUtilities;
+
+import net.jcip.annotations.GuardedBy;
+
+import com.snobwall.transilook.osm.BoundingBox;
+import com.snobwall.transilook.osm.SlippyUtil;
+
+/**
+ * Renders {@link AsyncMapLayer}s into off-screen images on a worker pool and
+ * draws the latest finished image of each on the event dispatch thread.
+ *
+ * Each layer has at most one render in flight. Asking for another while one
+ * runs only records the newest viewport, so a burst of requests costs one
+ * extra render. A render overtaken by requests at the same zoom is still
+ * shown, moved to where it belongs, while the next one runs, so a layer that
+ * is invalidated faster than it renders keeps moving; only renders for a zoom
+ * that has since been left are skipped or thrown away. Finished images are
+ * swapped in on the EDT, and the image they replace is kept for the next
+ * render, so steady rendering does not allocate.
+ *
+ * All methods must be called on the EDT.
+ *
+ * @author mrb
+ *
+ */
+public class LayerCompositor {
+
+    public static final int DEFAULT_THREADS = Integer.getInteger("transilook.layerThreads",
+            Math.max(2, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static final ExecutorService pool = Executors.newFixedThreadPool(DEFAULT_THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "layer-render-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final Runnable onRendered;
+
+    @GuardedBy("AWT EDT")
+    private final IdentityHashMap<AsyncMapLayer, Slot> slots = new IdentityHashMap<AsyncMapLayer, Slot>();
+
+    /**
+     * @param onRendered
+     *            run on the EDT whenever a layer has a new image to show
+     */
+    public LayerCompositor(Runnable onRendered) {
+        super();
+        this.onRendered = onRendered;
+    }
+
+    /**
+     * Ask for the layer to be rendered for a viewport.
+     */
+    @GuardedBy("AWT EDT")
+    public void request(AsyncMapLayer layer, int width, int height, BoundingBox mercatorBounds, int zoom) {
+        if (width <= 0 || height <= 0 || mercatorBounds == null) {
+            return;
+        }
+        Slot slot = slots.get(layer);
+        if (slot == null) {
+            slot = new Slot(layer);
+            slots.put(layer, slot);
+        }
+        slot.width = width;
+        slot.height = height;
+        slot.bounds = mercatorBounds;
+        slot.zoom = zoom;
+        slot.latestZoom = zoom;
+        slot.generation++;
+        if (!slot.inFlight) {
+            start(slot);
+        }
+    }
+
+    /**
+     * Draw the layer's latest finished image, moved and scaled to where it
+     * belongs in the given viewport. Draws nothing before the first render
+     * finishes.
+     */
+    @GuardedBy("AWT EDT")
+    public void composite(AsyncMapLayer layer, Graphics2D g, BoundingBox mercatorBounds, int zoom) {
+        Slot slot = slots.get(layer);
+        if (slot == null || slot.front == null) {
+            return;
+        }
+        double pixelsPerMercUnit = 1 / SlippyUtil.mercUnitsPerPixel(zoom);
+        int x = (int) Math.round((slot.frontBounds.west - mercatorBounds.west) * pixelsPerMercUnit);
+        int y = (int) Math.round((mercatorBounds.north - slot.frontBounds.north) * pixelsPerMercUnit);
+        if (slot.frontZoom == zoom) {
+            g.drawImage(slot.front, x, y, null);
+        } else {
+            // a stand-in until the render for this zoom finishes
+            double scale = Math.pow(2, zoom - slot.frontZoom);
+            g.drawImage(slot.front, x, y, (int) Math.round(slot.front.getWidth() * scale), (int) Math.round(slot.front.getHeight()
+                    * scale), null);
+        }
+    }
+
+    @GuardedBy("AWT EDT")
+    public void remove(AsyncMapLayer layer) {
+        slots.remove(layer);
+    }
+
+    @GuardedBy("AWT EDT")
+    private void start(final Slot slot) {
+        final int width = slot.width, height = slot.height, zoom = slot.zoom;
+        final BoundingBox bounds = slot.bounds;
+        slot.inFlight = true;
+        slot.requested = slot.generation;
+
+        BufferedImage spare = slot.spare;
+        slot.spare = null;
+        final BufferedImage image = spare != null && spare.getWidth() == width && spare.getHeight() == height ? spare : CompatibleImages
+                .create(width, height, Transparency.TRANSLUCENT);
+
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean rendered = false;
+                // skip it if the view has zoomed away while it waited for a thread
+                if (slot.latestZoom == zoom) {
+                    Graphics2D g = image.createGraphics();
+                    try {
+                        g.setComposite(AlphaComposite.Clear);
+                        g.fillRect(0, 0, width, height);
+                        g.setComposite(AlphaComposite.SrcOver);
+                        g.setClip(0, 0, width, height);
+                        slot.layer.renderLayer(g, width, height, bounds, zoom);
+                        // or while it rendered
+                        rendered = slot.latestZoom == zoom;
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    } finally {
+                        g.dispose();
+                    }
+                }
+                final boolean done = rendered;
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        finish(slot, image, done, bounds, zoom);
+                    }
+                });
+            }
+        });
+    }
+
+    @GuardedBy("AWT EDT")
+    private void finish(Slot slot, BufferedImage image, boolean rendered, BoundingBox bounds, int zoom) {
+        slot.inFlight = false;
+        if (slots.get(slot.layer) != slot) {
+            // the layer was removed
+            return;
+        }
+        if (rendered) {
+            slot.spare = slot.front;
+            slot.front = image;
+            slot.frontBounds = bounds;
+            slot.frontZoom = zoom;
+            slot.layer.renderShown();
+            onRendered.run();
+        } else {
+            slot.spare = image;
+        }
+        if (slot.generation != slot.requested) {
+            start(slot);
+        }
+    }
+
+    private static class Slot {
+        final AsyncMapLayer layer;
+
+        @GuardedBy("AWT EDT")
+        BufferedImage front, spare;
+        @GuardedBy("AWT EDT")
+        BoundingBox frontBounds;
+        @GuardedBy("AWT EDT")
+        int frontZoom;
+
+        /** The newest viewport asked for. */
+        @GuardedBy("AWT EDT")
+        int width, height, zoom;
+        @GuardedBy("AWT EDT")
+        BoundingBox bounds;
+        /** The zoom of the newest viewport; only written on the EDT, read by workers. */
+        volatile int latestZoom;
+        /** Counts requests. */
+        @GuardedBy("AWT EDT")
+        long generation;
+        @GuardedBy("AWT EDT")
+        boolean inFlight;
+        /** Generation of the render last started. */
+        @GuardedBy("AWT EDT")
+        long requested;
+
+        Slot(AsyncMapLayer layer) {
+            this.layer = layer;
+        }
+    }
+}
@@ -2,4 +2,10 @@ package com.snobwall.transilook.ui;
 
 public interface MapLayerObserver {
     public void invalidateLayer(MapLayer layer);
+
+    /**
+     * Like {@link #invalidateLayer(MapLayer)}, but only for a rectangle of
+     * the view, in the same coordinates the layer paints in.
+     */
+    public void invalidateLayerRegion(MapLayer layer, int x, int y, int width, int height);
 }
@@ -0,0 +1,24 @@
+package com.snobwall.transilook.ui;
+
+/**
+ * Optionally implemented by a {@link MapLayer} that wants to know how the
+ * view is moving, e.g. to fetch data ahead of it. Called from the AWT Event
+ * Dispatch Thread, before the matching bounds update.
+ * 
+ * @author mrb
+ *
+ */
+public interface MapMotionListener {
+    /**
+     * @param velocityX
+     *            smoothed pan velocity in pixels per second, positive when the
+     *            map is dragged right
+     * @param velocityY
+     *            smoothed pan velocity in pixels per second, positive when the
+     *            map is dragged down
+     * @param zoomDirection
+     *            positive after zooming in, negative after zooming out, zero
+     *            once panning
+     */
+    public void viewMotion(double velocityX, double velocityY, int zoomDirection);
+}
@@ -0,0 +1,140 @@
+package com.snobwall.transilook.ui;
+
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.Timer;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Coalesces invalidations into at most one frame per display refresh.
+ *
+ * Invalidated rectangles are unioned until the next frame is due, then
+ * handed to the {@link Target} on the event dispatch thread in one go, so a
+ * burst of tile arrivals costs one repaint of the area they cover rather
+ * than a full repaint each.
+ *
+ * @author mrb
+ *
+ */
+@ThreadSafe
+public class RepaintScheduler {
+
+    public static final int DEFAULT_MAX_FPS = Integer.getInteger("transilook.maxFps", 60);
+
+    public interface Target {
+        /**
+         * Called on the event dispatch thread when a frame is due.
+         *
+         * @param dirty
+         *            the union of the rectangles invalidated since the last
+         *            frame, possibly empty; only valid during the call
+         * @param everything
+         *            true if the whole view was invalidated
+         */
+        public void frame(Rectangle dirty, boolean everything);
+    }
+
+    private final Target target;
+    private final long frameNanos;
+    private final Timer timer;
+
+    @GuardedBy("this")
+    private final Rectangle dirty = new Rectangle();
+    @GuardedBy("this")
+    private boolean everything, scheduled;
+    @GuardedBy("this")
+    private long lastFrame;
+
+    @GuardedBy("AWT EDT")
+    private final Rectangle frameDirty = new Rectangle();
+
+    public RepaintScheduler(Target target) {
+        this(target, DEFAULT_MAX_FPS);
+    }
+
+    public RepaintScheduler(Target target, int maxFps) {
+        super();
+        this.target = target;
+        this.frameNanos = 1000000000L / Math.max(1, maxFps);
+        timer = new Timer(0, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                runFrame();
+            }
+        });
+        timer.setRepeats(false);
+        // a coalescing timer drops an event that fires while the last one is
+        // still running, which would leave a frame scheduled but never run
+        timer.setCoalesce(false);
+    }
+
+    /**
+     * Mark a rectangle, in view coordinates, as needing to be redrawn.
+     */
+    public void invalidate(int x, int y, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        synchronized (this) {
+            if (dirty.isEmpty()) {
+                dirty.setBounds(x, y, width, height);
+            } else {
+                // by corners, so unioning allocates nothing
+                dirty.add(x, y);
+                dirty.add(x + width, y + height);
+            }
+            schedule();
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        everything = true;
+        schedule();
+    }
+
+    /**
+     * Ask for a frame without invalidating anything, e.g. because the view
+     * moved and only needs presenting again.
+     */
+    public synchronized void requestFrame() {
+        schedule();
+    }
+
+    /**
+     * Shift pending invalidations along with the view's contents.
+     */
+    public synchronized void translate(int dx, int dy) {
+        if (!dirty.isEmpty()) {
+            dirty.translate(dx, dy);
+        }
+    }
+
+    @GuardedBy("this")
+    private void schedule() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        long wait = lastFrame + frameNanos - System.nanoTime();
+        timer.setInitialDelay((int) Math.max(0, wait / 1000000));
+        timer.restart();
+    }
+
+    @GuardedBy("AWT EDT")
+    private void runFrame() {
+        boolean all;
+        synchronized (this) {
+            frameDirty.setBounds(dirty);
+            all = everything;
+            dirty.setBounds(0, 0, 0, 0);
+            everything = false;
+            scheduled = false;
+            lastFrame = System.nanoTime();
+        }
+        target.frame(frameDirty, all);
+    }
+}
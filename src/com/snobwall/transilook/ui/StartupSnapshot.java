@@ -0,0 +1,187 @@
+package com.snobwall.transilook.ui;
+
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import net.jcip.annotations.Immutable;
+
+import com.google.common.base.Optional;
+import com.snobwall.transilook.osm.TileRef;
+
+/**
+ * What the map looked like when the app last exited: where it was, the
+ * tiles that were in view, and a picture of the view as composited, so the
+ * next launch can paint something useful before a single tile has loaded
+ * and load those same tiles from the store first.
+ *
+ * The picture is kept as a JPEG, which is small and quick to decode; it is
+ * only shown until real tiles cover it.
+ *
+ * @author mrb
+ *
+ */
+@Immutable
+public class StartupSnapshot {
+
+    private static final int MAGIC = 0x746c7373; // "tlss"
+    private static final int VERSION = 1;
+    /** Bytes before the tile list: magic, version, lat, lon, zoom and tile count. */
+    private static final int HEADER_BYTES = 32;
+    private static final int TILE_BYTES = 12;
+
+    private final double lat, lon;
+    private final int zoom;
+    private final List<TileRef> visibleTiles;
+    private final byte[] image;
+
+    public StartupSnapshot(double lat, double lon, int zoom, List<TileRef> visibleTiles, BufferedImage view) throws IOException {
+        this(lat, lon, zoom, visibleTiles, encode(view));
+    }
+
+    private StartupSnapshot(double lat, double lon, int zoom, List<TileRef> visibleTiles, byte[] image) {
+        super();
+        this.lat = lat;
+        this.lon = lon;
+        this.zoom = zoom;
+        this.visibleTiles = Collections.unmodifiableList(new ArrayList<TileRef>(visibleTiles));
+        this.image = image;
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    public double getLon() {
+        return lon;
+    }
+
+    public int getZoom() {
+        return zoom;
+    }
+
+    public List<TileRef> getVisibleTiles() {
+        return visibleTiles;
+    }
+
+    /**
+     * @return the view as it was, decoded afresh in the screen's format
+     */
+    public BufferedImage getImage() throws IOException {
+        BufferedImage img = ImageIO.read(new ByteArrayInputStream(image));
+        if (img == null) {
+            throw new IOException("Unreadable snapshot image");
+        }
+        return CompatibleImages.toCompatible(img);
+    }
+
+    /**
+     * @return the snapshot in the file, or absent if there is none or it
+     *         cannot be read, as after an upgrade or if it is corrupt
+     */
+    public static Optional<StartupSnapshot> read(File file) {
+        if (!file.isFile()) {
+            return Optional.absent();
+        }
+        try {
+            // counts that do not fit in what is left of the file are corrupt
+            long remaining = file.length() - HEADER_BYTES;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return Optional.absent();
+                }
+                double lat = in.readDouble();
+                double lon = in.readDouble();
+                int zoom = in.readInt();
+                int tiles = in.readInt();
+                if (tiles < 0 || tiles > (remaining - 4) / TILE_BYTES) {
+                    return Optional.absent();
+                }
+                remaining -= (long) tiles * TILE_BYTES + 4;
+                List<TileRef> visibleTiles = new ArrayList<TileRef>(tiles);
+                for (int i = 0; i < tiles; i++) {
+                    int z = in.readInt();
+                    int x = in.readInt();
+                    int y = in.readInt();
+                    visibleTiles.add(new TileRef(x, y, z));
+                }
+                int imageBytes = in.readInt();
+                if (imageBytes < 0 || imageBytes > remaining) {
+                    return Optional.absent();
+                }
+                byte[] image = new byte[imageBytes];
+                in.readFully(image);
+                return Optional.of(new StartupSnapshot(lat, lon, zoom, visibleTiles, image));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Optional.absent();
+        }
+    }
+
+    /**
+     * Write the snapshot, replacing the file only once it is complete.
+     */
+    public void write(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File tmp = new File(dir, file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeDouble(lat);
+            out.writeDouble(lon);
+            out.writeInt(zoom);
+            out.writeInt(visibleTiles.size());
+            for (TileRef tile : visibleTiles) {
+                out.writeInt(tile.zoom);
+                out.writeInt(tile.x);
+                out.writeInt(tile.y);
+            }
+            out.writeInt(image.length);
+            out.write(image);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private static byte[] encode(BufferedImage view) throws IOException {
+        if (view.getTransparency() != Transparency.OPAQUE || view.getType() == BufferedImage.TYPE_CUSTOM) {
+            // the JPEG writer wants plain RGB
+            BufferedImage rgb = new BufferedImage(view.getWidth(), view.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = rgb.createGraphics();
+            g.drawImage(view, 0, 0, null);
+            g.dispose();
+            view = rgb;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (!ImageIO.write(view, "jpg", bytes)) {
+            throw new IOException("No JPEG writer");
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -2,8 +2,14 @@ package com.snobwall.transilook.ui;
 
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.Transparency;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
 import java.util.ArrayList;
 
 import javax.swing.JPanel;
@@ -11,6 +17,7 @@ import javax.swing.SwingUtilities;
 
 import net.jcip.annotations.GuardedBy;
 
+import com.snobwall.transilook.metrics.Metrics;
 import com.snobwall.transilook.osm.BoundingBox;
 import com.snobwall.transilook.osm.Mercator;
 import com.snobwall.transilook.osm.SlippyUtil;
@@ -22,13 +29,72 @@ public class ViewPanel extends JPanel implements MapLayerObserver {
 
     private boolean watchingMouse = false;
     private int mouseLastX, mouseLastY;
+    private long mouseLastWhen;
+    
+    /** Weight of the newest sample in the smoothed pan velocity. */
+    private static final double VELOCITY_SMOOTHING = 0.3;
+    private double velocityX, velocityY;
+    private int zoomDirection;
+    
+    /** Where the gestures acted on are written, if anywhere. */
+    @GuardedBy("AWT EDT")
+    private InteractionLog.Writer recorder;
+    
+    /** Drawn under the layers until the view zooms, e.g. the view as the last session left it. */
+    @GuardedBy("AWT EDT")
+    private Image placeholder;
+    /** How far the placeholder has been dragged from the centre. */
+    @GuardedBy("AWT EDT")
+    private int placeholderX, placeholderY;
     
     private int lastWidth = -1, lastHeight = -1, lastZoom = -1;
     private BoundingBox lastBounds;
     
+    @GuardedBy("AWT EDT")
+    private VolatileImage backBuffer;
+    /** Set when the back buffer has to be redrawn in full rather than scrolled. */
+    @GuardedBy("AWT EDT")
+    private boolean backBufferDirty = true;
+    /** Pixels the map has been dragged by since the back buffer was last drawn. */
+    @GuardedBy("AWT EDT")
+    private int scrollX, scrollY;
+    /** Part of the back buffer to redraw on the next paint, when it is not dirty as a whole. */
+    @GuardedBy("AWT EDT")
+    private final Rectangle backBufferDirtyRegion = new Rectangle();
+    
+    private final RepaintScheduler repaintScheduler = new RepaintScheduler(new RepaintScheduler.Target() {
+        @Override
+        public void frame(Rectangle dirty, boolean everything) {
+            if (everything) {
+                backBufferDirty = true;
+            } else if (!dirty.isEmpty()) {
+                if (backBufferDirtyRegion.isEmpty()) {
+                    backBufferDirtyRegion.setBounds(dirty);
+                } else {
+                    backBufferDirtyRegion.add(dirty);
+                }
+            }
+            
+            if (backBufferDirty || scrollX != 0 || scrollY != 0) {
+                repaint();
+            } else if (!dirty.isEmpty()) {
+                repaint(dirty.x, dirty.y, dirty.width, dirty.height);
+            }
+        }
+    });
+    
     @GuardedBy("AWT EDT")
     private ArrayList<MapLayer> layers = new ArrayList<MapLayer>();
     
+    /** Renders {@link AsyncMapLayer}s off the EDT; a finished render redraws the frame. */
+    @GuardedBy("AWT EDT")
+    private final LayerCompositor compositor = new LayerCompositor(new Runnable() {
+        @Override
+        public void run() {
+            repaintScheduler.invalidateAll();
+        }
+    });
+    
     public ViewPanel() {
         super();
 
@@ -37,20 +103,97 @@ public class ViewPanel extends JPanel implements MapLayerObserver {
 
     @Override
     public void paintComponent(Graphics g) {
-        super.paintComponent(g);
-        
-        g.setColor(Color.white);
-        g.fillRect(0, 0, getWidth(), getHeight());
-        
+        long start = System.nanoTime();
+        paintFrame(g);
+        Metrics.FRAME_NANOS.record(System.nanoTime() - start);
+    }
+
+    @GuardedBy("AWT EDT")
+    private void paintFrame(Graphics g) {
         updateBounds(false);
         
-        for(MapLayer l : layers) {
-            l.paintLayer(g, getWidth(), getHeight());
+        int width = getWidth(), height = getHeight();
+        if (width <= 0 || height <= 0) {
+            return;
         }
+        
+        do {
+            int status = backBuffer == null ? VolatileImage.IMAGE_INCOMPATIBLE : backBuffer.validate(getGraphicsConfiguration());
+            if (status == VolatileImage.IMAGE_INCOMPATIBLE || backBuffer.getWidth() != width || backBuffer.getHeight() != height) {
+                if (backBuffer != null) {
+                    backBuffer.flush();
+                }
+                backBuffer = createVolatileImage(width, height);
+                backBufferDirty = true;
+                if (backBuffer == null) {
+                    // not displayable (e.g. painted off-screen), so there is nothing to keep pixels in
+                    Graphics2D direct = (Graphics2D) g.create();
+                    renderRegion(direct, 0, 0, width, height);
+                    direct.dispose();
+                    break;
+                }
+            } else if (status == VolatileImage.IMAGE_RESTORED) {
+                backBufferDirty = true;
+            }
+            
+            Graphics2D bg = backBuffer.createGraphics();
+            try {
+                if (backBufferDirty || Math.abs(scrollX) >= width || Math.abs(scrollY) >= height) {
+                    renderRegion(bg, 0, 0, width, height);
+                } else if (scrollX != 0 || scrollY != 0) {
+                    // shift what we already have and only draw the strips that scrolled into view
+                    bg.copyArea(0, 0, width, height, scrollX, scrollY);
+                    if (scrollX > 0) {
+                        renderRegion(bg, 0, 0, scrollX, height);
+                    } else if (scrollX < 0) {
+                        renderRegion(bg, width + scrollX, 0, -scrollX, height);
+                    }
+                    if (scrollY > 0) {
+                        renderRegion(bg, 0, 0, width, scrollY);
+                    } else if (scrollY < 0) {
+                        renderRegion(bg, 0, height + scrollY, width, -scrollY);
+                    }
+                }
+                if (!backBufferDirty) {
+                    SwingUtilities.computeIntersection(0, 0, width, height, backBufferDirtyRegion);
+                    if (!backBufferDirtyRegion.isEmpty()) {
+                        renderRegion(bg, backBufferDirtyRegion.x, backBufferDirtyRegion.y, backBufferDirtyRegion.width,
+                                backBufferDirtyRegion.height);
+                    }
+                }
+            } finally {
+                bg.dispose();
+            }
+            backBufferDirty = false;
+            backBufferDirtyRegion.setBounds(0, 0, 0, 0);
+            
+            g.drawImage(backBuffer, 0, 0, null);
+        } while (backBuffer.contentsLost());
+        scrollX = scrollY = 0;
 
         g.setColor(Color.red);
         g.fillOval(getWidth() / 2, getHeight() / 2, 5, 5);
     }
+    
+    private void renderRegion(Graphics2D bg, int x, int y, int w, int h) {
+        bg.setClip(x, y, w, h);
+        bg.setColor(Color.white);
+        bg.fillRect(x, y, w, h);
+        if (placeholder != null) {
+            bg.drawImage(placeholder, (getWidth() - placeholder.getWidth(null)) / 2 + placeholderX,
+                    (getHeight() - placeholder.getHeight(null)) / 2 + placeholderY, null);
+            Metrics.usefulFrame();
+        }
+        
+        for(int i = 0; i < layers.size(); i++) {
+            MapLayer layer = layers.get(i);
+            if (layer instanceof AsyncMapLayer) {
+                compositor.composite((AsyncMapLayer) layer, bg, lastBounds, lastZoom);
+            } else {
+                layer.paintLayer(bg, getWidth(), getHeight());
+            }
+        }
+    }
 
     private void updateBounds(boolean force) {
         double mercY = Mercator.mercY(lat);
@@ -63,13 +206,18 @@ public class ViewPanel extends JPanel implements MapLayerObserver {
         double brMercX = tlMercX + mercUnitsPerPixel * getWidth();
         double brMercY = tlMercY - mercUnitsPerPixel * getHeight();
         
-        BoundingBox windowBoundingBox = new BoundingBox(tlMercY, brMercY, brMercX, tlMercX);
-        
         if (force ||
                 lastWidth != getWidth() || 
                 lastHeight != getHeight() ||
                 lastZoom != zoom ||
-                !windowBoundingBox.equals(lastBounds)) {
+                lastBounds == null ||
+                lastBounds.north != tlMercY ||
+                lastBounds.south != brMercY ||
+                lastBounds.east != brMercX ||
+                lastBounds.west != tlMercX) {
+            
+            // only allocate when something changed, so repaints of a still view are garbage-free
+            BoundingBox windowBoundingBox = new BoundingBox(tlMercY, brMercY, brMercX, tlMercX);
             
             lastWidth = getWidth();
             lastHeight = getHeight();
@@ -79,6 +227,9 @@ public class ViewPanel extends JPanel implements MapLayerObserver {
             // bounds changed, let's tell everyone
             for(MapLayer l : layers) {
                 l.updateLayerBounds(getWidth(), getHeight(), windowBoundingBox, zoom);
+                if (l instanceof AsyncMapLayer) {
+                    compositor.request((AsyncMapLayer) l, lastWidth, lastHeight, windowBoundingBox, zoom);
+                }
             }
         }
     }
@@ -88,14 +239,113 @@ public class ViewPanel extends JPanel implements MapLayerObserver {
     //
     
     @Override
-    public void invalidateLayer(MapLayer layer) {
-        SwingUtilities.invokeLater(new Runnable() {
-            
-            @Override
-            public void run() {
-                repaint();
-            }
-        });
+    public void invalidateLayer(final MapLayer layer) {
+        if (layer instanceof AsyncMapLayer) {
+            rerender((AsyncMapLayer) layer);
+            return;
+        }
+        repaintScheduler.invalidateAll();
+    }
+    
+    @Override
+    public void invalidateLayerRegion(final MapLayer layer, final int x, final int y, final int width, final int height) {
+        if (layer instanceof AsyncMapLayer) {
+            // it is redrawn as a whole off the EDT anyway
+            rerender((AsyncMapLayer) layer);
+            return;
+        }
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                
+                @Override
+                public void run() {
+                    invalidateLayerRegion(layer, x, y, width, height);
+                }
+            });
+            return;
+        }
+        // layers work in the coordinates of the last frame, and the map may have been dragged since
+        repaintScheduler.invalidate(x + scrollX, y + scrollY, width, height);
+    }
+    
+    private void rerender(final AsyncMapLayer layer) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                
+                @Override
+                public void run() {
+                    rerender(layer);
+                }
+            });
+            return;
+        }
+        if (layers.contains(layer)) {
+            compositor.request(layer, lastWidth, lastHeight, lastBounds, lastZoom);
+        }
+    }
+    
+    /**
+     * Move the view, e.g. to where a recorded session started.
+     */
+    @GuardedBy("AWT EDT")
+    public void setView(double lat, double lon, int zoom) {
+        this.lat = lat;
+        this.lon = lon;
+        this.zoom = zoom;
+        placeholder = null;
+        backBufferDirty = true;
+        repaintScheduler.invalidateAll();
+    }
+    
+    public double getLat() {
+        return lat;
+    }
+    
+    public double getLon() {
+        return lon;
+    }
+    
+    public int getZoom() {
+        return zoom;
+    }
+    
+    /**
+     * Show an image of the map under the layers until they have drawn
+     * something better, e.g. a {@link StartupSnapshot} of this same view,
+     * centred on the view. It moves with the map and goes away when the view
+     * zooms.
+     */
+    @GuardedBy("AWT EDT")
+    public void setPlaceholder(Image placeholder) {
+        this.placeholder = placeholder;
+        placeholderX = placeholderY = 0;
+        backBufferDirty = true;
+        repaintScheduler.invalidateAll();
+    }
+    
+    /**
+     * @return the view as the layers last drew it
+     */
+    @GuardedBy("AWT EDT")
+    public BufferedImage capture() {
+        updateBounds(false);
+        BufferedImage img = CompatibleImages.create(Math.max(1, getWidth()), Math.max(1, getHeight()), Transparency.OPAQUE);
+        Graphics2D g = img.createGraphics();
+        try {
+            renderRegion(g, 0, 0, img.getWidth(), img.getHeight());
+        } finally {
+            g.dispose();
+        }
+        return img;
+    }
+    
+    /**
+     * Record the pans and zooms from now on, to be replayed as an
+     * {@link InteractionLog}.
+     */
+    @GuardedBy("AWT EDT")
+    public void setRecorder(InteractionLog.Writer recorder) {
+        this.recorder = recorder;
     }
     
     public void addLayer(final MapLayer layer) {
@@ -107,11 +357,29 @@ public class ViewPanel extends JPanel implements MapLayerObserver {
                 layer.registerLayerObserver(ViewPanel.this);
                 updateBounds(true);
                 //layer.updateLayerBounds(getWidth(), getHeight(), , lastZoom);
-                repaint();
+                repaintScheduler.invalidateAll();
             }
         });
     }
     
+    private void notifyMotion() {
+        for(MapLayer l : layers) {
+            if (l instanceof MapMotionListener) {
+                ((MapMotionListener) l).viewMotion(velocityX, velocityY, zoomDirection);
+            }
+        }
+    }
+    
+    private void record(MouseEvent e) {
+        if (recorder == null) {
+            return;
+        }
+        if (!recorder.isStarted()) {
+            recorder.start(lat, lon, zoom, getWidth(), getHeight());
+        }
+        recorder.record(e);
+    }
+    
     //
     // Listeners
     //
@@ -121,10 +389,15 @@ public class ViewPanel extends JPanel implements MapLayerObserver {
         super.processMouseEvent(e);
 
         if (e.getButton() == 1 && e.getID() == MouseEvent.MOUSE_PRESSED && !watchingMouse) {
+            record(e);
             mouseLastX = e.getX();
             mouseLastY = e.getY();
+            mouseLastWhen = e.getWhen();
+            velocityX = velocityY = 0;
+            zoomDirection = 0;
             watchingMouse = true;
         } else if (e.getButton() == 1 && e.getID() == MouseEvent.MOUSE_RELEASED && watchingMouse) {
+            record(e);
             watchingMouse = false;
         }
     }
@@ -134,25 +407,53 @@ public class ViewPanel extends JPanel implements MapLayerObserver {
         super.processMouseMotionEvent(e);
 
         if (watchingMouse) {
+            record(e);
             double deltaX = (e.getX() - mouseLastX) * SlippyUtil.mercUnitsPerPixel(zoom);
             lon = Mercator.unmercX(Mercator.mercX(lon) - deltaX);
             double deltaY = (e.getY() - mouseLastY) * SlippyUtil.mercUnitsPerPixel(zoom);
             lat = Mercator.unmercY(Mercator.mercY(lat) + deltaY);
 
+            int dx = e.getX() - mouseLastX, dy = e.getY() - mouseLastY;
+            scrollX += dx;
+            scrollY += dy;
+            placeholderX += dx;
+            placeholderY += dy;
+            // whatever was waiting to be redrawn has moved with the map
+            backBufferDirtyRegion.translate(dx, dy);
+            repaintScheduler.translate(dx, dy);
+
+            long dt = e.getWhen() - mouseLastWhen;
+            if (dt > 0) {
+                velocityX += VELOCITY_SMOOTHING * ((e.getX() - mouseLastX) * 1000.0 / dt - velocityX);
+                velocityY += VELOCITY_SMOOTHING * ((e.getY() - mouseLastY) * 1000.0 / dt - velocityY);
+                notifyMotion();
+            }
+
             mouseLastX = e.getX();
             mouseLastY = e.getY();
+            mouseLastWhen = e.getWhen();
 
-            repaint();
+            repaintScheduler.requestFrame();
         }
     }
 
     @Override
     protected void processMouseWheelEvent(MouseWheelEvent e) {
         super.processMouseWheelEvent(e);
+        int rot = e.getWheelRotation();
+        if (rot == 0) {
+            // less than a notch, from a trackpad or precise wheel
+            return;
+        }
         if (!watchingMouse) {
-            int rot = e.getWheelRotation();
-            zoom -= (rot / Math.abs(rot));
-            repaint();
+            record(e);
+            zoom -= Integer.signum(rot);
+            zoomDirection = -Integer.signum(rot);
+            placeholder = null;
+            velocityX = velocityY = 0;
+            notifyMotion();
+            backBufferDirty = true;
+            repaintScheduler.requestFrame();
         }
     }
     
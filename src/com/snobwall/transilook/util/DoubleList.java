@@ -0,0 +1,54 @@
+package com.snobwall.transilook.util;
+
+import java.util.Arrays;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * A growable array of primitive doubles.
+ * 
+ * @author mrb
+ *
+ */
+@NotThreadSafe
+public class DoubleList {
+
+    private double[] values;
+    private int size;
+
+    public DoubleList() {
+        this(16);
+    }
+
+    public DoubleList(int capacity) {
+        values = new double[Math.max(1, capacity)];
+    }
+
+    public void add(double value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    public double get(int index) {
+        return values[index];
+    }
+
+    public void set(int index, double value) {
+        values[index] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** @return the backing array, which may be longer than {@link #size()} */
+    public double[] array() {
+        return values;
+    }
+
+    public double[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
@@ -0,0 +1,58 @@
+package com.snobwall.transilook.util;
+
+import java.util.Arrays;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * A growable array of primitive ints.
+ * 
+ * @author mrb
+ *
+ */
+@NotThreadSafe
+public class IntList {
+
+    private int[] values;
+    private int size;
+
+    public IntList() {
+        this(16);
+    }
+
+    public IntList(int capacity) {
+        values = new int[Math.max(1, capacity)];
+    }
+
+    public void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    public int get(int index) {
+        return values[index];
+    }
+
+    public void set(int index, int value) {
+        values[index] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /** @return the backing array, which may be longer than {@link #size()} */
+    public int[] array() {
+        return values;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
@@ -0,0 +1,228 @@
+package com.snobwall.transilook.util;
+
+import java.io.IOException;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * Reads protocol buffer wire format out of a byte array, one field at a
+ * time, without generated classes or per-field objects.
+ *
+ * <pre>
+ * reader.reset(bytes, 0, length);
+ * while (reader.next()) {
+ *     switch (reader.field()) {
+ *     case 1:
+ *         int outer = reader.enter();
+ *         ... read the nested message ...
+ *         reader.leave(outer);
+ *         break;
+ *     default:
+ *         reader.skip();
+ *     }
+ * }
+ * </pre>
+ *
+ * @author mrb
+ *
+ */
+@NotThreadSafe
+public class ProtobufReader {
+
+    public static final int VARINT = 0;
+    public static final int FIXED64 = 1;
+    public static final int LENGTH_DELIMITED = 2;
+    public static final int FIXED32 = 5;
+
+    private byte[] buf;
+    private int pos, limit;
+    private int tag;
+
+    public void reset(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.pos = offset;
+        this.limit = offset + length;
+        this.tag = 0;
+    }
+
+    /**
+     * Read the next field's tag.
+     *
+     * @return false at the end of the current message
+     */
+    public boolean next() throws IOException {
+        if (pos >= limit) {
+            return false;
+        }
+        tag = (int) readVarint();
+        return true;
+    }
+
+    /** @return true if the current message, or packed field, has more bytes */
+    public boolean hasRemaining() {
+        return pos < limit;
+    }
+
+    public int field() {
+        return tag >>> 3;
+    }
+
+    public int wireType() {
+        return tag & 7;
+    }
+
+    public long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= limit) {
+                throw truncated();
+            }
+            byte b = buf[pos++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public int readInt() throws IOException {
+        return (int) readVarint();
+    }
+
+    /** @return a zigzag-encoded sint32 */
+    public int readSInt() throws IOException {
+        int n = (int) readVarint();
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    public boolean readBool() throws IOException {
+        return readVarint() != 0;
+    }
+
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readFixed32());
+    }
+
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readFixed64());
+    }
+
+    public int readFixed32() throws IOException {
+        if (limit - pos < 4) {
+            throw truncated();
+        }
+        int value = (buf[pos] & 0xff) | (buf[pos + 1] & 0xff) << 8 | (buf[pos + 2] & 0xff) << 16 | (buf[pos + 3] & 0xff) << 24;
+        pos += 4;
+        return value;
+    }
+
+    public long readFixed64() throws IOException {
+        long low = readFixed32() & 0xffffffffL;
+        return low | (long) readFixed32() << 32;
+    }
+
+    /**
+     * Decode a UTF-8 string field into a caller's array.
+     *
+     * @return the number of characters, which may be more than fit in the
+     *         array; the rest are dropped
+     */
+    public int readChars(char[] out) throws IOException {
+        int length = readLength();
+        int end = pos + length;
+        int n = 0;
+        while (pos < end) {
+            int c = buf[pos++] & 0xff;
+            if (c >= 0xf0 && pos + 2 < end) {
+                int cp = (c & 0x07) << 18 | (buf[pos] & 0x3f) << 12 | (buf[pos + 1] & 0x3f) << 6 | (buf[pos + 2] & 0x3f);
+                pos += 3;
+                n = put(out, n, Character.highSurrogate(cp));
+                c = Character.lowSurrogate(cp);
+            } else if (c >= 0xe0 && pos + 1 < end) {
+                c = (c & 0x0f) << 12 | (buf[pos] & 0x3f) << 6 | (buf[pos + 1] & 0x3f);
+                pos += 2;
+            } else if (c >= 0xc0 && pos < end) {
+                c = (c & 0x1f) << 6 | (buf[pos] & 0x3f);
+                pos += 1;
+            }
+            n = put(out, n, (char) c);
+        }
+        return n;
+    }
+
+    private static int put(char[] out, int n, char c) {
+        if (n < out.length) {
+            out[n] = c;
+        }
+        return n + 1;
+    }
+
+    public String readString() throws IOException {
+        int length = readLength();
+        String s = new String(buf, pos, length, "UTF-8");
+        pos += length;
+        return s;
+    }
+
+    /**
+     * Start reading a length-delimited field, such as a nested message or a
+     * packed array, as if it were the whole input.
+     *
+     * @return a token to pass to {@link #leave(int)}
+     */
+    public int enter() throws IOException {
+        int length = readLength();
+        int outer = limit;
+        limit = pos + length;
+        return outer;
+    }
+
+    /**
+     * Finish a field started with {@link #enter()}, skipping whatever of it
+     * was not read.
+     */
+    public void leave(int outer) {
+        pos = limit;
+        limit = outer;
+    }
+
+    /** Skip the value of the field just read by {@link #next()}. */
+    public void skip() throws IOException {
+        switch (wireType()) {
+        case VARINT:
+            readVarint();
+            break;
+        case FIXED64:
+            advance(8);
+            break;
+        case LENGTH_DELIMITED:
+            advance(readLength());
+            break;
+        case FIXED32:
+            advance(4);
+            break;
+        default:
+            throw new IOException("Unsupported wire type " + wireType() + " for field " + field());
+        }
+    }
+
+    private int readLength() throws IOException {
+        long length = readVarint();
+        if (length < 0 || length > limit - pos) {
+            throw truncated();
+        }
+        return (int) length;
+    }
+
+    private void advance(int bytes) throws IOException {
+        if (limit - pos < bytes) {
+            throw truncated();
+        }
+        pos += bytes;
+    }
+
+    private static IOException truncated() {
+        return new IOException("Truncated protocol buffer");
+    }
+}
@@ -0,0 +1,152 @@
+package com.snobwall.transilook.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Writes protocol buffer wire format into a reusable buffer; the
+ * counterpart of {@link ProtobufReader}, for stand-in servers and test
+ * data.
+ *
+ * Nested messages are written between {@link #begin(int)} and
+ * {@link #end(int)}, which fills in the length once it is known.
+ *
+ * @author mrb
+ *
+ */
+@NotThreadSafe
+public class ProtobufWriter {
+
+    private byte[] buf = new byte[256];
+    private int size;
+
+    public void reset() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, size);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, size);
+    }
+
+    /**
+     * Write the message with a varint length prefix, the framing used for
+     * streams of messages.
+     */
+    public void writeDelimitedTo(OutputStream out) throws IOException {
+        byte[] prefix = new byte[10];
+        int n = 0;
+        long length = size;
+        while ((length & ~0x7fL) != 0) {
+            prefix[n++] = (byte) ((length & 0x7f) | 0x80);
+            length >>>= 7;
+        }
+        prefix[n++] = (byte) length;
+        out.write(prefix, 0, n);
+        writeTo(out);
+    }
+
+    public ProtobufWriter writeVarint(int field, long value) {
+        tag(field, ProtobufReader.VARINT);
+        varint(value);
+        return this;
+    }
+
+    public ProtobufWriter writeSInt(int field, int value) {
+        return writeVarint(field, (value << 1) ^ (value >> 31));
+    }
+
+    public ProtobufWriter writeBool(int field, boolean value) {
+        return writeVarint(field, value ? 1 : 0);
+    }
+
+    public ProtobufWriter writeFloat(int field, float value) {
+        tag(field, ProtobufReader.FIXED32);
+        fixed32(Float.floatToIntBits(value));
+        return this;
+    }
+
+    public ProtobufWriter writeDouble(int field, double value) {
+        tag(field, ProtobufReader.FIXED64);
+        long bits = Double.doubleToLongBits(value);
+        fixed32((int) bits);
+        fixed32((int) (bits >>> 32));
+        return this;
+    }
+
+    public ProtobufWriter writeString(int field, String value) {
+        return writeBytes(field, value.getBytes(Charsets.UTF_8));
+    }
+
+    public ProtobufWriter writeBytes(int field, byte[] value) {
+        tag(field, ProtobufReader.LENGTH_DELIMITED);
+        varint(value.length);
+        ensure(value.length);
+        System.arraycopy(value, 0, buf, size, value.length);
+        size += value.length;
+        return this;
+    }
+
+    /**
+     * Start a nested message, or a packed field whose values are then
+     * written with {@link #varint(long)}.
+     *
+     * @return a mark to pass to {@link #end(int)}
+     */
+    public int begin(int field) {
+        tag(field, ProtobufReader.LENGTH_DELIMITED);
+        return size;
+    }
+
+    public void end(int mark) {
+        int length = size - mark;
+        int prefix = 1;
+        while ((length >>> (7 * prefix)) != 0) {
+            prefix++;
+        }
+        ensure(prefix);
+        System.arraycopy(buf, mark, buf, mark + prefix, length);
+        size = mark;
+        varint(length);
+        size = mark + prefix + length;
+    }
+
+    public void varint(long value) {
+        ensure(10);
+        while ((value & ~0x7fL) != 0) {
+            buf[size++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf[size++] = (byte) value;
+    }
+
+    private void tag(int field, int wireType) {
+        varint(field << 3 | wireType);
+    }
+
+    private void fixed32(int value) {
+        ensure(4);
+        buf[size++] = (byte) value;
+        buf[size++] = (byte) (value >>> 8);
+        buf[size++] = (byte) (value >>> 16);
+        buf[size++] = (byte) (value >>> 24);
+    }
+
+    private void ensure(int bytes) {
+        if (size + bytes > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + bytes));
+        }
+    }
+}
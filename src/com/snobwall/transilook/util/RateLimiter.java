@@ -0,0 +1,58 @@
+package com.snobwall.transilook.util;
+
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A token bucket holding up to one second's worth of permits.
+ *
+ * A caller that takes more permits than are left puts the bucket into debt
+ * and sleeps until the debt would be paid off, so concurrent callers queue
+ * up behind each other without holding the lock while they wait.
+ *
+ * @author mrb
+ *
+ */
+@ThreadSafe
+public class RateLimiter {
+
+    private final double perSecond;
+
+    @GuardedBy("this")
+    private double available;
+    @GuardedBy("this")
+    private long lastNanos = System.nanoTime();
+
+    /**
+     * @param perSecond
+     *            permits per second; 0 or less for no limit
+     */
+    public RateLimiter(double perSecond) {
+        super();
+        this.perSecond = perSecond;
+        this.available = perSecond;
+    }
+
+    public double getRate() {
+        return perSecond;
+    }
+
+    public void acquire(long permits) throws InterruptedException {
+        if (perSecond <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            available = Math.min(perSecond, available + (now - lastNanos) * perSecond / 1e9);
+            lastNanos = now;
+            available -= permits;
+            waitNanos = available >= 0 ? 0 : (long) (-available / perSecond * 1e9);
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
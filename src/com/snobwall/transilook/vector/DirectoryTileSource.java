@@ -0,0 +1,66 @@
+package com.snobwall.transilook.vector;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.jcip.annotations.Immutable;
+
+import com.snobwall.transilook.osm.TileRef;
+
+/**
+ * Vector tiles laid out on disk as z/x/y.mvt (or .pbf), as exported by
+ * most tile generators.
+ *
+ * @author mrb
+ *
+ */
+@Immutable
+public class DirectoryTileSource implements VectorTileSource {
+
+    private static final String[] EXTENSIONS = new String[] { ".mvt", ".pbf" };
+
+    private final File directory;
+    private final int maxZoom;
+
+    public DirectoryTileSource(File directory, int maxZoom) {
+        super();
+        this.directory = directory;
+        this.maxZoom = maxZoom;
+    }
+
+    @Override
+    public byte[] fetch(TileRef tile) throws IOException {
+        for (String extension : EXTENSIONS) {
+            File file = new File(directory, tile.zoom + File.separator + tile.x + File.separator + tile.y + extension);
+            if (file.isFile()) {
+                return read(file);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int n = 0;
+            while (n < data.length) {
+                int read = in.read(data, n, data.length - n);
+                if (read < 0) {
+                    throw new IOException("Truncated " + file);
+                }
+                n += read;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.snobwall.transilook.vector;
+
+import java.io.IOException;
+
+import net.jcip.annotations.ThreadSafe;
+
+import com.snobwall.transilook.osm.TileRef;
+import com.snobwall.transilook.tiles.TileFetcher;
+
+/**
+ * Vector tiles from a tile server, through a {@link TileFetcher} and so
+ * its store and transport.
+ *
+ * @author mrb
+ *
+ */
+@ThreadSafe
+public class FetcherTileSource implements VectorTileSource {
+
+    private final TileFetcher fetcher;
+    private final int maxZoom;
+
+    public FetcherTileSource(TileFetcher fetcher, int maxZoom) {
+        super();
+        this.fetcher = fetcher;
+        this.maxZoom = maxZoom;
+    }
+
+    @Override
+    public byte[] fetch(TileRef tile) throws IOException {
+        return fetcher.fetch(tile);
+    }
+
+    @Override
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+}
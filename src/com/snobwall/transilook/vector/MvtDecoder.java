@@ -0,0 +1,276 @@
+package com.snobwall.transilook.vector;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import com.snobwall.transilook.util.IntList;
+import com.snobwall.transilook.util.ProtobufReader;
+
+/**
+ * Decodes Mapbox Vector Tile protobufs into {@link VectorTile}s.
+ *
+ * Geometry commands are unpacked straight into primitive coordinate
+ * columns. Of the attributes only the "class" or "kind" of each feature is
+ * kept, for styling. Gzipped tiles, as often served, are inflated first.
+ * The decoder reuses its scratch buffers between tiles, so keep one per
+ * thread.
+ *
+ * @author mrb
+ *
+ */
+@NotThreadSafe
+public class MvtDecoder {
+
+    private static final String[] KIND_KEYS = new String[] { "class", "kind" };
+    private static final int DEFAULT_EXTENT = 4096;
+
+    private static final int TILE_LAYERS = 3;
+    private static final int LAYER_NAME = 1, LAYER_FEATURES = 2, LAYER_KEYS = 3, LAYER_VALUES = 4, LAYER_EXTENT = 5;
+    private static final int FEATURE_TAGS = 2, FEATURE_TYPE = 3, FEATURE_GEOMETRY = 4;
+    private static final int VALUE_STRING = 1;
+    private static final int MOVE_TO = 1, LINE_TO = 2, CLOSE_PATH = 7;
+
+    private final ProtobufReader reader = new ProtobufReader();
+
+    private final ArrayList<String> layerNames = new ArrayList<String>();
+    private final IntList layerExtents = new IntList();
+    private final ArrayList<String> kinds = new ArrayList<String>();
+    private final HashMap<String, Integer> kindIndex = new HashMap<String, Integer>();
+
+    private final IntList featureLayer = new IntList(1024), featureType = new IntList(1024), featureKind = new IntList(1024);
+    private final IntList featureParts = new IntList(1024), partStart = new IntList(1024), coords = new IntList(16 * 1024);
+
+    /** The layer being read; its tags can only be resolved once its keys and values are in. */
+    private final ArrayList<String> keys = new ArrayList<String>(), values = new ArrayList<String>();
+    private final IntList tags = new IntList(1024), tagStart = new IntList(1024);
+
+    private byte[] inflated = new byte[64 * 1024];
+
+    public VectorTile decode(byte[] data) throws IOException {
+        return decode(data, 0, data.length);
+    }
+
+    public VectorTile decode(byte[] data, int offset, int length) throws IOException {
+        if (length >= 2 && data[offset] == 0x1f && (data[offset + 1] & 0xff) == 0x8b) {
+            length = inflate(data, offset, length);
+            data = inflated;
+            offset = 0;
+        }
+
+        layerNames.clear();
+        layerExtents.clear();
+        kinds.clear();
+        kindIndex.clear();
+        featureLayer.clear();
+        featureType.clear();
+        featureKind.clear();
+        featureParts.clear();
+        partStart.clear();
+        coords.clear();
+
+        reader.reset(data, offset, length);
+        while (reader.next()) {
+            if (reader.field() == TILE_LAYERS && reader.wireType() == ProtobufReader.LENGTH_DELIMITED) {
+                int outer = reader.enter();
+                layer();
+                reader.leave(outer);
+            } else {
+                reader.skip();
+            }
+        }
+
+        int features = featureLayer.size();
+        byte[] types = new byte[features];
+        for (int f = 0; f < features; f++) {
+            types[f] = (byte) featureType.get(f);
+        }
+        featureParts.add(partStart.size());
+        partStart.add(coords.size() / 2);
+        return new VectorTile(layerNames.toArray(new String[layerNames.size()]), layerExtents.toArray(),
+                kinds.toArray(new String[kinds.size()]), featureLayer.toArray(), types, featureKind.toArray(), featureParts.toArray(),
+                partStart.toArray(), coords.toArray());
+    }
+
+    private int inflate(byte[] data, int offset, int length) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data, offset, length));
+        try {
+            int n = 0;
+            while (true) {
+                if (n == inflated.length) {
+                    inflated = Arrays.copyOf(inflated, n * 2);
+                }
+                int read = in.read(inflated, n, inflated.length - n);
+                if (read < 0) {
+                    return n;
+                }
+                n += read;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void layer() throws IOException {
+        int layer = layerNames.size();
+        int firstFeature = featureLayer.size();
+        String name = "";
+        int extent = DEFAULT_EXTENT;
+        keys.clear();
+        values.clear();
+        tags.clear();
+        tagStart.clear();
+
+        while (reader.next()) {
+            switch (reader.field()) {
+            case LAYER_NAME:
+                name = reader.readString();
+                break;
+            case LAYER_FEATURES: {
+                int outer = reader.enter();
+                feature(layer);
+                reader.leave(outer);
+                break;
+            }
+            case LAYER_KEYS:
+                keys.add(reader.readString());
+                break;
+            case LAYER_VALUES: {
+                int outer = reader.enter();
+                values.add(value());
+                reader.leave(outer);
+                break;
+            }
+            case LAYER_EXTENT:
+                extent = reader.readInt();
+                break;
+            default:
+                reader.skip();
+            }
+        }
+        layerNames.add(name);
+        layerExtents.add(extent > 0 ? extent : DEFAULT_EXTENT);
+
+        tagStart.add(tags.size());
+        for (int f = firstFeature; f < featureLayer.size(); f++) {
+            int kind = -1;
+            for (int t = tagStart.get(f - firstFeature); t + 1 < tagStart.get(f - firstFeature + 1); t += 2) {
+                int k = tags.get(t), v = tags.get(t + 1);
+                if (k < keys.size() && v < values.size() && values.get(v) != null && isKindKey(keys.get(k))) {
+                    kind = intern(values.get(v));
+                    break;
+                }
+            }
+            featureKind.add(kind);
+        }
+    }
+
+    private void feature(int layer) throws IOException {
+        int type = 0;
+        int firstPart = partStart.size();
+        tagStart.add(tags.size());
+        while (reader.next()) {
+            switch (reader.field()) {
+            case FEATURE_TAGS:
+                if (reader.wireType() == ProtobufReader.LENGTH_DELIMITED) {
+                    int outer = reader.enter();
+                    while (reader.hasRemaining()) {
+                        tags.add(reader.readInt());
+                    }
+                    reader.leave(outer);
+                } else {
+                    tags.add(reader.readInt());
+                }
+                break;
+            case FEATURE_TYPE:
+                type = reader.readInt();
+                break;
+            case FEATURE_GEOMETRY:
+                if (reader.wireType() == ProtobufReader.LENGTH_DELIMITED) {
+                    int outer = reader.enter();
+                    geometry(firstPart);
+                    reader.leave(outer);
+                } else {
+                    reader.skip();
+                }
+                break;
+            default:
+                reader.skip();
+            }
+        }
+        featureLayer.add(layer);
+        featureType.add(type);
+        featureParts.add(firstPart);
+    }
+
+    private void geometry(int firstPart) throws IOException {
+        int x = 0, y = 0;
+        while (reader.hasRemaining()) {
+            int command = reader.readInt();
+            int id = command & 7, count = command >>> 3;
+            switch (id) {
+            case MOVE_TO:
+                for (int i = 0; i < count; i++) {
+                    x += reader.readSInt();
+                    y += reader.readSInt();
+                    partStart.add(coords.size() / 2);
+                    coords.add(x);
+                    coords.add(y);
+                }
+                break;
+            case LINE_TO:
+                if (partStart.size() == firstPart) {
+                    throw new IOException("LineTo before MoveTo");
+                }
+                for (int i = 0; i < count; i++) {
+                    x += reader.readSInt();
+                    y += reader.readSInt();
+                    coords.add(x);
+                    coords.add(y);
+                }
+                break;
+            case CLOSE_PATH:
+                // rings are always drawn closed
+                break;
+            default:
+                throw new IOException("Unknown geometry command " + id);
+            }
+        }
+    }
+
+    private String value() throws IOException {
+        String value = null;
+        while (reader.next()) {
+            if (reader.field() == VALUE_STRING) {
+                value = reader.readString();
+            } else {
+                reader.skip();
+            }
+        }
+        return value;
+    }
+
+    private static boolean isKindKey(String key) {
+        for (String k : KIND_KEYS) {
+            if (k.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int intern(String kind) {
+        Integer index = kindIndex.get(kind);
+        if (index == null) {
+            index = kinds.size();
+            kinds.add(kind);
+            kindIndex.put(kind, index);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,175 @@
+package com.snobwall.transilook.vector;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import com.snobwall.transilook.ui.CompatibleImages;
+
+/**
+ * Draws vector tiles into 256 pixel tile images.
+ *
+ * Features are bucketed by the style rule they match and each rule's
+ * features go into a single path, so a tile costs one fill or stroke per
+ * rule rather than one per feature. A tile can also be drawn zoomed in, as
+ * a quarter, sixteenth and so on of itself, which is how zoom levels past
+ * the source's deepest are drawn sharp. The rasterizer reuses its scratch
+ * arrays and path, so keep one per thread.
+ *
+ * @author mrb
+ *
+ */
+@NotThreadSafe
+public class VectorRasterizer {
+
+    public static final int TILE_SIZE = 256;
+
+    private final Path2D.Float path = new Path2D.Float(Path2D.WIND_NON_ZERO, 1024);
+
+    private int[] table = new int[64];
+    private int[] featureRule = new int[256];
+    private int[] ruleStart = new int[16];
+    private int[] sorted = new int[256];
+
+    public BufferedImage render(VectorTile tile, VectorStyle style, int zoom) {
+        return render(tile, style, zoom, 0, 0, 0);
+    }
+
+    /**
+     * Draw part of a tile scaled up, as its descendant {@code levels} zoom
+     * levels down.
+     *
+     * @param zoom
+     *            the zoom level being drawn, for the style's rules
+     * @param subX
+     *            which of the 2^levels columns to draw
+     * @param subY
+     *            which of the 2^levels rows to draw
+     */
+    public BufferedImage render(VectorTile tile, VectorStyle style, int zoom, int levels, int subX, int subY) {
+        int rules = style.getRuleCount();
+        bucket(tile, style, zoom);
+
+        BufferedImage img = CompatibleImages.create(TILE_SIZE, TILE_SIZE, Transparency.OPAQUE);
+        Graphics2D g = img.createGraphics();
+        try {
+            g.setColor(style.getBackground());
+            g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+            for (int r = 0; r < rules; r++) {
+                if (ruleStart[r] == ruleStart[r + 1]) {
+                    continue;
+                }
+                VectorStyle.Rule rule = style.getRule(r);
+                path.reset();
+                for (int i = ruleStart[r]; i < ruleStart[r + 1]; i++) {
+                    append(tile, sorted[i], levels, subX, subY, rule.type == VectorTile.POLYGON);
+                }
+                g.setColor(rule.color);
+                if (rule.type == VectorTile.POLYGON) {
+                    g.fill(path);
+                } else {
+                    g.setStroke(rule.stroke);
+                    g.draw(path);
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+        return img;
+    }
+
+    /**
+     * Find each feature's rule, through a table by layer, kind and type so
+     * the style is only consulted once per combination, then counting sort
+     * the features by rule.
+     */
+    private void bucket(VectorTile tile, VectorStyle style, int zoom) {
+        int rules = style.getRuleCount();
+        int kinds = tile.getKindCount() + 1;
+        int tableSize = tile.getLayerCount() * kinds * 4;
+        if (table.length < tableSize) {
+            table = new int[tableSize];
+        }
+        // rule + 1, so 0 is still to be looked up
+        Arrays.fill(table, 0, tableSize, 0);
+
+        int features = tile.getFeatureCount();
+        if (featureRule.length < features) {
+            featureRule = new int[features];
+            sorted = new int[features];
+        }
+        if (ruleStart.length < rules + 2) {
+            ruleStart = new int[rules + 2];
+        }
+        Arrays.fill(ruleStart, 0, rules + 2, 0);
+
+        for (int f = 0; f < features; f++) {
+            int type = tile.getType(f);
+            int rule = -1;
+            if (type == VectorTile.LINESTRING || type == VectorTile.POLYGON) {
+                int layer = tile.getLayer(f), kind = tile.getKind(f);
+                int slot = (layer * kinds + kind + 1) * 4 + type;
+                if (table[slot] == 0) {
+                    table[slot] = 1 + style.match(tile.getLayerName(layer), kind < 0 ? null : tile.getKindName(kind), type, zoom);
+                }
+                rule = table[slot] - 1;
+            }
+            featureRule[f] = rule;
+            if (rule >= 0) {
+                ruleStart[rule + 2]++;
+            }
+        }
+        for (int r = 2; r < rules + 2; r++) {
+            ruleStart[r] += ruleStart[r - 1];
+        }
+        for (int f = 0; f < features; f++) {
+            int rule = featureRule[f];
+            if (rule >= 0) {
+                sorted[ruleStart[rule + 1]++] = f;
+            }
+        }
+        // ruleStart[r] is now where rule r's features start
+    }
+
+    private void append(VectorTile tile, int feature, int levels, int subX, int subY, boolean close) {
+        float scale = (float) (TILE_SIZE << levels) / tile.getLayerExtent(tile.getLayer(feature));
+        float offsetX = -subX * TILE_SIZE, offsetY = -subY * TILE_SIZE;
+        // generous enough for the widest stroke
+        float min = -8, max = TILE_SIZE + 8;
+
+        for (int p = tile.getFirstPart(feature); p < tile.getEndPart(feature); p++) {
+            int start = tile.getPartStart(p), end = tile.getPartEnd(p);
+            if (end - start < 2) {
+                continue;
+            }
+            if (levels > 0) {
+                // zoomed in, most parts miss the tile altogether
+                float x0 = Float.MAX_VALUE, y0 = Float.MAX_VALUE, x1 = -Float.MAX_VALUE, y1 = -Float.MAX_VALUE;
+                for (int v = start; v < end; v++) {
+                    float x = tile.getX(v) * scale + offsetX, y = tile.getY(v) * scale + offsetY;
+                    x0 = Math.min(x0, x);
+                    x1 = Math.max(x1, x);
+                    y0 = Math.min(y0, y);
+                    y1 = Math.max(y1, y);
+                }
+                if (x1 < min || y1 < min || x0 > max || y0 > max) {
+                    continue;
+                }
+            }
+            path.moveTo(tile.getX(start) * scale + offsetX, tile.getY(start) * scale + offsetY);
+            for (int v = start + 1; v < end; v++) {
+                path.lineTo(tile.getX(v) * scale + offsetX, tile.getY(v) * scale + offsetY);
+            }
+            if (close) {
+                path.closePath();
+            }
+        }
+    }
+}
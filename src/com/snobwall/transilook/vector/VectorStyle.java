@@ -0,0 +1,127 @@
+package com.snobwall.transilook.vector;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * How to draw a vector tile: a background colour and an ordered list of
+ * rules, each matching features by source layer, kind and geometry type
+ * from a minimum zoom on. A feature is drawn by the first rule it matches,
+ * and rules are drawn in order, so later rules paint over earlier ones.
+ *
+ * @author mrb
+ *
+ */
+@Immutable
+public class VectorStyle {
+
+    public static final VectorStyle DEFAULT = new Builder(new Color(0xf2efe9))
+            .fill("water", null, new Color(0xaad3df), 0)
+            .fill("landuse", "park", new Color(0xc8facc), 0)
+            .fill("landuse", null, new Color(0xe0dfdf), 0)
+            .fill("building", null, new Color(0xd9d0c9), 14)
+            .line("boundary", null, new Color(0x9e9cab), 1f, 0)
+            .line("transportation", "minor", Color.WHITE, 1.5f, 13)
+            .line("transportation", "secondary", new Color(0xf7fabf), 2.5f, 0)
+            .line("transportation", "primary", new Color(0xfcd6a4), 3f, 0)
+            .line("transportation", "motorway", new Color(0xe892a2), 4f, 0)
+            .line("transportation", null, Color.WHITE, 1.5f, 12)
+            .build();
+
+    private final Color background;
+    private final Rule[] rules;
+
+    private VectorStyle(Color background, List<Rule> rules) {
+        super();
+        this.background = background;
+        this.rules = rules.toArray(new Rule[rules.size()]);
+    }
+
+    public Color getBackground() {
+        return background;
+    }
+
+    public int getRuleCount() {
+        return rules.length;
+    }
+
+    public Rule getRule(int rule) {
+        return rules[rule];
+    }
+
+    /**
+     * @return the first rule matching a feature, or -1 if it is not drawn
+     */
+    public int match(String layer, String kind, int type, int zoom) {
+        for (int i = 0; i < rules.length; i++) {
+            if (rules[i].matches(layer, kind, type, zoom)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Immutable
+    public static class Rule {
+        public final String layer;
+        /** null to match any kind. */
+        public final String kind;
+        public final int type;
+        public final int minZoom;
+        /** Polygons are filled with it, lines stroked. */
+        public final Color color;
+        public final BasicStroke stroke;
+
+        Rule(String layer, String kind, int type, int minZoom, Color color, float width) {
+            this.layer = layer;
+            this.kind = kind;
+            this.type = type;
+            this.minZoom = minZoom;
+            this.color = color;
+            this.stroke = width > 0 ? new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND) : null;
+        }
+
+        boolean matches(String layer, String kind, int type, int zoom) {
+            return zoom >= minZoom && type == this.type && this.layer.equals(layer) && (this.kind == null || this.kind.equals(kind));
+        }
+    }
+
+    public static class Builder {
+        private final Color background;
+        private final ArrayList<Rule> rules = new ArrayList<Rule>();
+
+        public Builder(Color background) {
+            this.background = background;
+        }
+
+        /**
+         * Fill polygons of a layer.
+         *
+         * @param kind
+         *            null to match any
+         */
+        public Builder fill(String layer, String kind, Color color, int minZoom) {
+            rules.add(new Rule(layer, kind, VectorTile.POLYGON, minZoom, color, 0));
+            return this;
+        }
+
+        /**
+         * Stroke lines of a layer.
+         *
+         * @param kind
+         *            null to match any
+         */
+        public Builder line(String layer, String kind, Color color, float width, int minZoom) {
+            rules.add(new Rule(layer, kind, VectorTile.LINESTRING, minZoom, color, width));
+            return this;
+        }
+
+        public VectorStyle build() {
+            return new VectorStyle(background, rules);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.snobwall.transilook.vector;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * A decoded vector tile, held as primitive columns rather than an object
+ * per feature.
+ *
+ * Every feature belongs to a source layer and has a geometry type and a
+ * kind, the value of its "class" or "kind" attribute, which is what styles
+ * match on. Its geometry is one or more parts (points, lines or polygon
+ * rings), each a run of vertices in the tile's own coordinates, 0 to the
+ * layer's extent across.
+ *
+ * @author mrb
+ *
+ */
+@Immutable
+public class VectorTile {
+
+    public static final int POINT = 1, LINESTRING = 2, POLYGON = 3;
+
+    private final String[] layerNames;
+    private final int[] layerExtents;
+    private final String[] kinds;
+
+    private final int[] featureLayer;
+    private final byte[] featureType;
+    /** Index into kinds, or -1 for none. */
+    private final int[] featureKind;
+    /** Parts of feature f are partStart[featureParts[f]] until featureParts[f + 1]. */
+    private final int[] featureParts;
+    /** Vertices of part p are at coords[2 * partStart[p]] until coords[2 * partStart[p + 1]]. */
+    private final int[] partStart;
+    private final int[] coords;
+
+    VectorTile(String[] layerNames, int[] layerExtents, String[] kinds, int[] featureLayer, byte[] featureType, int[] featureKind,
+            int[] featureParts, int[] partStart, int[] coords) {
+        super();
+        this.layerNames = layerNames;
+        this.layerExtents = layerExtents;
+        this.kinds = kinds;
+        this.featureLayer = featureLayer;
+        this.featureType = featureType;
+        this.featureKind = featureKind;
+        this.featureParts = featureParts;
+        this.partStart = partStart;
+        this.coords = coords;
+    }
+
+    public int getLayerCount() {
+        return layerNames.length;
+    }
+
+    public String getLayerName(int layer) {
+        return layerNames[layer];
+    }
+
+    public int getLayerExtent(int layer) {
+        return layerExtents[layer];
+    }
+
+    public int getKindCount() {
+        return kinds.length;
+    }
+
+    public String getKindName(int kind) {
+        return kinds[kind];
+    }
+
+    public int getFeatureCount() {
+        return featureLayer.length;
+    }
+
+    public int getLayer(int feature) {
+        return featureLayer[feature];
+    }
+
+    public int getType(int feature) {
+        return featureType[feature];
+    }
+
+    /** @return the feature's kind, as an index for {@link #getKindName(int)}, or -1 */
+    public int getKind(int feature) {
+        return featureKind[feature];
+    }
+
+    public int getFirstPart(int feature) {
+        return featureParts[feature];
+    }
+
+    public int getEndPart(int feature) {
+        return featureParts[feature + 1];
+    }
+
+    /** @return the index of the part's first vertex; its vertices run until {@link #getPartEnd(int)} */
+    public int getPartStart(int part) {
+        return partStart[part];
+    }
+
+    public int getPartEnd(int part) {
+        return partStart[part + 1];
+    }
+
+    public int getX(int vertex) {
+        return coords[2 * vertex];
+    }
+
+    public int getY(int vertex) {
+        return coords[2 * vertex + 1];
+    }
+
+    public int getVertexCount() {
+        return coords.length / 2;
+    }
+
+    /** @return roughly how much memory the tile takes, for cache budgets */
+    public long getBytes() {
+        return 4L * coords.length + 4L * partStart.length + 13L * featureLayer.length + 64L * (layerNames.length + kinds.length);
+    }
+}
@@ -0,0 +1,28 @@
+package com.snobwall.transilook.vector;
+
+import java.io.IOException;
+
+import com.snobwall.transilook.osm.TileRef;
+
+/**
+ * Where a {@link com.snobwall.transilook.layers.VectorLayer} gets its raw
+ * MVT bytes from. Called from fetch threads, so implementations must be
+ * thread safe.
+ *
+ * @author mrb
+ *
+ */
+public interface VectorTileSource {
+
+    /**
+     * @return the tile's MVT bytes, possibly gzipped, or null if the source
+     *         has no such tile
+     */
+    byte[] fetch(TileRef tile) throws IOException;
+
+    /**
+     * @return the deepest zoom level the source has tiles for; deeper levels
+     *         are drawn from these
+     */
+    int getMaxZoom();
+}